@@ -0,0 +1,89 @@
+package zed.tools.lib.nsdconnect.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import zed.tools.lib.nsdconnect.core.CommsFrame;
+import zed.tools.lib.nsdconnect.core.CommsFrameDecoder;
+
+
+// The frame codec on its own, without sockets or threads, so its share of the
+// MessagePathBenchmark figures and of the allocation per message can be seen.
+@State( Scope.Thread )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class CommsFrameBenchmark
+{
+    // Constants:
+    private static final int    MSG_TEXT   = 1;
+    // The same size the receiving thread reads into.
+    private static final int    CHUNK_SIZE = 8 * 1024;
+
+    // Parameters:
+    @Param( { "16", "256", "4096", "65536", "1048576" } )
+    public int                  messageSize;
+
+    // Member variables:
+    private String              m_text;
+    private byte[]              m_encoded;
+    private CommsFrameDecoder   m_decoder;
+
+
+    @Setup
+    public void setUp()
+    {
+        char[] text = new char[messageSize];
+
+        Arrays.fill( text, 'x' );
+        m_text = new String( text );
+
+        ByteBuffer encoded = CommsFrame.createText( MSG_TEXT, m_text ).encode();
+
+        m_encoded = new byte[encoded.remaining()];
+        encoded.get( m_encoded );
+        m_decoder = new CommsFrameDecoder();
+    }
+
+
+    @Benchmark
+    public ByteBuffer encode()
+    {
+        return CommsFrame.createText( MSG_TEXT, m_text ).encode();
+    }
+
+
+    // Decode as the receiving thread does, in socket sized chunks.
+    @Benchmark
+    public void decode( Blackhole blackhole ) throws IOException
+    {
+        for ( int offset = 0; offset < m_encoded.length; offset += CHUNK_SIZE )
+        {
+            m_decoder.append( m_encoded, offset, Math.min( CHUNK_SIZE, m_encoded.length - offset ) );
+
+            CommsFrame frame;
+
+            while ( ( frame = m_decoder.next() ) != null )
+            {
+                blackhole.consume( frame.getText() );
+            }
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package zed.tools.lib.nsdconnect.bench;
+
+import java.util.Random;
+
+import zed.tools.lib.nsdconnect.core.CommsClient;
+import zed.tools.lib.nsdconnect.core.CommsDiscovery;
+import zed.tools.lib.nsdconnect.core.CommsEngine;
+import zed.tools.lib.nsdconnect.core.CommsListener;
+import zed.tools.lib.nsdconnect.core.CommsLog;
+import zed.tools.lib.nsdconnect.core.CommsLooper;
+import zed.tools.lib.nsdconnect.core.CommsResolveScheduler;
+import zed.tools.lib.nsdconnect.core.CommsServiceCache;
+import zed.tools.lib.nsdconnect.core.CommsServiceInfo;
+import zed.tools.lib.nsdconnect.core.CommsServiceMetadata;
+import zed.tools.lib.nsdconnect.core.DiscoveryBackend;
+
+
+// A CommsEngine joined to a DiscoveryBackend the way NsdHelper joins
+// NsdService's engine to the NsdManager, for peers off Android. It registers
+// the engine's server and resolves the peers it finds through the same
+// CommsResolveScheduler and CommsServiceCache as NsdHelper, so a service
+// found again within its time to live isn't resolved again, and a lost one
+// is held for the grace period in case it comes back before its connection
+// is dropped. It advertises the same metadata as NsdService and skips
+// incompatible peers. The timers run on the given looper.
+public class DiscoveryPeer implements CommsDiscovery
+{
+    // Constants:
+    private static final String                      TAG                    = DiscoveryPeer.class.getSimpleName();
+    // As NsdHelper.
+    public static final String                       SERVICE_TYPE           = "_http._tcp.";
+    public static final String                       SERVICE_NAME_PREFIX    = "NsdComms";
+    public static final long                         DEFAULT_LOST_GRACE_MS  = 15 * 1000;
+
+    // Member variables:
+    private final String                             m_serviceName;
+    private final DiscoveryBackend                   m_discoveryBackend;
+    private final CommsLooper                        m_looper;
+    private final CommsEngine                        m_commsEngine;
+    private final CommsLog                           m_log;
+    private final CommsServiceCache                  m_remoteServices;
+    private final CommsResolveScheduler              m_resolveScheduler;
+    private final DiscoveryBackend.DiscoveryListener m_discoveryListener    = new PeerDiscoveryListener();
+    private DiscoveryBackend.RegistrationListener    m_registrationListener = null;
+    private String                                   m_localServiceName     = null;
+    private volatile long                            m_lostGraceMs          = DEFAULT_LOST_GRACE_MS;
+
+
+    public DiscoveryPeer( String serviceName, DiscoveryBackend discoveryBackend, CommsLooper looper, CommsListener listener, CommsLog log )
+    {
+        m_serviceName = SERVICE_NAME_PREFIX + " " + serviceName;
+        m_discoveryBackend = discoveryBackend;
+        m_looper = looper;
+        m_commsEngine = new CommsEngine( this, listener, log );
+        m_log = log;
+        m_remoteServices = new CommsServiceCache( looper );
+        m_resolveScheduler = new CommsResolveScheduler( discoveryBackend, looper, new PeerResolveHandler(), log );
+    }
+
+
+    public CommsEngine getCommsEngine()
+    {
+        return m_commsEngine;
+    }
+
+
+    public DiscoveryBackend getDiscoveryBackend()
+    {
+        return m_discoveryBackend;
+    }
+
+
+    public CommsServiceCache getServiceCache()
+    {
+        return m_remoteServices;
+    }
+
+
+    // Seeds the resolve and connect delays, so a simulated peer does the same each run.
+    public void setSeed( long seed )
+    {
+        Random random = new Random( seed );
+
+        m_resolveScheduler.setSeed( random.nextLong() );
+        m_commsEngine.getConnectScheduler().setSeed( random.nextLong() );
+    }
+
+
+    // Zero drops a lost service's connection straight away.
+    public void setLostGraceMs( long lostGraceMs )
+    {
+        m_lostGraceMs = Math.max( 0, lostGraceMs );
+    }
+
+
+    public void start()
+    {
+        m_commsEngine.startServer();
+        m_discoveryBackend.discoverServices( SERVICE_TYPE, m_discoveryListener );
+    }
+
+
+    public void tearDown()
+    {
+        m_resolveScheduler.clear();
+        m_commsEngine.tearDown();
+        m_discoveryBackend.tearDown();
+    }
+
+
+    // The number of clients that are connected.
+    public int getConnectedCount()
+    {
+        int count = 0;
+
+        for ( CommsClient commsClient : m_commsEngine.getCommsClients() )
+        {
+            if ( commsClient.isConnected() )
+            {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+
+    // @Override
+    public synchronized void registerService( int port )
+    {
+        if ( m_registrationListener != null )
+        {
+            return;
+        }
+
+        CommsServiceInfo serviceInfo = new CommsServiceInfo( m_serviceName, SERVICE_TYPE, null, port );
+        CommsServiceMetadata metadata = new CommsServiceMetadata();
+
+        metadata.setProtocolVersion( CommsServiceMetadata.PROTOCOL_VERSION );
+        metadata.setCodecs( CommsServiceMetadata.CODEC_FRAME );
+        metadata.setCompressions( CommsServiceMetadata.COMPRESSION_NONE );
+        metadata.setInstanceId( m_commsEngine.getInstanceId() );
+        serviceInfo.setAttributes( metadata.toAttributes() );
+
+        m_registrationListener = new PeerRegistrationListener();
+        m_discoveryBackend.registerService( serviceInfo, m_registrationListener );
+    }
+
+
+    // @Override
+    public synchronized void unregisterService()
+    {
+        if ( m_registrationListener == null )
+        {
+            return;
+        }
+
+        try
+        {
+            m_discoveryBackend.unregisterService( m_registrationListener );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            m_log.w( TAG, "Service not registered: " + e );
+        }
+
+        m_registrationListener = null;
+        m_localServiceName = null;
+    }
+
+
+    private synchronized boolean isLocalService( String serviceName )
+    {
+        return ( m_localServiceName != null && serviceName.equals( m_localServiceName ) );
+    }
+
+
+    private synchronized void setLocalServiceName( String serviceName )
+    {
+        m_localServiceName = serviceName;
+    }
+
+
+    // Connect to a resolved service if it's new or has moved.
+    private void onResolved( CommsServiceInfo serviceInfo )
+    {
+        if ( !CommsServiceMetadata.fromAttributes( serviceInfo.getAttributes() ).isCompatible() )
+        {
+            m_log.i( TAG, "Not connecting to incompatible service: " + serviceInfo );
+            return;
+        }
+
+        if ( m_remoteServices.put( serviceInfo ) )
+        {
+            m_log.d( TAG, "Connecting to: " + serviceInfo );
+            m_commsEngine.connectToServer( serviceInfo.getHost(), serviceInfo.getPort() );
+        }
+        else
+        {
+            // Resolved again to the same place, the connection is left alone.
+            m_log.d( TAG, "Service unchanged: " + serviceInfo.getServiceName() );
+        }
+    }
+
+
+    // Hold a lost service for the grace period before dropping its connection.
+    private void onLost( final String serviceName )
+    {
+        m_resolveScheduler.cancel( serviceName );
+
+        final long suspectTime = m_remoteServices.markSuspect( serviceName );
+
+        if ( suspectTime == 0 )
+        {
+            return;
+        }
+
+        m_looper.postDelayed( new Runnable()
+        {
+            public void run()
+            {
+                CommsServiceCache.Entry removedEntry = m_remoteServices.removeIfSuspect( serviceName, suspectTime );
+
+                if ( removedEntry != null )
+                {
+                    m_log.d( TAG, "Service lost: " + removedEntry.getServiceInfo() );
+                    m_commsEngine.removeServiceIfLost( removedEntry.getHost(), removedEntry.getPort() );
+                }
+            }
+        }, m_lostGraceMs );
+    }
+
+
+    private class PeerRegistrationListener implements DiscoveryBackend.RegistrationListener
+    {
+        // @Override
+        public void onServiceRegistered( CommsServiceInfo serviceInfo )
+        {
+            m_log.i( TAG, "Service registered: " + serviceInfo.getServiceName() );
+
+            setLocalServiceName( serviceInfo.getServiceName() );
+        }
+
+
+        // @Override
+        public void onRegistrationFailed( CommsServiceInfo serviceInfo, int errorCode )
+        {
+            m_log.e( TAG, "Service registration failed: " + errorCode );
+        }
+
+
+        // @Override
+        public void onServiceUnregistered( CommsServiceInfo serviceInfo )
+        {
+            m_log.i( TAG, "Service unregistered: " + serviceInfo.getServiceName() );
+        }
+
+
+        // @Override
+        public void onUnregistrationFailed( CommsServiceInfo serviceInfo, int errorCode )
+        {
+            m_log.e( TAG, "Service unregistration failed: " + errorCode );
+        }
+    }
+
+
+    private class PeerDiscoveryListener implements DiscoveryBackend.DiscoveryListener
+    {
+        // @Override
+        public void onDiscoveryStarted( String serviceType )
+        {
+            m_log.i( TAG, "Service discovery started: " + serviceType );
+        }
+
+
+        // @Override
+        public void onDiscoveryFailed( String serviceType, int errorCode )
+        {
+            m_log.e( TAG, "Service discovery failed: " + errorCode );
+        }
+
+
+        // @Override
+        public void onDiscoveryStopped( String serviceType )
+        {
+            m_log.i( TAG, "Service discovery stopped: " + serviceType );
+        }
+
+
+        // @Override
+        public void onServiceFound( CommsServiceInfo serviceInfo )
+        {
+            String serviceName = serviceInfo.getServiceName();
+
+            if ( isLocalService( serviceName ) || !serviceName.contains( m_serviceName ) )
+            {
+                return;
+            }
+
+            if ( serviceInfo.isResolved() && m_discoveryBackend.isResolvedOnFound() )
+            {
+                m_remoteServices.onServiceFound( serviceName );
+                onResolved( serviceInfo );
+            }
+            else if ( m_remoteServices.onServiceFound( serviceName ) == null )
+            {
+                m_resolveScheduler.schedule( serviceInfo );
+            }
+        }
+
+
+        // @Override
+        public void onServiceLost( CommsServiceInfo serviceInfo )
+        {
+            if ( !isLocalService( serviceInfo.getServiceName() ) )
+            {
+                onLost( serviceInfo.getServiceName() );
+            }
+        }
+    }
+
+
+    private class PeerResolveHandler implements CommsResolveScheduler.ResolveHandler
+    {
+        // @Override
+        public void onResolved( CommsServiceInfo serviceInfo )
+        {
+            DiscoveryPeer.this.onResolved( serviceInfo );
+        }
+
+
+        // @Override
+        public void onResolveAbandoned( CommsServiceInfo serviceInfo, int errorCode )
+        {
+            m_log.w( TAG, "Giving up resolving: " + serviceInfo.getServiceName() + " " + errorCode );
+        }
+    }
+}
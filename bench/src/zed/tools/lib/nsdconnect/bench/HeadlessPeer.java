@@ -0,0 +1,323 @@
+package zed.tools.lib.nsdconnect.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import zed.tools.lib.nsdconnect.core.CommsFrame;
+import zed.tools.lib.nsdconnect.core.CommsFrameDecoder;
+
+
+// A peer without an engine, speaking the frame format on a plain socket.
+// It connects from its own loopback address, so the server sees a distinct
+// host for each peer, sends timestamped text messages at a fixed rate and
+// randomly drops its connection and reconnects.
+public class HeadlessPeer
+{
+    // Constants:
+    private static final String TAG               = HeadlessPeer.class.getSimpleName();
+    public static final String  PEER_THREAD_NAME  = "SoakPeer";
+    private static final int    READ_BUFFER_SIZE  = 8 * 1024;
+    private static final long   RECONNECT_WAIT_MS = 500;
+
+    // Member variables:
+    private final int               m_index;
+    private final InetSocketAddress m_serverAddress;
+    private final int               m_msgType;
+    private final double            m_rate;
+    private final int               m_msgSize;
+    private final double            m_dropProbability;
+    private final Random            m_random;
+    private final SoakStats         m_stats;
+    private volatile boolean        m_running         = false;
+    private volatile Socket         m_socket          = null;
+    private Thread                  m_peerThread      = null;
+    private final AtomicLong        m_connects        = new AtomicLong();
+
+
+    // The drop probability is the chance of dropping the connection each second.
+    public HeadlessPeer( int index, InetSocketAddress serverAddress, int msgType, double rate, int msgSize, double dropProbability, long seed, SoakStats stats )
+    {
+        m_index = index;
+        m_serverAddress = serverAddress;
+        m_msgType = msgType;
+        m_rate = rate;
+        m_msgSize = msgSize;
+        m_dropProbability = dropProbability;
+        m_random = new Random( seed );
+        m_stats = stats;
+    }
+
+
+    public void start()
+    {
+        m_running = true;
+        m_peerThread = new Thread( new PeerThread(), PEER_THREAD_NAME + ":" + m_index );
+        m_peerThread.start();
+    }
+
+
+    public void stop() throws InterruptedException
+    {
+        m_running = false;
+        closeSocket();
+
+        if ( m_peerThread != null )
+        {
+            m_peerThread.interrupt();
+            m_peerThread.join();
+        }
+
+        m_peerThread = null;
+    }
+
+
+    public boolean isConnected()
+    {
+        Socket socket = m_socket;
+
+        return ( socket != null && socket.isConnected() && !socket.isClosed() );
+    }
+
+
+    public long getConnects()
+    {
+        return m_connects.get();
+    }
+
+
+    private void closeSocket()
+    {
+        Socket socket = m_socket;
+
+        m_socket = null;
+
+        if ( socket == null )
+        {
+            return;
+        }
+
+        try
+        {
+            socket.close();
+        }
+        catch ( IOException ioe )
+        {
+            System.err.println( TAG + ": Error when closing socket: " + ioe.toString() );
+        }
+    }
+
+
+    private Socket openSocket() throws IOException
+    {
+        Socket socket = new Socket();
+
+        try
+        {
+            socket.setReuseAddress( true );
+            // Each message is written and flushed on its own, don't let Nagle hold them back.
+            socket.setTcpNoDelay( true );
+            socket.bind( new InetSocketAddress( LoopbackCluster.getPeerAddress( m_index ), 0 ) );
+            socket.connect( m_serverAddress );
+        }
+        catch ( IOException ex )
+        {
+            socket.close();
+            throw ex;
+        }
+
+        return socket;
+    }
+
+
+    // The text carries the send time so the receiver can work out the latency.
+    private ByteBuffer createMessage()
+    {
+        StringBuilder text = new StringBuilder( Math.max( m_msgSize, 32 ) );
+
+        text.append( System.nanoTime() ).append( ' ' );
+
+        while ( text.length() < m_msgSize )
+        {
+            text.append( 'x' );
+        }
+
+        return CommsFrame.createText( m_msgType, text.toString() ).encode();
+    }
+
+
+    // The send time in a message created by any peer, or -1 if there isn't one.
+    public static long getSendTime( String text )
+    {
+        int end = text.indexOf( ' ' );
+
+        try
+        {
+            return Long.parseLong( ( end < 0 ) ? text : text.substring( 0, end ) );
+        }
+        catch ( NumberFormatException ex )
+        {
+            return -1;
+        }
+    }
+
+
+    // Connects, sends at the configured rate until the connection is dropped, then waits and reconnects.
+    class PeerThread implements Runnable
+    {
+        // @Override
+        public void run()
+        {
+            long intervalNanos = ( m_rate > 0 ) ? (long) ( 1e9 / m_rate ) : 0;
+            // Chance of a drop per message, or per idle tick when not sending.
+            double dropPerTick = m_dropProbability * ( ( intervalNanos > 0 ) ? intervalNanos / 1e9 : 0.1 );
+
+            while ( m_running )
+            {
+                try
+                {
+                    Socket socket = openSocket();
+
+                    m_socket = socket;
+                    m_connects.incrementAndGet();
+                    m_stats.onPeerConnected( true );
+
+                    Thread receivingThread = new Thread( new ReceivingThread( socket ), PEER_THREAD_NAME + ":" + m_index + ":Receiving" );
+
+                    receivingThread.start();
+
+                    try
+                    {
+                        sendLoop( socket, intervalNanos, dropPerTick );
+                    }
+                    finally
+                    {
+                        closeSocket();
+                        receivingThread.join();
+                        m_stats.onPeerConnected( false );
+                    }
+                }
+                catch ( IOException ex )
+                {
+                    m_stats.onPeerError();
+                }
+                catch ( InterruptedException ie )
+                {
+                    break;
+                }
+
+                if ( m_running )
+                {
+                    try
+                    {
+                        Thread.sleep( RECONNECT_WAIT_MS + m_random.nextInt( (int) RECONNECT_WAIT_MS ) );
+                    }
+                    catch ( InterruptedException ie )
+                    {
+                        break;
+                    }
+                }
+            }
+        }
+
+
+        private void sendLoop( Socket socket, long intervalNanos, double dropPerTick ) throws IOException
+        {
+            OutputStream outputStream = socket.getOutputStream();
+            long nextSend = System.nanoTime();
+
+            // The receiving thread closes the socket if the server ends the connection.
+            while ( m_running && !socket.isClosed() && !Thread.currentThread().isInterrupted() )
+            {
+                if ( m_random.nextDouble() < dropPerTick )
+                {
+                    m_stats.onPeerDropped();
+                    return;
+                }
+
+                if ( intervalNanos == 0 )
+                {
+                    // Receive only.
+                    LockSupport.parkNanos( 100 * 1000 * 1000 );
+                    continue;
+                }
+
+                ByteBuffer frame = createMessage();
+
+                outputStream.write( frame.array(), frame.arrayOffset() + frame.position(), frame.remaining() );
+                outputStream.flush();
+                m_stats.onSent( frame.remaining() );
+
+                nextSend += intervalNanos;
+
+                long wait = nextSend - System.nanoTime();
+
+                if ( wait > 0 )
+                {
+                    LockSupport.parkNanos( wait );
+                }
+                else if ( wait < -1000L * 1000 * 1000 )
+                {
+                    // Over a second behind, don't try to catch up.
+                    nextSend = System.nanoTime();
+                }
+            }
+        }
+    }
+
+
+    // Reads what the server broadcasts, recording the latency of each message.
+    class ReceivingThread implements Runnable
+    {
+        private final Socket m_receivingSocket;
+
+
+        public ReceivingThread( Socket socket )
+        {
+            m_receivingSocket = socket;
+        }
+
+
+        // @Override
+        public void run()
+        {
+            CommsFrameDecoder frameDecoder = new CommsFrameDecoder();
+            byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+
+            try
+            {
+                InputStream inputStream = m_receivingSocket.getInputStream();
+                int count;
+
+                while ( ( count = inputStream.read( readBuffer ) ) >= 0 )
+                {
+                    frameDecoder.append( readBuffer, 0, count );
+
+                    CommsFrame frame;
+
+                    while ( ( frame = frameDecoder.next() ) != null )
+                    {
+                        m_stats.onReceivedByPeer( frame );
+                    }
+                }
+            }
+            catch ( IOException ex )
+            {
+                // Closed by a drop or by the server.
+            }
+
+            // Make the sending side notice if the server closed the connection.
+            if ( m_socket == m_receivingSocket )
+            {
+                closeSocket();
+            }
+        }
+    }
+}
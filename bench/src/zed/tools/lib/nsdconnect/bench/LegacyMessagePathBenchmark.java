@@ -0,0 +1,201 @@
+package zed.tools.lib.nsdconnect.bench;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+// The message path as it was before the frame transport, the baseline that
+// MessagePathBenchmark is judged against. Same shape: a hub sends one text
+// message to every peer over loopback and an operation ends when all have
+// read it.
+//
+// "objectStream" is NsdService's old CommsClient: writeObject and flush on
+// the sending thread for each peer in turn, readObject on a receiving thread
+// per peer. The old code never reset its streams, so every string stayed in
+// both ends' handle tables; left like that the larger sizes run out of heap
+// within an iteration, so the sender resets after each message.
+//
+// "readLine" is NsdConnection's: a new PrintWriter for each message, println
+// and flush, and BufferedReader.readLine on the receiving thread.
+//
+// Each message is a new String, as it was when it came out of a Bundle.
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class LegacyMessagePathBenchmark
+{
+    // Constants:
+    private static final String  OBJECT_STREAM      = "objectStream";
+    private static final long    RECEIVE_TIMEOUT_MS = 30 * 1000;
+
+    // Parameters:
+    @Param( { "16", "256", "4096", "65536", "1048576" } )
+    public int                   messageSize;
+
+    @Param( { "1", "8", "64" } )
+    public int                   peerCount;
+
+    @Param( { OBJECT_STREAM, "readLine" } )
+    public String                codec;
+
+    // Member variables:
+    private char[]               m_text;
+    private ServerSocket         m_serverSocket;
+    private Socket[]             m_hubSockets;
+    private Socket[]             m_peerSockets;
+    private ObjectOutputStream[] m_objectOutputStreams;
+    private Thread[]             m_receivingThreads;
+    private final Semaphore      m_received = new Semaphore( 0 );
+
+
+    @Setup( Level.Trial )
+    public void setUp() throws IOException
+    {
+        boolean objectStream = OBJECT_STREAM.equals( codec );
+
+        m_text = new char[messageSize];
+        Arrays.fill( m_text, 'x' );
+
+        m_serverSocket = new ServerSocket( 0, peerCount, InetAddress.getLoopbackAddress() );
+        m_hubSockets = new Socket[peerCount];
+        m_peerSockets = new Socket[peerCount];
+        m_objectOutputStreams = new ObjectOutputStream[peerCount];
+        m_receivingThreads = new Thread[peerCount];
+
+        for ( int i = 0; i < peerCount; i++ )
+        {
+            m_hubSockets[i] = new Socket( InetAddress.getLoopbackAddress(), m_serverSocket.getLocalPort() );
+            m_peerSockets[i] = m_serverSocket.accept();
+
+            if ( objectStream )
+            {
+                // Writes the stream header the receiving side's constructor waits for.
+                m_objectOutputStreams[i] = new ObjectOutputStream( m_hubSockets[i].getOutputStream() );
+            }
+
+            m_receivingThreads[i] = new Thread( new ReceivingThread( m_peerSockets[i], objectStream ), "LegacyReceivingThread" + i );
+            m_receivingThreads[i].start();
+        }
+    }
+
+
+    @TearDown( Level.Trial )
+    public void tearDown() throws IOException
+    {
+        for ( int i = 0; i < peerCount; i++ )
+        {
+            m_receivingThreads[i].interrupt();
+            m_hubSockets[i].close();
+            m_peerSockets[i].close();
+        }
+
+        m_serverSocket.close();
+    }
+
+
+    @Benchmark
+    public void broadcast() throws IOException, InterruptedException
+    {
+        for ( int i = 0; i < peerCount; i++ )
+        {
+            String text = new String( m_text );
+
+            if ( m_objectOutputStreams[i] != null )
+            {
+                m_objectOutputStreams[i].writeObject( text );
+                m_objectOutputStreams[i].flush();
+                m_objectOutputStreams[i].reset();
+            }
+            else
+            {
+                PrintWriter out = new PrintWriter( new BufferedWriter( new OutputStreamWriter( m_hubSockets[i].getOutputStream() ) ), true );
+
+                out.println( text );
+                out.flush();
+            }
+        }
+
+        if ( !m_received.tryAcquire( peerCount, RECEIVE_TIMEOUT_MS, TimeUnit.MILLISECONDS ) )
+        {
+            throw new IOException( "Timed out waiting for " + peerCount + " peers to receive the message." );
+        }
+    }
+
+
+    class ReceivingThread implements Runnable
+    {
+        private final Socket  m_socket;
+        private final boolean m_objectStream;
+
+
+        ReceivingThread( Socket socket, boolean objectStream )
+        {
+            m_socket = socket;
+            m_objectStream = objectStream;
+        }
+
+
+        // @Override
+        public void run()
+        {
+            try
+            {
+                if ( m_objectStream )
+                {
+                    ObjectInputStream input = new ObjectInputStream( m_socket.getInputStream() );
+
+                    while ( !Thread.currentThread().isInterrupted() && input.readObject() != null )
+                    {
+                        m_received.release();
+                    }
+                }
+                else
+                {
+                    BufferedReader input = new BufferedReader( new InputStreamReader( m_socket.getInputStream() ) );
+
+                    while ( !Thread.currentThread().isInterrupted() && input.readLine() != null )
+                    {
+                        m_received.release();
+                    }
+                }
+            }
+            catch ( IOException ex )
+            {
+                // The socket was closed at tear down.
+            }
+            catch ( ClassNotFoundException ex )
+            {
+                throw new IllegalStateException( ex );
+            }
+        }
+    }
+}
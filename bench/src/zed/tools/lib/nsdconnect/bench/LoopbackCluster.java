@@ -0,0 +1,207 @@
+package zed.tools.lib.nsdconnect.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import zed.tools.lib.nsdconnect.core.CommsClient;
+import zed.tools.lib.nsdconnect.core.CommsEngine;
+import zed.tools.lib.nsdconnect.core.CommsFrame;
+import zed.tools.lib.nsdconnect.core.CommsListener;
+import zed.tools.lib.nsdconnect.core.CommsLog;
+
+
+// A hub CommsEngine connected over loopback to a number of peer CommsEngines,
+// each running its own server, all in one JVM.
+// The engines key their clients by host address, so each peer is reached on
+// its own loopback address, 127.0.0.1, 127.0.0.2 and so on. Linux routes the
+// whole of 127/8 to the loopback interface, other systems may need aliases.
+public class LoopbackCluster
+{
+    // Constants:
+    private static final String     TAG       = LoopbackCluster.class.getSimpleName();
+    public static final int         MAX_PEERS = 250;
+
+    // Member variables:
+    private final CommsLog          m_log;
+    private final CommsEngine       m_hub;
+    private final CommsEngine[]     m_peers;
+    private final PortDiscovery[]   m_peerDiscoveries;
+    private final Semaphore         m_received = new Semaphore( 0 );
+
+
+    public LoopbackCluster( int peerCount, boolean useSelector, CommsLog log )
+    {
+        if ( peerCount < 1 || peerCount > MAX_PEERS )
+        {
+            throw new IllegalArgumentException( "Peer count must be 1 to " + MAX_PEERS + ": " + peerCount );
+        }
+
+        m_log = log;
+        m_hub = new CommsEngine( new PortDiscovery(), new HubListener(), log );
+        m_hub.setUseSelector( useSelector );
+        m_peers = new CommsEngine[peerCount];
+        m_peerDiscoveries = new PortDiscovery[peerCount];
+
+        for ( int i = 0; i < peerCount; i++ )
+        {
+            m_peerDiscoveries[i] = new PortDiscovery();
+            m_peers[i] = new CommsEngine( m_peerDiscoveries[i], new PeerListener(), log );
+            m_peers[i].setUseSelector( useSelector );
+        }
+    }
+
+
+    // Start every peer's server, connect the hub to each and wait until all are connected.
+    public void start( long timeoutMs ) throws IOException, InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+
+        // The hub's server also starts its selector thread when one is used.
+        m_hub.startServer();
+
+        for ( int i = 0; i < m_peers.length; i++ )
+        {
+            m_peers[i].startServer();
+        }
+
+        for ( int i = 0; i < m_peers.length; i++ )
+        {
+            int port = m_peerDiscoveries[i].awaitPort( remaining( deadline ) );
+
+            m_hub.connectToServer( getPeerAddress( i ), port );
+        }
+
+        while ( !isHubConnected() )
+        {
+            if ( remaining( deadline ) <= 0 )
+            {
+                throw new IOException( "Timed out connecting " + m_peers.length + " peers." );
+            }
+
+            Thread.sleep( 10 );
+        }
+
+        m_log.i( TAG, "Connected " + m_peers.length + " peers." );
+    }
+
+
+    public void tearDown()
+    {
+        m_hub.tearDown();
+
+        for ( CommsEngine peer : m_peers )
+        {
+            peer.tearDown();
+        }
+    }
+
+
+    public CommsEngine getHub()
+    {
+        return m_hub;
+    }
+
+
+    public CommsEngine getPeer( int index )
+    {
+        return m_peers[index];
+    }
+
+
+    public int getPeerCount()
+    {
+        return m_peers.length;
+    }
+
+
+    // Send a frame from the hub to every peer, returning the number it was queued for.
+    public int broadcast( CommsFrame frame )
+    {
+        return m_hub.sendToAll( frame );
+    }
+
+
+    // Wait for the peers to have received a number of frames in total.
+    public boolean awaitReceived( int count, long timeoutMs ) throws InterruptedException
+    {
+        return m_received.tryAcquire( count, timeoutMs, TimeUnit.MILLISECONDS );
+    }
+
+
+    public static InetAddress getPeerAddress( int index ) throws IOException
+    {
+        return InetAddress.getByAddress( new byte[] { 127, 0, 0, (byte) ( index + 1 ) } );
+    }
+
+
+    private boolean isHubConnected()
+    {
+        CommsClient[] commsClients = m_hub.getCommsClients();
+
+        if ( commsClients.length < m_peers.length )
+        {
+            return false;
+        }
+
+        for ( CommsClient commsClient : commsClients )
+        {
+            if ( !commsClient.isConnected() )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    private static long remaining( long deadline )
+    {
+        return Math.max( 0, deadline - System.currentTimeMillis() );
+    }
+
+
+    private class PeerListener implements CommsListener
+    {
+        // @Override
+        public void onFrameReceived( CommsClient commsClient, CommsFrame frame )
+        {
+            m_received.release();
+        }
+
+
+        // @Override
+        public void onConnectedChange( boolean connected )
+        {
+        }
+
+
+        // @Override
+        public void onClientConnectedChange( CommsClient commsClient, boolean connected )
+        {
+        }
+    }
+
+
+    private class HubListener implements CommsListener
+    {
+        // @Override
+        public void onFrameReceived( CommsClient commsClient, CommsFrame frame )
+        {
+        }
+
+
+        // @Override
+        public void onConnectedChange( boolean connected )
+        {
+        }
+
+
+        // @Override
+        public void onClientConnectedChange( CommsClient commsClient, boolean connected )
+        {
+        }
+    }
+}
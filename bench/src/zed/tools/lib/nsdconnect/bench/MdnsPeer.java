@@ -0,0 +1,129 @@
+package zed.tools.lib.nsdconnect.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import zed.tools.lib.nsdconnect.core.CommsClient;
+import zed.tools.lib.nsdconnect.core.CommsFrame;
+import zed.tools.lib.nsdconnect.core.CommsListener;
+import zed.tools.lib.nsdconnect.core.CommsLog;
+import zed.tools.lib.nsdconnect.core.MdnsDiscoveryBackend;
+import zed.tools.lib.nsdconnect.core.SystemCommsLog;
+import zed.tools.lib.nsdconnect.core.SystemCommsLooper;
+
+
+// A headless peer for Linux, a DiscoveryPeer on the MdnsDiscoveryBackend,
+// so it joins the same service as the app on the network. Lines read from
+// standard input are sent to every connected peer and text received is
+// printed. Options are name=value arguments, for example:
+//
+//   java -cp bench/target/benchmarks.jar zed.tools.lib.nsdconnect.bench.MdnsPeer service=Chat interface=192.168.1.10
+public class MdnsPeer
+{
+    // Constants:
+    private static final String     TAG      = MdnsPeer.class.getSimpleName();
+    // As NsdService.
+    private static final int        MSG_TEXT = 20;
+
+    // Member variables:
+    private final CommsLog          m_log;
+    private final SystemCommsLooper m_looper;
+    private final DiscoveryPeer     m_discoveryPeer;
+
+
+    public MdnsPeer( String serviceName, InetAddress interfaceAddress, boolean useSelector, CommsLog log )
+    {
+        m_log = log;
+        m_looper = new SystemCommsLooper( TAG + ":LooperThread", log );
+        m_discoveryPeer = new DiscoveryPeer( serviceName, new MdnsDiscoveryBackend( interfaceAddress, log ), m_looper, new PeerListener(), log );
+        m_discoveryPeer.getCommsEngine().setUseSelector( useSelector );
+    }
+
+
+    public static void main( String[] args ) throws Exception
+    {
+        Map<String, String> options = new HashMap<String, String>();
+
+        for ( String arg : args )
+        {
+            int equals = arg.indexOf( '=' );
+
+            if ( equals < 0 )
+            {
+                System.err.println( "Usage: " + TAG + " [service=NsdConnect] [interface=<address>] [selector=false]" );
+                System.exit( 1 );
+            }
+
+            options.put( arg.substring( 0, equals ), arg.substring( equals + 1 ) );
+        }
+
+        String interfaceName = options.get( "interface" );
+        InetAddress interfaceAddress = ( interfaceName == null ) ? null : InetAddress.getByName( interfaceName );
+        String serviceName = options.containsKey( "service" ) ? options.get( "service" ) : "NsdConnect";
+        boolean useSelector = Boolean.parseBoolean( options.get( "selector" ) );
+        MdnsPeer peer = new MdnsPeer( serviceName, interfaceAddress, useSelector, new SystemCommsLog() );
+
+        peer.start();
+        peer.readLines( new BufferedReader( new InputStreamReader( System.in, CommsFrame.TEXT_CHARSET ) ) );
+        peer.tearDown();
+        System.exit( 0 );
+    }
+
+
+    public void start()
+    {
+        m_discoveryPeer.start();
+    }
+
+
+    public void tearDown()
+    {
+        m_discoveryPeer.tearDown();
+        m_looper.tearDown();
+    }
+
+
+    // Sends each line to all connected peers, until the end of input.
+    public void readLines( BufferedReader reader ) throws IOException
+    {
+        String line;
+
+        while ( ( line = reader.readLine() ) != null )
+        {
+            int sent = m_discoveryPeer.getCommsEngine().sendToAll( CommsFrame.createText( MSG_TEXT, line ) );
+
+            m_log.i( TAG, "Sent to " + sent + " peers." );
+        }
+    }
+
+
+    private class PeerListener implements CommsListener
+    {
+        // @Override
+        public void onFrameReceived( CommsClient commsClient, CommsFrame frame )
+        {
+            if ( frame.getType() == MSG_TEXT )
+            {
+                System.out.println( commsClient.getInetAddress().getHostAddress() + ": " + frame.getText() );
+            }
+        }
+
+
+        // @Override
+        public void onConnectedChange( boolean connected )
+        {
+            m_log.i( TAG, connected ? "Connected." : "No longer connected." );
+        }
+
+
+        // @Override
+        public void onClientConnectedChange( CommsClient commsClient, boolean connected )
+        {
+            m_log.d( TAG, "Client " + commsClient.getInetAddress() + ( connected ? " connected." : " disconnected." ) );
+        }
+    }
+}
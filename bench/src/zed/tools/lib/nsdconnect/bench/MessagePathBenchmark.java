@@ -0,0 +1,101 @@
+package zed.tools.lib.nsdconnect.bench;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import zed.tools.lib.nsdconnect.core.CommsFrame;
+import zed.tools.lib.nsdconnect.core.SystemCommsLog;
+
+
+// The whole message path over loopback sockets: a text message is encoded once
+// by the hub, queued for every peer, written, read, decoded and delivered to
+// each peer's listener. One operation is one message delivered to all peers.
+//
+// Throughput mode gives messages per second, sample time mode gives the
+// latency distribution including p50 and p99. Add the gc profiler for the
+// allocation rate per message, for example:
+//
+//   mvn -f bench/pom.xml package
+//   java -jar bench/target/benchmarks.jar MessagePathBenchmark -prof gc
+//
+// LegacyMessagePathBenchmark runs the same way over the streams these replaced.
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class MessagePathBenchmark
+{
+    // Constants:
+    private static final int    MSG_TEXT           = 1;
+    private static final long   START_TIMEOUT_MS   = 30 * 1000;
+    private static final long   RECEIVE_TIMEOUT_MS = 30 * 1000;
+
+    // Parameters:
+    @Param( { "16", "256", "4096", "65536", "1048576" } )
+    public int                  messageSize;
+
+    @Param( { "1", "8", "64" } )
+    public int                  peerCount;
+
+    @Param( { "false", "true" } )
+    public boolean              selectorTransport;
+
+    // Member variables:
+    private LoopbackCluster     m_cluster;
+    private CommsFrame          m_frame;
+
+
+    @Setup( Level.Trial )
+    public void setUp() throws IOException, InterruptedException
+    {
+        char[] text = new char[messageSize];
+
+        // ASCII, so the encoded payload is exactly the message size.
+        Arrays.fill( text, 'x' );
+        m_frame = CommsFrame.createText( MSG_TEXT, new String( text ) );
+
+        m_cluster = new LoopbackCluster( peerCount, selectorTransport, new SystemCommsLog( SystemCommsLog.WARN ) );
+        m_cluster.start( START_TIMEOUT_MS );
+    }
+
+
+    @TearDown( Level.Trial )
+    public void tearDown()
+    {
+        m_cluster.tearDown();
+    }
+
+
+    @Benchmark
+    public void broadcast() throws IOException, InterruptedException
+    {
+        int queued = m_cluster.broadcast( m_frame );
+
+        if ( queued != peerCount )
+        {
+            throw new IOException( "Message queued for " + queued + " of " + peerCount + " peers." );
+        }
+
+        if ( !m_cluster.awaitReceived( peerCount, RECEIVE_TIMEOUT_MS ) )
+        {
+            throw new IOException( "Timed out waiting for " + peerCount + " peers to receive the message." );
+        }
+    }
+}
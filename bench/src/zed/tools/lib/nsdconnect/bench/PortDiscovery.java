@@ -0,0 +1,41 @@
+package zed.tools.lib.nsdconnect.bench;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import zed.tools.lib.nsdconnect.core.CommsDiscovery;
+
+
+// Stands in for Nsd, just capturing the port the server was bound to.
+class PortDiscovery implements CommsDiscovery
+{
+    // Member variables:
+    private final CountDownLatch m_registered = new CountDownLatch( 1 );
+    private volatile int         m_port       = 0;
+
+
+    // @Override
+    public void registerService( int port )
+    {
+        m_port = port;
+        m_registered.countDown();
+    }
+
+
+    // @Override
+    public void unregisterService()
+    {
+    }
+
+
+    public int awaitPort( long timeoutMs ) throws IOException, InterruptedException
+    {
+        if ( !m_registered.await( timeoutMs, TimeUnit.MILLISECONDS ) )
+        {
+            throw new IOException( "Timed out waiting for a server to start." );
+        }
+
+        return m_port;
+    }
+}
@@ -0,0 +1,164 @@
+package zed.tools.lib.nsdconnect.bench;
+
+import java.util.PriorityQueue;
+
+import zed.tools.lib.nsdconnect.core.CommsLog;
+import zed.tools.lib.nsdconnect.core.CommsLooper;
+
+
+// The virtual clock a simulation runs on, and its queue of events. Nothing
+// happens between events, so the clock jumps from one to the next and a
+// minute of simulated time takes only as long as the work done in it. Events
+// run one at a time on the caller's thread, in time order and those at the
+// same time in the order they were posted, so a run depends only on what's
+// posted and not on how fast it runs. Everything in the simulation has to be
+// done from the events, nothing here is thread safe.
+public class SimClock implements CommsLooper
+{
+    // Constants:
+    private static final String        TAG        = SimClock.class.getSimpleName();
+
+    // Member variables:
+    private final CommsLog             m_log;
+    private final PriorityQueue<Event> m_events   = new PriorityQueue<Event>();
+    private long                       m_nanos    = 0;
+    private long                       m_sequence = 0;
+    private long                       m_runCount = 0;
+
+
+    // Tested whenever the clock moves on, see runUntil().
+    public interface Condition
+    {
+        public boolean isMet();
+    }
+
+    private static class Event implements Comparable<Event>
+    {
+        final long     m_time;
+        final long     m_sequence;
+        final Runnable m_task;
+
+
+        Event( long time, long sequence, Runnable task )
+        {
+            m_time = time;
+            m_sequence = sequence;
+            m_task = task;
+        }
+
+
+        // @Override
+        public int compareTo( Event other )
+        {
+            if ( m_time != other.m_time )
+            {
+                return ( m_time < other.m_time ) ? -1 : 1;
+            }
+
+            return ( m_sequence < other.m_sequence ) ? -1 : ( ( m_sequence == other.m_sequence ) ? 0 : 1 );
+        }
+    }
+
+
+    public SimClock( CommsLog log )
+    {
+        m_log = log;
+    }
+
+
+    // @Override
+    public long now()
+    {
+        return m_nanos / 1000000L;
+    }
+
+
+    public long getNanos()
+    {
+        return m_nanos;
+    }
+
+
+    // The number of events run so far.
+    public long getRunCount()
+    {
+        return m_runCount;
+    }
+
+
+    // @Override
+    public void post( Runnable task )
+    {
+        postAt( m_nanos, task );
+    }
+
+
+    // @Override
+    public void postDelayed( Runnable task, long delayMs )
+    {
+        postAt( m_nanos + Math.max( 0, delayMs ) * 1000000L, task );
+    }
+
+
+    // Run the task at the time in nanoseconds, or now if that has passed.
+    public void postAt( long nanos, Runnable task )
+    {
+        m_events.add( new Event( Math.max( nanos, m_nanos ), m_sequence++, task ) );
+    }
+
+
+    // Run every event due up to the time, then leave the clock there.
+    public void runUntil( long nanos )
+    {
+        runUntil( null, nanos );
+    }
+
+
+    // Run events until the condition is met or the clock reaches the time, testing the
+    // condition before the first event and whenever the clock moves on. Returns whether
+    // the condition was met, the clock being left at the time it was.
+    public boolean runUntil( Condition condition, long nanos )
+    {
+        while ( true )
+        {
+            if ( condition != null && condition.isMet() )
+            {
+                return true;
+            }
+
+            Event event = m_events.peek();
+
+            if ( event == null || event.m_time > nanos )
+            {
+                m_nanos = Math.max( m_nanos, nanos );
+
+                return ( condition != null && condition.isMet() );
+            }
+
+            m_nanos = event.m_time;
+
+            // Everything due now, including what that posts for now.
+            while ( ( event = m_events.peek() ) != null && event.m_time == m_nanos )
+            {
+                m_events.poll();
+                run( event );
+            }
+        }
+    }
+
+
+    private void run( Event event )
+    {
+        m_runCount++;
+
+        try
+        {
+            event.m_task.run();
+        }
+        catch ( RuntimeException e )
+        {
+            // As SystemCommsLooper, the rest of the simulation carries on.
+            m_log.e( TAG, "Event failed: ", e );
+        }
+    }
+}
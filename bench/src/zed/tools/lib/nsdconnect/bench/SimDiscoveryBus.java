@@ -0,0 +1,451 @@
+package zed.tools.lib.nsdconnect.bench;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import zed.tools.lib.nsdconnect.core.CommsLog;
+import zed.tools.lib.nsdconnect.core.CommsServiceInfo;
+import zed.tools.lib.nsdconnect.core.DiscoveryBackend;
+
+
+// An in-memory stand in for the NsdManager, shared by the peers of a
+// SimNetwork. Each peer gets its own DiscoveryBackend from it which, like
+// the NsdManager, finds services without their address and resolves one at
+// a time, failing a second resolve made while one is active. Services are
+// advertised at their server's address and are lost across partitions.
+//
+// Every event is delivered after a random delay, up to twice the mean,
+// drawn from the seed and the peer's address, as an event on the network's
+// SimClock. A peer's events are delivered in the order they were made. A
+// service's attributes can be changed in place, finders see them when they
+// next resolve it. Like the clock, nothing here is thread safe.
+public class SimDiscoveryBus implements SimNetwork.Listener
+{
+    // Constants:
+    private static final String                       TAG             = SimDiscoveryBus.class.getSimpleName();
+
+    // Member variables:
+    private final SimClock                            m_clock;
+    private final SimNetwork                          m_network;
+    private final long                                m_discoveryDelayNanos;
+    private final long                                m_resolveDelayNanos;
+    private final long                                m_seed;
+    private final CommsLog                            m_log;
+    private final LinkedHashMap<String, Registration> m_registrations = new LinkedHashMap<String, Registration>();
+    private final ArrayList<Backend>                  m_backends      = new ArrayList<Backend>();
+
+
+    // A service registered by one of the peers.
+    private static class Registration
+    {
+        final Backend                               m_backend;
+        final DiscoveryBackend.RegistrationListener m_listener;
+        final CommsServiceInfo                      m_serviceInfo;
+
+
+        Registration( Backend backend, DiscoveryBackend.RegistrationListener listener, CommsServiceInfo serviceInfo )
+        {
+            m_backend = backend;
+            m_listener = listener;
+            m_serviceInfo = serviceInfo;
+        }
+    }
+
+    // A discovery started by one of the peers, with what it has been told is found.
+    private static class Discovery
+    {
+        final String                             m_serviceType;
+        final DiscoveryBackend.DiscoveryListener m_listener;
+        final HashSet<String>                    m_found = new HashSet<String>();
+
+
+        Discovery( String serviceType, DiscoveryBackend.DiscoveryListener listener )
+        {
+            m_serviceType = serviceType;
+            m_listener = listener;
+        }
+    }
+
+
+    public SimDiscoveryBus( SimClock clock, SimNetwork network, long discoveryDelayMs, long resolveDelayMs, long seed, CommsLog log )
+    {
+        m_clock = clock;
+        m_network = network;
+        m_discoveryDelayNanos = discoveryDelayMs * 1000000L;
+        m_resolveDelayNanos = resolveDelayMs * 1000000L;
+        m_seed = seed;
+        m_log = log;
+
+        network.addListener( this );
+    }
+
+
+    // The discovery backend of the peer at the address, whose server will be bound to it.
+    public DiscoveryBackend createBackend( InetAddress address )
+    {
+        Backend backend = new Backend( address );
+
+        m_backends.add( backend );
+
+        return backend;
+    }
+
+
+    // @Override
+    public void onReachabilityChanged()
+    {
+        for ( Backend backend : m_backends )
+        {
+            for ( Discovery discovery : backend.m_discoveries )
+            {
+                for ( Registration registration : m_registrations.values() )
+                {
+                    checkFoundOrLost( backend, discovery, registration );
+                }
+            }
+        }
+    }
+
+
+    // Tell a discovery of a change in whether a service can be seen.
+    private void checkFoundOrLost( Backend backend, Discovery discovery, Registration registration )
+    {
+        final CommsServiceInfo serviceInfo = registration.m_serviceInfo;
+        final DiscoveryBackend.DiscoveryListener listener = discovery.m_listener;
+        String serviceName = serviceInfo.getServiceName();
+
+        if ( registration.m_backend == backend || !serviceInfo.getServiceType().equals( discovery.m_serviceType ) )
+        {
+            return;
+        }
+
+        boolean visible = m_registrations.get( serviceName ) == registration && m_network.isReachable( backend.m_address, serviceInfo.getHost() );
+
+        if ( visible && discovery.m_found.add( serviceName ) )
+        {
+            backend.post( m_discoveryDelayNanos, new Runnable()
+            {
+                public void run()
+                {
+                    listener.onServiceFound( new CommsServiceInfo( serviceInfo.getServiceName(), serviceInfo.getServiceType() ) );
+                }
+            } );
+        }
+        else if ( !visible && discovery.m_found.remove( serviceName ) )
+        {
+            backend.post( m_discoveryDelayNanos, new Runnable()
+            {
+                public void run()
+                {
+                    listener.onServiceLost( new CommsServiceInfo( serviceInfo.getServiceName(), serviceInfo.getServiceType() ) );
+                }
+            } );
+        }
+    }
+
+
+    // Tell every other peer's discoveries of a service registered or unregistered.
+    private void announce( Registration registration )
+    {
+        for ( Backend backend : m_backends )
+        {
+            for ( Discovery discovery : backend.m_discoveries )
+            {
+                checkFoundOrLost( backend, discovery, registration );
+            }
+        }
+    }
+
+
+    // The name, or the name with a number, that no other service has.
+    private String getUniqueName( String serviceName )
+    {
+        String uniqueName = serviceName;
+
+        for ( int i = 2; m_registrations.containsKey( uniqueName ); i++ )
+        {
+            uniqueName = serviceName + " (" + i + ")";
+        }
+
+        return uniqueName;
+    }
+
+
+    private Registration getRegistration( DiscoveryBackend.RegistrationListener listener )
+    {
+        for ( Registration registration : m_registrations.values() )
+        {
+            if ( registration.m_listener == listener )
+            {
+                return registration;
+            }
+        }
+
+        return null;
+    }
+
+
+    private class Backend implements DiscoveryBackend
+    {
+        final InetAddress          m_address;
+        final Random               m_random;
+        final ArrayList<Discovery> m_discoveries = new ArrayList<Discovery>();
+        boolean                    m_resolving   = false;
+        // When this peer's last event is due, so events keep their order.
+        long                       m_lastTime    = 0;
+
+
+        Backend( InetAddress address )
+        {
+            m_address = address;
+            m_random = new Random( m_seed * 31 + address.getHostAddress().hashCode() );
+        }
+
+
+        // @Override
+        public void registerService( CommsServiceInfo serviceInfo, final RegistrationListener listener )
+        {
+            if ( getRegistration( listener ) != null )
+            {
+                postRegistrationFailed( serviceInfo, listener, FAILURE_ALREADY_ACTIVE );
+                return;
+            }
+
+            CommsServiceInfo advertisedInfo = new CommsServiceInfo( getUniqueName( serviceInfo.getServiceName() ), serviceInfo.getServiceType(), m_address, serviceInfo.getPort() );
+
+            advertisedInfo.setAttributes( serviceInfo.getAttributes() );
+
+            final CommsServiceInfo registeredInfo = new CommsServiceInfo( advertisedInfo );
+            Registration registration = new Registration( this, listener, advertisedInfo );
+
+            m_log.d( TAG, "Registered: " + registeredInfo );
+
+            m_registrations.put( registeredInfo.getServiceName(), registration );
+            announce( registration );
+
+            post( m_discoveryDelayNanos, new Runnable()
+            {
+                public void run()
+                {
+                    listener.onServiceRegistered( registeredInfo );
+                }
+            } );
+        }
+
+
+        // Throws IllegalArgumentException if the listener isn't registered, the same as the NsdManager.
+        // @Override
+        public void unregisterService( final RegistrationListener listener )
+        {
+            final Registration registration = getRegistration( listener );
+
+            if ( registration == null )
+            {
+                throw new IllegalArgumentException( "Listener not registered" );
+            }
+
+            unregister( registration );
+
+            post( 0, new Runnable()
+            {
+                public void run()
+                {
+                    listener.onServiceUnregistered( registration.m_serviceInfo );
+                }
+            } );
+        }
+
+
+        // @Override
+        public boolean updateServiceAttributes( RegistrationListener listener, Map<String, String> attributes )
+        {
+            Registration registration = getRegistration( listener );
+
+            if ( registration == null )
+            {
+                return false;
+            }
+
+            registration.m_serviceInfo.setAttributes( attributes );
+
+            return true;
+        }
+
+
+        // @Override
+        public void discoverServices( final String serviceType, final DiscoveryListener listener )
+        {
+            Discovery discovery = new Discovery( serviceType, listener );
+
+            m_discoveries.add( discovery );
+
+            post( 0, new Runnable()
+            {
+                public void run()
+                {
+                    listener.onDiscoveryStarted( serviceType );
+                }
+            } );
+
+            for ( Registration registration : m_registrations.values() )
+            {
+                checkFoundOrLost( this, discovery, registration );
+            }
+        }
+
+
+        // Throws IllegalArgumentException if the listener isn't discovering, the same as the NsdManager.
+        // @Override
+        public void stopServiceDiscovery( final DiscoveryListener listener )
+        {
+            final Discovery discovery = getDiscovery( listener );
+
+            if ( discovery == null )
+            {
+                throw new IllegalArgumentException( "Listener not discovering" );
+            }
+
+            m_discoveries.remove( discovery );
+
+            post( 0, new Runnable()
+            {
+                public void run()
+                {
+                    listener.onDiscoveryStopped( discovery.m_serviceType );
+                }
+            } );
+        }
+
+
+        // @Override
+        public void resolveService( final CommsServiceInfo serviceInfo, final ResolveListener listener )
+        {
+            if ( m_resolving )
+            {
+                post( 0, new Runnable()
+                {
+                    public void run()
+                    {
+                        listener.onResolveFailed( serviceInfo, FAILURE_ALREADY_ACTIVE );
+                    }
+                } );
+
+                return;
+            }
+
+            m_resolving = true;
+
+            post( m_resolveDelayNanos, new Runnable()
+            {
+                public void run()
+                {
+                    CommsServiceInfo resolvedInfo = resolve( serviceInfo );
+
+                    if ( resolvedInfo == null )
+                    {
+                        listener.onResolveFailed( serviceInfo, FAILURE_INTERNAL_ERROR );
+                    }
+                    else
+                    {
+                        listener.onServiceResolved( resolvedInfo );
+                    }
+                }
+            } );
+        }
+
+
+        // @Override
+        public boolean isResolvedOnFound()
+        {
+            return false;
+        }
+
+
+        // @Override
+        public int getMaxConcurrentResolves()
+        {
+            return 1;
+        }
+
+
+        // Unregisters without telling this peer, which is going.
+        // @Override
+        public void tearDown()
+        {
+            for ( Registration registration : new ArrayList<Registration>( m_registrations.values() ) )
+            {
+                if ( registration.m_backend == this )
+                {
+                    unregister( registration );
+                }
+            }
+
+            m_discoveries.clear();
+            m_backends.remove( this );
+        }
+
+
+        // Run a call to this peer's listeners after a random delay, up to twice the mean,
+        // and never before those made earlier.
+        void post( long meanDelayNanos, Runnable task )
+        {
+            long delay = (long) ( 2 * meanDelayNanos * m_random.nextDouble() );
+
+            m_lastTime = Math.max( m_clock.getNanos() + delay, m_lastTime );
+            m_clock.postAt( m_lastTime, task );
+        }
+
+
+        private void postRegistrationFailed( final CommsServiceInfo serviceInfo, final RegistrationListener listener, final int errorCode )
+        {
+            post( 0, new Runnable()
+            {
+                public void run()
+                {
+                    listener.onRegistrationFailed( serviceInfo, errorCode );
+                }
+            } );
+        }
+
+
+        private void unregister( Registration registration )
+        {
+            m_registrations.remove( registration.m_serviceInfo.getServiceName() );
+            announce( registration );
+        }
+
+
+        // The registered service, if it can still be reached.
+        private CommsServiceInfo resolve( CommsServiceInfo serviceInfo )
+        {
+            m_resolving = false;
+
+            Registration registration = m_registrations.get( serviceInfo.getServiceName() );
+
+            if ( registration == null || !m_network.isReachable( m_address, registration.m_serviceInfo.getHost() ) )
+            {
+                return null;
+            }
+
+            return new CommsServiceInfo( registration.m_serviceInfo );
+        }
+
+
+        private Discovery getDiscovery( DiscoveryListener listener )
+        {
+            for ( Discovery discovery : m_discoveries )
+            {
+                if ( discovery.m_listener == listener )
+                {
+                    return discovery;
+                }
+            }
+
+            return null;
+        }
+    }
+}
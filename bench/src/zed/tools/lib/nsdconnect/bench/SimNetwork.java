@@ -0,0 +1,837 @@
+package zed.tools.lib.nsdconnect.bench;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Random;
+
+import zed.tools.lib.nsdconnect.core.CommsLog;
+import zed.tools.lib.nsdconnect.core.CommsSendQueue;
+import zed.tools.lib.nsdconnect.core.CommsTransport;
+
+
+// A simulated network between peers in one JVM, run on a SimClock. It is the
+// peers' CommsTransport, see CommsEngine.setTransport(), so their servers and
+// connections are in memory and cost no sockets, threads or file descriptors.
+// Each peer has its own address, see getNodeAddress(). What's sent is delayed
+// by the link's bandwidth, latency and jitter, and again by a retransmission
+// timeout for each segment lost, as TCP would, so nothing arrives out of
+// order or not at all. Connects take the round trip of a handshake and are
+// refused when there's no server. Peers in different partition groups can't
+// reach each other, their connections are reset and new ones refused. With
+// silent partitions the connections are instead left open with nothing
+// getting through, as when a device leaves the Wi-Fi, until the partition
+// heals.
+//
+// Random draws come from the seed and the pair of addresses, and everything
+// happens in the clock's events, so a run is the same every time for the
+// same seed. Like the clock, nothing here is thread safe.
+public class SimNetwork implements CommsTransport
+{
+    // Constants:
+    private static final String                         TAG                = SimNetwork.class.getSimpleName();
+    public static final int                             MAX_NODES          = 250 * 250;
+    // Bytes sent and not yet arrived before a direction stops sending, as a TCP window.
+    private static final int                            MAX_IN_FLIGHT      = 256 * 1024;
+    // The least time to retransmit a lost segment, as TCP's minimum RTO.
+    private static final long                           MIN_RTO_NANOS      = 200 * 1000000L;
+    private static final int                            FIRST_PORT         = 32768;
+    private static final int                            SYN                = 0;
+    private static final int                            SYN_ACK            = 1;
+    private static final int                            DATA               = 2;
+    private static final int                            FIN                = 3;
+    // Stands for the end of the connection in what's waiting to be read.
+    private static final ByteBuffer                     END                = ByteBuffer.allocate( 0 );
+
+    // Member variables:
+    private final SimClock                              m_clock;
+    private final long                                  m_latencyNanos;
+    private final long                                  m_jitterNanos;
+    private final double                                m_loss;
+    // Bytes per second, 0 for unlimited.
+    private final long                                  m_bandwidth;
+    private final long                                  m_seed;
+    private final CommsLog                              m_log;
+    // Partition group of each node that isn't in group 0.
+    private final HashMap<InetAddress, Integer>         m_groups           = new HashMap<InetAddress, Integer>();
+    private final ArrayList<Listener>                   m_listeners        = new ArrayList<Listener>();
+    private final HashMap<String, Link>                 m_links            = new HashMap<String, Link>();
+    private final HashMap<InetSocketAddress, SimServer> m_servers          = new HashMap<InetSocketAddress, SimServer>();
+    private final HashMap<InetAddress, Integer>         m_nextPorts        = new HashMap<InetAddress, Integer>();
+    // Open connection ends, in the order they were made.
+    private final LinkedHashSet<SimConnection>          m_connections      = new LinkedHashSet<SimConnection>();
+    // Connections whose sending a silent partition has held up, open or not.
+    private final LinkedHashSet<SimConnection>          m_stalled          = new LinkedHashSet<SimConnection>();
+    private long                                        m_lostCount        = 0;
+    private boolean                                     m_silentPartitions = false;
+
+
+    // Told when partition groups change.
+    public interface Listener
+    {
+        public void onReachabilityChanged();
+    }
+
+    // One direction between two nodes, shared by every connection made that way.
+    private static class Link
+    {
+        final Random m_random;
+        // When the link has finished sending what it was given, for the bandwidth.
+        long         m_freeTime = 0;
+
+
+        Link( long seed )
+        {
+            m_random = new Random( seed );
+        }
+    }
+
+    // What one end sends, arriving at the other end.
+    private static class Segment
+    {
+        final int        m_type;
+        final ByteBuffer m_data;
+
+
+        Segment( int type, ByteBuffer data )
+        {
+            m_type = type;
+            m_data = data;
+        }
+    }
+
+    // What one end of a connection sends to the other, on its own link.
+    private static class Direction
+    {
+        final Link                   m_link;
+        // Written by the endpoint and not yet sent, as the selector's send queue.
+        final ArrayDeque<ByteBuffer> m_unsent        = new ArrayDeque<ByteBuffer>();
+        // Sent and not yet arrived, in order, each with an arrival event.
+        final ArrayDeque<Segment>    m_inFlight      = new ArrayDeque<Segment>();
+        long                         m_inFlightBytes = 0;
+        long                         m_lastTime      = 0;
+        // Arrival events of an older generation were retimed and are ignored.
+        int                          m_generation    = 0;
+        boolean                      m_sendPosted    = false;
+        // Nothing arrives while a silent partition is in the way.
+        boolean                      m_stalled       = false;
+
+
+        Direction( Link link )
+        {
+            m_link = link;
+        }
+    }
+
+
+    public SimNetwork( SimClock clock, long latencyMs, long jitterMs, double loss, long bandwidth, long seed, CommsLog log )
+    {
+        m_clock = clock;
+        m_latencyNanos = latencyMs * 1000000L;
+        m_jitterNanos = jitterMs * 1000000L;
+        m_loss = loss;
+        m_bandwidth = bandwidth;
+        m_seed = seed;
+        m_log = log;
+    }
+
+
+    // Addresses in 127/8 so they read as local, though nothing is bound to them.
+    public static InetAddress getNodeAddress( int index ) throws IOException
+    {
+        if ( index < 0 || index >= MAX_NODES )
+        {
+            throw new IllegalArgumentException( "Node index must be 0 to " + ( MAX_NODES - 1 ) + ": " + index );
+        }
+
+        return InetAddress.getByAddress( new byte[] { 127, 1, (byte) ( index / 250 ), (byte) ( index % 250 + 1 ) } );
+    }
+
+
+    public void addListener( Listener listener )
+    {
+        m_listeners.add( listener );
+    }
+
+
+    // Nodes only reach others in the same group, all start in group 0.
+    public void setGroup( InetAddress node, int group )
+    {
+        if ( group == 0 )
+        {
+            m_groups.remove( node );
+        }
+        else
+        {
+            m_groups.put( node, group );
+        }
+
+        onGroupsChanged();
+    }
+
+
+    // Whether partitions leave connections open but silent, rather than resetting them.
+    public void setSilentPartitions( boolean silentPartitions )
+    {
+        m_silentPartitions = silentPartitions;
+    }
+
+
+    // Put every node back in group 0.
+    public void heal()
+    {
+        m_groups.clear();
+        onGroupsChanged();
+    }
+
+
+    public boolean isReachable( InetAddress from, InetAddress to )
+    {
+        return getGroup( from ) == getGroup( to );
+    }
+
+
+    // Connections with both ends open.
+    public int getConnectionCount()
+    {
+        int count = 0;
+
+        for ( SimConnection connection : m_connections )
+        {
+            if ( !connection.m_accepted && connection.m_peer != null && !connection.m_peer.m_closed )
+            {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+
+    // Segments lost and retransmitted, in total.
+    public long getLostCount()
+    {
+        return m_lostCount;
+    }
+
+
+    // @Override
+    public Server listen( InetSocketAddress address, Acceptor acceptor ) throws IOException
+    {
+        InetAddress node = getNode( address.getAddress() );
+        int port = address.getPort();
+
+        if ( port == 0 )
+        {
+            do
+            {
+                port = allocatePort( node );
+            }
+            while ( m_servers.containsKey( new InetSocketAddress( node, port ) ) );
+        }
+
+        InetSocketAddress serverAddress = new InetSocketAddress( node, port );
+
+        if ( m_servers.containsKey( serverAddress ) )
+        {
+            throw new BindException( "Address already in use: " + serverAddress );
+        }
+
+        SimServer server = new SimServer( serverAddress, acceptor );
+
+        m_servers.put( serverAddress, server );
+
+        return server;
+    }
+
+
+    // @Override
+    public Connection open( InetAddress localAddress ) throws IOException
+    {
+        InetAddress node = getNode( localAddress );
+
+        return new SimConnection( new InetSocketAddress( node, allocatePort( node ) ), false );
+    }
+
+
+    // @Override
+    public void connect( Connection connection, InetSocketAddress address, Endpoint endpoint ) throws IOException
+    {
+        SimConnection simConnection = (SimConnection) connection;
+
+        if ( simConnection.m_closed || simConnection.m_out != null )
+        {
+            throw new IOException( "Connection closed or already connecting." );
+        }
+
+        simConnection.m_remoteAddress = address;
+        simConnection.m_endpoint = endpoint;
+        simConnection.m_out = new Direction( getLink( simConnection.m_localAddress.getAddress(), address.getAddress() ) );
+        m_connections.add( simConnection );
+
+        send( simConnection, new Segment( SYN, null ) );
+    }
+
+
+    // @Override
+    public void register( Connection connection, final Endpoint endpoint ) throws IOException
+    {
+        final SimConnection simConnection = (SimConnection) connection;
+
+        if ( simConnection.m_endpoint != null )
+        {
+            throw new IOException( "Connection already registered." );
+        }
+
+        simConnection.m_endpoint = endpoint;
+
+        m_clock.post( new Runnable()
+        {
+            public void run()
+            {
+                if ( simConnection.m_closed && simConnection.m_pending.isEmpty() )
+                {
+                    endpoint.onClose( simConnection );
+                    return;
+                }
+
+                simConnection.m_connected = true;
+                endpoint.onConnect( simConnection, true );
+
+                // What arrived before we were registered, the end of the connection last.
+                while ( !simConnection.m_pending.isEmpty() )
+                {
+                    ByteBuffer data = simConnection.m_pending.poll();
+
+                    if ( data == END )
+                    {
+                        endpoint.onClose( simConnection );
+                        return;
+                    }
+
+                    endpoint.onRead( simConnection, data );
+                }
+            }
+        } );
+    }
+
+
+    // Only the first write to an idle connection posts a send, so those made together go together.
+    // @Override
+    public boolean write( Connection connection, ByteBuffer buffer )
+    {
+        final SimConnection simConnection = (SimConnection) connection;
+
+        if ( simConnection == null || simConnection.m_closed || !simConnection.m_connected )
+        {
+            m_log.w( TAG, "Write to unconnected connection dropped." );
+            return false;
+        }
+
+        final Direction direction = simConnection.m_out;
+
+        if ( direction.m_unsent.size() >= CommsSendQueue.DEFAULT_CAPACITY )
+        {
+            m_log.w( TAG, "Send queue full, write dropped." );
+            return false;
+        }
+
+        direction.m_unsent.add( buffer.duplicate() );
+
+        if ( !direction.m_sendPosted )
+        {
+            direction.m_sendPosted = true;
+
+            m_clock.post( new Runnable()
+            {
+                public void run()
+                {
+                    direction.m_sendPosted = false;
+                    sendUnsent( simConnection );
+                }
+            } );
+        }
+
+        return true;
+    }
+
+
+    // @Override
+    public int getSendQueueSize( Connection connection )
+    {
+        SimConnection simConnection = (SimConnection) connection;
+
+        return ( simConnection == null || simConnection.m_out == null ) ? 0 : simConnection.m_out.m_unsent.size();
+    }
+
+
+    // Servers and connections must be bound to a node's address.
+    private static InetAddress getNode( InetAddress address ) throws IOException
+    {
+        if ( address == null || address.isAnyLocalAddress() )
+        {
+            throw new BindException( "A simulated node needs its own address." );
+        }
+
+        return address;
+    }
+
+
+    private int allocatePort( InetAddress node )
+    {
+        Integer port = m_nextPorts.get( node );
+        int nextPort = ( port == null ) ? FIRST_PORT : port;
+
+        m_nextPorts.put( node, ( nextPort == 65535 ) ? FIRST_PORT : nextPort + 1 );
+
+        return nextPort;
+    }
+
+
+    private int getGroup( InetAddress node )
+    {
+        Integer group = m_groups.get( node );
+
+        return ( group == null ) ? 0 : group;
+    }
+
+
+    private void onGroupsChanged()
+    {
+        for ( SimConnection connection : new ArrayList<SimConnection>( m_stalled ) )
+        {
+            if ( isReachable( connection.m_localAddress.getAddress(), connection.m_remoteAddress.getAddress() ) )
+            {
+                m_stalled.remove( connection );
+                resumeStalled( connection );
+            }
+        }
+
+        if ( !m_silentPartitions )
+        {
+            for ( SimConnection connection : new ArrayList<SimConnection>( m_connections ) )
+            {
+                if ( !connection.m_closed && !isReachable( connection.m_localAddress.getAddress(), connection.m_remoteAddress.getAddress() ) )
+                {
+                    m_log.d( TAG, "Partition resets " + connection.m_localAddress + " to " + connection.m_remoteAddress );
+
+                    reset( connection );
+                }
+            }
+        }
+
+        for ( Listener listener : new ArrayList<Listener>( m_listeners ) )
+        {
+            listener.onReachabilityChanged();
+        }
+    }
+
+
+    // Send again what a silent partition held up, from now and in the same order.
+    private void resumeStalled( SimConnection connection )
+    {
+        Direction direction = connection.m_out;
+
+        direction.m_stalled = false;
+        direction.m_generation++;
+        direction.m_lastTime = 0;
+
+        for ( Segment segment : direction.m_inFlight )
+        {
+            int bytes = ( segment.m_data == null ) ? 0 : segment.m_data.remaining();
+
+            postArrival( connection, direction, getArrivalTime( direction, bytes ) );
+        }
+    }
+
+
+    // As a reset from the other end, the connection is lost straight away.
+    private void reset( final SimConnection connection )
+    {
+        final boolean connected = connection.m_connected;
+
+        closeLocally( connection );
+
+        if ( connection.m_endpoint == null || ( connection.m_accepted && !connected ) )
+        {
+            // Not registered yet, it's told when it is.
+            return;
+        }
+
+        m_clock.post( new Runnable()
+        {
+            public void run()
+            {
+                if ( connected )
+                {
+                    connection.m_endpoint.onClose( connection );
+                }
+                else
+                {
+                    connection.m_endpoint.onConnect( connection, false );
+                }
+            }
+        } );
+    }
+
+
+    // Closed with nothing more sent.
+    private void closeLocally( SimConnection connection )
+    {
+        connection.m_closed = true;
+        m_connections.remove( connection );
+
+        if ( connection.m_out != null )
+        {
+            connection.m_out.m_unsent.clear();
+        }
+    }
+
+
+    private void close( SimConnection connection )
+    {
+        if ( connection.m_closed )
+        {
+            return;
+        }
+
+        closeLocally( connection );
+        connection.m_pending.clear();
+
+        // The other end hears once what was sent before has arrived.
+        if ( connection.m_out != null )
+        {
+            send( connection, new Segment( FIN, null ) );
+        }
+    }
+
+
+    private Link getLink( InetAddress from, InetAddress to )
+    {
+        String name = from.getHostAddress() + ">" + to.getHostAddress();
+        Link link = m_links.get( name );
+
+        if ( link == null )
+        {
+            link = new Link( m_seed * 31 + name.hashCode() );
+            m_links.put( name, link );
+        }
+
+        return link;
+    }
+
+
+    // When bytes sent on the direction now arrive, lost segments being sent again, and never
+    // before what was sent on it earlier.
+    private long getArrivalTime( Direction direction, int bytes )
+    {
+        Link link = direction.m_link;
+        long now = m_clock.getNanos();
+        long sendTime = ( m_bandwidth > 0 ) ? bytes * 1000000000L / m_bandwidth : 0;
+
+        link.m_freeTime = Math.max( now, link.m_freeTime ) + sendTime;
+
+        long time = link.m_freeTime + m_latencyNanos + (long) ( m_jitterNanos * link.m_random.nextDouble() );
+        long rto = Math.max( MIN_RTO_NANOS, 2 * ( m_latencyNanos + m_jitterNanos ) );
+
+        while ( m_loss > 0 && link.m_random.nextDouble() < m_loss )
+        {
+            m_lostCount++;
+            time += rto;
+            rto *= 2;
+        }
+
+        direction.m_lastTime = Math.max( time, direction.m_lastTime );
+
+        return direction.m_lastTime;
+    }
+
+
+    private void send( SimConnection connection, Segment segment )
+    {
+        Direction direction = connection.m_out;
+        int bytes = ( segment.m_data == null ) ? 0 : segment.m_data.remaining();
+
+        direction.m_inFlight.add( segment );
+        direction.m_inFlightBytes += bytes;
+
+        if ( !direction.m_stalled )
+        {
+            postArrival( connection, direction, getArrivalTime( direction, bytes ) );
+        }
+    }
+
+
+    private void postArrival( final SimConnection connection, final Direction direction, long time )
+    {
+        final int generation = direction.m_generation;
+
+        m_clock.postAt( time, new Runnable()
+        {
+            public void run()
+            {
+                if ( generation == direction.m_generation )
+                {
+                    onArrived( connection, direction );
+                }
+            }
+        } );
+    }
+
+
+    // Send what's been written, in one segment, as far as the window allows.
+    private void sendUnsent( SimConnection connection )
+    {
+        Direction direction = connection.m_out;
+
+        if ( connection.m_closed || direction.m_unsent.isEmpty() || direction.m_inFlightBytes >= MAX_IN_FLIGHT )
+        {
+            return;
+        }
+
+        long bytes = 0;
+
+        for ( ByteBuffer buffer : direction.m_unsent )
+        {
+            if ( bytes > 0 && direction.m_inFlightBytes + bytes + buffer.remaining() > MAX_IN_FLIGHT )
+            {
+                break;
+            }
+
+            bytes += buffer.remaining();
+        }
+
+        ByteBuffer data = ByteBuffer.allocate( (int) bytes );
+
+        while ( data.hasRemaining() )
+        {
+            data.put( direction.m_unsent.poll() );
+        }
+
+        data.flip();
+        send( connection, new Segment( DATA, data ) );
+        connection.m_endpoint.onWrite( connection, bytes, 0 );
+    }
+
+
+    // The segment at the head of the direction has arrived at the other end.
+    private void onArrived( SimConnection connection, Direction direction )
+    {
+        InetAddress from = connection.m_localAddress.getAddress();
+        InetAddress to = connection.m_remoteAddress.getAddress();
+
+        boolean reachable = isReachable( from, to );
+
+        if ( !reachable && m_silentPartitions )
+        {
+            // Held until the partition heals, then sent again, see resumeStalled().
+            direction.m_stalled = true;
+            direction.m_generation++;
+            m_stalled.add( connection );
+            return;
+        }
+
+        Segment segment = direction.m_inFlight.poll();
+
+        if ( segment.m_type == SYN )
+        {
+            onSyn( connection );
+            return;
+        }
+
+        if ( !reachable || connection.m_peer == null )
+        {
+            // Lost with the connection, which has been reset, or never reached the other end.
+            return;
+        }
+
+        switch ( segment.m_type )
+        {
+
+            case SYN_ACK:
+                onSynAck( connection.m_peer );
+                break;
+
+            case DATA:
+                direction.m_inFlightBytes -= segment.m_data.remaining();
+                onData( connection.m_peer, segment.m_data );
+                sendUnsent( connection );
+                break;
+
+            case FIN:
+                onData( connection.m_peer, END );
+                break;
+        }
+    }
+
+
+    // A connect has reached the server's node, if there is a server it's accepted.
+    private void onSyn( final SimConnection connection )
+    {
+        if ( connection.m_closed )
+        {
+            return;
+        }
+
+        InetAddress from = connection.m_localAddress.getAddress();
+        InetAddress to = connection.m_remoteAddress.getAddress();
+        SimServer server = m_servers.get( connection.m_remoteAddress );
+
+        if ( server == null || !isReachable( from, to ) )
+        {
+            m_log.d( TAG, "Connection refused from " + connection.m_localAddress + " to " + connection.m_remoteAddress );
+
+            // Refused a round trip after the connect.
+            final Direction refusal = new Direction( getLink( to, from ) );
+
+            m_clock.postAt( getArrivalTime( refusal, 0 ), new Runnable()
+            {
+                public void run()
+                {
+                    if ( !connection.m_closed )
+                    {
+                        closeLocally( connection );
+                        connection.m_endpoint.onConnect( connection, false );
+                    }
+                }
+            } );
+
+            return;
+        }
+
+        SimConnection accepted = new SimConnection( connection.m_remoteAddress, true );
+
+        accepted.m_remoteAddress = connection.m_localAddress;
+        accepted.m_out = new Direction( getLink( to, from ) );
+        accepted.m_peer = connection;
+        connection.m_peer = accepted;
+        m_connections.add( accepted );
+
+        send( accepted, new Segment( SYN_ACK, null ) );
+        server.m_acceptor.onAccept( accepted );
+    }
+
+
+    private void onSynAck( SimConnection connection )
+    {
+        if ( connection.m_closed )
+        {
+            return;
+        }
+
+        connection.m_connected = true;
+        connection.m_endpoint.onConnect( connection, true );
+    }
+
+
+    // Data, or END for the end of the connection.
+    private void onData( SimConnection connection, ByteBuffer data )
+    {
+        if ( connection.m_closed )
+        {
+            return;
+        }
+
+        if ( data == END )
+        {
+            closeLocally( connection );
+        }
+
+        if ( !connection.m_connected )
+        {
+            // Not registered yet, kept until it is.
+            connection.m_pending.add( data );
+        }
+        else if ( data == END )
+        {
+            connection.m_endpoint.onClose( connection );
+        }
+        else
+        {
+            connection.m_endpoint.onRead( connection, data );
+        }
+    }
+
+
+    private class SimServer implements Server
+    {
+        final InetSocketAddress m_address;
+        final Acceptor          m_acceptor;
+
+
+        SimServer( InetSocketAddress address, Acceptor acceptor )
+        {
+            m_address = address;
+            m_acceptor = acceptor;
+        }
+
+
+        // @Override
+        public int getLocalPort()
+        {
+            return m_address.getPort();
+        }
+
+
+        // Connections already accepted carry on.
+        // @Override
+        public void close()
+        {
+            if ( m_servers.get( m_address ) == this )
+            {
+                m_servers.remove( m_address );
+            }
+        }
+    }
+
+    private class SimConnection implements Connection
+    {
+        final InetSocketAddress      m_localAddress;
+        // Whether the other end connected to us.
+        final boolean                m_accepted;
+        // What arrived before the endpoint was registered, END for the end of the connection.
+        final ArrayDeque<ByteBuffer> m_pending       = new ArrayDeque<ByteBuffer>();
+        InetSocketAddress            m_remoteAddress = null;
+        Endpoint                     m_endpoint      = null;
+        // What we send, null until we connect or are accepted.
+        Direction                    m_out           = null;
+        // The other end, once the connect has reached its server.
+        SimConnection                m_peer          = null;
+        boolean                      m_connected     = false;
+        boolean                      m_closed        = false;
+
+
+        SimConnection( InetSocketAddress localAddress, boolean accepted )
+        {
+            m_localAddress = localAddress;
+            m_accepted = accepted;
+        }
+
+
+        // @Override
+        public InetAddress getInetAddress()
+        {
+            return ( m_remoteAddress == null ) ? null : m_remoteAddress.getAddress();
+        }
+
+
+        // @Override
+        public int getPort()
+        {
+            return ( m_remoteAddress == null ) ? 0 : m_remoteAddress.getPort();
+        }
+
+
+        // @Override
+        public void close()
+        {
+            SimNetwork.this.close( this );
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package zed.tools.lib.nsdconnect.bench;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import zed.tools.lib.nsdconnect.core.CommsClient;
+import zed.tools.lib.nsdconnect.core.CommsEngine;
+import zed.tools.lib.nsdconnect.core.CommsFrame;
+import zed.tools.lib.nsdconnect.core.CommsHeartbeat;
+import zed.tools.lib.nsdconnect.core.CommsListener;
+import zed.tools.lib.nsdconnect.core.CommsLog;
+import zed.tools.lib.nsdconnect.core.SystemCommsLog;
+
+
+// Discovery and reconnection on a SimNetwork, with a SimDiscoveryBus in
+// place of the NsdManager, all in one JVM on one SimClock. A number of
+// DiscoveryPeers are started together and the time until every one is
+// connected to every other, the full mesh, is measured. The network is then
+// split in two for a while and the time from healing it until the mesh is
+// whole again is measured. Throughout, the peers' clients are refreshed
+// periodically, as the UI's refresh does. Each run prints a line of the times
+// in milliseconds, "-1" if the timeout was reached, with the connections, the
+// segments lost and the events it took. A silent partition leaves the split
+// connections open, so the split time is how long the peers' heartbeats take
+// to notice. Options are name=value arguments, for example:
+//
+//   java -cp bench/target/benchmarks.jar zed.tools.lib.nsdconnect.bench.SimulationTest peers=200 latency=20 loss=0.02 partition=10
+//   java -cp bench/target/benchmarks.jar zed.tools.lib.nsdconnect.bench.SimulationTest silent=true heartbeat=1000 idle=3000
+//
+// Discovery goes through the same CommsResolveScheduler and CommsServiceCache
+// as NsdHelper, so a service found again within its time to live isn't
+// resolved again and one lost for less than the grace period keeps its
+// client, which the refresh then reconnects.
+//
+// The engines run on the SimNetwork as their transport and on the clock as
+// their looper, so there are no sockets, threads or waits and the times are
+// the clock's, not the wall clock's. Everything random is drawn from the
+// seed, so a run prints the same line every time, and a partition of minutes
+// takes only as long as what the peers do in it. The cost is the traffic:
+// a full mesh of n peers is n * (n - 1) / 2 connections, each with its
+// heartbeats, so hundreds of peers take seconds to minutes of CPU.
+public class SimulationTest
+{
+    // Constants:
+    private static final String TAG           = SimulationTest.class.getSimpleName();
+
+    // Member variables:
+    private final int           m_peerCount;
+    private final long          m_latencyMs;
+    private final long          m_jitterMs;
+    private final double        m_loss;
+    private final long          m_bandwidth;
+    private final long          m_discoveryDelayMs;
+    private final long          m_resolveDelayMs;
+    private final long          m_lostGraceMs;
+    private final long          m_partitionMs;
+    private final long          m_refreshMs;
+    private final long          m_timeoutMs;
+    private final int           m_runs;
+    private final boolean       m_silent;
+    private final int           m_heartbeatMs;
+    private final int           m_idleTimeoutMs;
+    private final long          m_seed;
+    private final PrintStream   m_out;
+    private final CommsLog      m_log         = new SystemCommsLog( SystemCommsLog.ERROR );
+
+
+    public SimulationTest( Map<String, String> options, PrintStream out )
+    {
+        m_peerCount = getInt( options, "peers", 32 );
+        m_latencyMs = getInt( options, "latency", 5 );
+        m_jitterMs = getInt( options, "jitter", 5 );
+        m_loss = getDouble( options, "loss", 0.01 );
+        m_bandwidth = getInt( options, "bandwidth", 0 ) * 1024L;
+        m_discoveryDelayMs = getInt( options, "discovery", 500 );
+        m_resolveDelayMs = getInt( options, "resolve", 50 );
+        m_lostGraceMs = getInt( options, "grace", (int) DiscoveryPeer.DEFAULT_LOST_GRACE_MS );
+        m_partitionMs = getInt( options, "partition", 10 ) * 1000L;
+        m_refreshMs = getInt( options, "refresh", 5 ) * 1000L;
+        m_timeoutMs = getInt( options, "timeout", 60 ) * 1000L;
+        m_runs = getInt( options, "runs", 1 );
+        m_silent = Boolean.parseBoolean( get( options, "silent", "false" ) );
+        m_heartbeatMs = getInt( options, "heartbeat", CommsHeartbeat.DEFAULT_INTERVAL_MS );
+        m_idleTimeoutMs = getInt( options, "idle", CommsHeartbeat.DEFAULT_IDLE_TIMEOUT_MS );
+        m_seed = Long.parseLong( get( options, "seed", "1" ) );
+        m_out = out;
+    }
+
+
+    public static void main( String[] args ) throws Exception
+    {
+        Map<String, String> options = new HashMap<String, String>();
+
+        for ( String arg : args )
+        {
+            int equals = arg.indexOf( '=' );
+
+            if ( equals < 0 )
+            {
+                System.err.println( "Usage: " + TAG + " [peers=32] [latency=5] [jitter=5] [loss=0.01] [bandwidth=0 KiB/s] [discovery=500] [resolve=50] [grace=15000] [partition=10] [refresh=5] [timeout=60] [runs=1] [silent=false] [heartbeat=5000] [idle=15000] [seed=1]" );
+                System.exit( 1 );
+            }
+
+            options.put( arg.substring( 0, equals ), arg.substring( equals + 1 ) );
+        }
+
+        new SimulationTest( options, System.out ).run();
+    }
+
+
+    public void run() throws IOException
+    {
+        m_out.println( "# " + m_peerCount + " peers, latency " + m_latencyMs + " ms, jitter " + m_jitterMs + " ms, loss " + m_loss + ", bandwidth " + ( m_bandwidth / 1024 ) + " KiB/s, discovery " + m_discoveryDelayMs + " ms, resolve " + m_resolveDelayMs + " ms, grace " + m_lostGraceMs + " ms, partition " + ( m_partitionMs / 1000 ) + " s, refresh " + ( m_refreshMs / 1000 ) + " s, silent " + m_silent + ", heartbeat " + m_heartbeatMs + " ms, idle " + m_idleTimeoutMs + " ms" );
+        m_out.println( "# run  seed  mesh_ms  split_ms  recover_ms  connections  lost  events" );
+
+        for ( int run = 0; run < m_runs; run++ )
+        {
+            runOnce( run, m_seed + run );
+        }
+    }
+
+
+    private void runOnce( int run, long seed ) throws IOException
+    {
+        SimClock clock = new SimClock( m_log );
+        SimNetwork network = new SimNetwork( clock, m_latencyMs, m_jitterMs, m_loss, m_bandwidth, seed, m_log );
+        SimDiscoveryBus bus = new SimDiscoveryBus( clock, network, m_discoveryDelayMs, m_resolveDelayMs, seed, m_log );
+        Random random = new Random( seed );
+        final DiscoveryPeer[] peers = new DiscoveryPeer[m_peerCount];
+
+        network.setSilentPartitions( m_silent );
+
+        for ( int i = 0; i < m_peerCount; i++ )
+        {
+            peers[i] = new DiscoveryPeer( TAG, bus.createBackend( SimNetwork.getNodeAddress( i ) ), clock, new PeerListener(), m_log );
+            peers[i].setSeed( random.nextLong() );
+            peers[i].setLostGraceMs( m_lostGraceMs );
+
+            CommsEngine engine = peers[i].getCommsEngine();
+
+            engine.setInstanceId( new UUID( random.nextLong(), random.nextLong() ).toString() );
+            engine.setLocalAddress( SimNetwork.getNodeAddress( i ) );
+            engine.setTransport( network );
+            engine.setLooper( clock );
+            engine.getHeartbeat().setIntervalMs( m_heartbeatMs );
+            engine.getHeartbeat().setIdleTimeoutMs( m_idleTimeoutMs );
+        }
+
+        for ( DiscoveryPeer peer : peers )
+        {
+            peer.start();
+        }
+
+        if ( m_refreshMs > 0 )
+        {
+            postRefresh( clock, peers );
+        }
+
+        long meshMs = runUntilConnected( clock, peers, m_peerCount - 1, false );
+
+        // Split the peers in two halves, those in a half can only reach each other.
+        int half = m_peerCount / 2;
+        long start = clock.getNanos();
+
+        for ( int i = 0; i < half; i++ )
+        {
+            network.setGroup( SimNetwork.getNodeAddress( i ), 1 );
+        }
+
+        long splitMs = runUntilConnected( clock, peers, Math.max( half, m_peerCount - half ) - 1, true );
+
+        clock.runUntil( start + m_partitionMs * 1000000L );
+        network.heal();
+
+        long recoverMs = runUntilConnected( clock, peers, m_peerCount - 1, false );
+
+        m_out.println( String.format( "%5d %5d %8d %9d %11d %12d %5d %7d", run, seed, meshMs, splitMs, recoverMs, network.getConnectionCount(), network.getLostCount(), clock.getRunCount() ) );
+
+        for ( DiscoveryPeer peer : peers )
+        {
+            peer.tearDown();
+        }
+    }
+
+
+    private void postRefresh( final SimClock clock, final DiscoveryPeer[] peers )
+    {
+        clock.postDelayed( new Runnable()
+        {
+            public void run()
+            {
+                for ( DiscoveryPeer peer : peers )
+                {
+                    peer.getCommsEngine().checkReconnectClients();
+                }
+
+                postRefresh( clock, peers );
+            }
+        }, m_refreshMs );
+    }
+
+
+    // Run until every peer is connected to at least the number of others, or with atMost to
+    // no more than it. Returns how long that took, -1 if the timeout was reached.
+    private long runUntilConnected( SimClock clock, final DiscoveryPeer[] peers, final int count, final boolean atMost )
+    {
+        long start = clock.getNanos();
+        boolean met = clock.runUntil( new SimClock.Condition()
+        {
+            public boolean isMet()
+            {
+                for ( DiscoveryPeer peer : peers )
+                {
+                    int connectedCount = peer.getCommsEngine().getConnectedCount();
+
+                    if ( ( atMost ) ? ( connectedCount > count ) : ( connectedCount < count ) )
+                    {
+                        return false;
+                    }
+                }
+
+                return true;
+            }
+        }, start + m_timeoutMs * 1000000L );
+
+        return ( met ) ? ( clock.getNanos() - start ) / 1000000L : -1;
+    }
+
+
+    private static String get( Map<String, String> options, String name, String defaultValue )
+    {
+        String value = options.get( name );
+
+        return ( value == null ) ? defaultValue : value;
+    }
+
+
+    private static int getInt( Map<String, String> options, String name, int defaultValue )
+    {
+        return Integer.parseInt( get( options, name, Integer.toString( defaultValue ) ) );
+    }
+
+
+    private static double getDouble( Map<String, String> options, String name, double defaultValue )
+    {
+        return Double.parseDouble( get( options, name, Double.toString( defaultValue ) ) );
+    }
+
+
+    private static class PeerListener implements CommsListener
+    {
+        // @Override
+        public void onFrameReceived( CommsClient commsClient, CommsFrame frame )
+        {
+        }
+
+
+        // @Override
+        public void onConnectedChange( boolean connected )
+        {
+        }
+
+
+        // @Override
+        public void onClientConnectedChange( CommsClient commsClient, boolean connected )
+        {
+        }
+    }
+}
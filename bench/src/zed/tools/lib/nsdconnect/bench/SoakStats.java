@@ -0,0 +1,165 @@
+package zed.tools.lib.nsdconnect.bench;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import zed.tools.lib.nsdconnect.core.CommsFrame;
+import zed.tools.lib.nsdconnect.core.CommsHistogram;
+
+
+// Counters and latencies in microseconds gathered during a soak run, recorded from any thread.
+// The latency histograms cover the current report interval, they are swapped
+// for empty ones and added to the totals by takeInterval().
+public class SoakStats
+{
+    // Member variables:
+    private final AtomicLong                      m_sent             = new AtomicLong();
+    private final AtomicLong                      m_sentBytes        = new AtomicLong();
+    private final AtomicLong                      m_receivedByServer = new AtomicLong();
+    private final AtomicLong                      m_receivedByPeers  = new AtomicLong();
+    private final AtomicLong                      m_broadcasts       = new AtomicLong();
+    private final AtomicLong                      m_drops            = new AtomicLong();
+    private final AtomicLong                      m_peerErrors       = new AtomicLong();
+    private final AtomicInteger                   m_peersConnected   = new AtomicInteger();
+    private final AtomicReference<CommsHistogram> m_toServerLatency  = new AtomicReference<CommsHistogram>( new CommsHistogram() );
+    private final AtomicReference<CommsHistogram> m_toPeerLatency    = new AtomicReference<CommsHistogram>( new CommsHistogram() );
+    private final CommsHistogram                  m_totalToServer    = new CommsHistogram();
+    private final CommsHistogram                  m_totalToPeer      = new CommsHistogram();
+
+
+    public void onSent( int bytes )
+    {
+        m_sent.incrementAndGet();
+        m_sentBytes.addAndGet( bytes );
+    }
+
+
+    public void onBroadcast()
+    {
+        m_broadcasts.incrementAndGet();
+    }
+
+
+    public void onReceivedByServer( CommsFrame frame )
+    {
+        m_receivedByServer.incrementAndGet();
+        recordLatency( m_toServerLatency.get(), frame );
+    }
+
+
+    public void onReceivedByPeer( CommsFrame frame )
+    {
+        m_receivedByPeers.incrementAndGet();
+        recordLatency( m_toPeerLatency.get(), frame );
+    }
+
+
+    public void onPeerConnected( boolean connected )
+    {
+        if ( connected )
+        {
+            m_peersConnected.incrementAndGet();
+        }
+        else
+        {
+            m_peersConnected.decrementAndGet();
+        }
+    }
+
+
+    public void onPeerDropped()
+    {
+        m_drops.incrementAndGet();
+    }
+
+
+    public void onPeerError()
+    {
+        m_peerErrors.incrementAndGet();
+    }
+
+
+    public long getSent()
+    {
+        return m_sent.get();
+    }
+
+
+    public long getSentBytes()
+    {
+        return m_sentBytes.get();
+    }
+
+
+    public long getReceivedByServer()
+    {
+        return m_receivedByServer.get();
+    }
+
+
+    public long getReceivedByPeers()
+    {
+        return m_receivedByPeers.get();
+    }
+
+
+    public long getBroadcasts()
+    {
+        return m_broadcasts.get();
+    }
+
+
+    public long getDrops()
+    {
+        return m_drops.get();
+    }
+
+
+    public long getPeerErrors()
+    {
+        return m_peerErrors.get();
+    }
+
+
+    public int getPeersConnected()
+    {
+        return m_peersConnected.get();
+    }
+
+
+    public CommsHistogram getTotalToServer()
+    {
+        return m_totalToServer;
+    }
+
+
+    public CommsHistogram getTotalToPeer()
+    {
+        return m_totalToPeer;
+    }
+
+
+    // Returns the peer to server and server to peer latencies since the last call.
+    public CommsHistogram[] takeInterval()
+    {
+        CommsHistogram toServer = m_toServerLatency.getAndSet( new CommsHistogram() );
+        CommsHistogram toPeer = m_toPeerLatency.getAndSet( new CommsHistogram() );
+
+        m_totalToServer.add( toServer );
+        m_totalToPeer.add( toPeer );
+
+        return new CommsHistogram[] { toServer, toPeer };
+    }
+
+
+    private static void recordLatency( CommsHistogram histogram, CommsFrame frame )
+    {
+        long sendTime = HeadlessPeer.getSendTime( frame.getText() );
+
+        if ( sendTime >= 0 )
+        {
+            histogram.record( ( System.nanoTime() - sendTime ) / 1000 );
+        }
+    }
+}
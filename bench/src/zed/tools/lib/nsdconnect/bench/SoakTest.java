@@ -0,0 +1,296 @@
+package zed.tools.lib.nsdconnect.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import zed.tools.lib.nsdconnect.core.CommsClient;
+import zed.tools.lib.nsdconnect.core.CommsEngine;
+import zed.tools.lib.nsdconnect.core.CommsFrame;
+import zed.tools.lib.nsdconnect.core.CommsHistogram;
+import zed.tools.lib.nsdconnect.core.CommsListener;
+import zed.tools.lib.nsdconnect.core.SystemCommsLog;
+
+
+// Load generator and soak test: one CommsEngine server, as run by NsdService,
+// with a number of HeadlessPeers connecting to it on loopback, sending at a
+// fixed rate and randomly dropping and reconnecting. The server broadcasts
+// to them and periodically refreshes its clients, as the UI's refresh does.
+//
+// Every report interval a line is printed with the throughput, latency
+// percentiles in microseconds, connection counts, thread and file
+// descriptor counts and the heap in use, so leaks show up as growth over a
+// long run. Options are name=value arguments, for example:
+//
+//   java -cp bench/target/benchmarks.jar zed.tools.lib.nsdconnect.bench.SoakTest peers=32 rate=20 duration=14400
+public class SoakTest
+{
+    // Constants:
+    private static final String TAG              = SoakTest.class.getSimpleName();
+    private static final int    MSG_TEXT         = 1;
+    private static final long   START_TIMEOUT_MS = 30 * 1000;
+    private static final String ENGINE_THREADS   = "Comms";
+    private static final String PROC_FD_DIR      = "/proc/self/fd";
+
+    // Member variables:
+    private final int           m_peerCount;
+    private final double        m_rate;
+    private final int           m_msgSize;
+    private final long          m_durationMs;
+    private final long          m_reportMs;
+    private final double        m_dropProbability;
+    private final double        m_broadcastRate;
+    private final long          m_refreshMs;
+    private final boolean       m_useSelector;
+    private final long          m_seed;
+    private final boolean       m_gcBeforeReport;
+    private final PrintStream   m_out;
+    private final SoakStats     m_stats          = new SoakStats();
+    private CommsEngine         m_server;
+    private HeadlessPeer[]      m_peers;
+
+
+    public SoakTest( Map<String, String> options, PrintStream out )
+    {
+        m_peerCount = getInt( options, "peers", 16 );
+        m_rate = getDouble( options, "rate", 10 );
+        m_msgSize = getInt( options, "size", 256 );
+        m_durationMs = getInt( options, "duration", 60 ) * 1000L;
+        m_reportMs = getInt( options, "report", 10 ) * 1000L;
+        m_dropProbability = getDouble( options, "drop", 0.01 );
+        m_broadcastRate = getDouble( options, "broadcast", 1 );
+        m_refreshMs = getInt( options, "refresh", 30 ) * 1000L;
+        m_useSelector = Boolean.parseBoolean( get( options, "selector", "false" ) );
+        m_seed = Long.parseLong( get( options, "seed", "1" ) );
+        m_gcBeforeReport = Boolean.parseBoolean( get( options, "gc", "true" ) );
+        m_out = out;
+    }
+
+
+    public static void main( String[] args ) throws Exception
+    {
+        Map<String, String> options = new HashMap<String, String>();
+
+        for ( String arg : args )
+        {
+            int equals = arg.indexOf( '=' );
+
+            if ( equals < 0 )
+            {
+                System.err.println( "Usage: " + TAG + " [peers=16] [rate=10] [size=256] [duration=60] [report=10] [drop=0.01] [broadcast=1] [refresh=30] [selector=false] [seed=1] [gc=true]" );
+                System.exit( 1 );
+            }
+
+            options.put( arg.substring( 0, equals ), arg.substring( equals + 1 ) );
+        }
+
+        new SoakTest( options, System.out ).run();
+        System.exit( 0 );
+    }
+
+
+    public void run() throws IOException, InterruptedException
+    {
+        PortDiscovery discovery = new PortDiscovery();
+
+        m_server = new CommsEngine( discovery, new ServerListener(), new SystemCommsLog( SystemCommsLog.ERROR ) );
+        m_server.setUseSelector( m_useSelector );
+        m_server.startServer();
+
+        InetSocketAddress serverAddress = new InetSocketAddress( InetAddress.getByName( "127.0.0.1" ), discovery.awaitPort( START_TIMEOUT_MS ) );
+
+        m_peers = new HeadlessPeer[m_peerCount];
+
+        for ( int i = 0; i < m_peerCount; i++ )
+        {
+            m_peers[i] = new HeadlessPeer( i, serverAddress, MSG_TEXT, m_rate, m_msgSize, m_dropProbability, m_seed + i, m_stats );
+            m_peers[i].start();
+        }
+
+        m_out.println( "# " + m_peerCount + " peers at " + m_rate + " msg/s of " + m_msgSize + " bytes, drop " + m_dropProbability + "/s, broadcast " + m_broadcastRate + " msg/s, selector " + m_useSelector );
+        m_out.println( "# secs  peers clients conn  sent/s  srv_rx/s peer_rx/s  up_p50  up_p99  up_max  dn_p50  dn_p99  dn_max threads comms   fds heap_kb" );
+
+        long start = System.currentTimeMillis();
+        long end = start + m_durationMs;
+        long nextReport = start + m_reportMs;
+        long nextRefresh = start + m_refreshMs;
+        long nextBroadcast = System.nanoTime();
+        long broadcastInterval = ( m_broadcastRate > 0 ) ? (long) ( 1e9 / m_broadcastRate ) : 0;
+        long firstHeap = -1;
+        long lastHeap = -1;
+        long[] last = new long[] { 0, 0, 0 };
+
+        while ( System.currentTimeMillis() < end )
+        {
+            if ( broadcastInterval > 0 && System.nanoTime() >= nextBroadcast )
+            {
+                broadcast();
+                nextBroadcast += broadcastInterval;
+            }
+
+            long now = System.currentTimeMillis();
+
+            if ( now >= nextRefresh )
+            {
+                m_server.checkReconnectClients();
+                nextRefresh += m_refreshMs;
+            }
+
+            if ( now >= nextReport )
+            {
+                lastHeap = report( ( now - start ) / 1000, last );
+                firstHeap = ( firstHeap < 0 ) ? lastHeap : firstHeap;
+                nextReport += m_reportMs;
+            }
+
+            Thread.sleep( 1 );
+        }
+
+        for ( HeadlessPeer peer : m_peers )
+        {
+            peer.stop();
+        }
+
+        m_server.tearDown();
+        m_stats.takeInterval();
+
+        m_out.println( "# sent " + m_stats.getSent() + " (" + m_stats.getSentBytes() + " bytes), server received " + m_stats.getReceivedByServer()
+                + ", broadcasts " + m_stats.getBroadcasts() + ", peers received " + m_stats.getReceivedByPeers() );
+        m_out.println( "# drops " + m_stats.getDrops() + ", peer connect errors " + m_stats.getPeerErrors() + ", heap growth " + ( lastHeap - firstHeap ) + " KB" );
+        m_out.println( "# peer to server latency us p50 " + m_stats.getTotalToServer().getPercentile( 0.5 ) + " p99 " + m_stats.getTotalToServer().getPercentile( 0.99 )
+                + " p99.9 " + m_stats.getTotalToServer().getPercentile( 0.999 ) + " max " + m_stats.getTotalToServer().getMax() );
+        m_out.println( "# server to peer latency us p50 " + m_stats.getTotalToPeer().getPercentile( 0.5 ) + " p99 " + m_stats.getTotalToPeer().getPercentile( 0.99 )
+                + " p99.9 " + m_stats.getTotalToPeer().getPercentile( 0.999 ) + " max " + m_stats.getTotalToPeer().getMax() );
+    }
+
+
+    private void broadcast()
+    {
+        StringBuilder text = new StringBuilder( Math.max( m_msgSize, 32 ) );
+
+        text.append( System.nanoTime() ).append( ' ' );
+
+        while ( text.length() < m_msgSize )
+        {
+            text.append( 'x' );
+        }
+
+        m_server.sendToAll( CommsFrame.createText( MSG_TEXT, text.toString() ) );
+        m_stats.onBroadcast();
+    }
+
+
+    // Print one report line, returning the heap in use in KB.
+    private long report( long elapsedSecs, long[] last )
+    {
+        CommsHistogram[] latencies = m_stats.takeInterval();
+        double intervalSecs = m_reportMs / 1000.0;
+        long sent = m_stats.getSent();
+        long receivedByServer = m_stats.getReceivedByServer();
+        long receivedByPeers = m_stats.getReceivedByPeers();
+        CommsClient[] clients = m_server.getCommsClients();
+        int connected = 0;
+
+        for ( CommsClient client : clients )
+        {
+            if ( client.isConnected() )
+            {
+                connected++;
+            }
+        }
+
+        if ( m_gcBeforeReport )
+        {
+            // So the heap figure is what is retained, not garbage awaiting collection.
+            System.gc();
+        }
+
+        long heapKb = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / 1024;
+
+        m_out.println( String.format( "%6d %6d %7d %4d %7.0f %9.0f %9.0f %7d %7d %7d %7d %7d %7d %7d %5d %5d %7d",
+                elapsedSecs, m_stats.getPeersConnected(), clients.length, connected,
+                ( sent - last[0] ) / intervalSecs, ( receivedByServer - last[1] ) / intervalSecs, ( receivedByPeers - last[2] ) / intervalSecs,
+                latencies[0].getPercentile( 0.5 ), latencies[0].getPercentile( 0.99 ), latencies[0].getMax(),
+                latencies[1].getPercentile( 0.5 ), latencies[1].getPercentile( 0.99 ), latencies[1].getMax(),
+                ManagementFactory.getThreadMXBean().getThreadCount(), countEngineThreads(), countFileDescriptors(), heapKb ) );
+
+        last[0] = sent;
+        last[1] = receivedByServer;
+        last[2] = receivedByPeers;
+
+        return heapKb;
+    }
+
+
+    // Threads started by the engine, rather than by the peers or the JVM.
+    private static int countEngineThreads()
+    {
+        int count = 0;
+
+        for ( Thread thread : Thread.getAllStackTraces().keySet() )
+        {
+            if ( thread.getName().startsWith( ENGINE_THREADS ) )
+            {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+
+    // Open file descriptors for the whole process, -1 where /proc isn't available.
+    private static int countFileDescriptors()
+    {
+        String[] fds = new File( PROC_FD_DIR ).list();
+
+        return ( fds == null ) ? -1 : fds.length;
+    }
+
+
+    private static String get( Map<String, String> options, String name, String defaultValue )
+    {
+        String value = options.get( name );
+
+        return ( value == null ) ? defaultValue : value;
+    }
+
+
+    private static int getInt( Map<String, String> options, String name, int defaultValue )
+    {
+        return Integer.parseInt( get( options, name, Integer.toString( defaultValue ) ) );
+    }
+
+
+    private static double getDouble( Map<String, String> options, String name, double defaultValue )
+    {
+        return Double.parseDouble( get( options, name, Double.toString( defaultValue ) ) );
+    }
+
+
+    private class ServerListener implements CommsListener
+    {
+        // @Override
+        public void onFrameReceived( CommsClient commsClient, CommsFrame frame )
+        {
+            m_stats.onReceivedByServer( frame );
+        }
+
+
+        // @Override
+        public void onConnectedChange( boolean connected )
+        {
+        }
+
+
+        // @Override
+        public void onClientConnectedChange( CommsClient commsClient, boolean connected )
+        {
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package zed.tools.lib.nsdconnect.bench;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+
+// The simulation on its virtual clock: a run is the same every time for the
+// same seed, and the mesh forms and recovers from a partition.
+public class SimNetworkTest
+{
+    // Constants:
+    private static final int PEERS = 12;
+
+
+    @Test
+    public void sameSeedGivesTheSameRun() throws Exception
+    {
+        String first = simulate( 7 );
+
+        assertEquals( first, simulate( 7 ) );
+        assertFalse( first.equals( simulate( 8 ) ) );
+    }
+
+
+    @Test
+    public void meshFormsAndRecovers() throws Exception
+    {
+        String[] lines = simulate( 1 ).split( "\n" );
+        String[] columns = lines[lines.length - 1].trim().split( " +" );
+
+        // run seed mesh_ms split_ms recover_ms connections lost events
+        assertTrue( "No full mesh.", Long.parseLong( columns[2] ) >= 0 );
+        assertTrue( "Not split.", Long.parseLong( columns[3] ) >= 0 );
+        assertTrue( "No recovery.", Long.parseLong( columns[4] ) >= 0 );
+        assertEquals( PEERS * ( PEERS - 1 ) / 2, Integer.parseInt( columns[5] ) );
+    }
+
+
+    private static String simulate( long seed ) throws Exception
+    {
+        Map<String, String> options = new HashMap<String, String>();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        options.put( "peers", Integer.toString( PEERS ) );
+        options.put( "loss", "0.05" );
+        options.put( "seed", Long.toString( seed ) );
+        new SimulationTest( options, new PrintStream( out, true, "UTF-8" ) ).run();
+
+        return out.toString( "UTF-8" );
+    }
+}
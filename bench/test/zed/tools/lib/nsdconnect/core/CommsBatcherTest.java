@@ -0,0 +1,381 @@
+package zed.tools.lib.nsdconnect.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+// Batches by window and by size, and a slow sink holding up put() but not
+// offer(). Then a listener hands frames to a batcher whose sink is stuck, as
+// NsdService does with its client's text. With the selector one thread reads
+// every peer, so the listener must not wait for room: one peer filling the
+// buffer mustn't stop another peer's frames being read.
+public class CommsBatcherTest
+{
+    // Constants:
+    private static final int                         MSG_TEXT   = 1;
+    private static final int                         CAPACITY   = 16;
+    private static final int                         PEERS      = 2;
+    private static final long                        TIMEOUT_MS = 10 * 1000;
+    private static final long                        WINDOW_MS  = 200;
+
+    // Member variables:
+    private final CountDownLatch                     m_taken    = new CountDownLatch( 1 );
+    private final CountDownLatch                     m_release  = new CountDownLatch( 1 );
+    private final CommsLog                           m_log      = new SystemCommsLog( SystemCommsLog.WARN );
+    // Frames the hub has read from each peer, whether or not they fitted.
+    private final AtomicInteger[]                    m_received = { new AtomicInteger(), new AtomicInteger() };
+    private final CommsEngine[]                      m_peers    = new CommsEngine[PEERS];
+    // Copies of the batches given to a RecordingSink, with when each was given.
+    private final LinkedBlockingQueue<List<Integer>> m_batches  = new LinkedBlockingQueue<List<Integer>>();
+    private final LinkedBlockingQueue<Long>          m_times    = new LinkedBlockingQueue<Long>();
+    private CommsBatcher<CommsFrame>                 m_batcher;
+    private CommsBatcher<Integer>                    m_numbers;
+    private CommsEngine                              m_hub;
+
+
+    @After
+    public void tearDown()
+    {
+        m_release.countDown();
+
+        if ( m_batcher != null )
+        {
+            m_batcher.tearDown();
+        }
+
+        if ( m_numbers != null )
+        {
+            m_numbers.tearDown();
+        }
+
+        for ( CommsEngine engine : new CommsEngine[] { m_hub, m_peers[0], m_peers[1] } )
+        {
+            if ( engine != null )
+            {
+                engine.tearDown();
+            }
+        }
+    }
+
+
+    @Test
+    public void coalescesWithinTheWindow() throws Exception
+    {
+        m_numbers = new CommsBatcher<Integer>( new RecordingSink( false ), CAPACITY, m_log );
+        m_numbers.setWindowMs( WINDOW_MS );
+        m_numbers.start();
+
+        long start = System.nanoTime();
+
+        for ( int i = 0; i < 3; i++ )
+        {
+            assertTrue( m_numbers.offer( i ) );
+        }
+
+        assertEquals( Arrays.asList( 0, 1, 2 ), awaitBatch() );
+        assertTrue( "Delivered before the window closed.", m_times.take() - start >= TimeUnit.MILLISECONDS.toNanos( WINDOW_MS ) );
+
+        // A window of its own for what comes after.
+        assertTrue( m_numbers.offer( 3 ) );
+        assertEquals( Arrays.asList( 3 ), awaitBatch() );
+    }
+
+
+    // A full batch goes at once, however long the window, the rest waits for it.
+    @Test
+    public void deliversAFullBatchBeforeTheWindow() throws Exception
+    {
+        m_numbers = new CommsBatcher<Integer>( new RecordingSink( false ), CAPACITY, m_log );
+        m_numbers.setWindowMs( TIMEOUT_MS * 10 );
+        m_numbers.setMaxBatchSize( 4 );
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            assertTrue( m_numbers.offer( i ) );
+        }
+
+        m_numbers.start();
+
+        assertEquals( Arrays.asList( 0, 1, 2, 3 ), awaitBatch() );
+        assertEquals( Arrays.asList( 4, 5, 6, 7 ), awaitBatch() );
+        assertEquals( null, m_batches.poll( WINDOW_MS, TimeUnit.MILLISECONDS ) );
+
+        // Filling the one that's waiting sends it.
+        assertTrue( m_numbers.offer( 10 ) );
+        assertTrue( m_numbers.offer( 11 ) );
+        assertEquals( Arrays.asList( 8, 9, 10, 11 ), awaitBatch() );
+
+        // Without a window what's there goes straight away.
+        m_numbers.setWindowMs( 0 );
+        assertTrue( m_numbers.offer( 12 ) );
+        assertEquals( Arrays.asList( 12 ), awaitBatch() );
+    }
+
+
+    // Behind a slow sink offer() refuses and put() waits, then both are delivered in order.
+    @Test
+    public void putWaitsAndOfferRefusesBehindASlowSink() throws Exception
+    {
+        final int capacity = 4;
+
+        m_numbers = new CommsBatcher<Integer>( new RecordingSink( true ), capacity, m_log );
+        m_numbers.setWindowMs( 0 );
+        m_numbers.setMaxBatchSize( 1 );
+        m_numbers.start();
+        m_numbers.put( 0 );
+        assertTrue( "Sink didn't take the first item.", m_taken.await( TIMEOUT_MS, TimeUnit.MILLISECONDS ) );
+
+        for ( int i = 1; i <= capacity; i++ )
+        {
+            assertTrue( m_numbers.offer( i ) );
+        }
+
+        CommsStats stats = new CommsStats();
+
+        assertFalse( m_numbers.offer( capacity + 1, stats ) );
+        assertEquals( 1, stats.get( CommsStats.DELIVERIES_DROPPED ) );
+
+        final CountDownLatch put = new CountDownLatch( 1 );
+        Thread producer = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    m_numbers.put( capacity + 1 );
+                    put.countDown();
+                }
+                catch ( InterruptedException ie )
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        } );
+
+        producer.start();
+        assertFalse( "Put didn't wait for room.", put.await( WINDOW_MS, TimeUnit.MILLISECONDS ) );
+
+        m_release.countDown();
+        assertTrue( "Put didn't finish once there was room.", put.await( TIMEOUT_MS, TimeUnit.MILLISECONDS ) );
+        producer.join( TIMEOUT_MS );
+
+        List<Integer> delivered = new ArrayList<Integer>();
+
+        for ( int i = 0; i <= capacity + 1; i++ )
+        {
+            delivered.addAll( awaitBatch() );
+        }
+
+        assertEquals( Arrays.asList( 0, 1, 2, 3, 4, 5 ), delivered );
+    }
+
+
+    @Test
+    public void offerDoesNotBlockOtherPeers() throws Exception
+    {
+        m_batcher = new CommsBatcher<CommsFrame>( new StuckSink(), CAPACITY, m_log );
+        m_batcher.setMaxBatchSize( 1 );
+        m_batcher.start();
+        m_hub = new CommsEngine( new TestDiscovery(), new OfferingListener(), m_log );
+        m_hub.setUseSelector( true );
+        m_hub.startServer();
+
+        for ( int i = 0; i < PEERS; i++ )
+        {
+            TestDiscovery discovery = new TestDiscovery();
+
+            m_peers[i] = new CommsEngine( discovery, new OfferingListener(), m_log );
+            m_peers[i].setUseSelector( true );
+            m_peers[i].startServer();
+            m_hub.connectToServer( getPeerAddress( i ), discovery.awaitPort() );
+        }
+
+        awaitConnected();
+
+        // The sink takes one and sticks, then the first peer fills the buffer and more.
+        assertEquals( 1, m_peers[0].sendToAll( CommsFrame.createText( MSG_TEXT, "stuck" ) ) );
+        assertTrue( "Sink didn't take the first frame.", m_taken.await( TIMEOUT_MS, TimeUnit.MILLISECONDS ) );
+
+        int firstCount = CAPACITY * 4;
+
+        for ( int i = 0; i < firstCount; i++ )
+        {
+            assertEquals( 1, m_peers[0].sendToAll( CommsFrame.createText( MSG_TEXT, "first " + i ) ) );
+        }
+
+        assertTrue( "First peer's frames weren't all read.", awaitReceived( 0, firstCount + 1 ) );
+        assertEquals( CAPACITY, m_batcher.size() );
+
+        CommsClient first = m_hub.getCommsClient( getPeerAddress( 0 ).getHostAddress() );
+
+        assertEquals( firstCount - CAPACITY, first.getStats().get( CommsStats.DELIVERIES_DROPPED ) );
+
+        // The second peer is still read while the buffer stays full.
+        int secondCount = 100;
+
+        for ( int i = 0; i < secondCount; i++ )
+        {
+            assertEquals( 1, m_peers[1].sendToAll( CommsFrame.createText( MSG_TEXT, "second " + i ) ) );
+        }
+
+        assertTrue( "Second peer's frames weren't read.", awaitReceived( 1, secondCount ) );
+
+        CommsClient second = m_hub.getCommsClient( getPeerAddress( 1 ).getHostAddress() );
+
+        assertEquals( secondCount, second.getStats().get( CommsStats.DELIVERIES_DROPPED ) );
+        assertEquals( firstCount - CAPACITY + secondCount, m_hub.getStats().get( CommsStats.DELIVERIES_DROPPED ) );
+        assertFalse( m_batcher.offer( CommsFrame.createText( MSG_TEXT, "full" ) ) );
+    }
+
+
+    private List<Integer> awaitBatch() throws InterruptedException
+    {
+        List<Integer> batch = m_batches.poll( TIMEOUT_MS, TimeUnit.MILLISECONDS );
+
+        assertTrue( "No batch delivered.", batch != null );
+
+        return batch;
+    }
+
+
+    private void awaitConnected() throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+        while ( m_hub.getConnectedCount() < PEERS || m_peers[0].getConnectedCount() < 1 || m_peers[1].getConnectedCount() < 1 )
+        {
+            assertTrue( "Peers didn't connect.", System.currentTimeMillis() < deadline );
+            Thread.sleep( 10 );
+        }
+    }
+
+
+    private boolean awaitReceived( int peer, int count ) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+        while ( m_received[peer].get() < count )
+        {
+            if ( System.currentTimeMillis() >= deadline )
+            {
+                return false;
+            }
+
+            Thread.sleep( 10 );
+        }
+
+        return true;
+    }
+
+
+    // The hub's own address is 127.0.0.1, the peers follow it.
+    private static InetAddress getPeerAddress( int index ) throws UnknownHostException
+    {
+        return InetAddress.getByAddress( new byte[] { 127, 0, 0, (byte) ( index + 2 ) } );
+    }
+
+
+    private static int getPeerIndex( CommsClient commsClient )
+    {
+        return commsClient.getInetAddress().getAddress()[3] - 2;
+    }
+
+
+    // Takes the first batch and holds on to it until the test ends.
+    class StuckSink implements CommsBatcher.Sink<CommsFrame>
+    {
+        // @Override
+        public void onBatch( List<CommsFrame> batch )
+        {
+            m_taken.countDown();
+
+            try
+            {
+                m_release.await();
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    // Copies each batch, if asked waiting on the first until the test releases it.
+    class RecordingSink implements CommsBatcher.Sink<Integer>
+    {
+        private final boolean m_holdFirst;
+
+
+        RecordingSink( boolean holdFirst )
+        {
+            m_holdFirst = holdFirst;
+        }
+
+
+        // @Override
+        public void onBatch( List<Integer> batch )
+        {
+            m_times.add( System.nanoTime() );
+            m_batches.add( new ArrayList<Integer>( batch ) );
+
+            if ( m_holdFirst && m_taken.getCount() > 0 )
+            {
+                m_taken.countDown();
+
+                try
+                {
+                    m_release.await();
+                }
+                catch ( InterruptedException ie )
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+
+    // Delivers as NsdService does, counting what doesn't fit against the peer.
+    class OfferingListener implements CommsListener
+    {
+        // @Override
+        public void onFrameReceived( CommsClient commsClient, CommsFrame frame )
+        {
+            m_batcher.offer( frame, commsClient.getStats() );
+
+            int peer = getPeerIndex( commsClient );
+
+            if ( peer >= 0 && peer < PEERS )
+            {
+                m_received[peer].incrementAndGet();
+            }
+        }
+
+
+        // @Override
+        public void onConnectedChange( boolean connected )
+        {
+        }
+
+
+        // @Override
+        public void onClientConnectedChange( CommsClient commsClient, boolean connected )
+        {
+        }
+    }
+}
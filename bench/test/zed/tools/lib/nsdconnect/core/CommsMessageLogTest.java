@@ -0,0 +1,171 @@
+package zed.tools.lib.nsdconnect.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+// A query reads without the log's lock while the I/O thread carries on appending,
+// and, with a small size limit, dropping the segments the query is reading.
+public class CommsMessageLogTest
+{
+    // Constants:
+    private static final int              MSG_TEXT      = 1;
+    private static final int              MESSAGE_COUNT = 20000;
+    private static final long             TIMEOUT_MS    = 30 * 1000;
+
+    // Member variables:
+    @Rule
+    public final TemporaryFolder          m_folder      = new TemporaryFolder();
+    private final CommsLog                m_log         = new SystemCommsLog( SystemCommsLog.WARN );
+    // Why the append thread stopped early, if it did.
+    private final AtomicReference<String> m_failure     = new AtomicReference<String>();
+    private CommsMessageLog               m_messageLog;
+
+
+    @After
+    public void tearDown()
+    {
+        if ( m_messageLog != null )
+        {
+            m_messageLog.close();
+        }
+    }
+
+
+    @Test
+    public void pagesWhileAppending() throws Exception
+    {
+        m_messageLog = createMessageLog( Long.MAX_VALUE );
+
+        Thread appendThread = startAppending();
+        long offset = CommsMessageLog.NO_OFFSET;
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+        // Every message turns up once, in order, whole.
+        while ( offset < MESSAGE_COUNT - 1 )
+        {
+            assertNull( m_failure.get() );
+            assertTrue( "Didn't page to the end.", System.currentTimeMillis() < deadline );
+
+            for ( CommsMessageLog.Entry entry : query( offset ).getEntries() )
+            {
+                assertEquals( offset + 1, entry.getOffset() );
+                assertEquals( "message " + entry.getOffset(), entry.getText() );
+                offset = entry.getOffset();
+            }
+        }
+
+        appendThread.join( TIMEOUT_MS );
+        assertNull( m_failure.get() );
+        assertTrue( query( offset ).isComplete() );
+    }
+
+
+    @Test
+    public void pagesWhileDropping() throws Exception
+    {
+        m_messageLog = createMessageLog( 64 * 1024 );
+
+        Thread appendThread = startAppending();
+        long offset = CommsMessageLog.NO_OFFSET;
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+        // What's dropped is skipped, what's there is whole.
+        while ( offset < MESSAGE_COUNT - 1 )
+        {
+            assertNull( m_failure.get() );
+            assertTrue( "Didn't page to the end.", System.currentTimeMillis() < deadline );
+
+            for ( CommsMessageLog.Entry entry : query( offset ).getEntries() )
+            {
+                assertTrue( entry.getOffset() > offset );
+                assertEquals( "message " + entry.getOffset(), entry.getText() );
+                offset = entry.getOffset();
+            }
+        }
+
+        appendThread.join( TIMEOUT_MS );
+        assertNull( m_failure.get() );
+        assertTrue( m_messageLog.getFirstOffset() > 0 );
+    }
+
+
+    @Test
+    public void keepsOffsetsAcrossReopen() throws Exception
+    {
+        m_messageLog = createMessageLog( Long.MAX_VALUE );
+
+        assertEquals( 0, m_messageLog.append( "peer-b", CommsMessageLog.DIRECTION_IN, CommsFrame.createText( MSG_TEXT, "one" ) ).getOffset() );
+        assertEquals( 1, m_messageLog.append( null, CommsMessageLog.DIRECTION_OUT, CommsFrame.createText( MSG_TEXT, "two" ) ).getOffset() );
+        m_messageLog.close();
+
+        m_messageLog = createMessageLog( Long.MAX_VALUE );
+
+        CommsMessageLog.Page page = query( CommsMessageLog.NO_OFFSET );
+
+        assertEquals( 2, page.getEntries().size() );
+        assertEquals( "peer-b", page.getEntries().get( 0 ).getPeer() );
+        assertNull( page.getEntries().get( 1 ).getPeer() );
+        assertEquals( "two", page.getEntries().get( 1 ).getText() );
+        assertEquals( 2, m_messageLog.append( "peer-b", CommsMessageLog.DIRECTION_IN, CommsFrame.createText( MSG_TEXT, "three" ) ).getOffset() );
+    }
+
+
+    private CommsMessageLog createMessageLog( long maxBytes )
+    {
+        CommsMessageLog messageLog = new CommsMessageLog( m_folder.getRoot(), m_log );
+
+        messageLog.setSegmentSize( 16 * 1024 );
+        messageLog.setIndexCapacity( 256 );
+        messageLog.setMaxBytes( maxBytes );
+
+        return messageLog;
+    }
+
+
+    private CommsMessageLog.Page query( long afterOffset )
+    {
+        CommsMessageLog.Query query = new CommsMessageLog.Query();
+
+        query.setAfterOffset( afterOffset );
+        query.setMaxCount( 100 );
+
+        return m_messageLog.query( query );
+    }
+
+
+    // The I/O thread's part, as fast as it can.
+    private Thread startAppending()
+    {
+        Thread appendThread = new Thread( new Runnable()
+        {
+            // @Override
+            public void run()
+            {
+                for ( int i = 0; i < MESSAGE_COUNT; i++ )
+                {
+                    CommsMessageLog.Entry entry = m_messageLog.append( "peer-" + ( i % 3 ), CommsMessageLog.DIRECTION_IN,
+                                    CommsFrame.createText( MSG_TEXT, "message " + i ) );
+
+                    if ( entry == null || entry.getOffset() != i )
+                    {
+                        m_failure.set( "Append " + i + " gave " + ( ( entry == null ) ? null : entry.getOffset() ) );
+                        return;
+                    }
+                }
+            }
+        }, "AppendThread" );
+
+        appendThread.start();
+
+        return appendThread;
+    }
+}
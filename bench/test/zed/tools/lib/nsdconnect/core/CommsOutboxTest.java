@@ -0,0 +1,172 @@
+package zed.tools.lib.nsdconnect.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+public class CommsOutboxTest
+{
+    // Constants:
+    private static final int        MSG_TEXT   = 1;
+    private static final long       TIMEOUT_MS = 10 * 1000;
+
+    // Member variables:
+    @Rule
+    public final TemporaryFolder    m_folder   = new TemporaryFolder();
+    private final CommsLog          m_log      = new SystemCommsLog( SystemCommsLog.WARN );
+    private final List<CommsEngine> m_engines  = new ArrayList<CommsEngine>();
+    private CommsOutbox             m_outbox;
+
+
+    @After
+    public void tearDown()
+    {
+        for ( CommsEngine engine : m_engines )
+        {
+            engine.tearDown();
+        }
+
+        if ( m_outbox != null )
+        {
+            m_outbox.close();
+        }
+    }
+
+
+    @Test
+    public void keepsFramesAcrossReopen() throws Exception
+    {
+        m_outbox = new CommsOutbox( m_folder.getRoot(), m_log );
+
+        assertTrue( m_outbox.append( "peer-b", CommsFrame.createText( MSG_TEXT, "one" ) ) );
+        assertTrue( m_outbox.append( "peer-b", CommsFrame.createText( MSG_TEXT, "two" ) ) );
+        assertTrue( m_outbox.append( null, CommsFrame.createText( MSG_TEXT, "all" ) ) );
+        m_outbox.remove( "peer-b" );
+        m_outbox.close();
+
+        m_outbox = new CommsOutbox( m_folder.getRoot(), m_log );
+
+        assertEquals( "two", m_outbox.peek( "peer-b" ).getText() );
+        m_outbox.remove( "peer-b" );
+        assertNull( m_outbox.peek( "peer-b" ) );
+        assertEquals( "all", m_outbox.peek( null ).getText() );
+    }
+
+
+    // What's sent with no peer at all goes to the peers there are at the first HELLO, and
+    // only them: a peer met afterwards starts with what's sent after it connected.
+    @Test
+    public void broadcastGoesToThePeersAtTheFirstHello() throws Exception
+    {
+        m_outbox = new CommsOutbox( m_folder.getRoot(), m_log );
+
+        CommsEngine hub = createEngine( "hub", 1, null );
+        List<String> firstReceived = Collections.synchronizedList( new ArrayList<String>() );
+        List<String> laterReceived = Collections.synchronizedList( new ArrayList<String>() );
+
+        hub.setOutbox( m_outbox );
+        hub.startServer();
+
+        assertEquals( 0, hub.sendToAll( CommsFrame.createText( MSG_TEXT, "early" ) ) );
+        assertEquals( "early", m_outbox.peek( null ).getText() );
+
+        connect( hub, createEngine( "first", 2, firstReceived ), 2 );
+        assertTrue( awaitReceived( firstReceived, 1 ) );
+        assertNull( m_outbox.peek( null ) );
+
+        connect( hub, createEngine( "later", 3, laterReceived ), 3 );
+        assertEquals( 2, hub.sendToAll( CommsFrame.createText( MSG_TEXT, "late" ) ) );
+        assertTrue( awaitReceived( firstReceived, 2 ) );
+        assertTrue( awaitReceived( laterReceived, 1 ) );
+
+        assertEquals( Arrays.asList( "early", "late" ), firstReceived );
+        assertEquals( Arrays.asList( "late" ), laterReceived );
+    }
+
+
+    private CommsEngine createEngine( String instanceId, int address, final List<String> received ) throws Exception
+    {
+        CommsEngine engine = new CommsEngine( new TestDiscovery(), new CommsListener()
+        {
+            // @Override
+            public void onFrameReceived( CommsClient commsClient, CommsFrame frame )
+            {
+                if ( received != null )
+                {
+                    received.add( frame.getText() );
+                }
+            }
+
+
+            // @Override
+            public void onConnectedChange( boolean connected )
+            {
+            }
+
+
+            // @Override
+            public void onClientConnectedChange( CommsClient commsClient, boolean connected )
+            {
+            }
+        }, m_log );
+
+        engine.setInstanceId( instanceId );
+        engine.setLocalAddress( getAddress( address ) );
+        m_engines.add( engine );
+
+        return engine;
+    }
+
+
+    // Connect and wait for the HELLO, which is when the outbox is flushed.
+    private void connect( CommsEngine hub, CommsEngine peer, int address ) throws Exception
+    {
+        peer.startServer();
+        hub.connectToServer( getAddress( address ), ( (TestDiscovery) peer.getDiscovery() ).awaitPort() );
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        CommsClient commsClient;
+
+        while ( ( commsClient = hub.getCommsClient( getAddress( address ).getHostAddress() ) ) == null || commsClient.getRemoteInstanceId() == null )
+        {
+            assertTrue( "Peer didn't say HELLO.", System.currentTimeMillis() < deadline );
+            Thread.sleep( 10 );
+        }
+    }
+
+
+    private static boolean awaitReceived( List<String> received, int count ) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+        while ( received.size() < count )
+        {
+            if ( System.currentTimeMillis() >= deadline )
+            {
+                return false;
+            }
+
+            Thread.sleep( 10 );
+        }
+
+        return true;
+    }
+
+
+    private static InetAddress getAddress( int address ) throws Exception
+    {
+        return InetAddress.getByAddress( new byte[] { 127, 0, 0, (byte) address } );
+    }
+}
@@ -0,0 +1,337 @@
+package zed.tools.lib.nsdconnect.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+// Reliable delivery between engines on loopback. Heartbeats are off, so the
+// only acknowledgements are every ACK_EVERY frames and on a reconnect, and
+// what's left to send again when a connection is killed is known exactly.
+// Then a peer's session across a new address and across a restart.
+public class CommsReliableLinkTest
+{
+    // Constants:
+    private static final int        MSG_TEXT   = 1;
+    private static final long       TIMEOUT_MS = 10 * 1000;
+    // More than one acknowledgement's worth, so some are acknowledged and some not.
+    private static final int        SENT       = CommsReliableLink.ACK_EVERY + 8;
+
+    // Member variables:
+    private final CommsLog          m_log      = new SystemCommsLog( SystemCommsLog.WARN );
+    private final List<CommsEngine> m_engines  = new ArrayList<CommsEngine>();
+
+
+    @After
+    public void tearDown()
+    {
+        for ( CommsEngine engine : m_engines )
+        {
+            engine.tearDown();
+        }
+    }
+
+
+    // Only what wasn't acknowledged is sent again on the next connection, the peer drops
+    // those it had, and what was sent while disconnected follows, each exactly once.
+    @Test
+    public void resendsOnlyWhatWasntAcknowledged() throws Exception
+    {
+        List<String> received = Collections.synchronizedList( new ArrayList<String>() );
+        CommsEngine hub = createEngine( "hub", 1, null );
+        CommsEngine peer = createEngine( "peer", 2, received );
+
+        peer.startServer();
+        CommsClient commsClient = connect( hub, peer, 2 );
+
+        send( hub, 0, SENT );
+        assertTrue( awaitReceived( received, SENT ) );
+        awaitReplaySize( commsClient, SENT - CommsReliableLink.ACK_EVERY );
+
+        // Killed from the peer's end, the hub finds out by reading.
+        peer.getCommsClient( getAddress( 1 ).getHostAddress() ).close();
+        awaitDisconnected( commsClient );
+
+        send( hub, SENT, 5 );
+        assertEquals( SENT - CommsReliableLink.ACK_EVERY + 5, commsClient.getReplaySize() );
+
+        hub.checkReconnectClients();
+        assertTrue( awaitReceived( received, SENT + 5 ) );
+
+        assertEquals( createTexts( 0, SENT + 5 ), received );
+        assertEquals( SENT - CommsReliableLink.ACK_EVERY, hub.getStats().get( CommsStats.RETRANSMITS ) );
+        assertEquals( SENT - CommsReliableLink.ACK_EVERY, peer.getStats().get( CommsStats.DUPLICATES ) );
+
+        // The reconnect's acknowledgement clears those sent again, the new ones wait for the next.
+        awaitReplaySize( commsClient, 5 );
+    }
+
+
+    // A peer that comes back from a new address carries on its session there, and the
+    // client left at the old address goes.
+    @Test
+    public void resumesTheSessionFromANewAddress() throws Exception
+    {
+        List<String> received = Collections.synchronizedList( new ArrayList<String>() );
+        CommsEngine hub = createEngine( "hub", 1, null );
+        CommsEngine peer = createEngine( "peer", 2, received );
+
+        hub.startServer();
+        connect( peer, hub, 1 );
+
+        CommsClient oldCommsClient = awaitHello( hub, 2 );
+
+        send( hub, 0, SENT );
+        assertTrue( awaitReceived( received, SENT ) );
+        awaitReplaySize( oldCommsClient, SENT - CommsReliableLink.ACK_EVERY );
+
+        // As after a DHCP renewal, the peer's next connection comes from elsewhere.
+        peer.setLocalAddress( getAddress( 3 ) );
+        peer.closeCommsClients();
+        awaitDisconnected( oldCommsClient );
+        send( hub, SENT, 5 );
+
+        peer.checkReconnectClients();
+        assertTrue( awaitReceived( received, SENT + 5 ) );
+
+        CommsClient newCommsClient = hub.getCommsClient( getAddress( 3 ).getHostAddress() );
+
+        assertEquals( "peer", newCommsClient.getRemoteInstanceId() );
+        assertNull( hub.getCommsClient( getAddress( 2 ).getHostAddress() ) );
+        assertEquals( createTexts( 0, SENT + 5 ), received );
+        assertEquals( SENT - CommsReliableLink.ACK_EVERY, hub.getStats().get( CommsStats.RETRANSMITS ) );
+        assertEquals( SENT - CommsReliableLink.ACK_EVERY, peer.getStats().get( CommsStats.DUPLICATES ) );
+    }
+
+
+    // A restarted peer has a new session token and numbers from 1 again, which mustn't be
+    // taken for what it sent before.
+    @Test
+    public void restartedPeerStartsNumberingAgain() throws Exception
+    {
+        List<String> received = Collections.synchronizedList( new ArrayList<String>() );
+        CommsEngine hub = createEngine( "hub", 1, received );
+        CommsEngine peer = createEngine( "peer", 2, null );
+
+        hub.startServer();
+        connect( peer, hub, 1 );
+        send( peer, 0, 5 );
+        assertTrue( awaitReceived( received, 5 ) );
+
+        CommsClient oldCommsClient = hub.getCommsClient( getAddress( 2 ).getHostAddress() );
+
+        peer.tearDown();
+        awaitDisconnected( oldCommsClient );
+
+        CommsEngine restartedPeer = createEngine( "peer", 2, null );
+
+        assertFalse( restartedPeer.getSessionToken().equals( peer.getSessionToken() ) );
+        connect( restartedPeer, hub, 1 );
+        send( restartedPeer, 5, 5 );
+        assertTrue( awaitReceived( received, 10 ) );
+
+        assertEquals( createTexts( 0, 10 ), received );
+        assertEquals( 0, hub.getStats().get( CommsStats.DUPLICATES ) );
+    }
+
+
+    // Kept until the peer is reached, then send() fails rather than growing without end.
+    @Test
+    public void fullReplayBufferFailsSend() throws Exception
+    {
+        CommsEngine hub = createEngine( "hub", 1, null );
+        ServerSocket closed = new ServerSocket( 0 );
+
+        closed.close();
+        hub.connectToServer( getAddress( 2 ), closed.getLocalPort() );
+
+        CommsClient commsClient = hub.getCommsClient( getAddress( 2 ).getHostAddress() );
+
+        for ( int i = 0; i < CommsReliableLink.DEFAULT_REPLAY_CAPACITY; i++ )
+        {
+            assertTrue( commsClient.send( CommsFrame.createText( MSG_TEXT, "kept " + i ) ) );
+        }
+
+        assertFalse( commsClient.send( CommsFrame.createText( MSG_TEXT, "dropped" ) ) );
+        assertEquals( CommsReliableLink.DEFAULT_REPLAY_CAPACITY, commsClient.getReplaySize() );
+        assertEquals( 1, commsClient.getStats().get( CommsStats.MESSAGES_DROPPED ) );
+    }
+
+
+    // Numbers go from -1 to 1, 0 is never used, and still compare in order.
+    @Test
+    public void numbersWrapPastZero() throws Exception
+    {
+        CommsReliableLink sender = new CommsReliableLink( 8, -2 );
+        CommsReliableLink receiver = new CommsReliableLink();
+        List<Integer> sequences = new ArrayList<Integer>();
+
+        for ( int i = 0; i < 4; i++ )
+        {
+            sequences.add( sender.add( CommsFrame.createText( MSG_TEXT, "wrap " + i ) ).m_sequence );
+        }
+
+        assertEquals( Arrays.asList( -2, -1, 1, 2 ), sequences );
+
+        assertTrue( receiver.onReceived( -2 ) );
+        assertTrue( receiver.onReceived( -1 ) );
+        assertTrue( receiver.onReceived( 1 ) );
+        assertFalse( receiver.onReceived( -1 ) );
+        assertTrue( receiver.onReceived( 2 ) );
+        assertFalse( receiver.onReceived( 1 ) );
+        assertEquals( 2, receiver.takeAcknowledgement() );
+
+        // Acknowledging -1 leaves those after the wrap.
+        sender.onAcknowledged( -1 );
+        assertEquals( 2, sender.getReplaySize() );
+        assertEquals( 1, sender.getAfter( -1 ).get( 0 ).m_sequence );
+        assertEquals( 2, sender.getAfter( 1 ).get( 0 ).m_sequence );
+        assertTrue( sender.getAfter( 2 ).isEmpty() );
+
+        sender.onAcknowledged( 2 );
+        assertEquals( 0, sender.getReplaySize() );
+        assertTrue( sender.getAfter( 0 ).isEmpty() );
+    }
+
+
+    private CommsEngine createEngine( String instanceId, int address, final List<String> received ) throws Exception
+    {
+        CommsEngine engine = new CommsEngine( new TestDiscovery(), new CommsListener()
+        {
+            // @Override
+            public void onFrameReceived( CommsClient commsClient, CommsFrame frame )
+            {
+                if ( received != null )
+                {
+                    received.add( frame.getText() );
+                }
+            }
+
+
+            // @Override
+            public void onConnectedChange( boolean connected )
+            {
+            }
+
+
+            // @Override
+            public void onClientConnectedChange( CommsClient commsClient, boolean connected )
+            {
+            }
+        }, m_log );
+
+        engine.setInstanceId( instanceId );
+        engine.setLocalAddress( getAddress( address ) );
+        engine.setReliable( true );
+        engine.getHeartbeat().setIntervalMs( 0 );
+        engine.getHeartbeat().setIdleTimeoutMs( 0 );
+        m_engines.add( engine );
+
+        return engine;
+    }
+
+
+    // Connect and wait for the HELLO, after which both ends number what they send.
+    private CommsClient connect( CommsEngine from, CommsEngine to, int address ) throws Exception
+    {
+        from.connectToServer( getAddress( address ), ( (TestDiscovery) to.getDiscovery() ).awaitPort() );
+
+        return awaitHello( from, address );
+    }
+
+
+    private CommsClient awaitHello( CommsEngine engine, int address ) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        CommsClient commsClient;
+
+        while ( ( commsClient = engine.getCommsClient( getAddress( address ).getHostAddress() ) ) == null || commsClient.getRemoteInstanceId() == null )
+        {
+            assertTrue( "Peer didn't say HELLO.", System.currentTimeMillis() < deadline );
+            Thread.sleep( 10 );
+        }
+
+        return commsClient;
+    }
+
+
+    private static void send( CommsEngine engine, int first, int count )
+    {
+        for ( int i = first; i < first + count; i++ )
+        {
+            assertEquals( 1, engine.sendToAll( CommsFrame.createText( MSG_TEXT, "text " + i ) ) );
+        }
+    }
+
+
+    private static List<String> createTexts( int first, int count )
+    {
+        List<String> texts = new ArrayList<String>();
+
+        for ( int i = first; i < first + count; i++ )
+        {
+            texts.add( "text " + i );
+        }
+
+        return texts;
+    }
+
+
+    private static void awaitReplaySize( CommsClient commsClient, int size ) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+        while ( commsClient.getReplaySize() != size )
+        {
+            assertTrue( "Replay buffer has " + commsClient.getReplaySize() + " not " + size + ".", System.currentTimeMillis() < deadline );
+            Thread.sleep( 10 );
+        }
+    }
+
+
+    private static void awaitDisconnected( CommsClient commsClient ) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+        while ( commsClient.isConnected() )
+        {
+            assertTrue( "Connection wasn't lost.", System.currentTimeMillis() < deadline );
+            Thread.sleep( 10 );
+        }
+    }
+
+
+    private static boolean awaitReceived( List<String> received, int count ) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+        while ( received.size() < count )
+        {
+            if ( System.currentTimeMillis() >= deadline )
+            {
+                return false;
+            }
+
+            Thread.sleep( 10 );
+        }
+
+        return true;
+    }
+
+
+    private static InetAddress getAddress( int address ) throws Exception
+    {
+        return InetAddress.getByAddress( new byte[] { 127, 0, 0, (byte) address } );
+    }
+}
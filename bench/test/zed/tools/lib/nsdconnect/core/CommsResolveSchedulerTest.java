@@ -0,0 +1,222 @@
+package zed.tools.lib.nsdconnect.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+
+// The resolve scheduler on a virtual clock, against a backend that answers
+// only when the test says, as the NsdManager does one resolve at a time.
+public class CommsResolveSchedulerTest
+{
+    // Constants:
+    private static final String         SERVICE_TYPE       = "_http._tcp.";
+    // As the scheduler.
+    private static final int            MAX_ATTEMPTS       = 6;
+    private static final long           RETRY_BASE_MS      = 250;
+    private static final long           RETRY_MAX_MS       = 8 * 1000;
+    private static final long           RESOLVE_TIMEOUT_MS = 15 * 1000;
+
+    // Member variables:
+    private final TestLooper            m_looper           = new TestLooper();
+    private final TestBackend           m_backend          = new TestBackend();
+    private final List<String>          m_resolved         = new ArrayList<String>();
+    private final List<String>          m_abandoned        = new ArrayList<String>();
+    private final CommsResolveScheduler m_scheduler        = new CommsResolveScheduler( m_backend, m_looper, new TestResolveHandler(), 1,
+                                                                        new SystemCommsLog( SystemCommsLog.ERROR ) );
+
+
+    @Test
+    public void retriesWithBackOffThenGivesUp() throws Exception
+    {
+        m_scheduler.schedule( createServiceInfo( "a" ) );
+        m_looper.runDue();
+        assertEquals( 1, m_backend.m_resolves.size() );
+
+        for ( int attempt = 1; attempt < MAX_ATTEMPTS; attempt++ )
+        {
+            long delay = Math.min( RETRY_MAX_MS, RETRY_BASE_MS << ( attempt - 1 ) );
+
+            fail( attempt - 1 );
+
+            // Not before the delay, and by half as much again.
+            m_looper.advance( delay - 1 );
+            assertEquals( attempt, m_backend.m_resolves.size() );
+            m_looper.advance( delay / 2 + 1 );
+            assertEquals( attempt + 1, m_backend.m_resolves.size() );
+        }
+
+        fail( MAX_ATTEMPTS - 1 );
+        m_looper.advance( 60 * 1000 );
+
+        assertEquals( MAX_ATTEMPTS, m_backend.m_resolves.size() );
+        assertEquals( 1, m_abandoned.size() );
+        assertTrue( m_resolved.isEmpty() );
+    }
+
+
+    @Test
+    public void resolvesOneAtATimeAndOnceEach() throws Exception
+    {
+        m_scheduler.schedule( createServiceInfo( "a" ) );
+        m_scheduler.schedule( createServiceInfo( "b" ) );
+        m_scheduler.schedule( createServiceInfo( "a" ) );
+        m_looper.runDue();
+        assertEquals( 1, m_backend.m_resolves.size() );
+
+        resolve( 0 );
+        assertEquals( 2, m_backend.m_resolves.size() );
+        assertEquals( "b", m_backend.m_resolves.get( 1 ).m_serviceInfo.getServiceName() );
+
+        resolve( 1 );
+        m_looper.advance( RESOLVE_TIMEOUT_MS );
+
+        assertEquals( 2, m_backend.m_resolves.size() );
+        assertEquals( 2, m_resolved.size() );
+    }
+
+
+    // The NsdManager doesn't always call back, the next is started anyway and a late answer is ignored.
+    @Test
+    public void timesOutAResolveThatIsNeverAnswered() throws Exception
+    {
+        m_scheduler.schedule( createServiceInfo( "a" ) );
+        m_scheduler.schedule( createServiceInfo( "b" ) );
+        m_looper.runDue();
+
+        m_looper.advance( RESOLVE_TIMEOUT_MS - 1 );
+        assertEquals( 1, m_backend.m_resolves.size() );
+        m_looper.advance( 1 );
+        assertEquals( 2, m_backend.m_resolves.size() );
+
+        resolve( 0 );
+        assertTrue( m_resolved.isEmpty() );
+    }
+
+
+    private void fail( int index )
+    {
+        Resolve resolve = m_backend.m_resolves.get( index );
+
+        resolve.m_listener.onResolveFailed( resolve.m_serviceInfo, DiscoveryBackend.FAILURE_ALREADY_ACTIVE );
+        m_looper.runDue();
+    }
+
+
+    private void resolve( int index ) throws Exception
+    {
+        Resolve resolve = m_backend.m_resolves.get( index );
+        String serviceName = resolve.m_serviceInfo.getServiceName();
+
+        resolve.m_listener.onServiceResolved( new CommsServiceInfo( serviceName, SERVICE_TYPE, InetAddress.getLoopbackAddress(), 1000 + index ) );
+        m_looper.runDue();
+    }
+
+
+    private static CommsServiceInfo createServiceInfo( String serviceName )
+    {
+        return new CommsServiceInfo( serviceName, SERVICE_TYPE );
+    }
+
+
+    private static class Resolve
+    {
+        final CommsServiceInfo                 m_serviceInfo;
+        final DiscoveryBackend.ResolveListener m_listener;
+
+
+        Resolve( CommsServiceInfo serviceInfo, DiscoveryBackend.ResolveListener listener )
+        {
+            m_serviceInfo = serviceInfo;
+            m_listener = listener;
+        }
+    }
+
+
+    // Records each resolve made, for the test to answer.
+    private static class TestBackend implements DiscoveryBackend
+    {
+        final List<Resolve> m_resolves = new ArrayList<Resolve>();
+
+
+        // @Override
+        public void registerService( CommsServiceInfo serviceInfo, RegistrationListener listener )
+        {
+        }
+
+
+        // @Override
+        public void unregisterService( RegistrationListener listener )
+        {
+        }
+
+
+        // @Override
+        public boolean updateServiceAttributes( RegistrationListener listener, Map<String, String> attributes )
+        {
+            return false;
+        }
+
+
+        // @Override
+        public void discoverServices( String serviceType, DiscoveryListener listener )
+        {
+        }
+
+
+        // @Override
+        public void stopServiceDiscovery( DiscoveryListener listener )
+        {
+        }
+
+
+        // @Override
+        public void resolveService( CommsServiceInfo serviceInfo, ResolveListener listener )
+        {
+            m_resolves.add( new Resolve( serviceInfo, listener ) );
+        }
+
+
+        // @Override
+        public boolean isResolvedOnFound()
+        {
+            return false;
+        }
+
+
+        // @Override
+        public int getMaxConcurrentResolves()
+        {
+            return 1;
+        }
+
+
+        // @Override
+        public void tearDown()
+        {
+        }
+    }
+
+
+    private class TestResolveHandler implements CommsResolveScheduler.ResolveHandler
+    {
+        // @Override
+        public void onResolved( CommsServiceInfo serviceInfo )
+        {
+            m_resolved.add( serviceInfo.getServiceName() );
+        }
+
+
+        // @Override
+        public void onResolveAbandoned( CommsServiceInfo serviceInfo, int errorCode )
+        {
+            m_abandoned.add( serviceInfo.getServiceName() );
+        }
+    }
+}
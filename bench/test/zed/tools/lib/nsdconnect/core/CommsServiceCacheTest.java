@@ -0,0 +1,79 @@
+package zed.tools.lib.nsdconnect.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+
+import org.junit.Test;
+
+
+// The service cache's time to live and lost service grace, on a virtual clock.
+public class CommsServiceCacheTest
+{
+    // Constants:
+    private static final String     SERVICE_NAME = "NsdComms a";
+    private static final String     SERVICE_TYPE = "_http._tcp.";
+    private static final long       TTL_MS       = 1000;
+
+    // Member variables:
+    private final TestLooper        m_looper     = new TestLooper();
+    private final CommsServiceCache m_cache      = new CommsServiceCache( m_looper );
+
+
+    @Test
+    public void isResolvedAgainOnlyAfterTheTimeToLive() throws Exception
+    {
+        m_cache.setTtlMs( TTL_MS );
+
+        assertNull( m_cache.onServiceFound( SERVICE_NAME ) );
+        assertTrue( m_cache.put( createServiceInfo( 1000 ) ) );
+        assertFalse( m_cache.put( createServiceInfo( 1000 ) ) );
+
+        m_looper.advance( TTL_MS - 1 );
+        assertNotNull( m_cache.onServiceFound( SERVICE_NAME ) );
+
+        m_looper.advance( 1 );
+        assertNull( m_cache.onServiceFound( SERVICE_NAME ) );
+
+        // Resolved again, somewhere else.
+        assertTrue( m_cache.put( createServiceInfo( 1001 ) ) );
+        assertEquals( 1, m_cache.getHits() );
+        assertEquals( 2, m_cache.getMisses() );
+    }
+
+
+    @Test
+    public void keepsALostServiceThatComesBack() throws Exception
+    {
+        m_cache.put( createServiceInfo( 1000 ) );
+
+        long suspectTime = m_cache.markSuspect( SERVICE_NAME );
+
+        assertTrue( suspectTime != 0 );
+        assertEquals( suspectTime, m_cache.markSuspect( SERVICE_NAME ) );
+
+        // Found again before the grace period's end, which then finds it no longer suspect.
+        m_looper.advance( 100 );
+        assertNotNull( m_cache.onServiceFound( SERVICE_NAME ) );
+        assertNull( m_cache.removeIfSuspect( SERVICE_NAME, suspectTime ) );
+        assertEquals( 1, m_cache.getRecovered() );
+
+        // Lost again, and this time it stays lost.
+        m_looper.advance( 100 );
+        suspectTime = m_cache.markSuspect( SERVICE_NAME );
+
+        assertNotNull( m_cache.removeIfSuspect( SERVICE_NAME, suspectTime ) );
+        assertEquals( 0, m_cache.size() );
+        assertEquals( 0, m_cache.markSuspect( SERVICE_NAME ) );
+    }
+
+
+    private static CommsServiceInfo createServiceInfo( int port )
+    {
+        return new CommsServiceInfo( SERVICE_NAME, SERVICE_TYPE, InetAddress.getLoopbackAddress(), port );
+    }
+}
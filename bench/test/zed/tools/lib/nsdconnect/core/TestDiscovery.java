@@ -0,0 +1,40 @@
+package zed.tools.lib.nsdconnect.core;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+// Stands in for Nsd in the tests, just capturing the port the server was bound to.
+class TestDiscovery implements CommsDiscovery
+{
+    // Constants:
+    private static final long    TIMEOUT_MS   = 10 * 1000;
+
+    // Member variables:
+    private final CountDownLatch m_registered = new CountDownLatch( 1 );
+    private volatile int         m_port       = 0;
+
+
+    // @Override
+    public void registerService( int port )
+    {
+        m_port = port;
+        m_registered.countDown();
+    }
+
+
+    // @Override
+    public void unregisterService()
+    {
+    }
+
+
+    int awaitPort() throws InterruptedException
+    {
+        assertTrue( "Server didn't start.", m_registered.await( TIMEOUT_MS, TimeUnit.MILLISECONDS ) );
+
+        return m_port;
+    }
+}
@@ -0,0 +1,88 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.util.PriorityQueue;
+
+
+// A looper on a virtual clock for the tests. Nothing runs until the test moves
+// the clock on, then what's due runs on the test's thread in time order, and
+// in the order posted at the same time.
+class TestLooper implements CommsLooper
+{
+    // Member variables:
+    private final PriorityQueue<Task> m_tasks    = new PriorityQueue<Task>();
+    private long                      m_now      = 0;
+    private long                      m_sequence = 0;
+
+
+    private static class Task implements Comparable<Task>
+    {
+        final long     m_time;
+        final long     m_sequence;
+        final Runnable m_runnable;
+
+
+        Task( long time, long sequence, Runnable runnable )
+        {
+            m_time = time;
+            m_sequence = sequence;
+            m_runnable = runnable;
+        }
+
+
+        // @Override
+        public int compareTo( Task other )
+        {
+            if ( m_time != other.m_time )
+            {
+                return ( m_time < other.m_time ) ? -1 : 1;
+            }
+
+            return ( m_sequence < other.m_sequence ) ? -1 : ( ( m_sequence == other.m_sequence ) ? 0 : 1 );
+        }
+    }
+
+
+    // @Override
+    public long now()
+    {
+        return m_now;
+    }
+
+
+    // @Override
+    public void post( Runnable task )
+    {
+        postDelayed( task, 0 );
+    }
+
+
+    // @Override
+    public void postDelayed( Runnable task, long delayMs )
+    {
+        m_tasks.add( new Task( m_now + Math.max( 0, delayMs ), m_sequence++, task ) );
+    }
+
+
+    // Run what's due now, including what that posts for now.
+    void runDue()
+    {
+        advance( 0 );
+    }
+
+
+    // Move the clock on, running each task at its time.
+    void advance( long ms )
+    {
+        long until = m_now + ms;
+
+        while ( !m_tasks.isEmpty() && m_tasks.peek().m_time <= until )
+        {
+            Task task = m_tasks.poll();
+
+            m_now = task.m_time;
+            task.m_runnable.run();
+        }
+
+        m_now = until;
+    }
+}
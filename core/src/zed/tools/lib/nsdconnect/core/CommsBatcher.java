@@ -0,0 +1,197 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+// Coalesces items from any number of threads into batches, delivered on a
+// thread of its own. A batch is delivered when the window since its first
+// item has passed or it has reached the maximum size, whichever is first.
+// The buffer is bounded. When delivery falls behind put() blocks the
+// producer, offer() refuses the item and leaves the producer to decide what
+// to do with it; the engine's I/O threads must use offer().
+public class CommsBatcher<T>
+{
+    // Constants:
+    private static final String TAG                    = CommsBatcher.class.getSimpleName();
+    public static final String  BATCHING_THREAD_NAME   = TAG + ":BatchingThread";
+    public static final int     DEFAULT_CAPACITY       = 4096;
+    public static final long    DEFAULT_WINDOW_MS      = 20;
+    public static final int     DEFAULT_MAX_BATCH_SIZE = 256;
+
+    // Member variables:
+    private final Sink<T>               m_sink;
+    private final CommsLog              m_log;
+    private final ArrayBlockingQueue<T> m_queue;
+    private volatile long               m_windowMs       = DEFAULT_WINDOW_MS;
+    private volatile int                m_maxBatchSize   = DEFAULT_MAX_BATCH_SIZE;
+    private Thread                      m_batchingThread = null;
+
+
+    // Receives each batch on the batching thread. The list is reused once the call returns.
+    public interface Sink<T>
+    {
+        public void onBatch( List<T> batch );
+    }
+
+
+    public CommsBatcher( Sink<T> sink, CommsLog log )
+    {
+        this( sink, DEFAULT_CAPACITY, log );
+    }
+
+
+    public CommsBatcher( Sink<T> sink, int capacity, CommsLog log )
+    {
+        m_sink = sink;
+        m_log = log;
+        m_queue = new ArrayBlockingQueue<T>( capacity );
+    }
+
+
+    public synchronized void start()
+    {
+        if ( m_batchingThread != null )
+        {
+            return;
+        }
+
+        m_batchingThread = new Thread( new BatchingThread(), BATCHING_THREAD_NAME );
+        m_batchingThread.start();
+    }
+
+
+    // Stop delivering, anything not yet delivered is discarded.
+    public synchronized void tearDown()
+    {
+        if ( m_batchingThread != null )
+        {
+            m_batchingThread.interrupt();
+        }
+
+        m_batchingThread = null;
+        m_queue.clear();
+    }
+
+
+    // A window of zero delivers whatever has arrived without waiting for more.
+    public void setWindowMs( long windowMs )
+    {
+        m_windowMs = Math.max( 0, windowMs );
+    }
+
+
+    public long getWindowMs()
+    {
+        return m_windowMs;
+    }
+
+
+    public void setMaxBatchSize( int maxBatchSize )
+    {
+        m_maxBatchSize = Math.max( 1, maxBatchSize );
+    }
+
+
+    public int getMaxBatchSize()
+    {
+        return m_maxBatchSize;
+    }
+
+
+    // Add an item, waiting for room if the buffer is full.
+    public void put( T item ) throws InterruptedException
+    {
+        m_queue.put( item );
+    }
+
+
+    // Add an item if there's room, without waiting. False if it wasn't added.
+    public boolean offer( T item )
+    {
+        return m_queue.offer( item );
+    }
+
+
+    // As offer(), counting an item that didn't fit as a dropped delivery in the given stats.
+    public boolean offer( T item, CommsStats stats )
+    {
+        if ( m_queue.offer( item ) )
+        {
+            return true;
+        }
+
+        stats.increment( CommsStats.DELIVERIES_DROPPED );
+
+        return false;
+    }
+
+
+    public int size()
+    {
+        return m_queue.size();
+    }
+
+
+    // Waits for an item, then gathers more until the window closes or the batch is full.
+    class BatchingThread implements Runnable
+    {
+        // @Override
+        public void run()
+        {
+            ArrayList<T> batch = new ArrayList<T>();
+
+            try
+            {
+                while ( !Thread.currentThread().isInterrupted() )
+                {
+                    int maxBatchSize = m_maxBatchSize;
+
+                    batch.add( m_queue.take() );
+
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( m_windowMs );
+
+                    while ( batch.size() < maxBatchSize )
+                    {
+                        if ( m_queue.drainTo( batch, maxBatchSize - batch.size() ) > 0 )
+                        {
+                            continue;
+                        }
+
+                        long remaining = deadline - System.nanoTime();
+                        T item = ( remaining > 0 ) ? m_queue.poll( remaining, TimeUnit.NANOSECONDS ) : null;
+
+                        if ( item == null )
+                        {
+                            break;
+                        }
+
+                        batch.add( item );
+                    }
+
+                    deliver( batch );
+                    batch.clear();
+                }
+            }
+            catch ( InterruptedException ie )
+            {
+                m_log.d( TAG, "Batching loop interrupted, exiting." );
+            }
+        }
+
+
+        private void deliver( List<T> batch )
+        {
+            try
+            {
+                m_sink.onBatch( batch );
+            }
+            catch ( Exception ex )
+            {
+                m_log.e( TAG, "Error delivering batch of " + batch.size() + ": ", ex );
+            }
+        }
+    }
+}
@@ -0,0 +1,1255 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+
+
+// This is the client to manage a connection to a peer, to send and receive.
+public class CommsClient implements CommsTransport.Endpoint, CommsPeerRegistry.Peer
+{
+    // Constants:
+    private static final String     CLIENT_TAG            = CommsClient.class.getSimpleName();
+    public static final String      RECEIVING_THREAD_NAME = CLIENT_TAG + ":ReceivingThread";
+    public static final String      SENDING_THREAD_NAME   = CLIENT_TAG + ":SendingThread";
+    private static final int        READ_BUFFER_SIZE      = 8 * 1024;
+    private static final int        WRITE_BUFFER_SIZE     = 16 * 1024;
+    private static final ByteBuffer HEARTBEAT_FRAME       = new CommsFrame( CommsFrame.TYPE_HEARTBEAT, CommsFrame.FLAG_NONE, new byte[0] ).encode().asReadOnlyBuffer();
+
+    // Member variables:
+    private final CommsEngine             m_commsEngine;
+    private final CommsLog                m_log;
+    private final CommsStats              m_stats;
+    // The engine's transport when we were created, kept even if the engine's changes.
+    // Null for a thread of our own.
+    private final CommsTransport          m_transport;
+    private InetAddress                   m_inetAddress        = null;
+    private int                           m_inetPort           = 0;
+    private int                           m_peerId             = -1;
+    private Socket                        m_socket             = null;
+    private boolean                       m_servicePublished   = false;
+    // Whether this client is counted as connected by the registry.
+    private boolean                       m_countedConnected   = false;
+    private InputStream                   m_inputStream        = null;
+    private OutputStream                  m_outputStream       = null;
+    private CommsFrameDecoder             m_frameDecoder       = null;
+    // A new one for each connection, so an old sending thread can't take the next one's frames.
+    private volatile CommsSendQueue       m_sendQueue          = new CommsSendQueue();
+    // Used instead of the socket and streams when served by a transport.
+    private CommsTransport.Connection     m_connection         = null;
+    private boolean                       m_connectionOpen     = false;
+    // Our outgoing connect, given by the connect scheduler, null for an accepted connection.
+    private CommsConnectScheduler.Attempt m_connectAttempt     = null;
+    // Whether the peer connected to us, rather than us to it.
+    private boolean                       m_accepted           = false;
+    // A duplicate connection waiting on the peer's HELLO, see CommsEngine.
+    private volatile boolean              m_candidate          = false;
+    private volatile String               m_remoteInstanceId   = null;
+    private volatile String               m_remoteSessionToken = null;
+    private boolean                       m_helloSent          = false;
+    // The engine's nanoTime() of the last frame queued and the last bytes read, for the heartbeat.
+    private volatile long                 m_lastSentTime       = 0;
+    private volatile long                 m_lastReceivedTime   = 0;
+    // What's been sent in reliable mode and not yet acknowledged. Our own until the peer's
+    // HELLO, then the peer's session. Changed with the link's lock held, see send().
+    private volatile CommsReliableLink    m_reliableLink       = null;
+    // Whether this connection has had the peer's HELLO, and if it said the peer is reliable too.
+    private volatile boolean              m_helloReceived      = false;
+    private volatile boolean              m_reliablePeer       = false;
+    // The last of the link's frames written to this connection, 0 for none.
+    private int                           m_reliableWritten    = 0;
+
+    private Thread                        m_sendingThread      = null;
+    private Thread                        m_receivingThread    = null;
+
+
+    CommsClient( CommsEngine commsEngine, InetAddress inetAddress, int inetPort )
+    {
+        m_commsEngine = commsEngine;
+        m_log = commsEngine.getLog();
+        m_stats = new CommsStats( commsEngine.getStats() );
+        m_transport = commsEngine.getTransportInUse();
+        m_inetAddress = inetAddress;
+        m_inetPort = inetPort;
+
+        String hostAddress = m_inetAddress.getHostAddress();
+
+        m_log.d( CLIENT_TAG, "Creating " + CLIENT_TAG + " for connection to: " + hostAddress + ":" + m_inetPort );
+    }
+
+
+    CommsClient( CommsEngine commsEngine, Socket socket )
+    {
+        m_commsEngine = commsEngine;
+        m_log = commsEngine.getLog();
+        m_stats = new CommsStats( commsEngine.getStats() );
+        m_transport = null;
+        m_socket = socket;
+        m_inetAddress = m_socket.getInetAddress();
+        m_inetPort = m_socket.getPort();
+        m_accepted = true;
+
+        String hostAddress = m_inetAddress.getHostAddress();
+
+        m_log.d( CLIENT_TAG, "Creating " + CLIENT_TAG + " for connection from: " + hostAddress + ":" + m_inetPort );
+    }
+
+
+    CommsClient( CommsEngine commsEngine, CommsTransport transport, CommsTransport.Connection connection )
+    {
+        m_commsEngine = commsEngine;
+        m_log = commsEngine.getLog();
+        m_stats = new CommsStats( commsEngine.getStats() );
+        m_transport = transport;
+        m_connection = connection;
+        m_inetAddress = connection.getInetAddress();
+        m_inetPort = connection.getPort();
+        m_accepted = true;
+
+        String hostAddress = m_inetAddress.getHostAddress();
+
+        m_log.d( CLIENT_TAG, "Creating " + CLIENT_TAG + " for connection from: " + hostAddress + ":" + m_inetPort );
+    }
+
+
+    public synchronized void tearDown()
+    {
+        String hostAddress = m_inetAddress.getHostAddress();
+
+        m_log.d( CLIENT_TAG, "Tearing down " + CLIENT_TAG + " for:" + hostAddress + ":" + m_inetPort );
+
+        m_commsEngine.getCommsClientRegistry().remove( hostAddress, this );
+        close();
+    }
+
+
+    public InetAddress getInetAddress()
+    {
+        return m_inetAddress;
+    }
+
+
+    public int getInetPort()
+    {
+        return m_inetPort;
+    }
+
+
+    public CommsStats getStats()
+    {
+        return m_stats;
+    }
+
+
+    // The number of frames waiting to be written.
+    public int getSendQueueSize()
+    {
+        if ( m_transport != null )
+        {
+            return m_transport.getSendQueueSize( m_connection );
+        }
+
+        return m_sendQueue.size();
+    }
+
+
+    // The number of reliable frames sent and not yet acknowledged.
+    public int getReplaySize()
+    {
+        CommsReliableLink reliableLink = m_reliableLink;
+
+        return ( reliableLink == null ) ? 0 : reliableLink.getReplaySize();
+    }
+
+
+    public synchronized boolean isConnected()
+    {
+        if ( m_transport != null )
+        {
+            return m_connectionOpen;
+        }
+
+        return ( m_socket != null && m_socket.isConnected() );
+    }
+
+
+    // @Override
+    // The peer's instance id from its HELLO, null until then or if it doesn't send one.
+    public String getRemoteInstanceId()
+    {
+        return m_remoteInstanceId;
+    }
+
+
+    public boolean isOutgoing()
+    {
+        return !m_accepted;
+    }
+
+
+    public int getPeerId()
+    {
+        return m_peerId;
+    }
+
+
+    // @Override
+    public void setPeerId( int peerId )
+    {
+        m_peerId = peerId;
+    }
+
+
+    public boolean getServicePublished()
+    {
+        return m_servicePublished;
+    }
+
+
+    public void setServicePublished( boolean published )
+    {
+        m_servicePublished = published;
+    }
+
+
+    public void checkReconnect()
+    {
+        if ( isConnected() )
+        {
+            return;
+        }
+
+        m_log.d( CLIENT_TAG, "Reconnecting " + CLIENT_TAG + " for:" + m_inetAddress.getHostAddress() + ":" + m_inetPort );
+
+        m_stats.increment( CommsStats.RECONNECTS );
+        close();
+        startIO();
+    }
+
+
+    // Send a frame to the peer, numbered and kept for sending again if the engine is reliable.
+    // Until the peer's HELLO says whether it is reliable too the frame is only kept.
+    public boolean send( CommsFrame frame )
+    {
+        if ( !m_commsEngine.isReliable() )
+        {
+            return sendFrame( frame.encode() );
+        }
+
+        while ( true )
+        {
+            CommsReliableLink reliableLink = getReliableLink();
+
+            synchronized ( reliableLink )
+            {
+                if ( reliableLink != m_reliableLink )
+                {
+                    // Moved to the peer's session meanwhile.
+                    continue;
+                }
+
+                if ( m_helloReceived && !m_reliablePeer )
+                {
+                    return sendFrame( frame.encode() );
+                }
+
+                if ( reliableLink.add( frame ) == null )
+                {
+                    m_log.w( CLIENT_TAG, "Replay buffer full, message dropped." );
+
+                    m_stats.increment( CommsStats.MESSAGES_DROPPED );
+                    return false;
+                }
+
+                writeReliable( reliableLink );
+
+                return true;
+            }
+        }
+    }
+
+
+    // Sending messages to our peer.
+    // Queue an encoded frame for the writer, this never blocks on the socket.
+    // The frame may be shared with other clients so its content must not be changed.
+    public boolean sendFrame( ByteBuffer frame )
+    {
+        CommsTransport.Connection connection = m_connection;
+
+        if ( ( m_transport == null ) ? ( m_socket == null ) : ( !m_connectionOpen || connection == null ) )
+        {
+            m_log.w( CLIENT_TAG, "Socket is null!" );
+            return false;
+        }
+
+        boolean queued = false;
+
+        if ( m_transport != null )
+        {
+            queued = m_transport.write( connection, frame );
+        }
+        else
+        {
+            queued = m_sendQueue.offer( frame );
+
+            if ( !queued )
+            {
+                m_log.w( CLIENT_TAG, "Send queue full, message dropped." );
+            }
+        }
+
+        if ( queued )
+        {
+            m_lastSentTime = m_commsEngine.nanoTime();
+        }
+
+        m_stats.increment( ( queued ) ? CommsStats.MESSAGES_OUT : CommsStats.MESSAGES_DROPPED );
+
+        return queued;
+    }
+
+
+    public synchronized void close()
+    {
+        if ( m_candidate )
+        {
+            m_commsEngine.onCandidateClosed( this );
+        }
+
+        m_commsEngine.getConnectScheduler().cancel( this );
+        closeAllIO();
+        interruptThreads();
+        m_sendQueue.clear();
+        m_sendQueue = new CommsSendQueue();
+    }
+
+
+    // @Override
+    public void onConnect( CommsTransport.Connection connection, boolean connected )
+    {
+        if ( connection != m_connection )
+        {
+            return;
+        }
+
+        m_commsEngine.getConnectScheduler().onConnectEnded( m_connectAttempt );
+
+        if ( !connected )
+        {
+            m_log.d( CLIENT_TAG, "Channel failed to connect to: " + m_inetAddress.getHostAddress() + ":" + m_inetPort );
+
+            onConnectionLost();
+            return;
+        }
+
+        synchronized ( this )
+        {
+            m_connectionOpen = true;
+            m_frameDecoder = new CommsFrameDecoder();
+        }
+
+        setConnected( true );
+    }
+
+
+    // @Override
+    public void onRead( CommsTransport.Connection connection, ByteBuffer buffer )
+    {
+        CommsFrameDecoder frameDecoder = m_frameDecoder;
+
+        if ( connection != m_connection || frameDecoder == null )
+        {
+            return;
+        }
+
+        m_lastReceivedTime = m_commsEngine.nanoTime();
+        m_stats.add( CommsStats.BYTES_IN, buffer.remaining() );
+        frameDecoder.append( buffer );
+
+        try
+        {
+            receiveFrames( frameDecoder );
+        }
+        catch ( IOException ex )
+        {
+            m_log.e( CLIENT_TAG, "Channel frame error: ", ex );
+
+            onConnectionLost();
+        }
+    }
+
+
+    // @Override
+    public void onClose( CommsTransport.Connection connection )
+    {
+        if ( connection == m_connection )
+        {
+            onConnectionLost();
+        }
+    }
+
+
+    // @Override
+    public void onWrite( CommsTransport.Connection connection, long bytes, long nanos )
+    {
+        m_stats.add( CommsStats.BYTES_OUT, bytes );
+        m_stats.recordWriteTime( nanos );
+    }
+
+
+    // Pass every whole frame decoded so far on to the listener.
+    private void receiveFrames( CommsFrameDecoder frameDecoder ) throws IOException
+    {
+        CommsFrame frame;
+
+        while ( ( frame = frameDecoder.next() ) != null )
+        {
+            m_log.d( CLIENT_TAG, "Read from the stream: " + frame );
+
+            m_stats.increment( CommsStats.MESSAGES_IN );
+
+            if ( frame.getType() == CommsFrame.TYPE_HELLO )
+            {
+                // The peer's instance id, then its session token if it has one.
+                String[] hello = frame.getText().split( " ", 2 );
+
+                m_remoteInstanceId = hello[0];
+                m_remoteSessionToken = ( hello.length > 1 ) ? hello[1] : null;
+                m_commsEngine.onHello( this, m_remoteInstanceId );
+
+                if ( !m_candidate )
+                {
+                    onPeerHello( frame.getFlags() );
+                }
+
+                continue;
+            }
+
+            if ( frame.getType() == CommsFrame.TYPE_HEARTBEAT )
+            {
+                continue;
+            }
+
+            if ( frame.getType() == CommsFrame.TYPE_ACK )
+            {
+                CommsReliableLink reliableLink = m_reliableLink;
+
+                if ( m_reliablePeer )
+                {
+                    reliableLink.onAcknowledged( CommsFrame.getVarint( ByteBuffer.wrap( frame.getPayload() ) ) );
+                    writeReliable( reliableLink );
+                }
+
+                continue;
+            }
+
+            if ( m_candidate )
+            {
+                // The peer doesn't know the handshake.
+                m_commsEngine.onHello( this, null );
+
+                if ( m_candidate )
+                {
+                    continue;
+                }
+            }
+
+            if ( !m_helloReceived )
+            {
+                onPeerHello( CommsFrame.FLAG_NONE );
+            }
+
+            if ( ( frame.getFlags() & CommsFrame.FLAG_RELIABLE ) != 0 )
+            {
+                frame = receiveReliable( frame );
+
+                if ( frame == null )
+                {
+                    continue;
+                }
+            }
+
+            m_commsEngine.onFrameReceived( this, frame );
+        }
+    }
+
+
+    // Take the number and acknowledgement off a reliable frame, null if it's a duplicate.
+    private CommsFrame receiveReliable( CommsFrame frame ) throws ProtocolException
+    {
+        CommsReliableLink reliableLink = m_reliableLink;
+
+        if ( !m_reliablePeer )
+        {
+            throw new ProtocolException( "Reliable frame before a reliable HELLO." );
+        }
+
+        ByteBuffer payload = ByteBuffer.wrap( frame.getPayload() );
+        int sequence = CommsFrame.getVarint( payload );
+
+        reliableLink.onAcknowledged( CommsFrame.getVarint( payload ) );
+
+        if ( !reliableLink.onReceived( sequence ) )
+        {
+            m_stats.increment( CommsStats.DUPLICATES );
+            return null;
+        }
+
+        if ( reliableLink.isAcknowledgementDue( CommsReliableLink.ACK_EVERY ) )
+        {
+            sendAcknowledgement( reliableLink );
+        }
+
+        writeReliable( reliableLink );
+
+        byte[] data = new byte[payload.remaining()];
+
+        payload.get( data );
+
+        return new CommsFrame( frame.getType(), frame.getFlags() & ~CommsFrame.FLAG_RELIABLE, data );
+    }
+
+
+    // The peer has said who it is and whether it is reliable, by its HELLO, or by sending
+    // something else first. Send what's been kept for it, in the outbox too.
+    private void onPeerHello( int flags )
+    {
+        m_commsEngine.onPeerIdentified( this );
+
+        if ( m_commsEngine.isReliable() )
+        {
+            bindReliableLink( flags );
+        }
+        else
+        {
+            m_helloReceived = true;
+        }
+
+        m_commsEngine.flushOutbox( this );
+    }
+
+
+    // Numbered if the peer is reliable too, after what's left of its session from before,
+    // so a reconnect takes one round trip.
+    private void bindReliableLink( int flags )
+    {
+        CommsReliableLink reliableLink = getReliableLink();
+
+        synchronized ( reliableLink )
+        {
+            m_helloReceived = true;
+
+            if ( ( flags & CommsFrame.FLAG_RELIABLE ) == 0 )
+            {
+                for ( CommsReliableLink.Entry entry : reliableLink.takeUnacknowledged() )
+                {
+                    sendFrame( entry.m_frame.encode() );
+                }
+
+                return;
+            }
+
+            CommsReliableLink sessionLink = ( m_remoteInstanceId == null ) ? reliableLink : m_commsEngine.resumeSession( m_remoteInstanceId, reliableLink );
+
+            synchronized ( sessionLink )
+            {
+                if ( sessionLink != reliableLink && reliableLink.getRemoteInstanceId() == null )
+                {
+                    // Sent before we knew who the peer was, it follows what the session has.
+                    for ( CommsReliableLink.Entry entry : reliableLink.takeUnacknowledged() )
+                    {
+                        if ( sessionLink.add( entry.m_frame ) == null )
+                        {
+                            m_stats.increment( CommsStats.MESSAGES_DROPPED );
+                        }
+                    }
+                }
+
+                sessionLink.setRemoteSessionToken( m_remoteSessionToken );
+                m_reliableLink = sessionLink;
+                m_reliablePeer = true;
+                m_reliableWritten = 0;
+
+                if ( sessionLink.getLastReceived() != 0 )
+                {
+                    // Where we are, in case our last acknowledgement was lost with the old connection.
+                    sendAcknowledgement( sessionLink );
+                }
+
+                writeReliable( sessionLink );
+            }
+        }
+    }
+
+
+    private synchronized CommsReliableLink getReliableLink()
+    {
+        if ( m_reliableLink == null )
+        {
+            m_reliableLink = new CommsReliableLink();
+        }
+
+        return m_reliableLink;
+    }
+
+
+    // Write what the link has that this connection hasn't had yet, in order, while
+    // there's room in the send queue. The rest goes as acknowledgements make room.
+    private void writeReliable( CommsReliableLink reliableLink )
+    {
+        synchronized ( reliableLink )
+        {
+            if ( !m_reliablePeer || m_reliableLink != reliableLink )
+            {
+                return;
+            }
+
+            for ( CommsReliableLink.Entry entry : reliableLink.getAfter( m_reliableWritten ) )
+            {
+                if ( getSendQueueSize() >= CommsReliableLink.MAX_QUEUED
+                                || !sendFrame( CommsReliableLink.encode( entry, reliableLink.takeAcknowledgement() ) ) )
+                {
+                    break;
+                }
+
+                if ( entry.m_written )
+                {
+                    m_stats.increment( CommsStats.RETRANSMITS );
+                }
+
+                entry.m_written = true;
+                m_reliableWritten = entry.m_sequence;
+            }
+        }
+    }
+
+
+    private void sendAcknowledgement( CommsReliableLink reliableLink )
+    {
+        sendFrame( CommsReliableLink.encodeAcknowledgement( reliableLink.takeAcknowledgement() ) );
+    }
+
+
+    // Called by the heartbeat thread, see CommsHeartbeat. Sends a heartbeat if we've sent
+    // nothing for the interval, tears the client down if it's received nothing for the timeout.
+    void checkHeartbeat( long now, long intervalNanos, long idleTimeoutNanos )
+    {
+        if ( !isConnected() || m_candidate )
+        {
+            return;
+        }
+
+        long idleNanos = now - m_lastReceivedTime;
+
+        if ( idleTimeoutNanos > 0 && m_remoteInstanceId != null && idleNanos > idleTimeoutNanos )
+        {
+            m_log.w( CLIENT_TAG, "Nothing received for " + ( idleNanos / 1000000 ) + " ms, dropping: " + m_inetAddress.getHostAddress() + ":" + m_inetPort );
+
+            m_stats.increment( CommsStats.IDLE_TIMEOUTS );
+            tearDown();
+            return;
+        }
+
+        CommsReliableLink reliableLink = m_reliableLink;
+
+        if ( m_reliablePeer )
+        {
+            if ( reliableLink.isAcknowledgementDue( 1 ) )
+            {
+                sendAcknowledgement( reliableLink );
+            }
+
+            writeReliable( reliableLink );
+        }
+
+        if ( m_helloReceived )
+        {
+            // Whatever the send queue hadn't room for.
+            m_commsEngine.flushOutbox( this );
+        }
+
+        if ( intervalNanos > 0 && now - m_lastSentTime >= intervalNanos && sendFrame( HEARTBEAT_FRAME.duplicate() ) )
+        {
+            m_stats.increment( CommsStats.HEARTBEATS );
+        }
+    }
+
+
+    void setCandidate( boolean candidate )
+    {
+        m_candidate = candidate;
+    }
+
+
+    // The engine has kept this candidate in place of the peer's other client.
+    void onAdopted()
+    {
+        m_candidate = false;
+        setConnected( isConnected() );
+    }
+
+
+    // Start connecting once added to the registry. An accepted connection starts
+    // straight away, our own connects wait their turn with the connect scheduler.
+    void startIO()
+    {
+        if ( m_socket != null || m_connection != null )
+        {
+            startConnect( null );
+        }
+        else
+        {
+            m_commsEngine.getConnectScheduler().schedule( this );
+        }
+    }
+
+
+    // Called by the connect scheduler when it's our turn, unless we've been closed since.
+    synchronized void startConnect( CommsConnectScheduler.Attempt attempt )
+    {
+        if ( attempt != null && attempt.isCancelled() )
+        {
+            return;
+        }
+
+        m_connectAttempt = attempt;
+
+        if ( m_transport != null )
+        {
+            registerConnection();
+        }
+        else
+        {
+            createReceivingThread();
+        }
+    }
+
+
+    // Our connect has taken too long. A blocking connect times out by itself, a
+    // channel's is abandoned here.
+    void onConnectTimeout( CommsConnectScheduler.Attempt attempt )
+    {
+        synchronized ( this )
+        {
+            if ( attempt != m_connectAttempt || m_connection == null || isConnected() )
+            {
+                return;
+            }
+        }
+
+        m_log.d( CLIENT_TAG, "Channel timed out connecting to: " + m_inetAddress.getHostAddress() + ":" + m_inetPort );
+
+        m_stats.increment( CommsStats.CONNECT_TIMEOUTS );
+        onConnectionLost();
+    }
+
+
+    // The connection has ended, either keep the shell of the client or discard it.
+    private void onConnectionLost()
+    {
+        if ( getServicePublished() )
+        {
+            // Leave the shell of the CommsClient running to allow easy reconnect.
+            close();
+        }
+        else
+        {
+            // Service was not published. We were just trying to reconnect an old remote client.
+            tearDown();
+        }
+    }
+
+
+    private synchronized void registerConnection()
+    {
+        m_servicePublished = true;
+
+        try
+        {
+            if ( m_connection != null )
+            {
+                // Accepted by the transport's server.
+                m_transport.register( m_connection, this );
+            }
+            else
+            {
+                m_connection = m_transport.open( m_commsEngine.getLocalAddress() );
+                m_stats.increment( CommsStats.CONNECT_ATTEMPTS );
+                m_transport.connect( m_connection, new InetSocketAddress( m_inetAddress, m_inetPort ), this );
+            }
+        }
+        catch ( IOException ex )
+        {
+            m_log.e( CLIENT_TAG, "Unable to register connection: ", ex );
+
+            onConnectionLost();
+        }
+    }
+
+
+    private synchronized void createSendingThread()
+    {
+        m_sendingThread = new Thread( new SendingThread( m_outputStream, m_sendQueue ), SENDING_THREAD_NAME );
+        m_sendingThread.start();
+    }
+
+
+    private void createReceivingThread()
+    {
+        m_servicePublished = true;
+        m_receivingThread = new Thread( new ReceivingThread(), RECEIVING_THREAD_NAME );
+        m_receivingThread.start();
+    }
+
+
+    private synchronized boolean createIOStreams()
+    {
+        if ( m_socket == null || m_socket.isClosed() )
+        {
+            m_log.e( CLIENT_TAG, "Unable to create IO streams, bad socket." );
+            return false;
+        }
+
+        boolean ok = false;
+
+        try
+        {
+            // Plain framed streams, so there are no stream headers to exchange.
+            m_outputStream = new BufferedOutputStream( m_socket.getOutputStream(), WRITE_BUFFER_SIZE );
+            m_inputStream = m_socket.getInputStream();
+            m_frameDecoder = new CommsFrameDecoder();
+            ok = true;
+        }
+        catch ( IOException ex )
+        {
+            m_log.e( CLIENT_TAG, "IO exception creating IO streams: ", ex );
+        }
+        catch ( Exception ex )
+        {
+            m_log.e( CLIENT_TAG, "Other exception creating IO streams: ", ex );
+        }
+
+        return ok;
+    }
+
+
+    private synchronized void closeIOStreams()
+    {
+        try
+        {
+            if ( m_inputStream != null )
+            {
+                m_inputStream.close();
+            }
+
+            if ( m_outputStream != null )
+            {
+                m_outputStream.close();
+            }
+        }
+        catch ( Exception ex )
+        {}
+
+        m_inputStream = null;
+        m_outputStream = null;
+        m_frameDecoder = null;
+    }
+
+
+    private synchronized boolean isReceivingThread( Thread thread )
+    {
+        return ( m_receivingThread == thread );
+    }
+
+
+    private void interruptThreads()
+    {
+        if ( m_receivingThread != null )
+        {
+            m_receivingThread.interrupt();
+        }
+
+        if ( m_sendingThread != null )
+        {
+            m_sendingThread.interrupt();
+        }
+
+        m_receivingThread = null;
+        m_sendingThread = null;
+    }
+
+
+    private synchronized void setSocket( Socket socket )
+    {
+        if ( socket == null )
+        {
+            m_log.d( CLIENT_TAG, "Setting a null socket." );
+        }
+        else
+        {
+            m_log.d( CLIENT_TAG, "Setting a new socket." );
+        }
+
+        if ( m_socket != null )
+        {
+            m_log.w( CLIENT_TAG, "Replacing the existing socket." );
+
+            if ( !m_socket.isClosed() )
+            {
+                try
+                {
+                    m_socket.close();
+                }
+                catch ( IOException e )
+                {
+                    m_log.e( CLIENT_TAG, "Error when closing replaced socket: " + e.toString() );
+                }
+            }
+        }
+
+        m_socket = socket;
+    }
+
+
+    // The connect is made without the lock held, so we can be closed while it waits.
+    private boolean checkOpenSocket()
+    {
+        boolean socketOk = false;
+        CommsConnectScheduler.Attempt attempt;
+
+        synchronized ( this )
+        {
+            attempt = m_connectAttempt;
+        }
+
+        if ( isConnected() )
+        {
+            m_log.d( CLIENT_TAG, "Socket already initialised, skipping!" );
+
+            socketOk = true;
+        }
+        else
+        {
+            Socket socket = new Socket();
+
+            try
+            {
+                m_stats.increment( CommsStats.CONNECT_ATTEMPTS );
+
+                if ( m_commsEngine.getLocalAddress() != null )
+                {
+                    socket.bind( new InetSocketAddress( m_commsEngine.getLocalAddress(), 0 ) );
+                }
+
+                socket.connect( new InetSocketAddress( m_inetAddress, m_inetPort ), m_commsEngine.getConnectScheduler().getConnectTimeoutMs() );
+
+                if ( Thread.currentThread().isInterrupted() )
+                {
+                    throw new IOException( "Closed while connecting" );
+                }
+
+                setSocket( socket );
+                socketOk = true;
+
+                m_log.d( CLIENT_TAG, "Client-side socket initialized." );
+            }
+            catch ( SocketTimeoutException e )
+            {
+                m_log.d( CLIENT_TAG, "Initializing socket timed out." );
+
+                m_stats.increment( CommsStats.CONNECT_TIMEOUTS );
+            }
+            catch ( IOException e )
+            {
+                m_log.d( CLIENT_TAG, "Initializing socket failed, IOE.", e );
+            }
+
+            if ( !socketOk )
+            {
+                closeUnusedSocket( socket );
+            }
+
+            m_commsEngine.getConnectScheduler().onConnectEnded( attempt );
+        }
+
+        setConnected( socketOk );
+
+        return socketOk;
+    }
+
+
+    private void closeUnusedSocket( Socket socket )
+    {
+        try
+        {
+            socket.close();
+        }
+        catch ( IOException ioe )
+        {
+            m_log.e( CLIENT_TAG, "Error when closing unused socket." );
+        }
+    }
+
+
+    private synchronized void closeSocket()
+    {
+        if ( m_socket == null )
+        {
+            return;
+        }
+
+        try
+        {
+            m_socket.close();
+        }
+        catch ( IOException ioe )
+        {
+            m_log.e( CLIENT_TAG, "Error when closing socket." );
+        }
+
+        m_socket = null;
+        setConnected( false );
+    }
+
+
+    // Keep the registry's count of connected clients in step, then tell the engine.
+    private synchronized void setConnected( boolean connected )
+    {
+        if ( connected && !m_helloSent )
+        {
+            // Always the first frame, so the peer can settle which connection stays.
+            m_helloSent = true;
+            m_lastReceivedTime = m_commsEngine.nanoTime();
+            int flags = m_commsEngine.isReliable() ? CommsFrame.FLAG_RELIABLE : CommsFrame.FLAG_NONE;
+            String hello = m_commsEngine.getInstanceId() + " " + m_commsEngine.getSessionToken();
+
+            sendFrame( new CommsFrame( CommsFrame.TYPE_HELLO, flags, hello.getBytes( CommsFrame.TEXT_CHARSET ) ).encode() );
+        }
+        else if ( !connected )
+        {
+            m_helloSent = false;
+            m_helloReceived = false;
+            m_reliablePeer = false;
+            m_reliableWritten = 0;
+        }
+
+        if ( m_candidate )
+        {
+            return;
+        }
+
+        if ( connected != m_countedConnected )
+        {
+            m_countedConnected = connected;
+            m_commsEngine.getCommsClientRegistry().onPeerConnected( connected );
+            m_commsEngine.onClientConnectedChange( this, connected );
+        }
+
+        m_commsEngine.notifyClientChange( connected );
+    }
+
+
+    private synchronized void closeConnection()
+    {
+        if ( m_connection == null )
+        {
+            return;
+        }
+
+        try
+        {
+            m_connection.close();
+        }
+        catch ( IOException ioe )
+        {
+            m_log.e( CLIENT_TAG, "Error when closing connection." );
+        }
+
+        m_connection = null;
+        m_frameDecoder = null;
+
+        if ( m_connectionOpen )
+        {
+            m_connectionOpen = false;
+            setConnected( false );
+        }
+    }
+
+
+    private synchronized void closeAllIO()
+    {
+        closeIOStreams();
+        closeSocket();
+        closeConnection();
+    }
+
+
+    // The sending thread drains the send queue, writing each batch with one write and flush.
+    class SendingThread implements Runnable
+    {
+        private final OutputStream        m_batchOutputStream;
+        private final WritableByteChannel m_batchChannel;
+        private final CommsSendQueue      m_batchQueue;
+
+
+        public SendingThread( OutputStream outputStream, CommsSendQueue sendQueue )
+        {
+            m_batchOutputStream = outputStream;
+            m_batchChannel = Channels.newChannel( outputStream );
+            m_batchQueue = sendQueue;
+        }
+
+
+        // Shared frames are read only, so they have no accessible array.
+        private void writeFrame( ByteBuffer frame ) throws IOException
+        {
+            if ( frame.hasArray() )
+            {
+                m_batchOutputStream.write( frame.array(), frame.arrayOffset() + frame.position(), frame.remaining() );
+            }
+            else
+            {
+                while ( frame.hasRemaining() )
+                {
+                    m_batchChannel.write( frame );
+                }
+            }
+        }
+
+
+        // @Override
+        public void run()
+        {
+            ArrayList<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+
+            try
+            {
+                while ( !Thread.currentThread().isInterrupted() )
+                {
+                    m_batchQueue.takeBatch( batch );
+
+                    long startTime = System.nanoTime();
+                    long bytes = 0;
+
+                    for ( ByteBuffer frame : batch )
+                    {
+                        bytes += frame.remaining();
+                        writeFrame( frame );
+                    }
+
+                    m_batchOutputStream.flush();
+                    m_stats.add( CommsStats.BYTES_OUT, bytes );
+                    m_stats.recordWriteTime( System.nanoTime() - startTime );
+                    batch.clear();
+                }
+            }
+            catch ( InterruptedException ie )
+            {
+                m_log.d( CLIENT_TAG, "Message sending loop interrupted, exiting." );
+            }
+            catch ( IOException ex )
+            {
+                m_log.e( CLIENT_TAG, "Sending loop io error: ", ex );
+
+                // The receiving thread will see the closed socket and end the connection,
+                // unless it has ended already and the socket is a new connection's.
+                if ( m_batchQueue == m_sendQueue )
+                {
+                    closeSocket();
+                }
+            }
+        }
+    }
+
+
+    // The receiving thread asynchronously listens for and receives messages from a peer.
+    class ReceivingThread implements Runnable
+    {
+        // @Override
+        public void run()
+        {
+            // for ( int retries = 0; m_servicePublished && retries < REMOTE_CLIENT_RETRIES && !Thread.currentThread().isInterrupted();
+            // retries++ )
+            // {
+            // if ( retries != 0 )
+            // {
+            // closeAllIO();
+            // sleep( REMOTE_CLIENT_WAIT_MS );
+            // }
+
+            createAndDoIOLoop();
+            // }
+
+            // Once closed, the client may already be on its next connection.
+            if ( isReceivingThread( Thread.currentThread() ) )
+            {
+                onConnectionLost();
+            }
+        }
+
+
+        private void createAndDoIOLoop()
+        {
+            if ( !checkOpenSocket() || !createIOStreams() )
+            {
+                return;
+            }
+
+            createSendingThread();
+
+            InputStream inputStream = m_inputStream;
+            CommsFrameDecoder frameDecoder = m_frameDecoder;
+            byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+
+            try
+            {
+                while ( !Thread.currentThread().isInterrupted() )
+                {
+                    int count = inputStream.read( readBuffer );
+
+                    if ( count < 0 )
+                    {
+                        m_log.d( CLIENT_TAG, "End of stream." );
+                        break;
+                    }
+
+                    m_lastReceivedTime = m_commsEngine.nanoTime();
+                    m_stats.add( CommsStats.BYTES_IN, count );
+                    frameDecoder.append( readBuffer, 0, count );
+                    receiveFrames( frameDecoder );
+                }
+            }
+            catch ( IOException ex )
+            {
+                m_log.e( CLIENT_TAG, "Receiving loop io error: ", ex );
+            }
+            catch ( Exception ex )
+            {
+                m_log.e( CLIENT_TAG, "Receiving loop miscellaneous exception error: ", ex );
+            }
+        }
+
+
+        // private void sleep( int ms )
+        // {
+        // try
+        // {
+        // wait( ms );
+        // }
+        // catch ( Exception ex )
+        // {
+        //
+        // }
+        // }
+    }
+}
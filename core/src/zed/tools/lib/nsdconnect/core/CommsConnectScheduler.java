@@ -0,0 +1,513 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+// Runs the clients' outgoing connects a few at a time, so discovering a room
+// full of peers doesn't start a blocking connect to every one of them at
+// once. Peers we've connected to most recently go first, the rest in the
+// order they were asked for. Each connect starts after a small random delay,
+// to spread out a burst, and has a timeout, after which its place is given
+// to the next. Accepted connections don't go through here. With a looper the
+// work is done on it, by its clock, instead of on a thread of our own.
+public class CommsConnectScheduler
+{
+    // Constants:
+    private static final String               TAG                        = CommsConnectScheduler.class.getSimpleName();
+    public static final String                SCHEDULER_THREAD_NAME      = TAG + ":SchedulerThread";
+    public static final int                   DEFAULT_MAX_CONCURRENT     = 4;
+    public static final int                   DEFAULT_CONNECT_TIMEOUT_MS = 5 * 1000;
+    public static final long                  DEFAULT_JITTER_MS          = 100;
+    // How many peers' last success times are remembered.
+    private static final int                  MAX_SUCCESS_TIMES          = 1024;
+
+    // Member variables:
+    private final CommsLog                    m_log;
+    private final Random                      m_random                   = new Random();
+    private final PriorityQueue<Attempt>      m_pending                  = new PriorityQueue<Attempt>();
+    private final ArrayList<Attempt>          m_active                   = new ArrayList<Attempt>();
+    // When we were last connected to each peer, by host address, the oldest first.
+    private final LinkedHashMap<String, Long> m_successTimes             = new LinkedHashMap<String, Long>();
+    private int                               m_maxConcurrent            = DEFAULT_MAX_CONCURRENT;
+    private int                               m_connectTimeoutMs         = DEFAULT_CONNECT_TIMEOUT_MS;
+    private long                              m_jitterMs                 = DEFAULT_JITTER_MS;
+    private long                              m_nextSequence             = 0;
+    private Thread                            m_schedulerThread          = null;
+    private CommsLooper                       m_looper                   = null;
+    // When the check posted to the looper soonest is due, in its time.
+    private long                              m_checkTime                = Long.MAX_VALUE;
+
+
+    // One client's connect, waiting or being made.
+    static class Attempt implements Comparable<Attempt>
+    {
+        final CommsClient m_commsClient;
+        // The peer's last success time, 0 if it has never connected.
+        final long        m_priority;
+        final long        m_sequence;
+        // Times are the scheduler's clock, see now().
+        final long        m_notBefore;
+        long              m_deadline  = 0;
+        boolean           m_cancelled = false;
+
+
+        Attempt( CommsClient commsClient, long priority, long sequence, long notBefore )
+        {
+            m_commsClient = commsClient;
+            m_priority = priority;
+            m_sequence = sequence;
+            m_notBefore = notBefore;
+        }
+
+
+        // @Override
+        public int compareTo( Attempt other )
+        {
+            if ( m_priority != other.m_priority )
+            {
+                return ( m_priority > other.m_priority ) ? -1 : 1;
+            }
+
+            return ( m_sequence < other.m_sequence ) ? -1 : ( m_sequence > other.m_sequence ) ? 1 : 0;
+        }
+
+
+        synchronized boolean isCancelled()
+        {
+            return m_cancelled;
+        }
+    }
+
+
+    public CommsConnectScheduler( CommsLog log )
+    {
+        m_log = log;
+    }
+
+
+    public synchronized void tearDown()
+    {
+        if ( m_schedulerThread != null )
+        {
+            m_schedulerThread.interrupt();
+        }
+
+        m_schedulerThread = null;
+        m_checkTime = Long.MAX_VALUE;
+        m_pending.clear();
+        m_active.clear();
+    }
+
+
+    // Set before anything is scheduled, null for a thread of our own.
+    public synchronized void setLooper( CommsLooper looper )
+    {
+        m_looper = looper;
+    }
+
+
+    // Seeds the random delay before each connect, as a simulation needs.
+    public synchronized void setSeed( long seed )
+    {
+        m_random.setSeed( seed );
+    }
+
+
+    public synchronized int getMaxConcurrent()
+    {
+        return m_maxConcurrent;
+    }
+
+
+    public synchronized void setMaxConcurrent( int maxConcurrent )
+    {
+        m_maxConcurrent = Math.max( 1, maxConcurrent );
+        wake();
+    }
+
+
+    public synchronized int getConnectTimeoutMs()
+    {
+        return m_connectTimeoutMs;
+    }
+
+
+    public synchronized void setConnectTimeoutMs( int connectTimeoutMs )
+    {
+        m_connectTimeoutMs = Math.max( 1, connectTimeoutMs );
+    }
+
+
+    public synchronized long getJitterMs()
+    {
+        return m_jitterMs;
+    }
+
+
+    // Zero starts each connect as soon as there's room for it.
+    public synchronized void setJitterMs( long jitterMs )
+    {
+        m_jitterMs = Math.max( 0, jitterMs );
+    }
+
+
+    public synchronized int getPendingCount()
+    {
+        return m_pending.size();
+    }
+
+
+    public synchronized int getActiveCount()
+    {
+        return m_active.size();
+    }
+
+
+    // A peer has connected, from either end, so it goes first next time.
+    // In the looper's time if there is one.
+    public void onConnected( String hostAddress )
+    {
+        CommsLooper looper;
+
+        synchronized ( this )
+        {
+            looper = m_looper;
+        }
+
+        setLastSuccessTime( hostAddress, ( looper == null ) ? System.currentTimeMillis() : looper.now() );
+    }
+
+
+    // Tell us of a success from before, such as one kept across restarts. Only a later
+    // time than we know of is used.
+    public synchronized void setLastSuccessTime( String hostAddress, long lastSuccessTime )
+    {
+        Long knownTime = m_successTimes.remove( hostAddress );
+
+        m_successTimes.put( hostAddress, ( knownTime == null ) ? lastSuccessTime : Math.max( knownTime, lastSuccessTime ) );
+
+        Iterator<Long> oldest = m_successTimes.values().iterator();
+
+        while ( m_successTimes.size() > MAX_SUCCESS_TIMES )
+        {
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+
+    // Queue a client's connect, unless it's already queued or connecting.
+    synchronized void schedule( CommsClient commsClient )
+    {
+        if ( isScheduled( commsClient ) )
+        {
+            return;
+        }
+
+        Long successTime = m_successTimes.get( commsClient.getInetAddress().getHostAddress() );
+        long jitterNanos = TimeUnit.MILLISECONDS.toNanos( m_jitterMs );
+        long delayNanos = ( jitterNanos > 0 ) ? (long) ( m_random.nextDouble() * jitterNanos ) : 0;
+
+        m_pending.add( new Attempt( commsClient, ( successTime == null ) ? 0 : successTime, m_nextSequence++, now() + delayNanos ) );
+        checkStartThread();
+        wake();
+    }
+
+
+    // Whether the client's connect is waiting or being made.
+    synchronized boolean isScheduled( CommsClient commsClient )
+    {
+        return ( find( m_pending, commsClient ) != null || find( m_active, commsClient ) != null );
+    }
+
+
+    // The client has been closed, drop its connect whether it is waiting or being made.
+    synchronized void cancel( CommsClient commsClient )
+    {
+        Attempt attempt = find( m_pending, commsClient );
+
+        if ( attempt != null )
+        {
+            m_pending.remove( attempt );
+        }
+        else
+        {
+            attempt = find( m_active, commsClient );
+            m_active.remove( attempt );
+        }
+
+        if ( attempt != null )
+        {
+            synchronized ( attempt )
+            {
+                attempt.m_cancelled = true;
+            }
+
+            wake();
+        }
+    }
+
+
+    // The connect has succeeded or failed, its place is free for the next.
+    synchronized void onConnectEnded( Attempt attempt )
+    {
+        if ( attempt == null || !m_active.remove( attempt ) )
+        {
+            return;
+        }
+
+        wake();
+    }
+
+
+    private static Attempt find( Iterable<Attempt> attempts, CommsClient commsClient )
+    {
+        for ( Attempt attempt : attempts )
+        {
+            if ( attempt.m_commsClient == commsClient )
+            {
+                return attempt;
+            }
+        }
+
+        return null;
+    }
+
+
+    // In nanoseconds, from the looper's clock if there is one.
+    private long now()
+    {
+        return ( m_looper == null ) ? System.nanoTime() : m_looper.now() * 1000000L;
+    }
+
+
+    // Something has changed, have another look.
+    private void wake()
+    {
+        notifyAll();
+
+        if ( m_looper != null )
+        {
+            postCheck( 0 );
+        }
+    }
+
+
+    // Check on the looper after the delay, unless a check is already posted for sooner.
+    private void postCheck( long delayMs )
+    {
+        long checkTime = m_looper.now() + delayMs;
+
+        if ( checkTime >= m_checkTime )
+        {
+            return;
+        }
+
+        m_checkTime = checkTime;
+        m_looper.postDelayed( new Runnable()
+        {
+            public void run()
+            {
+                check();
+            }
+        }, delayMs );
+    }
+
+
+    // In place of the thread, on the looper: starts and times out what's due, then posts
+    // the next check for when the next is due.
+    private void check()
+    {
+        ArrayList<Attempt> starting = new ArrayList<Attempt>();
+        ArrayList<Attempt> timedOut = new ArrayList<Attempt>();
+
+        synchronized ( this )
+        {
+            if ( m_looper == null )
+            {
+                return;
+            }
+
+            m_checkTime = Long.MAX_VALUE;
+
+            long waitNanos = collectDue( now(), starting, timedOut );
+
+            if ( waitNanos != Long.MAX_VALUE )
+            {
+                postCheck( ( waitNanos + 999999 ) / 1000000 );
+            }
+        }
+
+        runDue( starting, timedOut );
+    }
+
+
+    // Those timed out first, to make room. The clients are called without our lock held.
+    private void runDue( ArrayList<Attempt> starting, ArrayList<Attempt> timedOut )
+    {
+        for ( Attempt attempt : timedOut )
+        {
+            timeOut( attempt );
+        }
+
+        for ( Attempt attempt : starting )
+        {
+            start( attempt );
+        }
+    }
+
+
+    // One client failing mustn't stop the others being started or timed out.
+    private void start( Attempt attempt )
+    {
+        try
+        {
+            attempt.m_commsClient.startConnect( attempt );
+        }
+        catch ( RuntimeException ex )
+        {
+            m_log.e( TAG, "Error starting connect: ", ex );
+            onConnectEnded( attempt );
+        }
+    }
+
+
+    private void timeOut( Attempt attempt )
+    {
+        try
+        {
+            attempt.m_commsClient.onConnectTimeout( attempt );
+        }
+        catch ( RuntimeException ex )
+        {
+            m_log.e( TAG, "Error timing out connect: ", ex );
+            onConnectEnded( attempt );
+        }
+    }
+
+
+    // Take the active attempts past their deadline and the pending ones that can start now.
+    // Returns how long until the next is due, Long.MAX_VALUE if nothing is.
+    private long collectDue( long now, ArrayList<Attempt> starting, ArrayList<Attempt> timedOut )
+    {
+        long waitNanos = Long.MAX_VALUE;
+        Iterator<Attempt> active = m_active.iterator();
+
+        while ( active.hasNext() )
+        {
+            Attempt attempt = active.next();
+
+            if ( attempt.m_deadline - now <= 0 )
+            {
+                active.remove();
+                timedOut.add( attempt );
+            }
+            else
+            {
+                waitNanos = Math.min( waitNanos, attempt.m_deadline - now );
+            }
+        }
+
+        long connectTimeoutNanos = TimeUnit.MILLISECONDS.toNanos( m_connectTimeoutMs );
+
+        while ( m_active.size() < m_maxConcurrent && !m_pending.isEmpty() )
+        {
+            Attempt attempt = m_pending.peek();
+
+            if ( attempt.m_notBefore - now > 0 )
+            {
+                waitNanos = Math.min( waitNanos, attempt.m_notBefore - now );
+                break;
+            }
+
+            m_pending.poll();
+            attempt.m_deadline = now + connectTimeoutNanos;
+            m_active.add( attempt );
+            starting.add( attempt );
+            waitNanos = Math.min( waitNanos, connectTimeoutNanos );
+        }
+
+        return waitNanos;
+    }
+
+
+    private void checkStartThread()
+    {
+        if ( m_looper == null && m_schedulerThread == null )
+        {
+            m_schedulerThread = new Thread( new SchedulerThread(), SCHEDULER_THREAD_NAME );
+            m_schedulerThread.start();
+        }
+    }
+
+
+    // Starts connects as there's room for them and times out those taking too long.
+    // The clients are called without our lock held.
+    class SchedulerThread implements Runnable
+    {
+        // @Override
+        public void run()
+        {
+            ArrayList<Attempt> starting = new ArrayList<Attempt>();
+            ArrayList<Attempt> timedOut = new ArrayList<Attempt>();
+
+            try
+            {
+                while ( !Thread.currentThread().isInterrupted() )
+                {
+                    awaitDue( starting, timedOut );
+                    runDue( starting, timedOut );
+                    starting.clear();
+                    timedOut.clear();
+                }
+            }
+            catch ( InterruptedException ie )
+            {
+                m_log.d( TAG, "Scheduling loop interrupted, exiting." );
+            }
+            catch ( RuntimeException ex )
+            {
+                m_log.e( TAG, "Scheduling loop error: ", ex );
+            }
+            finally
+            {
+                // Let the next schedule() start another if we weren't replaced.
+                synchronized ( CommsConnectScheduler.this )
+                {
+                    if ( m_schedulerThread == Thread.currentThread() )
+                    {
+                        m_schedulerThread = null;
+                    }
+                }
+            }
+        }
+
+
+        // Waits until something is due.
+        private void awaitDue( ArrayList<Attempt> starting, ArrayList<Attempt> timedOut ) throws InterruptedException
+        {
+            synchronized ( CommsConnectScheduler.this )
+            {
+                while ( starting.isEmpty() && timedOut.isEmpty() )
+                {
+                    if ( m_schedulerThread != Thread.currentThread() )
+                    {
+                        throw new InterruptedException();
+                    }
+
+                    long waitNanos = collectDue( now(), starting, timedOut );
+
+                    if ( starting.isEmpty() && timedOut.isEmpty() )
+                    {
+                        CommsConnectScheduler.this.wait( ( waitNanos == Long.MAX_VALUE ) ? 0 : TimeUnit.NANOSECONDS.toMillis( waitNanos ) + 1 );
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package zed.tools.lib.nsdconnect.core;
+
+
+// Advertises the engine's server so peers can find it. Peers that are
+// found are passed to CommsEngine.connectToServer() and lost ones to
+// CommsEngine.removeServiceIfLost().
+public interface CommsDiscovery
+{
+    public void registerService( int port );
+
+    public void unregisterService();
+}
@@ -0,0 +1,814 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+
+
+// The connection engine: our local server, the client connections to each
+// peer and the optional selector thread serving them. It has no Android
+// dependencies, discovery, logging and delivery are passed in. A transport
+// and looper can be given in place of the selector, the system clock and the
+// engine's own timer threads, so a simulation can run it on a virtual clock.
+//
+// There is one connection to each peer. When two peers connect to each other
+// at once each end accepts a connection it already has, so the accepted one
+// is held as a candidate until its HELLO says which peer is at the other end.
+// Both ends then keep the connection made by the peer with the lower instance
+// id and close the other, with no retries.
+//
+// In reliable mode what is sent to each peer is numbered and kept until the
+// peer acknowledges it, see CommsReliableLink, so a connection lost and made
+// again loses nothing. Peers not in reliable mode are sent frames as before.
+//
+// Peers are found and connected to by address, but a HELLO says which peer
+// it is, by its instance id, and its session token. A peer that comes back
+// from a new address, after a DHCP renewal say, carries on its reliable
+// session with the client for the new address. The client left at the old
+// address is torn down.
+//
+// With an outbox, frames for a peer we know but can't reach are kept on disk
+// and sent, in order, when its HELLO next arrives. Frames sent when there's
+// no peer at all are kept for whoever connects next: when the first HELLO
+// arrives they go to every client there is then, kept again for any not yet
+// connected, and are gone. A peer first met after that doesn't get them.
+public class CommsEngine
+{
+    // Constants:
+    private static final String                            TAG               = CommsEngine.class.getSimpleName();
+    // How many peers' reliable sessions are kept, the least recently resumed go first.
+    private static final int                               MAX_SESSIONS      = 256;
+
+    // Member variables:
+    private final CommsDiscovery                           m_discovery;
+    private final CommsListener                            m_listener;
+    private final CommsLog                                 m_log;
+    private final CommsStats                               m_stats           = new CommsStats();
+    private final CommsPeerRegistry<CommsClient>           m_commsClients    = new CommsPeerRegistry<CommsClient>( new CommsClient[0] );
+    private final CommsConnectScheduler                    m_connectScheduler;
+    private final CommsHeartbeat                           m_heartbeat;
+    // Accepted connections to peers we already have a client for, waiting for their HELLO.
+    private final ArrayList<CommsClient>                   m_candidates      = new ArrayList<CommsClient>();
+    // Stays the same for the life of a peer, so both ends of a pair can agree on things.
+    private String                                         m_instanceId      = UUID.randomUUID().toString();
+    // New each time we start, so peers can tell a restart from a reconnect.
+    private final String                                   m_sessionToken    = UUID.randomUUID().toString();
+    private CommsServer                                    m_commsServer     = null;
+    private CommsSelector                                  m_commsSelector   = null;
+    private int                                            m_localServerPort = 0;
+    // Address the server and outgoing connections are bound to, null for any.
+    private InetAddress                                    m_localAddress    = null;
+    private boolean                                        m_connected       = false;
+    // One selector thread for all peers, otherwise a receiving thread per peer.
+    private boolean                                        m_useSelector     = false;
+    // Serves the peers in place of the selector, such as a simulated network.
+    private CommsTransport                                 m_transport       = null;
+    // What the running server uses, and new clients with it, null for a thread per peer.
+    // Set only when it starts.
+    private volatile CommsTransport                        m_transportInUse  = null;
+    // Runs the timers and tells the time in place of threads and the system clock.
+    private volatile CommsLooper                           m_looper          = null;
+    private volatile boolean                               m_reliable        = false;
+    // Each peer's reliable session, by its instance id, kept across its connections and addresses.
+    private final LinkedHashMap<String, CommsReliableLink> m_sessions        = new LinkedHashMap<String, CommsReliableLink>();
+    private volatile CommsOutbox                           m_outbox          = null;
+
+
+    public CommsEngine( CommsDiscovery discovery, CommsListener listener, CommsLog log )
+    {
+        m_discovery = discovery;
+        m_listener = listener;
+        m_log = log;
+        m_connectScheduler = new CommsConnectScheduler( log );
+        m_heartbeat = new CommsHeartbeat( this );
+    }
+
+
+    public void tearDown()
+    {
+        m_log.d( TAG, "Tearing down " + TAG + "." );
+
+        stopServer();
+        tearDownCommsClients();
+        tearDownCandidates();
+        m_connectScheduler.tearDown();
+        m_heartbeat.tearDown();
+
+        if ( m_commsSelector != null )
+        {
+            m_commsSelector.tearDown();
+        }
+
+        m_commsSelector = null;
+
+        synchronized ( m_sessions )
+        {
+            m_sessions.clear();
+        }
+    }
+
+
+    public int getLocalServerPort()
+    {
+        return m_localServerPort;
+    }
+
+
+    public void setLocalServerPort( int port )
+    {
+        m_localServerPort = port;
+    }
+
+
+    public InetAddress getLocalAddress()
+    {
+        return m_localAddress;
+    }
+
+
+    // Peers know us by the address our connections come from, so engines
+    // sharing a machine, as in a simulation, each need their own.
+    // Takes effect when the server is next started and on the next connects.
+    public void setLocalAddress( InetAddress localAddress )
+    {
+        m_localAddress = localAddress;
+    }
+
+
+    public boolean isUsingSelector()
+    {
+        return m_useSelector;
+    }
+
+
+    // Takes effect when the server is next started. Clients keep the transport
+    // they were created with.
+    public void setUseSelector( boolean useSelector )
+    {
+        m_useSelector = useSelector;
+    }
+
+
+    public CommsTransport getTransport()
+    {
+        return m_transport;
+    }
+
+
+    // Used in place of the selector, whatever setUseSelector() says, when the server is
+    // next started. It's started and torn down by the caller. Null for the selector.
+    public void setTransport( CommsTransport transport )
+    {
+        m_transport = transport;
+    }
+
+
+    // What the server, and the clients created while it runs, are served by, null for a
+    // thread per peer.
+    CommsTransport getTransportInUse()
+    {
+        return m_transportInUse;
+    }
+
+
+    public CommsLooper getLooper()
+    {
+        return m_looper;
+    }
+
+
+    // Runs the connect scheduler's and heartbeat's timers on the looper, by its clock, in
+    // place of their threads and the system clock. Set before starting the server.
+    public void setLooper( CommsLooper looper )
+    {
+        m_looper = looper;
+        m_connectScheduler.setLooper( looper );
+    }
+
+
+    // The clock the clients' heartbeat times are taken from, in nanoseconds.
+    long nanoTime()
+    {
+        CommsLooper looper = m_looper;
+
+        return ( looper == null ) ? System.nanoTime() : looper.now() * 1000000L;
+    }
+
+
+    public boolean isReliable()
+    {
+        return m_reliable;
+    }
+
+
+    // Takes effect on the next connections, a peer has to be reliable too for it to be used.
+    public void setReliable( boolean reliable )
+    {
+        m_reliable = reliable;
+    }
+
+
+    public CommsOutbox getOutbox()
+    {
+        return m_outbox;
+    }
+
+
+    // Null to keep nothing for peers we can't reach. The outbox is opened and closed by the caller.
+    public void setOutbox( CommsOutbox outbox )
+    {
+        m_outbox = outbox;
+    }
+
+
+    public synchronized String getInstanceId()
+    {
+        return m_instanceId;
+    }
+
+
+    // Set before connecting, a random one is used otherwise.
+    public synchronized void setInstanceId( String instanceId )
+    {
+        m_instanceId = instanceId;
+    }
+
+
+    public String getSessionToken()
+    {
+        return m_sessionToken;
+    }
+
+
+    public CommsLog getLog()
+    {
+        return m_log;
+    }
+
+
+    // Totals for all clients, past and present, and the server.
+    public CommsStats getStats()
+    {
+        return m_stats;
+    }
+
+
+    // How many outgoing connects are made at once, their timeout and jitter.
+    public CommsConnectScheduler getConnectScheduler()
+    {
+        return m_connectScheduler;
+    }
+
+
+    // The heartbeat interval and idle timeout can be set on it.
+    public CommsHeartbeat getHeartbeat()
+    {
+        return m_heartbeat;
+    }
+
+
+    public synchronized void startServer()
+    {
+        if ( m_commsServer != null )
+        {
+            return;
+        }
+
+        if ( m_transport != null )
+        {
+            m_transportInUse = m_transport;
+        }
+        else
+        {
+            // Falls back to a thread per peer if the selector won't start.
+            m_transportInUse = ( m_useSelector && checkStartSelector() ) ? m_commsSelector : null;
+        }
+
+        m_commsServer = new CommsServer( this );
+    }
+
+
+    public synchronized void stopServer()
+    {
+        if ( m_commsServer != null )
+        {
+            m_commsServer.tearDown();
+        }
+
+        m_commsServer = null;
+    }
+
+
+    public boolean isServerStarted()
+    {
+        return ( m_commsServer != null );
+    }
+
+
+    public CommsClient[] getCommsClients()
+    {
+        return m_commsClients.snapshot();
+    }
+
+
+    public CommsClient getCommsClient( String hostAddress )
+    {
+        return m_commsClients.get( hostAddress );
+    }
+
+
+    public boolean isAnyClientConnected()
+    {
+        return ( m_commsClients.getConnectedCount() > 0 );
+    }
+
+
+    public int getConnectedCount()
+    {
+        return m_commsClients.getConnectedCount();
+    }
+
+
+    // How busy we are, from 0 to 100, by the fullest of the clients' send queues.
+    public int getLoad()
+    {
+        int maxQueued = 0;
+
+        for ( CommsClient commsClient : m_commsClients.snapshot() )
+        {
+            maxQueued = Math.max( maxQueued, commsClient.getSendQueueSize() );
+        }
+
+        return Math.min( 100, maxQueued * 100 / CommsSendQueue.DEFAULT_CAPACITY );
+    }
+
+
+    public void tearDownCommsClients()
+    {
+        for ( CommsClient commsClient : m_commsClients.snapshot() )
+        {
+            commsClient.tearDown();
+        }
+    }
+
+
+    // Close the IO for the CommsClient leaving an empty shell that can be reconnected later.
+    public void closeCommsClients()
+    {
+        for ( CommsClient commsClient : m_commsClients.snapshot() )
+        {
+            commsClient.close();
+        }
+    }
+
+
+    public void checkReconnectClients()
+    {
+        for ( CommsClient commsClient : m_commsClients.snapshot() )
+        {
+            commsClient.checkReconnect();
+        }
+    }
+
+
+    public void connectToServer( InetAddress inetAddress, int inetPort )
+    {
+        connectToServer( inetAddress, inetPort, 0 );
+    }
+
+
+    // When we were last connected to the peer, if known from before, puts its connect
+    // ahead of peers we haven't connected to for longer.
+    public void connectToServer( InetAddress inetAddress, int inetPort, long lastSuccessTime )
+    {
+        String hostAddress = inetAddress.getHostAddress();
+
+        if ( lastSuccessTime > 0 )
+        {
+            m_connectScheduler.setLastSuccessTime( hostAddress, lastSuccessTime );
+        }
+
+        CommsClient commsClient = m_commsClients.get( hostAddress );
+
+        if ( commsClient == null )
+        {
+            commsClient = new CommsClient( this, inetAddress, inetPort );
+
+            CommsClient existingCommsClient = m_commsClients.putIfAbsent( hostAddress, commsClient );
+
+            if ( existingCommsClient == null )
+            {
+                commsClient.startIO();
+            }
+            else
+            {
+                // Lost a race with another connection to the same peer.
+                existingCommsClient.checkReconnect();
+            }
+        }
+        else
+        {
+            commsClient.checkReconnect();
+        }
+    }
+
+
+    public void removeServiceIfLost( InetAddress inetAddress, int inetPort )
+    {
+        if ( inetAddress == null )
+        {
+            m_log.e( TAG, "Service lost with no IP address." );
+
+            return;
+        }
+
+        String hostAddress = inetAddress.getHostAddress();
+        CommsClient commsClient = m_commsClients.get( hostAddress );
+
+        if ( commsClient != null )
+        {
+            commsClient.setServicePublished( false );
+
+            if ( !commsClient.isConnected() )
+            {
+                m_log.w( TAG, "Removing " + CommsClient.class.getSimpleName() + " for connection from: " + hostAddress + ":" + inetPort );
+
+                commsClient.tearDown();
+            }
+        }
+    }
+
+
+    // Encode the frame once and give every client the same read only bytes.
+    // Returns the number of clients the frame was queued for, or kept for in the outbox.
+    public int sendToAll( CommsFrame frame )
+    {
+        ByteBuffer sharedFrame = null;
+
+        if ( !m_reliable )
+        {
+            // Otherwise numbered for each peer, so there's nothing to share.
+            long startTime = System.nanoTime();
+
+            sharedFrame = frame.encode().asReadOnlyBuffer();
+            m_stats.recordEncodeTime( System.nanoTime() - startTime );
+        }
+
+        CommsOutbox outbox = m_outbox;
+
+        if ( outbox == null )
+        {
+            return sendToClients( frame, sharedFrame, null );
+        }
+
+        // The outbox is locked so what's flushed from it and what's sent now stay in order.
+        synchronized ( outbox )
+        {
+            int queued = sendToClients( frame, sharedFrame, outbox );
+
+            if ( queued == 0 && outbox.append( null, frame ) )
+            {
+                m_log.d( TAG, "No peer to send to, frame kept for the next." );
+            }
+
+            return queued;
+        }
+    }
+
+
+    // Send what's kept for the peer, oldest first, as far as its queue takes it, then
+    // anything kept for whoever connected next to everyone there is now, once. Called
+    // again as the peer's heartbeat is checked, until it's all gone.
+    void flushOutbox( CommsClient commsClient )
+    {
+        CommsOutbox outbox = m_outbox;
+        String remoteInstanceId = commsClient.getRemoteInstanceId();
+
+        if ( outbox == null || remoteInstanceId == null || !commsClient.isConnected() )
+        {
+            return;
+        }
+
+        synchronized ( outbox )
+        {
+            flushOutbox( commsClient, remoteInstanceId, outbox );
+
+            CommsFrame frame;
+
+            // Left for the next flush once the peer's queue is full again.
+            while ( outbox.isEmpty( remoteInstanceId ) && ( frame = outbox.peek( null ) ) != null )
+            {
+                outbox.remove( null );
+                sendToClients( frame, null, outbox );
+            }
+        }
+    }
+
+
+    CommsDiscovery getDiscovery()
+    {
+        return m_discovery;
+    }
+
+
+    CommsPeerRegistry<CommsClient> getCommsClientRegistry()
+    {
+        return m_commsClients;
+    }
+
+
+    // A connection has been accepted by our server thread.
+    void connectToSocket( Socket socket )
+    {
+        connectToAccepted( new CommsClient( this, socket ) );
+    }
+
+
+    // A connection has been accepted by the transport.
+    void connectToConnection( CommsTransport transport, CommsTransport.Connection connection )
+    {
+        connectToAccepted( new CommsClient( this, transport, connection ) );
+    }
+
+
+    private void connectToAccepted( CommsClient commsClient )
+    {
+        String hostAddress = commsClient.getInetAddress().getHostAddress();
+        CommsClient existingCommsClient = m_commsClients.putIfAbsent( hostAddress, commsClient );
+
+        if ( existingCommsClient == null )
+        {
+            commsClient.startIO();
+        }
+        else if ( !existingCommsClient.isConnected() && !m_connectScheduler.isScheduled( existingCommsClient )
+                        && m_commsClients.replace( hostAddress, existingCommsClient, commsClient ) )
+        {
+            // We've been given a new connected socket to the peer, so get rid of the old.
+            m_log.w( TAG, "Replacing " + CommsClient.class.getSimpleName() + " for connection from: " + hostAddress + ":" + commsClient.getInetPort() );
+
+            existingCommsClient.tearDown();
+            commsClient.startIO();
+        }
+        else
+        {
+            // We may be connecting to the peer as it connects to us, the HELLO decides which stays.
+            m_log.d( TAG, "Holding duplicate connection from: " + hostAddress + ":" + commsClient.getInetPort() );
+
+            commsClient.setCandidate( true );
+
+            synchronized ( m_candidates )
+            {
+                m_candidates.add( commsClient );
+            }
+
+            commsClient.startIO();
+        }
+    }
+
+
+    // The peer's reliable session. A client's link that isn't anyone's session yet, holding
+    // what was sent before the HELLO, becomes the session if the peer has none.
+    CommsReliableLink resumeSession( String remoteInstanceId, CommsReliableLink reliableLink )
+    {
+        synchronized ( m_sessions )
+        {
+            CommsReliableLink sessionLink = m_sessions.remove( remoteInstanceId );
+
+            if ( sessionLink == null )
+            {
+                sessionLink = ( reliableLink.getRemoteInstanceId() == null ) ? reliableLink : new CommsReliableLink();
+                sessionLink.setRemoteInstanceId( remoteInstanceId );
+            }
+
+            m_sessions.put( remoteInstanceId, sessionLink );
+
+            Iterator<CommsReliableLink> oldest = m_sessions.values().iterator();
+
+            while ( m_sessions.size() > MAX_SESSIONS )
+            {
+                oldest.next();
+                oldest.remove();
+            }
+
+            return sessionLink;
+        }
+    }
+
+
+    // A client has had the peer's HELLO. Another client for the same peer at a different
+    // address is from before the peer's address changed, and goes.
+    void onPeerIdentified( CommsClient commsClient )
+    {
+        String remoteInstanceId = commsClient.getRemoteInstanceId();
+
+        if ( remoteInstanceId == null || remoteInstanceId.equals( getInstanceId() ) )
+        {
+            return;
+        }
+
+        for ( CommsClient otherCommsClient : m_commsClients.snapshot() )
+        {
+            if ( otherCommsClient != commsClient && remoteInstanceId.equals( otherCommsClient.getRemoteInstanceId() )
+                            && !otherCommsClient.getInetAddress().equals( commsClient.getInetAddress() ) )
+            {
+                m_log.i( TAG, "Peer moved from: " + otherCommsClient.getInetAddress().getHostAddress() + " to: " + commsClient.getInetAddress().getHostAddress() );
+
+                otherCommsClient.tearDown();
+            }
+        }
+    }
+
+
+    // A client has had the peer's HELLO, or a first frame that isn't one from a peer
+    // without the handshake, with a null id. A candidate is now kept or closed.
+    void onHello( CommsClient candidate, String remoteInstanceId )
+    {
+        synchronized ( m_candidates )
+        {
+            if ( !m_candidates.remove( candidate ) )
+            {
+                return;
+            }
+        }
+
+        String hostAddress = candidate.getInetAddress().getHostAddress();
+        String instanceId = getInstanceId();
+        CommsClient existingCommsClient = m_commsClients.get( hostAddress );
+        boolean keepExisting;
+
+        if ( existingCommsClient == null || !existingCommsClient.isOutgoing() )
+        {
+            // The peer only connects again once it has lost its end of the old connection.
+            keepExisting = false;
+        }
+        else if ( !existingCommsClient.isConnected() && !m_connectScheduler.isScheduled( existingCommsClient ) )
+        {
+            keepExisting = false;
+        }
+        else if ( remoteInstanceId == null || remoteInstanceId.equals( instanceId ) )
+        {
+            keepExisting = existingCommsClient.isConnected();
+        }
+        else
+        {
+            // Our connection if we have the lower id, the peer decides the same way.
+            keepExisting = ( instanceId.compareTo( remoteInstanceId ) < 0 );
+        }
+
+        if ( !keepExisting && ( ( existingCommsClient == null ) ? m_commsClients.putIfAbsent( hostAddress, candidate ) == null
+                        : m_commsClients.replace( hostAddress, existingCommsClient, candidate ) ) )
+        {
+            m_log.d( TAG, "Keeping connection from: " + hostAddress + ":" + candidate.getInetPort() );
+
+            if ( existingCommsClient != null )
+            {
+                existingCommsClient.tearDown();
+            }
+
+            candidate.onAdopted();
+        }
+        else
+        {
+            m_log.d( TAG, "Closing duplicate connection from: " + hostAddress + ":" + candidate.getInetPort() );
+
+            candidate.close();
+        }
+    }
+
+
+    void onFrameReceived( CommsClient commsClient, CommsFrame frame )
+    {
+        m_listener.onFrameReceived( commsClient, frame );
+    }
+
+
+    void onClientConnectedChange( CommsClient commsClient, boolean connected )
+    {
+        if ( connected )
+        {
+            m_connectScheduler.onConnected( commsClient.getInetAddress().getHostAddress() );
+            m_heartbeat.checkStart();
+        }
+
+        m_listener.onClientConnectedChange( commsClient, connected );
+    }
+
+
+    synchronized void notifyClientChange( boolean connectedKnown )
+    {
+        // Newly connected is easy.
+        // Otherwise we have to check if there are any remaining connected CommsClients.
+        boolean connected = connectedKnown || isAnyClientConnected();
+
+        if ( connected != m_connected )
+        {
+            m_connected = connected;
+            m_listener.onConnectedChange( connected );
+        }
+    }
+
+
+    void onCandidateClosed( CommsClient candidate )
+    {
+        synchronized ( m_candidates )
+        {
+            m_candidates.remove( candidate );
+        }
+    }
+
+
+    // A peer we know that's not connected, or still has frames kept from before, has the
+    // frame kept too, after them, as does one whose queue is full. Returns the number of clients it was queued or kept for.
+    private int sendToClients( CommsFrame frame, ByteBuffer sharedFrame, CommsOutbox outbox )
+    {
+        int queued = 0;
+
+        for ( CommsClient commsClient : m_commsClients.snapshot() )
+        {
+            String remoteInstanceId = commsClient.getRemoteInstanceId();
+
+            if ( outbox != null && remoteInstanceId != null && ( !commsClient.isConnected() || !outbox.isEmpty( remoteInstanceId ) ) )
+            {
+                if ( outbox.append( remoteInstanceId, frame ) )
+                {
+                    queued++;
+                }
+
+                flushOutbox( commsClient, remoteInstanceId, outbox );
+            }
+            else if ( ( sharedFrame != null ) ? commsClient.sendFrame( sharedFrame.duplicate() ) : commsClient.send( frame ) )
+            {
+                // Each client gets its own position and limit over the shared bytes.
+                queued++;
+            }
+            else if ( outbox != null && remoteInstanceId != null && outbox.append( remoteInstanceId, frame ) )
+            {
+                // Its queue is full, keep it for the next flush rather than drop it.
+                queued++;
+            }
+        }
+
+        return queued;
+    }
+
+
+    // Just the peer's own, with the outbox locked.
+    private static void flushOutbox( CommsClient commsClient, String remoteInstanceId, CommsOutbox outbox )
+    {
+        if ( !commsClient.isConnected() )
+        {
+            return;
+        }
+
+        CommsFrame frame;
+
+        while ( ( frame = outbox.peek( remoteInstanceId ) ) != null && commsClient.send( frame ) )
+        {
+            outbox.remove( remoteInstanceId );
+        }
+    }
+
+
+    private void tearDownCandidates()
+    {
+        ArrayList<CommsClient> candidates;
+
+        synchronized ( m_candidates )
+        {
+            candidates = new ArrayList<CommsClient>( m_candidates );
+            m_candidates.clear();
+        }
+
+        for ( CommsClient candidate : candidates )
+        {
+            candidate.close();
+        }
+    }
+
+
+    private boolean checkStartSelector()
+    {
+        if ( m_commsSelector == null )
+        {
+            m_commsSelector = new CommsSelector( m_log );
+        }
+
+        try
+        {
+            m_commsSelector.start();
+        }
+        catch ( IOException ex )
+        {
+            m_log.e( TAG, "Unable to start " + CommsSelector.class.getSimpleName() + ": ", ex );
+
+            m_commsSelector = null;
+        }
+
+        return ( m_commsSelector != null );
+    }
+}
@@ -0,0 +1,146 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+
+// A message between peers on the wire:
+// varint length | type | flags | payload
+// The length counts the type and flags bytes as well as the payload.
+// The type is one of the NsdService MSG_* constants, types from 128 are
+// reserved for the connection itself.
+public final class CommsFrame
+{
+    // Constants:
+    public static final Charset TEXT_CHARSET    = Charset.forName( "UTF-8" );
+    public static final int     HEADER_SIZE     = 2;
+    public static final int     MAX_VARINT_SIZE = 5;
+    public static final int     FLAG_NONE       = 0;
+    // Numbered for reliable delivery, see CommsReliableLink. On a HELLO, the sender can do it.
+    public static final int     FLAG_RELIABLE   = 1;
+    // Connection control types.
+    // The first frame each end sends, its engine's instance id and session token as text.
+    public static final int     TYPE_HELLO      = 128;
+    // Sent when there's been nothing else to send for a while, see CommsHeartbeat.
+    public static final int     TYPE_HEARTBEAT  = 129;
+    // The last reliable frame received, as a varint, when there's no data to carry it.
+    public static final int     TYPE_ACK        = 130;
+
+    // Member variables:
+    private final int           m_type;
+    private final int           m_flags;
+    private final byte[]        m_payload;
+
+
+    public CommsFrame( int type, int flags, byte[] payload )
+    {
+        m_type = type;
+        m_flags = flags;
+        m_payload = payload;
+    }
+
+
+    public static CommsFrame createText( int type, String text )
+    {
+        return new CommsFrame( type, FLAG_NONE, text.getBytes( TEXT_CHARSET ) );
+    }
+
+
+    public int getType()
+    {
+        return m_type;
+    }
+
+
+    public int getFlags()
+    {
+        return m_flags;
+    }
+
+
+    public byte[] getPayload()
+    {
+        return m_payload;
+    }
+
+
+    public String getText()
+    {
+        return new String( m_payload, TEXT_CHARSET );
+    }
+
+
+    // Encode into a new buffer ready to be written.
+    public ByteBuffer encode()
+    {
+        int length = HEADER_SIZE + m_payload.length;
+        ByteBuffer buffer = ByteBuffer.allocate( varintSize( length ) + length );
+
+        putVarint( buffer, length );
+        buffer.put( (byte) m_type );
+        buffer.put( (byte) m_flags );
+        buffer.put( m_payload );
+        buffer.flip();
+
+        return buffer;
+    }
+
+
+    public static int varintSize( int value )
+    {
+        int size = 1;
+
+        while ( ( value & ~0x7F ) != 0 )
+        {
+            value >>>= 7;
+            size++;
+        }
+
+        return size;
+    }
+
+
+    public static void putVarint( ByteBuffer buffer, int value )
+    {
+        while ( ( value & ~0x7F ) != 0 )
+        {
+            buffer.put( (byte) ( ( value & 0x7F ) | 0x80 ) );
+            value >>>= 7;
+        }
+
+        buffer.put( (byte) value );
+    }
+
+
+    public static int getVarint( ByteBuffer buffer ) throws ProtocolException
+    {
+        int value = 0;
+
+        for ( int shift = 0; shift < 7 * MAX_VARINT_SIZE; shift += 7 )
+        {
+            if ( !buffer.hasRemaining() )
+            {
+                break;
+            }
+
+            int b = buffer.get();
+
+            value |= ( b & 0x7F ) << shift;
+
+            if ( ( b & 0x80 ) == 0 )
+            {
+                return value;
+            }
+        }
+
+        throw new ProtocolException( "Malformed varint." );
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return "CommsFrame[type=" + m_type + ", flags=" + m_flags + ", length=" + m_payload.length + "]";
+    }
+}
@@ -0,0 +1,118 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+
+// Reassembles CommsFrames from a stream of bytes that may arrive in any
+// sized pieces. Bytes are appended as they are read and whole frames are
+// taken out with next(), a partial frame stays buffered until completed.
+public class CommsFrameDecoder
+{
+    // Constants:
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    private static final int INITIAL_BUFFER_SIZE   = 1024;
+
+    // Member variables:
+    private final int        m_maxFrameSize;
+    // Kept in read mode between calls: position to limit is undecoded input.
+    private ByteBuffer       m_buffer;
+
+
+    public CommsFrameDecoder()
+    {
+        this( DEFAULT_MAX_FRAME_SIZE );
+    }
+
+
+    public CommsFrameDecoder( int maxFrameSize )
+    {
+        m_maxFrameSize = maxFrameSize;
+        m_buffer = ByteBuffer.allocate( INITIAL_BUFFER_SIZE );
+        m_buffer.flip();
+    }
+
+
+    public void append( ByteBuffer input )
+    {
+        if ( m_buffer.capacity() - m_buffer.remaining() < input.remaining() )
+        {
+            ByteBuffer grown = ByteBuffer.allocate( Math.max( m_buffer.capacity() * 2, m_buffer.remaining() + input.remaining() ) );
+
+            grown.put( m_buffer );
+            m_buffer = grown;
+        }
+        else
+        {
+            m_buffer.compact();
+        }
+
+        m_buffer.put( input );
+        m_buffer.flip();
+    }
+
+
+    public void append( byte[] input, int offset, int length )
+    {
+        append( ByteBuffer.wrap( input, offset, length ) );
+    }
+
+
+    // Returns the next whole frame, or null if more input is needed.
+    public CommsFrame next() throws ProtocolException
+    {
+        int start = m_buffer.position();
+        int length = 0;
+        int shift = 0;
+
+        while ( true )
+        {
+            if ( !m_buffer.hasRemaining() )
+            {
+                m_buffer.position( start );
+                return null;
+            }
+
+            if ( shift >= 7 * CommsFrame.MAX_VARINT_SIZE )
+            {
+                throw new ProtocolException( "Malformed frame length." );
+            }
+
+            int b = m_buffer.get();
+
+            length |= ( b & 0x7F ) << shift;
+            shift += 7;
+
+            if ( ( b & 0x80 ) == 0 )
+            {
+                break;
+            }
+        }
+
+        if ( length < CommsFrame.HEADER_SIZE || length > m_maxFrameSize )
+        {
+            throw new ProtocolException( "Bad frame length " + length + "." );
+        }
+
+        if ( m_buffer.remaining() < length )
+        {
+            m_buffer.position( start );
+            return null;
+        }
+
+        int type = m_buffer.get() & 0xFF;
+        int flags = m_buffer.get() & 0xFF;
+        byte[] payload = new byte[length - CommsFrame.HEADER_SIZE];
+
+        m_buffer.get( payload );
+
+        return new CommsFrame( type, flags, payload );
+    }
+
+
+    public void reset()
+    {
+        m_buffer.clear();
+        m_buffer.flip();
+    }
+}
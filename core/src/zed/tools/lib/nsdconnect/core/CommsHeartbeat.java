@@ -0,0 +1,248 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.util.concurrent.TimeUnit;
+
+
+// Notices peers that have gone without closing their connection, such as a
+// device that has left the Wi-Fi, whose socket still says it is connected.
+// Each end sends a heartbeat when it has sent nothing else for the interval,
+// so a busy link carries none, and a connection that has received nothing,
+// heartbeat or data, for the idle timeout is taken to be dead and its client
+// torn down. Only peers that sent a HELLO are timed out, older peers don't
+// send heartbeats. One thread checks all the clients, or the engine's looper
+// if it has one.
+public class CommsHeartbeat
+{
+    // Constants:
+    private static final String TAG                     = CommsHeartbeat.class.getSimpleName();
+    public static final String  HEARTBEAT_THREAD_NAME   = TAG + ":HeartbeatThread";
+    public static final int     DEFAULT_INTERVAL_MS     = 5 * 1000;
+    public static final int     DEFAULT_IDLE_TIMEOUT_MS = 3 * DEFAULT_INTERVAL_MS;
+
+    // Member variables:
+    private final CommsEngine   m_commsEngine;
+    private final CommsLog      m_log;
+    private int                 m_intervalMs            = DEFAULT_INTERVAL_MS;
+    private int                 m_idleTimeoutMs         = DEFAULT_IDLE_TIMEOUT_MS;
+    private Thread              m_heartbeatThread       = null;
+    // Whether checks are being posted to the engine's looper, and the one posted last,
+    // the only one that runs.
+    private boolean             m_looperStarted         = false;
+    private Runnable            m_looperCheck           = null;
+
+
+    public CommsHeartbeat( CommsEngine commsEngine )
+    {
+        m_commsEngine = commsEngine;
+        m_log = commsEngine.getLog();
+    }
+
+
+    public synchronized void tearDown()
+    {
+        if ( m_heartbeatThread != null )
+        {
+            m_heartbeatThread.interrupt();
+        }
+
+        m_heartbeatThread = null;
+        m_looperStarted = false;
+        m_looperCheck = null;
+    }
+
+
+    public synchronized int getIntervalMs()
+    {
+        return m_intervalMs;
+    }
+
+
+    // Zero sends no heartbeats.
+    public synchronized void setIntervalMs( int intervalMs )
+    {
+        m_intervalMs = Math.max( 0, intervalMs );
+        notifyAll();
+        checkPostLooperCheck();
+    }
+
+
+    public synchronized int getIdleTimeoutMs()
+    {
+        return m_idleTimeoutMs;
+    }
+
+
+    // Zero never times out a connection. It should be a few intervals, so a
+    // heartbeat or two can be lost or late without the connection being dropped.
+    public synchronized void setIdleTimeoutMs( int idleTimeoutMs )
+    {
+        m_idleTimeoutMs = Math.max( 0, idleTimeoutMs );
+        notifyAll();
+        checkPostLooperCheck();
+    }
+
+
+    // A client has connected, make sure we're checking.
+    synchronized void checkStart()
+    {
+        if ( m_commsEngine.getLooper() != null )
+        {
+            if ( !m_looperStarted )
+            {
+                m_looperStarted = true;
+                checkPostLooperCheck();
+            }
+        }
+        else if ( m_heartbeatThread == null )
+        {
+            m_heartbeatThread = new Thread( new HeartbeatThread(), HEARTBEAT_THREAD_NAME );
+            m_heartbeatThread.start();
+        }
+    }
+
+
+    // Post the next check to the looper in place of any posted before, if we're using it
+    // and there's anything to do.
+    private synchronized void checkPostLooperCheck()
+    {
+        CommsLooper looper = m_commsEngine.getLooper();
+        long checkIntervalMs = getCheckIntervalMs();
+
+        m_looperCheck = null;
+
+        if ( !m_looperStarted || looper == null || checkIntervalMs == 0 )
+        {
+            return;
+        }
+
+        m_looperCheck = new LooperCheck();
+        looper.postDelayed( m_looperCheck, checkIntervalMs );
+    }
+
+
+    // Checks every client in turn. The clients are called without our lock held.
+    private void checkAll()
+    {
+        long intervalNanos;
+        long idleTimeoutNanos;
+
+        synchronized ( this )
+        {
+            intervalNanos = TimeUnit.MILLISECONDS.toNanos( m_intervalMs );
+            idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos( m_idleTimeoutMs );
+        }
+
+        long now = m_commsEngine.nanoTime();
+
+        for ( CommsClient commsClient : m_commsEngine.getCommsClients() )
+        {
+            check( commsClient, now, intervalNanos, idleTimeoutNanos );
+        }
+    }
+
+
+    // One client failing mustn't stop the others being checked.
+    private void check( CommsClient commsClient, long now, long intervalNanos, long idleTimeoutNanos )
+    {
+        try
+        {
+            commsClient.checkHeartbeat( now, intervalNanos, idleTimeoutNanos );
+        }
+        catch ( RuntimeException ex )
+        {
+            m_log.e( TAG, "Error checking heartbeat: ", ex );
+        }
+    }
+
+
+    // How long to wait between checks, a fraction of the shorter of the interval and
+    // the timeout, so neither is overrun by much. Zero when there's nothing to do.
+    private synchronized long getCheckIntervalMs()
+    {
+        int periodMs;
+
+        if ( m_intervalMs > 0 && m_idleTimeoutMs > 0 )
+        {
+            periodMs = Math.min( m_intervalMs, m_idleTimeoutMs );
+        }
+        else
+        {
+            periodMs = Math.max( m_intervalMs, m_idleTimeoutMs );
+        }
+
+        return ( periodMs > 0 ) ? Math.max( 1, periodMs / 4 ) : 0;
+    }
+
+
+    // Checks the clients after each check interval.
+    class HeartbeatThread implements Runnable
+    {
+        // @Override
+        public void run()
+        {
+            try
+            {
+                while ( !Thread.currentThread().isInterrupted() )
+                {
+                    synchronized ( CommsHeartbeat.this )
+                    {
+                        if ( m_heartbeatThread != Thread.currentThread() )
+                        {
+                            break;
+                        }
+
+                        CommsHeartbeat.this.wait( getCheckIntervalMs() );
+                    }
+
+                    checkAll();
+                }
+            }
+            catch ( InterruptedException ie )
+            {
+                m_log.d( TAG, "Heartbeat loop interrupted, exiting." );
+            }
+            catch ( RuntimeException ex )
+            {
+                m_log.e( TAG, "Heartbeat loop error: ", ex );
+            }
+            finally
+            {
+                // Let the next checkStart() start another if we weren't replaced.
+                synchronized ( CommsHeartbeat.this )
+                {
+                    if ( m_heartbeatThread == Thread.currentThread() )
+                    {
+                        m_heartbeatThread = null;
+                    }
+                }
+            }
+        }
+    }
+
+
+    // In place of the thread, a check on the looper that posts the next.
+    class LooperCheck implements Runnable
+    {
+        // @Override
+        public void run()
+        {
+            synchronized ( CommsHeartbeat.this )
+            {
+                if ( m_looperCheck != this )
+                {
+                    return;
+                }
+            }
+
+            checkAll();
+
+            synchronized ( CommsHeartbeat.this )
+            {
+                if ( m_looperCheck == this )
+                {
+                    checkPostLooperCheck();
+                }
+            }
+        }
+    }
+}
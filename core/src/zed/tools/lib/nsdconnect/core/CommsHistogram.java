@@ -0,0 +1,129 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+// A log linear histogram of non-negative values, such as times, to about 6% precision.
+// Recording is a single atomic increment with no locks, so any thread may record.
+public class CommsHistogram
+{
+    // Constants:
+    private static final int    SUB_BUCKET_BITS  = 4;
+    private static final int    SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // Covers values up to 2^40, anything larger goes in the last bucket.
+    private static final int    MAX_EXPONENT     = 40;
+    private static final int    BUCKET_COUNT     = SUB_BUCKET_COUNT + ( MAX_EXPONENT - SUB_BUCKET_BITS ) * SUB_BUCKET_COUNT;
+
+    // Member variables:
+    private final AtomicLongArray m_counts = new AtomicLongArray( BUCKET_COUNT );
+
+
+    public void record( long value )
+    {
+        m_counts.incrementAndGet( bucketIndex( Math.max( 0, value ) ) );
+    }
+
+
+    // Add another histogram's counts to this one.
+    public void add( CommsHistogram other )
+    {
+        for ( int i = 0; i < BUCKET_COUNT; i++ )
+        {
+            long count = other.m_counts.get( i );
+
+            if ( count != 0 )
+            {
+                m_counts.addAndGet( i, count );
+            }
+        }
+    }
+
+
+    public long getCount()
+    {
+        long total = 0;
+
+        for ( int i = 0; i < BUCKET_COUNT; i++ )
+        {
+            total += m_counts.get( i );
+        }
+
+        return total;
+    }
+
+
+    // The value below which the fraction of the recorded values fall.
+    public long getPercentile( double fraction )
+    {
+        long total = getCount();
+
+        if ( total == 0 )
+        {
+            return 0;
+        }
+
+        long target = Math.max( 1, (long) Math.ceil( fraction * total ) );
+        long cumulative = 0;
+
+        for ( int i = 0; i < BUCKET_COUNT; i++ )
+        {
+            cumulative += m_counts.get( i );
+
+            if ( cumulative >= target )
+            {
+                return bucketValue( i );
+            }
+        }
+
+        return bucketValue( BUCKET_COUNT - 1 );
+    }
+
+
+    public long getMax()
+    {
+        for ( int i = BUCKET_COUNT - 1; i >= 0; i-- )
+        {
+            if ( m_counts.get( i ) != 0 )
+            {
+                return bucketValue( i );
+            }
+        }
+
+        return 0;
+    }
+
+
+    private static int bucketIndex( long value )
+    {
+        if ( value < SUB_BUCKET_COUNT )
+        {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros( value );
+
+        if ( exponent >= MAX_EXPONENT )
+        {
+            return BUCKET_COUNT - 1;
+        }
+
+        int subBucket = (int) ( value >>> ( exponent - SUB_BUCKET_BITS ) ) & ( SUB_BUCKET_COUNT - 1 );
+
+        return SUB_BUCKET_COUNT + ( exponent - SUB_BUCKET_BITS ) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+
+    // The lowest value that falls in a bucket.
+    private static long bucketValue( int index )
+    {
+        if ( index < SUB_BUCKET_COUNT )
+        {
+            return index;
+        }
+
+        int exponent = ( index - SUB_BUCKET_COUNT ) / SUB_BUCKET_COUNT + SUB_BUCKET_BITS;
+        int subBucket = ( index - SUB_BUCKET_COUNT ) % SUB_BUCKET_COUNT;
+
+        return (long) ( SUB_BUCKET_COUNT + subBucket ) << ( exponent - SUB_BUCKET_BITS );
+    }
+}
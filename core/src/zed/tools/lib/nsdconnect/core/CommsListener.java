@@ -0,0 +1,15 @@
+package zed.tools.lib.nsdconnect.core;
+
+
+// Delivery of what the connection engine receives. Calls are made on the
+// engine's I/O threads so should not block.
+public interface CommsListener
+{
+    public void onFrameReceived( CommsClient commsClient, CommsFrame frame );
+
+    // Called when there becomes a connected client, or no longer any.
+    public void onConnectedChange( boolean connected );
+
+    // Called when a client's connection is made, or ends.
+    public void onClientConnectedChange( CommsClient commsClient, boolean connected );
+}
@@ -0,0 +1,20 @@
+package zed.tools.lib.nsdconnect.core;
+
+
+// Logging for the connection engine, so it does not depend on android.util.Log.
+public interface CommsLog
+{
+    public void d( String tag, String msg );
+
+    public void d( String tag, String msg, Throwable tr );
+
+    public void i( String tag, String msg );
+
+    public void w( String tag, String msg );
+
+    public void w( String tag, String msg, Throwable tr );
+
+    public void e( String tag, String msg );
+
+    public void e( String tag, String msg, Throwable tr );
+}
@@ -0,0 +1,15 @@
+package zed.tools.lib.nsdconnect.core;
+
+
+// A thread that runs tasks one at a time, now or after a delay, and the clock
+// the delays are measured by, so discovery's timers don't depend on
+// android.os.Handler. On Android a Handler's looper, elsewhere SystemCommsLooper.
+public interface CommsLooper
+{
+    // Milliseconds since some fixed point, never going backwards.
+    public long now();
+
+    public void post( Runnable task );
+
+    public void postDelayed( Runnable task, long delayMs );
+}
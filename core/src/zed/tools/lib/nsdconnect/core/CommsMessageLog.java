@@ -0,0 +1,923 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+
+// Every message sent and received, kept on disk so a client that was away can
+// catch up, and so history can be paged through without holding it in memory.
+// Each message has an offset, one more than the last, that stays with it.
+//
+// The log is a run of segments, each a pair of memory mapped files named by
+// the offset of its first message: the messages themselves, and an index of
+// fixed size entries holding each message's time, peer, type and where it is.
+// Queries scan the index and only read the messages that match, a page at a
+// time, so they take the same memory however long the log. Times never go
+// backwards, so a time range is found by a binary search of the index. A
+// segment's count of messages, in the index header, is written last, so a
+// message counts once it's wholly written, and opening the log reads only the
+// headers. Over the size limit the oldest segments are dropped.
+//
+// A query copies how far each segment has got and reads the copy without the
+// lock, so a long scan doesn't hold up the I/O thread logging what it receives.
+// Appends only go past the count, so what's below it stays as it was.
+//
+// Like the CommsOutbox, nothing is forced to the disk.
+public class CommsMessageLog
+{
+    // Constants:
+    private static final String      TAG                    = CommsMessageLog.class.getSimpleName();
+    public static final long         DEFAULT_MAX_BYTES      = 16 * 1024 * 1024;
+    public static final int          DEFAULT_SEGMENT_SIZE   = 1024 * 1024;
+    // Messages in a segment, whatever their size.
+    public static final int          DEFAULT_INDEX_CAPACITY = 16 * 1024;
+    public static final long         NO_OFFSET              = -1;
+    // Matches any type or direction in a query.
+    public static final int          ANY                    = -1;
+    public static final int          DIRECTION_IN           = 0;
+    public static final int          DIRECTION_OUT          = 1;
+    public static final int          DEFAULT_PAGE_SIZE      = 256;
+    public static final int          DEFAULT_PAGE_BYTES     = 128 * 1024;
+    private static final int         MAX_PEER_BYTES         = Short.MAX_VALUE;
+    private static final String      LOG_SUFFIX             = ".log";
+    private static final String      INDEX_SUFFIX           = ".idx";
+    private static final int         INDEX_MAGIC            = 0x4E53444C;
+    // The index header: magic, count, spare.
+    private static final int         COUNT_OFFSET           = 4;
+    private static final int         INDEX_HEADER_SIZE      = 16;
+    // An index entry: time, position, length, peer hash, type, direction, flags, spare.
+    private static final int         POSITION_OFFSET        = 8;
+    private static final int         LENGTH_OFFSET          = 12;
+    private static final int         PEER_HASH_OFFSET       = 16;
+    private static final int         TYPE_OFFSET            = 20;
+    private static final int         DIRECTION_OFFSET       = 21;
+    private static final int         INDEX_ENTRY_SIZE       = 24;
+    // A message: peer length, peer, payload.
+    private static final int         RECORD_HEADER_SIZE     = 2;
+
+    // Member variables:
+    private final File               m_directory;
+    private final CommsLog           m_log;
+    // The oldest first.
+    private final ArrayList<Segment> m_segments             = new ArrayList<Segment>();
+    private long                     m_maxBytes             = DEFAULT_MAX_BYTES;
+    private int                      m_segmentSize          = DEFAULT_SEGMENT_SIZE;
+    private int                      m_indexCapacity        = DEFAULT_INDEX_CAPACITY;
+    // The size of all the segment files.
+    private long                     m_byteCount            = 0;
+    private long                     m_nextOffset           = 0;
+    // The time of the last message, the next is given no earlier.
+    private long                     m_lastTime             = 0;
+    private boolean                  m_closed               = false;
+
+
+    // One message, as logged or read back.
+    public static class Entry
+    {
+        private final long   m_offset;
+        private final long   m_time;
+        private final String m_peer;
+        private final int    m_direction;
+        private final int    m_type;
+        private final byte[] m_payload;
+
+
+        // NO_OFFSET for one that wasn't logged.
+        public Entry( long offset, long time, String peer, int direction, int type, byte[] payload )
+        {
+            m_offset = offset;
+            m_time = time;
+            m_peer = peer;
+            m_direction = direction;
+            m_type = type;
+            m_payload = payload;
+        }
+
+
+        public long getOffset()
+        {
+            return m_offset;
+        }
+
+
+        public long getTime()
+        {
+            return m_time;
+        }
+
+
+        // Who it came from or went to, null for a message sent to everyone.
+        public String getPeer()
+        {
+            return m_peer;
+        }
+
+
+        public int getDirection()
+        {
+            return m_direction;
+        }
+
+
+        public int getType()
+        {
+            return m_type;
+        }
+
+
+        public byte[] getPayload()
+        {
+            return m_payload;
+        }
+
+
+        public String getText()
+        {
+            return new String( m_payload, CommsFrame.TEXT_CHARSET );
+        }
+    }
+
+
+    // What to look for, by default everything after an offset, a page at a time.
+    public static class Query
+    {
+        private long   m_afterOffset = NO_OFFSET;
+        private long   m_fromTime    = 0;
+        private long   m_toTime      = Long.MAX_VALUE;
+        private String m_peer        = null;
+        private int    m_type        = ANY;
+        private int    m_direction   = ANY;
+        private int    m_maxCount    = DEFAULT_PAGE_SIZE;
+        private int    m_maxBytes    = DEFAULT_PAGE_BYTES;
+
+
+        public long getAfterOffset()
+        {
+            return m_afterOffset;
+        }
+
+
+        // NO_OFFSET for the oldest message kept.
+        public void setAfterOffset( long afterOffset )
+        {
+            m_afterOffset = afterOffset;
+        }
+
+
+        public long getFromTime()
+        {
+            return m_fromTime;
+        }
+
+
+        public void setFromTime( long fromTime )
+        {
+            m_fromTime = fromTime;
+        }
+
+
+        public long getToTime()
+        {
+            return m_toTime;
+        }
+
+
+        // Inclusive.
+        public void setToTime( long toTime )
+        {
+            m_toTime = toTime;
+        }
+
+
+        public String getPeer()
+        {
+            return m_peer;
+        }
+
+
+        // Null for any peer. Messages sent to everyone have no peer, so only match any.
+        public void setPeer( String peer )
+        {
+            m_peer = peer;
+        }
+
+
+        public int getType()
+        {
+            return m_type;
+        }
+
+
+        public void setType( int type )
+        {
+            m_type = type;
+        }
+
+
+        public int getDirection()
+        {
+            return m_direction;
+        }
+
+
+        public void setDirection( int direction )
+        {
+            m_direction = direction;
+        }
+
+
+        public int getMaxCount()
+        {
+            return m_maxCount;
+        }
+
+
+        public void setMaxCount( int maxCount )
+        {
+            m_maxCount = Math.max( 1, maxCount );
+        }
+
+
+        public int getMaxBytes()
+        {
+            return m_maxBytes;
+        }
+
+
+        // Of payload, a page always has at least one message if there's one to give.
+        public void setMaxBytes( int maxBytes )
+        {
+            m_maxBytes = Math.max( 1, maxBytes );
+        }
+    }
+
+
+    // A query's results, the oldest first.
+    public static class Page
+    {
+        private final List<Entry> m_entries;
+        private final long        m_lastOffset;
+        private final boolean     m_complete;
+
+
+        Page( List<Entry> entries, long lastOffset, boolean complete )
+        {
+            m_entries = Collections.unmodifiableList( entries );
+            m_lastOffset = lastOffset;
+            m_complete = complete;
+        }
+
+
+        public List<Entry> getEntries()
+        {
+            return m_entries;
+        }
+
+
+        // The last offset looked at, to query after for the next page.
+        public long getLastOffset()
+        {
+            return m_lastOffset;
+        }
+
+
+        // Whether there's nothing more to find, for now.
+        public boolean isComplete()
+        {
+            return m_complete;
+        }
+    }
+
+
+    // One segment's pair of files, the index mapped when first used, the messages too.
+    static class Segment
+    {
+        final File       m_indexFile;
+        final File       m_logFile;
+        final long       m_baseOffset;
+        final int        m_capacity;
+        final int        m_size;
+        int              m_count;
+        int              m_writePosition;
+        long             m_firstTime;
+        long             m_lastTime;
+        MappedByteBuffer m_index  = null;
+        MappedByteBuffer m_buffer = null;
+
+
+        Segment( File indexFile, File logFile, long baseOffset, int capacity, int size )
+        {
+            m_indexFile = indexFile;
+            m_logFile = logFile;
+            m_baseOffset = baseOffset;
+            m_capacity = capacity;
+            m_size = size;
+        }
+
+
+        int getByteCount()
+        {
+            return INDEX_HEADER_SIZE + m_capacity * INDEX_ENTRY_SIZE + m_size;
+        }
+
+
+        // Whether it holds the offset, or any after it.
+        boolean isAfter( long offset )
+        {
+            return ( m_baseOffset + m_count - 1 > offset );
+        }
+    }
+
+
+    // Opens what's logged in the directory from before, reading only the segment headers.
+    public CommsMessageLog( File directory, CommsLog log )
+    {
+        m_directory = directory;
+        m_log = log;
+        load();
+    }
+
+
+    public synchronized void close()
+    {
+        for ( Segment segment : m_segments )
+        {
+            segment.m_index = null;
+            segment.m_buffer = null;
+        }
+
+        m_segments.clear();
+        m_closed = true;
+    }
+
+
+    public synchronized long getMaxBytes()
+    {
+        return m_maxBytes;
+    }
+
+
+    public synchronized void setMaxBytes( long maxBytes )
+    {
+        m_maxBytes = Math.max( 0, maxBytes );
+        evict();
+    }
+
+
+    // Both take effect on the next segment made.
+    public synchronized void setSegmentSize( int segmentSize )
+    {
+        m_segmentSize = Math.max( RECORD_HEADER_SIZE, segmentSize );
+    }
+
+
+    public synchronized void setIndexCapacity( int indexCapacity )
+    {
+        m_indexCapacity = Math.max( 1, indexCapacity );
+    }
+
+
+    // The disk space taken, whole segments.
+    public synchronized long getByteCount()
+    {
+        return m_byteCount;
+    }
+
+
+    // The oldest offset kept, the next offset if there's nothing.
+    public synchronized long getFirstOffset()
+    {
+        for ( Segment segment : m_segments )
+        {
+            if ( segment.m_count > 0 )
+            {
+                return segment.m_baseOffset;
+            }
+        }
+
+        return m_nextOffset;
+    }
+
+
+    // The offset the next message will have.
+    public synchronized long getNextOffset()
+    {
+        return m_nextOffset;
+    }
+
+
+    // Log a frame from the peer or to it, a null peer for one sent to everyone.
+    // Returns the entry with its offset, or null if it couldn't be logged.
+    public synchronized Entry append( String peer, int direction, CommsFrame frame )
+    {
+        if ( m_closed )
+        {
+            return null;
+        }
+
+        byte[] peerBytes = ( peer == null ) ? new byte[0] : peer.getBytes( CommsFrame.TEXT_CHARSET );
+
+        if ( peerBytes.length > MAX_PEER_BYTES )
+        {
+            return null;
+        }
+
+        byte[] payload = frame.getPayload();
+        int recordSize = RECORD_HEADER_SIZE + peerBytes.length + payload.length;
+
+        long now = Math.max( System.currentTimeMillis(), m_lastTime );
+        Segment segment = m_segments.isEmpty() ? null : m_segments.get( m_segments.size() - 1 );
+
+        try
+        {
+            if ( segment == null || segment.m_count >= segment.m_capacity || segment.m_size - segment.m_writePosition < recordSize )
+            {
+                segment = createSegment( Math.max( m_segmentSize, recordSize ) );
+            }
+
+            ByteBuffer record = mapLog( segment ).duplicate();
+            MappedByteBuffer index = mapIndex( segment );
+            int entryPosition = INDEX_HEADER_SIZE + segment.m_count * INDEX_ENTRY_SIZE;
+
+            record.position( segment.m_writePosition );
+            record.putShort( (short) peerBytes.length );
+            record.put( peerBytes );
+            record.put( payload );
+
+            index.putLong( entryPosition, now );
+            index.putInt( entryPosition + POSITION_OFFSET, segment.m_writePosition );
+            index.putInt( entryPosition + LENGTH_OFFSET, recordSize );
+            index.putInt( entryPosition + PEER_HASH_OFFSET, getPeerHash( peer ) );
+            index.put( entryPosition + TYPE_OFFSET, (byte) frame.getType() );
+            index.put( entryPosition + DIRECTION_OFFSET, (byte) direction );
+
+            // It counts once the count is past it.
+            index.putInt( COUNT_OFFSET, segment.m_count + 1 );
+        }
+        catch ( IOException ex )
+        {
+            m_log.e( TAG, "Unable to log message: ", ex );
+            return null;
+        }
+
+        long offset = segment.m_baseOffset + segment.m_count;
+
+        if ( segment.m_count == 0 )
+        {
+            segment.m_firstTime = now;
+        }
+
+        segment.m_count++;
+        segment.m_writePosition += recordSize;
+        segment.m_lastTime = now;
+        m_nextOffset = offset + 1;
+        m_lastTime = now;
+        evict();
+
+        return new Entry( offset, now, peer, direction, frame.getType(), payload );
+    }
+
+
+    // Up to a page of what matches, the oldest first. Only the index is read until
+    // a message matches, so a query that matches little costs no more memory.
+    public Page query( Query query )
+    {
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        ArrayList<Segment> segments = new ArrayList<Segment>();
+        long afterOffset = query.getAfterOffset();
+        long lastOffset = afterOffset;
+        long nextOffset;
+        int pageBytes = 0;
+        int peerHash = getPeerHash( query.getPeer() );
+
+        synchronized ( this )
+        {
+            nextOffset = m_nextOffset;
+
+            for ( Segment segment : m_segments )
+            {
+                if ( segment.isAfter( afterOffset ) && segment.m_lastTime >= query.getFromTime() )
+                {
+                    segments.add( snapshot( segment ) );
+
+                    // The scan stops at this one.
+                    if ( segment.m_firstTime > query.getToTime() )
+                    {
+                        break;
+                    }
+                }
+            }
+        }
+
+        for ( Segment segment : segments )
+        {
+            if ( segment.m_firstTime > query.getToTime() )
+            {
+                return new Page( entries, lastOffset, true );
+            }
+
+            try
+            {
+                MappedByteBuffer index = mapIndex( segment );
+                int i = ( afterOffset < segment.m_baseOffset ) ? 0 : (int) ( afterOffset - segment.m_baseOffset + 1 );
+
+                if ( segment.m_firstTime < query.getFromTime() )
+                {
+                    i = Math.max( i, findTime( segment, index, query.getFromTime() ) );
+                }
+
+                for ( ; i < segment.m_count; i++ )
+                {
+                    int entryPosition = INDEX_HEADER_SIZE + i * INDEX_ENTRY_SIZE;
+                    long time = index.getLong( entryPosition );
+
+                    if ( time > query.getToTime() )
+                    {
+                        return new Page( entries, lastOffset, true );
+                    }
+
+                    lastOffset = segment.m_baseOffset + i;
+
+                    if ( ( query.getType() != ANY && query.getType() != ( index.get( entryPosition + TYPE_OFFSET ) & 0xFF ) )
+                                    || ( query.getDirection() != ANY && query.getDirection() != index.get( entryPosition + DIRECTION_OFFSET ) )
+                                    || ( query.getPeer() != null && peerHash != index.getInt( entryPosition + PEER_HASH_OFFSET ) ) )
+                    {
+                        continue;
+                    }
+
+                    Entry entry = readEntry( segment, index, i, time );
+
+                    if ( query.getPeer() != null && !query.getPeer().equals( entry.getPeer() ) )
+                    {
+                        continue;
+                    }
+
+                    entries.add( entry );
+                    pageBytes += entry.getPayload().length;
+
+                    if ( entries.size() >= query.getMaxCount() || pageBytes >= query.getMaxBytes() )
+                    {
+                        return new Page( entries, lastOffset, ( lastOffset == nextOffset - 1 ) );
+                    }
+                }
+            }
+            catch ( IOException ex )
+            {
+                m_log.e( TAG, "Unable to read message log, skipping segment: " + segment.m_indexFile, ex );
+
+                lastOffset = Math.max( lastOffset, segment.m_baseOffset + segment.m_count - 1 );
+            }
+        }
+
+        // Up to date, so the next query starts from what's logged after now.
+        return new Page( entries, Math.max( lastOffset, nextOffset - 1 ), true );
+    }
+
+
+    // Find what's logged from before. Unreadable segments are deleted, as are any left
+    // empty, though the last is kept so the offsets carry on from it.
+    private void load()
+    {
+        File[] files = m_directory.listFiles();
+
+        if ( files == null )
+        {
+            return;
+        }
+
+        // Named by offset, so in order.
+        Arrays.sort( files );
+
+        for ( File file : files )
+        {
+            String name = file.getName();
+
+            if ( !name.endsWith( INDEX_SUFFIX ) )
+            {
+                if ( !new File( m_directory, name.substring( 0, Math.max( 0, name.length() - LOG_SUFFIX.length() ) ) + INDEX_SUFFIX ).exists() )
+                {
+                    deleteFile( file );
+                }
+
+                continue;
+            }
+
+            Segment segment = readSegment( file );
+
+            if ( segment == null )
+            {
+                // Offsets never go back, even to reuse what's lost.
+                m_nextOffset = Math.max( m_nextOffset, getEndOffset( file ) );
+                deleteFile( file );
+                deleteFile( getLogFile( file ) );
+                continue;
+            }
+
+            if ( !m_segments.isEmpty() && m_segments.get( m_segments.size() - 1 ).m_count == 0 )
+            {
+                removeSegment( m_segments.get( m_segments.size() - 1 ) );
+            }
+
+            m_segments.add( segment );
+            m_byteCount += segment.getByteCount();
+            m_nextOffset = Math.max( m_nextOffset, segment.m_baseOffset + segment.m_count );
+            m_lastTime = Math.max( m_lastTime, segment.m_lastTime );
+        }
+
+        m_log.d( TAG, "Opened message log with " + m_segments.size() + " segments, offsets " + getFirstOffset() + " to " + m_nextOffset + ": "
+                        + m_directory );
+
+        evict();
+    }
+
+
+    // Just the header and the last entry, null if it isn't a segment of ours.
+    private Segment readSegment( File indexFile )
+    {
+        String name = indexFile.getName();
+        File logFile = getLogFile( indexFile );
+        long indexLength = indexFile.length();
+        long logLength = logFile.length();
+
+        if ( indexLength < INDEX_HEADER_SIZE || ( indexLength - INDEX_HEADER_SIZE ) % INDEX_ENTRY_SIZE != 0 || indexLength > Integer.MAX_VALUE
+                        || logLength > Integer.MAX_VALUE )
+        {
+            return null;
+        }
+
+        try
+        {
+            long baseOffset = Long.parseLong( name.substring( 0, name.length() - INDEX_SUFFIX.length() ), 16 );
+            int capacity = (int) ( ( indexLength - INDEX_HEADER_SIZE ) / INDEX_ENTRY_SIZE );
+            Segment segment = new Segment( indexFile, logFile, baseOffset, capacity, (int) logLength );
+            RandomAccessFile segmentFile = new RandomAccessFile( indexFile, "r" );
+
+            try
+            {
+                int magic = segmentFile.readInt();
+
+                segment.m_count = segmentFile.readInt();
+
+                if ( magic != INDEX_MAGIC || segment.m_count < 0 || segment.m_count > capacity )
+                {
+                    m_log.w( TAG, "Bad message log segment: " + indexFile );
+                    return null;
+                }
+
+                if ( segment.m_count > 0 )
+                {
+                    segmentFile.seek( INDEX_HEADER_SIZE );
+                    segment.m_firstTime = segmentFile.readLong();
+                    segmentFile.seek( INDEX_HEADER_SIZE + ( segment.m_count - 1 ) * INDEX_ENTRY_SIZE );
+                    segment.m_lastTime = segmentFile.readLong();
+                    segment.m_writePosition = segmentFile.readInt();
+                    segment.m_writePosition += segmentFile.readInt();
+                }
+
+                if ( segment.m_writePosition < 0 || segment.m_writePosition > segment.m_size )
+                {
+                    m_log.w( TAG, "Bad message log segment: " + indexFile );
+                    return null;
+                }
+
+                return segment;
+            }
+            finally
+            {
+                segmentFile.close();
+            }
+        }
+        catch ( NumberFormatException e )
+        {
+            return null;
+        }
+        catch ( IOException ex )
+        {
+            m_log.e( TAG, "Unable to read message log segment: " + indexFile, ex );
+            return null;
+        }
+    }
+
+
+    // One past the most an index file could hold, by its name and length.
+    private static long getEndOffset( File indexFile )
+    {
+        String name = indexFile.getName();
+
+        try
+        {
+            return Long.parseLong( name.substring( 0, name.length() - INDEX_SUFFIX.length() ), 16 )
+                            + Math.max( 0, ( indexFile.length() - INDEX_HEADER_SIZE ) / INDEX_ENTRY_SIZE );
+        }
+        catch ( NumberFormatException e )
+        {
+            return 0;
+        }
+    }
+
+
+    private Segment createSegment( int size ) throws IOException
+    {
+        if ( !m_directory.isDirectory() && !m_directory.mkdirs() )
+        {
+            throw new IOException( "Unable to create message log directory: " + m_directory );
+        }
+
+        String name = String.format( "%016x", m_nextOffset );
+        Segment segment = new Segment( new File( m_directory, name + INDEX_SUFFIX ), new File( m_directory, name + LOG_SUFFIX ), m_nextOffset,
+                        m_indexCapacity, size );
+
+        mapLog( segment );
+        mapIndex( segment ).putInt( 0, INDEX_MAGIC );
+
+        // An empty last segment was only kept for its offset.
+        if ( !m_segments.isEmpty() && m_segments.get( m_segments.size() - 1 ).m_count == 0 )
+        {
+            removeSegment( m_segments.get( m_segments.size() - 1 ) );
+        }
+
+        m_segments.add( segment );
+        m_byteCount += segment.getByteCount();
+
+        return segment;
+    }
+
+
+    // Mapping a new segment makes its files their full size.
+    private static MappedByteBuffer mapIndex( Segment segment ) throws IOException
+    {
+        if ( segment.m_index == null )
+        {
+            segment.m_index = map( segment.m_indexFile, INDEX_HEADER_SIZE + segment.m_capacity * INDEX_ENTRY_SIZE );
+        }
+
+        return segment.m_index;
+    }
+
+
+    private static MappedByteBuffer mapLog( Segment segment ) throws IOException
+    {
+        if ( segment.m_buffer == null )
+        {
+            segment.m_buffer = map( segment.m_logFile, segment.m_size );
+        }
+
+        return segment.m_buffer;
+    }
+
+
+    private static MappedByteBuffer map( File file, int size ) throws IOException
+    {
+        RandomAccessFile mappedFile = new RandomAccessFile( file, "rw" );
+
+        try
+        {
+            // The mapping stays valid once the file is closed.
+            return mappedFile.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, size );
+        }
+        finally
+        {
+            mappedFile.close();
+        }
+    }
+
+
+    // A copy of the segment as it is now, sharing its mappings. The mappings stay
+    // readable if the segment is dropped or the log closed after.
+    private static Segment snapshot( Segment segment )
+    {
+        Segment copy = new Segment( segment.m_indexFile, segment.m_logFile, segment.m_baseOffset, segment.m_capacity, segment.m_size );
+
+        copy.m_count = segment.m_count;
+        copy.m_writePosition = segment.m_writePosition;
+        copy.m_firstTime = segment.m_firstTime;
+        copy.m_lastTime = segment.m_lastTime;
+
+        try
+        {
+            // Mapped on the segment itself so they're kept for the next query.
+            copy.m_index = mapIndex( segment );
+            copy.m_buffer = mapLog( segment );
+        }
+        catch ( IOException ex )
+        {
+            // The query tries again with the copy, and says why it's skipped.
+        }
+
+        return copy;
+    }
+
+
+    // The first entry at or after the time, the count if there's none.
+    private static int findTime( Segment segment, ByteBuffer index, long time )
+    {
+        int low = 0;
+        int high = segment.m_count;
+
+        while ( low < high )
+        {
+            int middle = ( low + high ) >>> 1;
+
+            if ( index.getLong( INDEX_HEADER_SIZE + middle * INDEX_ENTRY_SIZE ) < time )
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+
+    private static Entry readEntry( Segment segment, ByteBuffer index, int i, long time ) throws IOException
+    {
+        int entryPosition = INDEX_HEADER_SIZE + i * INDEX_ENTRY_SIZE;
+        int position = index.getInt( entryPosition + POSITION_OFFSET );
+        int length = index.getInt( entryPosition + LENGTH_OFFSET );
+
+        if ( position < 0 || length < RECORD_HEADER_SIZE || length > segment.m_writePosition - position )
+        {
+            throw new IOException( "Bad message at " + ( segment.m_baseOffset + i ) );
+        }
+
+        ByteBuffer record = mapLog( segment ).duplicate();
+
+        record.position( position );
+
+        int peerLength = record.getShort();
+
+        if ( peerLength < 0 || peerLength > length - RECORD_HEADER_SIZE )
+        {
+            throw new IOException( "Bad message peer length " + peerLength + " at " + ( segment.m_baseOffset + i ) );
+        }
+
+        byte[] peerBytes = new byte[peerLength];
+        byte[] payload = new byte[length - RECORD_HEADER_SIZE - peerLength];
+
+        record.get( peerBytes );
+        record.get( payload );
+
+        return new Entry( segment.m_baseOffset + i, time, ( peerLength == 0 ) ? null : new String( peerBytes, CommsFrame.TEXT_CHARSET ),
+                        index.get( entryPosition + DIRECTION_OFFSET ), index.get( entryPosition + TYPE_OFFSET ) & 0xFF, payload );
+    }
+
+
+    private static int getPeerHash( String peer )
+    {
+        return ( peer == null ) ? 0 : peer.hashCode();
+    }
+
+
+    private static File getLogFile( File indexFile )
+    {
+        String name = indexFile.getName();
+
+        return new File( indexFile.getParentFile(), name.substring( 0, name.length() - INDEX_SUFFIX.length() ) + LOG_SUFFIX );
+    }
+
+
+    // Drop the oldest segments until we're within the size limit, the newest is kept whatever.
+    private void evict()
+    {
+        while ( m_byteCount > m_maxBytes && m_segments.size() > 1 )
+        {
+            m_log.d( TAG, "Message log full, dropping: " + m_segments.get( 0 ).m_indexFile );
+
+            removeSegment( m_segments.get( 0 ) );
+        }
+    }
+
+
+    private void removeSegment( Segment segment )
+    {
+        if ( m_segments.remove( segment ) )
+        {
+            m_byteCount -= segment.getByteCount();
+        }
+
+        segment.m_index = null;
+        segment.m_buffer = null;
+        deleteFile( segment.m_indexFile );
+        deleteFile( segment.m_logFile );
+    }
+
+
+    private void deleteFile( File file )
+    {
+        if ( file.exists() && !file.delete() )
+        {
+            m_log.w( TAG, "Unable to delete: " + file );
+        }
+    }
+}
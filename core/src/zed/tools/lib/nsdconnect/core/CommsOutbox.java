@@ -0,0 +1,613 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+// Frames kept on disk for peers we can't reach, to be sent when they are
+// back, see CommsEngine.setOutbox(). Each peer, by its instance id, has its
+// own queue, and there's one more for frames sent when there was no peer at
+// all, for whoever connects next; they're handed to the peers there are then
+// and taken off it. A queue is a directory of segment files, each memory
+// mapped and appended to until it's full. A segment's header holds its read
+// and write positions, so opening the outbox reads only the headers, not the
+// frames, and a frame only counts once it's wholly written.
+// Over the size limit the oldest segments are dropped, and frames older than
+// the age limit are never sent.
+//
+// Written frames survive the process, not necessarily the device, nothing is
+// forced to the disk.
+public class CommsOutbox
+{
+    // Constants:
+    private static final String              TAG                     = CommsOutbox.class.getSimpleName();
+    public static final long                 DEFAULT_MAX_BYTES       = 8 * 1024 * 1024;
+    public static final long                 DEFAULT_MAX_AGE_MS      = 24 * 60 * 60 * 1000;
+    public static final int                  DEFAULT_SEGMENT_SIZE    = 256 * 1024;
+    // Longer instance ids aren't kept for, they'd make too long a file name.
+    private static final int                 MAX_INSTANCE_ID_BYTES   = 100;
+    private static final String              BROADCAST_DIRECTORY     = "broadcast";
+    private static final String              SEGMENT_SUFFIX          = ".seg";
+    private static final int                 SEGMENT_MAGIC           = 0x4E53444F;
+    // The segment header: magic, write position, read position, spare, created time, last append time.
+    private static final int                 WRITE_POSITION_OFFSET   = 4;
+    private static final int                 READ_POSITION_OFFSET    = 8;
+    private static final int                 CREATED_TIME_OFFSET     = 16;
+    private static final int                 LAST_APPEND_TIME_OFFSET = 24;
+    private static final int                 SEGMENT_HEADER_SIZE     = 32;
+    // A frame's header: payload length, time kept, type, flags.
+    private static final int                 RECORD_HEADER_SIZE      = 14;
+
+    // Member variables:
+    private final File                       m_directory;
+    private final CommsLog                   m_log;
+    // By directory name.
+    private final HashMap<String, PeerQueue> m_queues                = new HashMap<String, PeerQueue>();
+    private long                             m_maxBytes              = DEFAULT_MAX_BYTES;
+    private long                             m_maxAgeMs              = DEFAULT_MAX_AGE_MS;
+    private int                              m_segmentSize           = DEFAULT_SEGMENT_SIZE;
+    // The size of all the segment files.
+    private long                             m_byteCount             = 0;
+    // Segment files are named by it, so the oldest sorts first.
+    private long                             m_nextSequence          = 0;
+    private boolean                          m_closed                = false;
+
+
+    // One segment file. Positions are offsets in the file, the frames still to be sent run
+    // from the read position to the write position.
+    static class Segment
+    {
+        final File       m_file;
+        final long       m_sequence;
+        final int        m_size;
+        int              m_readPosition;
+        int              m_writePosition;
+        long             m_lastAppendTime;
+        // Mapped when first read or written.
+        MappedByteBuffer m_buffer = null;
+
+
+        Segment( File file, long sequence, int size, int readPosition, int writePosition, long lastAppendTime )
+        {
+            m_file = file;
+            m_sequence = sequence;
+            m_size = size;
+            m_readPosition = readPosition;
+            m_writePosition = writePosition;
+            m_lastAppendTime = lastAppendTime;
+        }
+
+
+        boolean isRead()
+        {
+            return ( m_readPosition >= m_writePosition );
+        }
+    }
+
+
+    // One peer's segments, the oldest first.
+    static class PeerQueue
+    {
+        final File                m_directory;
+        final ArrayDeque<Segment> m_segments = new ArrayDeque<Segment>();
+
+
+        PeerQueue( File directory )
+        {
+            m_directory = directory;
+        }
+    }
+
+
+    // Opens what's kept in the directory from before, reading only the segment headers.
+    public CommsOutbox( File directory, CommsLog log )
+    {
+        m_directory = directory;
+        m_log = log;
+        load();
+    }
+
+
+    public synchronized void close()
+    {
+        for ( PeerQueue queue : m_queues.values() )
+        {
+            for ( Segment segment : queue.m_segments )
+            {
+                segment.m_buffer = null;
+            }
+        }
+
+        m_queues.clear();
+        m_closed = true;
+    }
+
+
+    public synchronized long getMaxBytes()
+    {
+        return m_maxBytes;
+    }
+
+
+    public synchronized void setMaxBytes( long maxBytes )
+    {
+        m_maxBytes = Math.max( 0, maxBytes );
+        evict( System.currentTimeMillis(), null );
+    }
+
+
+    public synchronized long getMaxAgeMs()
+    {
+        return m_maxAgeMs;
+    }
+
+
+    public synchronized void setMaxAgeMs( long maxAgeMs )
+    {
+        m_maxAgeMs = Math.max( 0, maxAgeMs );
+        evict( System.currentTimeMillis(), null );
+    }
+
+
+    // Takes effect on the next segment made.
+    public synchronized void setSegmentSize( int segmentSize )
+    {
+        m_segmentSize = Math.max( SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE, segmentSize );
+    }
+
+
+    // The disk space taken, whole segments, read or not.
+    public synchronized long getByteCount()
+    {
+        return m_byteCount;
+    }
+
+
+    // Whether anything is kept for the peer, null for whoever connects next.
+    public synchronized boolean isEmpty( String remoteInstanceId )
+    {
+        return ( getQueue( remoteInstanceId, false ) == null );
+    }
+
+
+    // Keep a frame for the peer, null for whoever connects next. Returns false if it couldn't be.
+    public synchronized boolean append( String remoteInstanceId, CommsFrame frame )
+    {
+        PeerQueue queue = getQueue( remoteInstanceId, true );
+
+        if ( queue == null )
+        {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        byte[] payload = frame.getPayload();
+        int recordSize = RECORD_HEADER_SIZE + payload.length;
+        Segment segment = queue.m_segments.peekLast();
+
+        try
+        {
+            if ( segment == null || segment.m_size - segment.m_writePosition < recordSize )
+            {
+                segment = createSegment( queue, Math.max( m_segmentSize, SEGMENT_HEADER_SIZE + recordSize ), now );
+            }
+
+            MappedByteBuffer buffer = map( segment );
+            ByteBuffer record = buffer.duplicate();
+
+            record.position( segment.m_writePosition );
+            record.putInt( payload.length );
+            record.putLong( now );
+            record.put( (byte) frame.getType() );
+            record.put( (byte) frame.getFlags() );
+            record.put( payload );
+
+            // It counts once the write position is past it.
+            segment.m_writePosition += recordSize;
+            segment.m_lastAppendTime = now;
+            buffer.putLong( LAST_APPEND_TIME_OFFSET, now );
+            buffer.putInt( WRITE_POSITION_OFFSET, segment.m_writePosition );
+        }
+        catch ( IOException ex )
+        {
+            m_log.e( TAG, "Unable to keep frame: ", ex );
+
+            removeIfEmpty( queue );
+            return false;
+        }
+
+        evict( now, segment );
+
+        return true;
+    }
+
+
+    // The oldest frame kept for the peer, null for whoever connects next, or null if there's
+    // none. It stays kept until removed, once it has been sent.
+    public synchronized CommsFrame peek( String remoteInstanceId )
+    {
+        PeerQueue queue = getQueue( remoteInstanceId, false );
+
+        if ( queue == null )
+        {
+            return null;
+        }
+
+        long oldestTime = System.currentTimeMillis() - m_maxAgeMs;
+        Segment segment;
+
+        while ( ( segment = queue.m_segments.peekFirst() ) != null )
+        {
+            try
+            {
+                while ( !segment.isRead() )
+                {
+                    MappedByteBuffer buffer = map( segment );
+                    int position = segment.m_readPosition;
+                    int length = getRecordLength( segment, buffer );
+
+                    if ( buffer.getLong( position + 4 ) >= oldestTime )
+                    {
+                        ByteBuffer record = buffer.duplicate();
+                        byte[] payload = new byte[length];
+
+                        record.position( position + RECORD_HEADER_SIZE );
+                        record.get( payload );
+
+                        return new CommsFrame( buffer.get( position + 12 ) & 0xFF, buffer.get( position + 13 ) & 0xFF, payload );
+                    }
+
+                    // Too old to be worth sending.
+                    setReadPosition( segment, buffer, position + RECORD_HEADER_SIZE + length );
+                }
+            }
+            catch ( IOException ex )
+            {
+                m_log.e( TAG, "Unable to read kept frame, dropping segment: " + segment.m_file, ex );
+            }
+
+            removeSegment( queue, segment );
+        }
+
+        removeIfEmpty( queue );
+
+        return null;
+    }
+
+
+    // Drop the oldest frame kept for the peer, the one peek() gave.
+    public synchronized void remove( String remoteInstanceId )
+    {
+        PeerQueue queue = getQueue( remoteInstanceId, false );
+        Segment segment = ( queue == null ) ? null : queue.m_segments.peekFirst();
+
+        if ( segment == null )
+        {
+            return;
+        }
+
+        try
+        {
+            if ( !segment.isRead() )
+            {
+                MappedByteBuffer buffer = map( segment );
+
+                setReadPosition( segment, buffer, segment.m_readPosition + RECORD_HEADER_SIZE + getRecordLength( segment, buffer ) );
+            }
+        }
+        catch ( IOException ex )
+        {
+            m_log.e( TAG, "Unable to read kept frame, dropping segment: " + segment.m_file, ex );
+
+            segment.m_readPosition = segment.m_writePosition;
+        }
+
+        if ( segment.isRead() )
+        {
+            removeSegment( queue, segment );
+            removeIfEmpty( queue );
+        }
+    }
+
+
+    // Instance ids come from the network, so they're hex encoded to use as file names.
+    public static String toFileName( String name )
+    {
+        StringBuilder fileName = new StringBuilder();
+
+        for ( byte b : name.getBytes( CommsFrame.TEXT_CHARSET ) )
+        {
+            fileName.append( Character.forDigit( ( b >> 4 ) & 0xF, 16 ) ).append( Character.forDigit( b & 0xF, 16 ) );
+        }
+
+        return fileName.toString();
+    }
+
+
+    // Find what's kept from before. Read segments and anything unreadable are deleted.
+    private void load()
+    {
+        File[] directories = m_directory.listFiles();
+
+        if ( directories == null )
+        {
+            return;
+        }
+
+        for ( File directory : directories )
+        {
+            File[] files = directory.listFiles();
+
+            if ( files == null )
+            {
+                continue;
+            }
+
+            PeerQueue queue = new PeerQueue( directory );
+
+            // Named by sequence, so in order.
+            Arrays.sort( files );
+
+            for ( File file : files )
+            {
+                Segment segment = readSegment( file );
+
+                if ( segment == null || segment.isRead() )
+                {
+                    deleteFile( file );
+                    continue;
+                }
+
+                queue.m_segments.add( segment );
+                m_byteCount += segment.m_size;
+                m_nextSequence = Math.max( m_nextSequence, segment.m_sequence + 1 );
+            }
+
+            if ( queue.m_segments.isEmpty() )
+            {
+                deleteFile( directory );
+            }
+            else
+            {
+                m_queues.put( directory.getName(), queue );
+            }
+        }
+
+        m_log.d( TAG, "Opened outbox with " + m_queues.size() + " queues, " + m_byteCount + " bytes: " + m_directory );
+
+        evict( System.currentTimeMillis(), null );
+    }
+
+
+    // Just the header, null if it isn't a segment of ours.
+    private Segment readSegment( File file )
+    {
+        String name = file.getName();
+
+        if ( !name.endsWith( SEGMENT_SUFFIX ) || file.length() < SEGMENT_HEADER_SIZE || file.length() > Integer.MAX_VALUE )
+        {
+            return null;
+        }
+
+        try
+        {
+            long sequence = Long.parseLong( name.substring( 0, name.length() - SEGMENT_SUFFIX.length() ), 16 );
+            RandomAccessFile segmentFile = new RandomAccessFile( file, "r" );
+
+            try
+            {
+                int size = (int) segmentFile.length();
+                int magic = segmentFile.readInt();
+                int writePosition = segmentFile.readInt();
+                int readPosition = segmentFile.readInt();
+
+                segmentFile.seek( LAST_APPEND_TIME_OFFSET );
+
+                long lastAppendTime = segmentFile.readLong();
+
+                if ( magic != SEGMENT_MAGIC || readPosition < SEGMENT_HEADER_SIZE || writePosition < readPosition || writePosition > size )
+                {
+                    m_log.w( TAG, "Bad outbox segment: " + file );
+                    return null;
+                }
+
+                return new Segment( file, sequence, size, readPosition, writePosition, lastAppendTime );
+            }
+            finally
+            {
+                segmentFile.close();
+            }
+        }
+        catch ( NumberFormatException e )
+        {
+            return null;
+        }
+        catch ( IOException ex )
+        {
+            m_log.e( TAG, "Unable to read outbox segment: " + file, ex );
+            return null;
+        }
+    }
+
+
+    private Segment createSegment( PeerQueue queue, int size, long now ) throws IOException
+    {
+        if ( !queue.m_directory.isDirectory() && !queue.m_directory.mkdirs() )
+        {
+            throw new IOException( "Unable to create outbox directory: " + queue.m_directory );
+        }
+
+        long sequence = m_nextSequence++;
+        File file = new File( queue.m_directory, String.format( "%016x", sequence ) + SEGMENT_SUFFIX );
+        Segment segment = new Segment( file, sequence, size, SEGMENT_HEADER_SIZE, SEGMENT_HEADER_SIZE, now );
+        MappedByteBuffer buffer = map( segment );
+
+        buffer.putInt( 0, SEGMENT_MAGIC );
+        buffer.putInt( WRITE_POSITION_OFFSET, segment.m_writePosition );
+        buffer.putInt( READ_POSITION_OFFSET, segment.m_readPosition );
+        buffer.putLong( CREATED_TIME_OFFSET, now );
+        buffer.putLong( LAST_APPEND_TIME_OFFSET, now );
+
+        queue.m_segments.add( segment );
+        m_byteCount += size;
+
+        return segment;
+    }
+
+
+    // Mapping a new segment makes the file its full size.
+    private MappedByteBuffer map( Segment segment ) throws IOException
+    {
+        if ( segment.m_buffer == null )
+        {
+            RandomAccessFile segmentFile = new RandomAccessFile( segment.m_file, "rw" );
+
+            try
+            {
+                // The mapping stays valid once the file is closed.
+                segment.m_buffer = segmentFile.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, segment.m_size );
+            }
+            finally
+            {
+                segmentFile.close();
+            }
+        }
+
+        return segment.m_buffer;
+    }
+
+
+    private static int getRecordLength( Segment segment, ByteBuffer buffer ) throws IOException
+    {
+        int length = buffer.getInt( segment.m_readPosition );
+
+        if ( length < 0 || segment.m_writePosition - segment.m_readPosition - RECORD_HEADER_SIZE < length )
+        {
+            throw new IOException( "Bad kept frame length " + length + " at " + segment.m_readPosition );
+        }
+
+        return length;
+    }
+
+
+    private static void setReadPosition( Segment segment, ByteBuffer buffer, int readPosition )
+    {
+        segment.m_readPosition = readPosition;
+        buffer.putInt( READ_POSITION_OFFSET, readPosition );
+    }
+
+
+    // The queue for the peer, made if asked for, null if there's none or it can't be kept for.
+    private PeerQueue getQueue( String remoteInstanceId, boolean create )
+    {
+        if ( m_closed )
+        {
+            return null;
+        }
+
+        if ( remoteInstanceId != null && remoteInstanceId.getBytes( CommsFrame.TEXT_CHARSET ).length > MAX_INSTANCE_ID_BYTES )
+        {
+            return null;
+        }
+
+        String name = ( remoteInstanceId == null ) ? BROADCAST_DIRECTORY : toFileName( remoteInstanceId );
+        PeerQueue queue = m_queues.get( name );
+
+        if ( queue == null && create )
+        {
+            queue = new PeerQueue( new File( m_directory, name ) );
+            m_queues.put( name, queue );
+        }
+
+        return queue;
+    }
+
+
+    // Drop segments with nothing new enough to send, then the oldest until we're within
+    // the size limit. The segment just written to is kept whatever.
+    private void evict( long now, Segment keepSegment )
+    {
+        long oldestTime = now - m_maxAgeMs;
+
+        for ( PeerQueue queue : new ArrayList<PeerQueue>( m_queues.values() ) )
+        {
+            for ( Segment segment : new ArrayList<Segment>( queue.m_segments ) )
+            {
+                if ( segment != keepSegment && segment.m_lastAppendTime < oldestTime )
+                {
+                    removeSegment( queue, segment );
+                }
+            }
+
+            removeIfEmpty( queue );
+        }
+
+        while ( m_byteCount > m_maxBytes )
+        {
+            PeerQueue oldestQueue = null;
+
+            for ( PeerQueue queue : m_queues.values() )
+            {
+                Segment segment = queue.m_segments.peekFirst();
+
+                if ( segment != null && segment != keepSegment
+                                && ( oldestQueue == null || segment.m_sequence < oldestQueue.m_segments.peekFirst().m_sequence ) )
+                {
+                    oldestQueue = queue;
+                }
+            }
+
+            if ( oldestQueue == null )
+            {
+                break;
+            }
+
+            m_log.w( TAG, "Outbox full, dropping: " + oldestQueue.m_segments.peekFirst().m_file );
+
+            removeSegment( oldestQueue, oldestQueue.m_segments.peekFirst() );
+            removeIfEmpty( oldestQueue );
+        }
+    }
+
+
+    private void removeSegment( PeerQueue queue, Segment segment )
+    {
+        if ( queue.m_segments.remove( segment ) )
+        {
+            m_byteCount -= segment.m_size;
+        }
+
+        segment.m_buffer = null;
+        deleteFile( segment.m_file );
+    }
+
+
+    private void removeIfEmpty( PeerQueue queue )
+    {
+        if ( !queue.m_segments.isEmpty() )
+        {
+            return;
+        }
+
+        // Keyed by its directory's name.
+        m_queues.remove( queue.m_directory.getName() );
+        deleteFile( queue.m_directory );
+    }
+
+
+    private void deleteFile( File file )
+    {
+        if ( file.exists() && !file.delete() )
+        {
+            m_log.w( TAG, "Unable to delete: " + file );
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+// The set of peers keyed by host address. Lookups, iteration and the
+// connected count never lock: iteration uses a snapshot array that is
+// replaced whenever the set changes. Changes are rare and serialised on a
+// private lock, never on the owning service.
+// Each registered peer is given a small integer id, reused once free,
+// so ids stay dense enough to index arrays.
+public class CommsPeerRegistry<T extends CommsPeerRegistry.Peer>
+{
+    // What the registry needs from a peer.
+    public interface Peer
+    {
+        public int getPeerId();
+
+        public void setPeerId( int peerId );
+    }
+
+    // Member variables:
+    private final ConcurrentHashMap<String, T> m_peers          = new ConcurrentHashMap<String, T>();
+    private final Object                       m_writeLock      = new Object();
+    private final BitSet                       m_usedPeerIds    = new BitSet();
+    private final AtomicInteger                m_connectedCount = new AtomicInteger();
+    private final T[]                          m_emptySnapshot;
+    private volatile T[]                       m_snapshot;
+    private volatile T[]                       m_peersById;
+
+
+    // The empty array gives the type of the snapshot arrays.
+    public CommsPeerRegistry( T[] emptySnapshot )
+    {
+        m_emptySnapshot = emptySnapshot;
+        m_snapshot = emptySnapshot;
+        m_peersById = emptySnapshot;
+    }
+
+
+    public T get( String key )
+    {
+        return m_peers.get( key );
+    }
+
+
+    public T get( int peerId )
+    {
+        T[] peersById = m_peersById;
+
+        return ( peerId >= 0 && peerId < peersById.length ) ? peersById[peerId] : null;
+    }
+
+
+    // Add the peer unless one is already registered for the key, which is returned.
+    public T putIfAbsent( String key, T peer )
+    {
+        synchronized ( m_writeLock )
+        {
+            T existing = m_peers.putIfAbsent( key, peer );
+
+            if ( existing == null )
+            {
+                allocatePeerId( peer );
+                updateSnapshots();
+            }
+
+            return existing;
+        }
+    }
+
+
+    // Replace the peer for the key only if it is still the old peer.
+    public boolean replace( String key, T oldPeer, T newPeer )
+    {
+        synchronized ( m_writeLock )
+        {
+            boolean replaced = m_peers.replace( key, oldPeer, newPeer );
+
+            if ( replaced )
+            {
+                releasePeerId( oldPeer );
+                allocatePeerId( newPeer );
+                updateSnapshots();
+            }
+
+            return replaced;
+        }
+    }
+
+
+    // Remove the peer for the key only if it is still this peer.
+    public boolean remove( String key, T peer )
+    {
+        synchronized ( m_writeLock )
+        {
+            boolean removed = m_peers.remove( key, peer );
+
+            if ( removed )
+            {
+                releasePeerId( peer );
+                updateSnapshots();
+            }
+
+            return removed;
+        }
+    }
+
+
+    public T remove( String key )
+    {
+        synchronized ( m_writeLock )
+        {
+            T removed = m_peers.remove( key );
+
+            if ( removed != null )
+            {
+                releasePeerId( removed );
+                updateSnapshots();
+            }
+
+            return removed;
+        }
+    }
+
+
+    // The peers at the time of the last change. Do not modify.
+    public T[] snapshot()
+    {
+        return m_snapshot;
+    }
+
+
+    public int size()
+    {
+        return m_snapshot.length;
+    }
+
+
+    // Peers report their own transitions between connected and not.
+    public void onPeerConnected( boolean connected )
+    {
+        if ( connected )
+        {
+            m_connectedCount.incrementAndGet();
+        }
+        else
+        {
+            m_connectedCount.decrementAndGet();
+        }
+    }
+
+
+    public int getConnectedCount()
+    {
+        return m_connectedCount.get();
+    }
+
+
+    private void allocatePeerId( T peer )
+    {
+        int peerId = m_usedPeerIds.nextClearBit( 0 );
+
+        m_usedPeerIds.set( peerId );
+        peer.setPeerId( peerId );
+    }
+
+
+    private void releasePeerId( T peer )
+    {
+        m_usedPeerIds.clear( peer.getPeerId() );
+    }
+
+
+    private void updateSnapshots()
+    {
+        T[] snapshot = m_peers.values().toArray( m_emptySnapshot );
+        T[] peersById = Arrays.copyOf( m_emptySnapshot, m_usedPeerIds.length() );
+
+        for ( T peer : snapshot )
+        {
+            peersById[peer.getPeerId()] = peer;
+        }
+
+        m_snapshot = snapshot;
+        m_peersById = peersById;
+    }
+}
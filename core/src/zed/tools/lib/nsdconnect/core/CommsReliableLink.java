@@ -0,0 +1,254 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+
+// What the engine's reliable delivery remembers about one peer across its
+// connections, the peer's session. Frames sent to the peer are numbered and
+// kept until the peer acknowledges them, so those written just before a
+// connection dies are sent again on the next one, and numbers already
+// received are dropped as duplicates. Acknowledgements are cumulative, the
+// last number received, and ride on the data going the other way, or in an
+// ACK frame if there's none.
+//
+// A session is kept by the peer's instance id, whatever its address, see
+// CommsEngine. The peer's session token, from its HELLO, is new each time it
+// starts, so a restarted peer's numbers aren't taken for duplicates.
+//
+// On the wire a reliable frame has FLAG_RELIABLE set and its payload starts
+// with varints of its number and the acknowledgement. Numbers wrap, 0 is
+// never used so it can mean nothing received.
+public class CommsReliableLink
+{
+    // Constants:
+    public static final int         DEFAULT_REPLAY_CAPACITY = 1024;
+    // Frames received before an ACK is sent without waiting for other traffic.
+    public static final int         ACK_EVERY               = 32;
+    // Frames in a connection's send queue at once, leaving room for the rest.
+    public static final int         MAX_QUEUED              = CommsSendQueue.DEFAULT_CAPACITY / 2;
+
+    // Member variables:
+    private final int               m_replayCapacity;
+    // Sent and not yet acknowledged, the oldest first.
+    private final ArrayDeque<Entry> m_replay                = new ArrayDeque<Entry>();
+    private int                     m_nextSequence;
+    private int                     m_lastReceived          = 0;
+    // Received since we last acknowledged.
+    private int                     m_unacknowledged        = 0;
+    // Whose session this is, null until the peer's HELLO has said.
+    private String                  m_remoteInstanceId      = null;
+    private String                  m_remoteSessionToken    = null;
+
+
+    // A numbered frame kept for sending again.
+    static class Entry
+    {
+        final int        m_sequence;
+        final CommsFrame m_frame;
+        // Whether it has been written to a connection, so sending it again is a retransmit.
+        boolean          m_written = false;
+
+
+        Entry( int sequence, CommsFrame frame )
+        {
+            m_sequence = sequence;
+            m_frame = frame;
+        }
+    }
+
+
+    public CommsReliableLink()
+    {
+        this( DEFAULT_REPLAY_CAPACITY );
+    }
+
+
+    public CommsReliableLink( int replayCapacity )
+    {
+        this( replayCapacity, 1 );
+    }
+
+
+    // Numbered from the given number, so the tests can wrap without sending 2^32 frames.
+    CommsReliableLink( int replayCapacity, int firstSequence )
+    {
+        m_replayCapacity = replayCapacity;
+        m_nextSequence = firstSequence;
+    }
+
+
+    // The number of frames waiting to be acknowledged.
+    public synchronized int getReplaySize()
+    {
+        return m_replay.size();
+    }
+
+
+    public synchronized int getLastReceived()
+    {
+        return m_lastReceived;
+    }
+
+
+    // Number a frame and keep it, null if the replay buffer is full.
+    synchronized Entry add( CommsFrame frame )
+    {
+        if ( m_replay.size() >= m_replayCapacity )
+        {
+            return null;
+        }
+
+        Entry entry = new Entry( m_nextSequence, frame );
+
+        m_nextSequence = ( m_nextSequence == -1 ) ? 1 : m_nextSequence + 1;
+        m_replay.add( entry );
+
+        return entry;
+    }
+
+
+    // What's not yet acknowledged after the number, all of it for 0.
+    synchronized List<Entry> getAfter( int sequence )
+    {
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+
+        for ( Entry entry : m_replay )
+        {
+            if ( sequence == 0 || isAfter( entry.m_sequence, sequence ) )
+            {
+                entries.add( entry );
+            }
+        }
+
+        return entries;
+    }
+
+
+    // Forget everything waiting, when the peer can't take reliable frames.
+    synchronized List<Entry> takeUnacknowledged()
+    {
+        List<Entry> entries = new ArrayList<Entry>( m_replay );
+
+        m_replay.clear();
+
+        return entries;
+    }
+
+
+    synchronized void onAcknowledged( int acknowledgement )
+    {
+        if ( acknowledgement == 0 )
+        {
+            return;
+        }
+
+        Entry entry;
+
+        while ( ( entry = m_replay.peek() ) != null && !isAfter( entry.m_sequence, acknowledgement ) )
+        {
+            m_replay.poll();
+        }
+    }
+
+
+    // Whether the frame is new, a number we've had already is a duplicate.
+    synchronized boolean onReceived( int sequence )
+    {
+        if ( m_lastReceived != 0 && !isAfter( sequence, m_lastReceived ) )
+        {
+            return false;
+        }
+
+        m_lastReceived = sequence;
+        m_unacknowledged++;
+
+        return true;
+    }
+
+
+    // Whether at least the number of frames have been received without acknowledging them.
+    synchronized boolean isAcknowledgementDue( int count )
+    {
+        return ( m_unacknowledged > 0 && m_unacknowledged >= count );
+    }
+
+
+    // The acknowledgement to send, now counted as sent.
+    synchronized int takeAcknowledgement()
+    {
+        m_unacknowledged = 0;
+
+        return m_lastReceived;
+    }
+
+
+    synchronized String getRemoteInstanceId()
+    {
+        return m_remoteInstanceId;
+    }
+
+
+    synchronized void setRemoteInstanceId( String remoteInstanceId )
+    {
+        m_remoteInstanceId = remoteInstanceId;
+    }
+
+
+    // A peer with a new session token has restarted and started numbering again, so
+    // what we've received from it before counts for nothing. Null is a peer without one.
+    synchronized void setRemoteSessionToken( String remoteSessionToken )
+    {
+        if ( remoteSessionToken == null )
+        {
+            return;
+        }
+
+        if ( m_remoteSessionToken != null && !m_remoteSessionToken.equals( remoteSessionToken ) )
+        {
+            m_lastReceived = 0;
+            m_unacknowledged = 0;
+        }
+
+        m_remoteSessionToken = remoteSessionToken;
+    }
+
+
+    // Encode a numbered frame, carrying our acknowledgement, ready to be written.
+    static ByteBuffer encode( Entry entry, int acknowledgement )
+    {
+        CommsFrame frame = entry.m_frame;
+        byte[] payload = frame.getPayload();
+        int length = CommsFrame.HEADER_SIZE + CommsFrame.varintSize( entry.m_sequence ) + CommsFrame.varintSize( acknowledgement ) + payload.length;
+        ByteBuffer buffer = ByteBuffer.allocate( CommsFrame.varintSize( length ) + length );
+
+        CommsFrame.putVarint( buffer, length );
+        buffer.put( (byte) frame.getType() );
+        buffer.put( (byte) ( frame.getFlags() | CommsFrame.FLAG_RELIABLE ) );
+        CommsFrame.putVarint( buffer, entry.m_sequence );
+        CommsFrame.putVarint( buffer, acknowledgement );
+        buffer.put( payload );
+        buffer.flip();
+
+        return buffer;
+    }
+
+
+    static ByteBuffer encodeAcknowledgement( int acknowledgement )
+    {
+        ByteBuffer payload = ByteBuffer.allocate( CommsFrame.varintSize( acknowledgement ) );
+
+        CommsFrame.putVarint( payload, acknowledgement );
+
+        return new CommsFrame( CommsFrame.TYPE_ACK, CommsFrame.FLAG_NONE, payload.array() ).encode();
+    }
+
+
+    // Whether sequence a comes after b, allowing for wrapping.
+    private static boolean isAfter( int a, int b )
+    {
+        return ( a - b > 0 );
+    }
+}
@@ -0,0 +1,310 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+
+// Queues services to be resolved by the discovery backend and runs a limited
+// number at once, since the NsdManager fails any resolve made while another
+// is active. Failed
+// resolves are retried with an increasing, jittered delay. A service that is
+// already queued or being resolved is not queued again. All the work is done
+// on the given looper's thread, and timed by its clock.
+public class CommsResolveScheduler
+{
+    // Constants:
+    private static final String                    TAG                    = CommsResolveScheduler.class.getSimpleName();
+    private static final int                       MAX_ATTEMPTS           = 6;
+    private static final long                      RETRY_BASE_MS          = 250;
+    private static final long                      RETRY_MAX_MS           = 8 * 1000;
+    // The NsdManager doesn't always call back, so give up on a resolve after this.
+    private static final long                      RESOLVE_TIMEOUT_MS     = 15 * 1000;
+
+    // Member variables:
+    private final DiscoveryBackend                 m_discoveryBackend;
+    private final ResolveHandler                   m_resolveHandler;
+    private final int                              m_maxConcurrent;
+    private final CommsLooper                      m_looper;
+    private final CommsLog                         m_log;
+    private final Random                           m_random               = new Random();
+    // Keyed by service name, in the order they were queued.
+    private final LinkedHashMap<String, Candidate> m_pending              = new LinkedHashMap<String, Candidate>();
+    private final HashMap<String, Candidate>       m_active               = new HashMap<String, Candidate>();
+    private boolean                                m_runScheduled         = false;
+
+
+    // Receives the outcome of each resolve on the looper's thread.
+    public interface ResolveHandler
+    {
+        public void onResolved( CommsServiceInfo serviceInfo );
+
+        // Called once a service has failed every attempt.
+        public void onResolveAbandoned( CommsServiceInfo serviceInfo, int errorCode );
+    }
+
+    // A service waiting to be resolved, or being resolved.
+    private class Candidate
+    {
+        CommsServiceInfo                 m_serviceInfo;
+        int                              m_attempts  = 0;
+        long                             m_notBefore = 0;
+        // Only the listener of the current attempt is listened to.
+        DiscoveryBackend.ResolveListener m_listener  = null;
+
+
+        Candidate( CommsServiceInfo serviceInfo )
+        {
+            m_serviceInfo = serviceInfo;
+        }
+    }
+
+
+    // As many at once as the backend allows.
+    public CommsResolveScheduler( DiscoveryBackend discoveryBackend, CommsLooper looper, ResolveHandler resolveHandler, CommsLog log )
+    {
+        this( discoveryBackend, looper, resolveHandler, discoveryBackend.getMaxConcurrentResolves(), log );
+    }
+
+
+    public CommsResolveScheduler( DiscoveryBackend discoveryBackend, CommsLooper looper, ResolveHandler resolveHandler, int maxConcurrent, CommsLog log )
+    {
+        m_discoveryBackend = discoveryBackend;
+        m_resolveHandler = resolveHandler;
+        m_maxConcurrent = Math.max( 1, maxConcurrent );
+        m_looper = looper;
+        m_log = log;
+    }
+
+
+    // Queue a service to be resolved, unless it already is.
+    public void schedule( final CommsServiceInfo serviceInfo )
+    {
+        m_looper.post( new Runnable()
+        {
+            public void run()
+            {
+                String serviceName = serviceInfo.getServiceName();
+                Candidate candidate = m_pending.get( serviceName );
+
+                if ( m_active.containsKey( serviceName ) )
+                {
+                    m_log.d( TAG, "Already resolving: " + serviceName );
+                }
+                else if ( candidate != null )
+                {
+                    // Keep its place and retry count, but resolve the latest we've heard of.
+                    candidate.m_serviceInfo = serviceInfo;
+                }
+                else
+                {
+                    m_pending.put( serviceName, new Candidate( serviceInfo ) );
+                }
+
+                runNext();
+            }
+        } );
+    }
+
+
+    // Seeds the jitter added to retries, so a simulated run can be repeated.
+    public void setSeed( long seed )
+    {
+        m_random.setSeed( seed );
+    }
+
+
+    // Forget a queued service, a resolve already made will still complete.
+    public void cancel( final String serviceName )
+    {
+        m_looper.post( new Runnable()
+        {
+            public void run()
+            {
+                m_pending.remove( serviceName );
+            }
+        } );
+    }
+
+
+    public void clear()
+    {
+        m_looper.post( new Runnable()
+        {
+            public void run()
+            {
+                m_pending.clear();
+                m_active.clear();
+            }
+        } );
+    }
+
+
+    // Start as many resolves as allowed whose retry delay has passed.
+    private void runNext()
+    {
+        long now = m_looper.now();
+        long nextDue = Long.MAX_VALUE;
+        Iterator<Candidate> candidates = m_pending.values().iterator();
+
+        while ( m_active.size() < m_maxConcurrent && candidates.hasNext() )
+        {
+            Candidate candidate = candidates.next();
+
+            if ( candidate.m_notBefore > now )
+            {
+                nextDue = Math.min( nextDue, candidate.m_notBefore );
+                continue;
+            }
+
+            candidates.remove();
+            resolve( candidate );
+        }
+
+        if ( nextDue != Long.MAX_VALUE && !m_runScheduled )
+        {
+            m_runScheduled = true;
+            m_looper.postDelayed( new Runnable()
+            {
+                public void run()
+                {
+                    m_runScheduled = false;
+                    runNext();
+                }
+            }, nextDue - now );
+        }
+    }
+
+
+    private void resolve( final Candidate candidate )
+    {
+        final String serviceName = candidate.m_serviceInfo.getServiceName();
+
+        candidate.m_attempts++;
+        candidate.m_listener = createResolveListener( candidate );
+        m_active.put( serviceName, candidate );
+
+        m_log.i( TAG, "Resolving service on remote machine, attempt " + candidate.m_attempts + ": " + candidate.m_serviceInfo );
+
+        try
+        {
+            m_discoveryBackend.resolveService( candidate.m_serviceInfo, candidate.m_listener );
+        }
+        catch ( Exception ex )
+        {
+            m_log.e( TAG, "Error starting resolve: ", ex );
+
+            onFailed( candidate, candidate.m_listener, DiscoveryBackend.FAILURE_INTERNAL_ERROR );
+            return;
+        }
+
+        final DiscoveryBackend.ResolveListener listener = candidate.m_listener;
+
+        m_looper.postDelayed( new Runnable()
+        {
+            public void run()
+            {
+                if ( candidate.m_listener == listener && m_active.get( serviceName ) == candidate )
+                {
+                    m_log.w( TAG, "Resolve timed out: " + serviceName );
+
+                    onFailed( candidate, listener, DiscoveryBackend.FAILURE_INTERNAL_ERROR );
+                }
+            }
+        }, RESOLVE_TIMEOUT_MS );
+    }
+
+
+    private void onResolved( Candidate candidate, DiscoveryBackend.ResolveListener listener, CommsServiceInfo serviceInfo )
+    {
+        String serviceName = candidate.m_serviceInfo.getServiceName();
+
+        if ( candidate.m_listener != listener || m_active.get( serviceName ) != candidate )
+        {
+            // A late answer to an attempt that has timed out or been cleared.
+            return;
+        }
+
+        m_active.remove( serviceName );
+        candidate.m_listener = null;
+        m_resolveHandler.onResolved( serviceInfo );
+        runNext();
+    }
+
+
+    private void onFailed( Candidate candidate, DiscoveryBackend.ResolveListener listener, int errorCode )
+    {
+        String serviceName = candidate.m_serviceInfo.getServiceName();
+
+        if ( candidate.m_listener != listener || m_active.get( serviceName ) != candidate )
+        {
+            return;
+        }
+
+        m_active.remove( serviceName );
+        candidate.m_listener = null;
+
+        if ( candidate.m_attempts >= MAX_ATTEMPTS )
+        {
+            m_log.e( TAG, "Resolve of " + serviceName + " failed " + candidate.m_attempts + " times, giving up: " + errorCode );
+
+            m_resolveHandler.onResolveAbandoned( candidate.m_serviceInfo, errorCode );
+        }
+        else if ( !m_pending.containsKey( serviceName ) )
+        {
+            candidate.m_notBefore = m_looper.now() + getRetryDelay( candidate.m_attempts );
+            m_pending.put( serviceName, candidate );
+
+            m_log.d( TAG, "Resolve of " + serviceName + " failed with " + errorCode + ", retrying." );
+        }
+
+        runNext();
+    }
+
+
+    // Doubles with each attempt, with up to half as much again at random so peers spread out.
+    private long getRetryDelay( int attempts )
+    {
+        long delay = Math.min( RETRY_MAX_MS, RETRY_BASE_MS << Math.min( attempts - 1, 16 ) );
+
+        return delay + (long) ( m_random.nextDouble() * delay / 2 );
+    }
+
+
+    // The callbacks come on the backend's thread, so are passed to the looper's thread.
+    private DiscoveryBackend.ResolveListener createResolveListener( final Candidate candidate )
+    {
+        return new DiscoveryBackend.ResolveListener()
+        {
+            // @Override
+            public void onResolveFailed( CommsServiceInfo serviceInfo, final int errorCode )
+            {
+                final DiscoveryBackend.ResolveListener listener = this;
+
+                m_looper.post( new Runnable()
+                {
+                    public void run()
+                    {
+                        onFailed( candidate, listener, errorCode );
+                    }
+                } );
+            }
+
+
+            // @Override
+            public void onServiceResolved( final CommsServiceInfo serviceInfo )
+            {
+                final DiscoveryBackend.ResolveListener listener = this;
+
+                m_looper.post( new Runnable()
+                {
+                    public void run()
+                    {
+                        onResolved( candidate, listener, serviceInfo );
+                    }
+                } );
+            }
+        };
+    }
+}
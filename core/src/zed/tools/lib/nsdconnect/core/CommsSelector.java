@@ -0,0 +1,643 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+// A single I/O thread that serves the server accept and every peer connection
+// through a java.nio Selector, instead of one blocking thread per peer.
+// All callbacks are made on the selector thread and must not block.
+public class CommsSelector implements CommsTransport
+{
+    // Constants:
+    private static final String TAG                  = CommsSelector.class.getSimpleName();
+    public static final String  SELECTOR_THREAD_NAME = TAG + ":SelectorThread";
+    private static final int    READ_BUFFER_SIZE     = 16 * 1024;
+    private static final int    MAX_GATHER_BUFFERS   = 64;
+
+    // Member variables:
+    private final CommsLog                            m_log;
+    private Selector                                  m_selector       = null;
+    private Thread                                    m_selectorThread = null;
+    private final ConcurrentLinkedQueue<Runnable>     m_pendingTasks   = new ConcurrentLinkedQueue<Runnable>();
+    // Channels that have gone from nothing to write to something, to have OP_WRITE set.
+    private final ConcurrentLinkedQueue<SelectionKey> m_pendingWrites  = new ConcurrentLinkedQueue<SelectionKey>();
+    // Set once a wakeup has been asked for, cleared before each select, so one call to
+    // wakeup() serves everything queued in between.
+    private final AtomicBoolean                       m_wakeupPending  = new AtomicBoolean( false );
+    private final ByteBuffer                          m_readBuffer     = ByteBuffer.allocateDirect( READ_BUFFER_SIZE );
+
+
+    // A peer connection's socket channel.
+    private static class ChannelConnection implements Connection
+    {
+        final SocketChannel m_channel;
+
+
+        ChannelConnection( SocketChannel channel )
+        {
+            m_channel = channel;
+        }
+
+
+        // @Override
+        public InetAddress getInetAddress()
+        {
+            return m_channel.socket().getInetAddress();
+        }
+
+
+        // @Override
+        public int getPort()
+        {
+            return m_channel.socket().getPort();
+        }
+
+
+        // @Override
+        public void close() throws IOException
+        {
+            m_channel.close();
+        }
+    }
+
+    // A listening server socket channel.
+    private static class ChannelServer implements Server
+    {
+        final ServerSocketChannel m_serverChannel;
+
+
+        ChannelServer( ServerSocketChannel serverChannel )
+        {
+            m_serverChannel = serverChannel;
+        }
+
+
+        // @Override
+        public int getLocalPort()
+        {
+            return m_serverChannel.socket().getLocalPort();
+        }
+
+
+        // @Override
+        public void close() throws IOException
+        {
+            m_serverChannel.close();
+        }
+    }
+
+    // What the selector keeps for each registered peer channel.
+    private static class ChannelState
+    {
+        final ChannelConnection     m_connection;
+        final Endpoint              m_endpoint;
+        final CommsSendQueue        m_sendQueue    = new CommsSendQueue();
+        // Frames taken from the send queue that are not yet fully written.
+        final ArrayList<ByteBuffer> m_writing      = new ArrayList<ByteBuffer>();
+        // Set from the first write queued until the selector has written everything, so
+        // only that write asks for OP_WRITE.
+        final AtomicBoolean         m_writePending = new AtomicBoolean( false );
+
+
+        ChannelState( ChannelConnection connection, Endpoint endpoint )
+        {
+            m_connection = connection;
+            m_endpoint = endpoint;
+        }
+    }
+
+
+    public CommsSelector( CommsLog log )
+    {
+        m_log = log;
+    }
+
+
+    public synchronized void start() throws IOException
+    {
+        if ( m_selectorThread != null )
+        {
+            return;
+        }
+
+        m_selector = Selector.open();
+        m_selectorThread = new Thread( new SelectorThread(), SELECTOR_THREAD_NAME );
+        m_selectorThread.start();
+    }
+
+
+    public synchronized void tearDown()
+    {
+        m_log.d( TAG, "Tearing down " + TAG + "." );
+
+        if ( m_selectorThread != null )
+        {
+            m_selectorThread.interrupt();
+            m_selectorThread = null;
+        }
+
+        if ( m_selector != null )
+        {
+            for ( SelectionKey key : m_selector.keys() )
+            {
+                closeQuietly( key );
+            }
+
+            try
+            {
+                m_selector.close();
+            }
+            catch ( IOException ex )
+            {
+                m_log.e( TAG, "Error when closing selector: " + ex.toString() );
+            }
+        }
+
+        m_pendingTasks.clear();
+        m_pendingWrites.clear();
+        m_selector = null;
+    }
+
+
+    public boolean isRunning()
+    {
+        return m_selectorThread != null;
+    }
+
+
+    // Bind a server channel and start accepting connections on it.
+    // @Override
+    public Server listen( InetSocketAddress address, final Acceptor acceptor ) throws IOException
+    {
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+
+        try
+        {
+            serverChannel.socket().bind( address );
+            serverChannel.configureBlocking( false );
+        }
+        catch ( IOException e )
+        {
+            closeChannel( serverChannel );
+            throw e;
+        }
+
+        runOnSelectorThread( new Runnable()
+        {
+            public void run()
+            {
+                register( serverChannel, SelectionKey.OP_ACCEPT, acceptor );
+            }
+        } );
+
+        return new ChannelServer( serverChannel );
+    }
+
+
+    // @Override
+    public Connection open( InetAddress localAddress ) throws IOException
+    {
+        SocketChannel channel = SocketChannel.open();
+
+        if ( localAddress != null )
+        {
+            try
+            {
+                channel.socket().bind( new InetSocketAddress( localAddress, 0 ) );
+            }
+            catch ( IOException e )
+            {
+                closeChannel( channel );
+                throw e;
+            }
+        }
+
+        return new ChannelConnection( channel );
+    }
+
+
+    // Start a non-blocking connect to a peer, the endpoint is told the outcome.
+    // @Override
+    public void connect( Connection connection, final InetSocketAddress address, final Endpoint endpoint ) throws IOException
+    {
+        final ChannelConnection channelConnection = (ChannelConnection) connection;
+        final SocketChannel channel = channelConnection.m_channel;
+
+        channel.configureBlocking( false );
+
+        runOnSelectorThread( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    if ( channel.connect( address ) )
+                    {
+                        if ( register( channel, SelectionKey.OP_READ, new ChannelState( channelConnection, endpoint ) ) )
+                        {
+                            endpoint.onConnect( channelConnection, true );
+                        }
+                    }
+                    else
+                    {
+                        register( channel, SelectionKey.OP_CONNECT, new ChannelState( channelConnection, endpoint ) );
+                    }
+                }
+                catch ( IOException ex )
+                {
+                    m_log.d( TAG, "Connect to " + address + " failed: " + ex.toString() );
+
+                    closeChannel( channel );
+                    endpoint.onConnect( channelConnection, false );
+                }
+            }
+        } );
+    }
+
+
+    // Add an already connected channel, such as one that has been accepted.
+    // The endpoint is told it is connected once the channel is registered.
+    // @Override
+    public void register( Connection connection, final Endpoint endpoint ) throws IOException
+    {
+        final ChannelConnection channelConnection = (ChannelConnection) connection;
+        final SocketChannel channel = channelConnection.m_channel;
+
+        channel.configureBlocking( false );
+
+        runOnSelectorThread( new Runnable()
+        {
+            public void run()
+            {
+                if ( register( channel, SelectionKey.OP_READ, new ChannelState( channelConnection, endpoint ) ) )
+                {
+                    endpoint.onConnect( channelConnection, true );
+                }
+            }
+        } );
+    }
+
+
+    // Queue a buffer to be written to the channel. Never blocks the caller, and only the
+    // first write to an idle channel wakes the selector.
+    // Returns false if the channel is not registered or its send queue is full.
+    // @Override
+    public boolean write( Connection connection, ByteBuffer buffer )
+    {
+        SelectionKey key = getKey( connection );
+
+        if ( key == null || !key.isValid() )
+        {
+            m_log.w( TAG, "Write to unregistered channel dropped." );
+            return false;
+        }
+
+        ChannelState state = (ChannelState) key.attachment();
+
+        if ( !state.m_sendQueue.offer( buffer ) )
+        {
+            m_log.w( TAG, "Send queue full, write dropped." );
+            return false;
+        }
+
+        if ( state.m_writePending.compareAndSet( false, true ) )
+        {
+            m_pendingWrites.add( key );
+            wakeup( key.selector() );
+        }
+
+        return true;
+    }
+
+
+    // The number of buffers waiting in the channel's send queue.
+    // @Override
+    public int getSendQueueSize( Connection connection )
+    {
+        SelectionKey key = getKey( connection );
+        Object attachment = ( key == null ) ? null : key.attachment();
+
+        return ( attachment instanceof ChannelState ) ? ( (ChannelState) attachment ).m_sendQueue.size() : 0;
+    }
+
+
+    private SelectionKey getKey( Connection connection )
+    {
+        Selector selector = m_selector;
+
+        return ( selector == null || connection == null ) ? null : ( (ChannelConnection) connection ).m_channel.keyFor( selector );
+    }
+
+
+    private void runOnSelectorThread( Runnable task )
+    {
+        Selector selector = m_selector;
+
+        if ( selector == null )
+        {
+            m_log.w( TAG, "Selector not started, task dropped." );
+            return;
+        }
+
+        // Registration and interest changes are made on the selector thread,
+        // since they can block against a select() in progress.
+        m_pendingTasks.add( task );
+        wakeup( selector );
+    }
+
+
+    private void wakeup( Selector selector )
+    {
+        if ( m_wakeupPending.compareAndSet( false, true ) )
+        {
+            selector.wakeup();
+        }
+    }
+
+
+    private boolean register( SelectableChannel channel, int ops, Object attachment )
+    {
+        boolean registered = false;
+
+        try
+        {
+            channel.register( m_selector, ops, attachment );
+            registered = true;
+        }
+        catch ( ClosedChannelException ex )
+        {
+            m_log.w( TAG, "Attempt to register a closed channel." );
+
+            if ( attachment instanceof ChannelState )
+            {
+                ( (ChannelState) attachment ).m_endpoint.onClose( ( (ChannelState) attachment ).m_connection );
+            }
+        }
+
+        return registered;
+    }
+
+
+    private void runPendingTasks()
+    {
+        Runnable task;
+
+        while ( ( task = m_pendingTasks.poll() ) != null )
+        {
+            task.run();
+        }
+
+        SelectionKey key;
+
+        while ( ( key = m_pendingWrites.poll() ) != null )
+        {
+            if ( key.isValid() )
+            {
+                key.interestOps( key.interestOps() | SelectionKey.OP_WRITE );
+            }
+        }
+    }
+
+
+    private void handleKey( SelectionKey key ) throws IOException
+    {
+        if ( key.isAcceptable() )
+        {
+            handleAccept( key );
+        }
+        else
+        {
+            if ( key.isConnectable() )
+            {
+                handleConnect( key );
+            }
+
+            if ( key.isValid() && key.isReadable() )
+            {
+                handleRead( key );
+            }
+
+            if ( key.isValid() && key.isWritable() )
+            {
+                handleWrite( key );
+            }
+        }
+    }
+
+
+    private void handleAccept( SelectionKey key ) throws IOException
+    {
+        ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
+        SocketChannel channel = serverChannel.accept();
+
+        if ( channel != null )
+        {
+            ( (Acceptor) key.attachment() ).onAccept( new ChannelConnection( channel ) );
+        }
+    }
+
+
+    private void handleConnect( SelectionKey key )
+    {
+        SocketChannel channel = (SocketChannel) key.channel();
+        ChannelState state = (ChannelState) key.attachment();
+        boolean connected = false;
+
+        try
+        {
+            connected = channel.finishConnect();
+        }
+        catch ( IOException ex )
+        {
+            m_log.d( TAG, "Finish connect failed: " + ex.toString() );
+        }
+
+        if ( connected )
+        {
+            // Keeping OP_WRITE if something was queued while connecting.
+            key.interestOps( ( key.interestOps() & SelectionKey.OP_WRITE ) | SelectionKey.OP_READ );
+            state.m_endpoint.onConnect( state.m_connection, true );
+        }
+        else
+        {
+            key.cancel();
+            closeChannel( channel );
+            state.m_endpoint.onConnect( state.m_connection, false );
+        }
+    }
+
+
+    private void handleRead( SelectionKey key ) throws IOException
+    {
+        SocketChannel channel = (SocketChannel) key.channel();
+        ChannelState state = (ChannelState) key.attachment();
+
+        m_readBuffer.clear();
+
+        int count = channel.read( m_readBuffer );
+
+        if ( count < 0 )
+        {
+            closeKey( key );
+        }
+        else if ( count > 0 )
+        {
+            m_readBuffer.flip();
+            state.m_endpoint.onRead( state.m_connection, m_readBuffer );
+        }
+    }
+
+
+    // Write everything queued with gathering writes, a batch at a time.
+    private void handleWrite( SelectionKey key ) throws IOException
+    {
+        SocketChannel channel = (SocketChannel) key.channel();
+        ChannelState state = (ChannelState) key.attachment();
+        ArrayList<ByteBuffer> writing = state.m_writing;
+
+        while ( !writing.isEmpty() || state.m_sendQueue.drainTo( writing ) > 0 )
+        {
+            int count = Math.min( writing.size(), MAX_GATHER_BUFFERS );
+
+            long startTime = System.nanoTime();
+            long bytes = channel.write( writing.toArray( new ByteBuffer[count] ), 0, count );
+
+            state.m_endpoint.onWrite( state.m_connection, bytes, System.nanoTime() - startTime );
+
+            int written = 0;
+
+            while ( written < count && !writing.get( written ).hasRemaining() )
+            {
+                written++;
+            }
+
+            writing.subList( 0, written ).clear();
+
+            if ( written < count )
+            {
+                // Socket buffer is full, wait to be writable again.
+                return;
+            }
+        }
+
+        key.interestOps( key.interestOps() & ~SelectionKey.OP_WRITE );
+        state.m_writePending.set( false );
+
+        // A write queued after the last drain saw the flag still set and left it to us.
+        if ( !state.m_sendQueue.isEmpty() && state.m_writePending.compareAndSet( false, true ) )
+        {
+            key.interestOps( key.interestOps() | SelectionKey.OP_WRITE );
+        }
+    }
+
+
+    private void closeKey( SelectionKey key )
+    {
+        closeQuietly( key );
+
+        Object attachment = key.attachment();
+
+        if ( attachment instanceof ChannelState )
+        {
+            ( (ChannelState) attachment ).m_endpoint.onClose( ( (ChannelState) attachment ).m_connection );
+        }
+    }
+
+
+    private void closeQuietly( SelectionKey key )
+    {
+        key.cancel();
+        closeChannel( key.channel() );
+    }
+
+
+    private void closeChannel( Channel channel )
+    {
+        try
+        {
+            channel.close();
+        }
+        catch ( IOException ex )
+        {
+            m_log.e( TAG, "Error when closing channel: " + ex.toString() );
+        }
+    }
+
+
+    // The selector thread waits on all registered channels at once.
+    class SelectorThread implements Runnable
+    {
+        // @Override
+        public void run()
+        {
+            Selector selector = m_selector;
+
+            m_log.d( TAG, "Selector thread started." );
+
+            while ( !Thread.currentThread().isInterrupted() && selector.isOpen() )
+            {
+                try
+                {
+                    // Anything queued from here on asks for a wakeup of its own.
+                    m_wakeupPending.set( false );
+                    runPendingTasks();
+                    selector.select();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                    while ( keys.hasNext() )
+                    {
+                        SelectionKey key = keys.next();
+
+                        keys.remove();
+
+                        if ( !key.isValid() )
+                        {
+                            continue;
+                        }
+
+                        try
+                        {
+                            handleKey( key );
+                        }
+                        catch ( IOException ex )
+                        {
+                            m_log.d( TAG, "Channel io error: " + ex.toString() );
+
+                            closeKey( key );
+                        }
+                    }
+                }
+                catch ( IOException ex )
+                {
+                    m_log.e( TAG, "Selector io error: ", ex );
+                }
+                catch ( ClosedSelectorException ex )
+                {
+                    break;
+                }
+                catch ( Exception ex )
+                {
+                    m_log.e( TAG, "Selector miscellaneous exception error: ", ex );
+                }
+            }
+
+            m_log.d( TAG, "Selector thread stopped." );
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+
+// A bounded queue of encoded frames waiting to be written to one peer.
+// Senders never block, a full queue refuses the frame instead. The writer
+// takes everything queued at once, so it can be written with a single
+// write and flush.
+public class CommsSendQueue
+{
+    // Constants:
+    public static final int                   DEFAULT_CAPACITY = 256;
+
+    // Member variables:
+    private final ArrayBlockingQueue<ByteBuffer> m_queue;
+
+
+    public CommsSendQueue()
+    {
+        this( DEFAULT_CAPACITY );
+    }
+
+
+    public CommsSendQueue( int capacity )
+    {
+        m_queue = new ArrayBlockingQueue<ByteBuffer>( capacity );
+    }
+
+
+    // Returns false if the queue is full and the frame was not queued.
+    public boolean offer( ByteBuffer frame )
+    {
+        return m_queue.offer( frame );
+    }
+
+
+    // Wait for at least one frame, then take every frame queued so far.
+    public int takeBatch( List<ByteBuffer> batch ) throws InterruptedException
+    {
+        batch.add( m_queue.take() );
+
+        return 1 + m_queue.drainTo( batch );
+    }
+
+
+    // Take every frame queued so far without waiting.
+    public int drainTo( List<ByteBuffer> batch )
+    {
+        return m_queue.drainTo( batch );
+    }
+
+
+    public int size()
+    {
+        return m_queue.size();
+    }
+
+
+    public boolean isEmpty()
+    {
+        return m_queue.isEmpty();
+    }
+
+
+    public void clear()
+    {
+        m_queue.clear();
+    }
+}
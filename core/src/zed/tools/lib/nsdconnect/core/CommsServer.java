@@ -0,0 +1,214 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+
+// This is our local server to accept incoming connections from our peers.
+class CommsServer
+{
+    private static final String SERVER_TAG         = CommsServer.class.getSimpleName();
+    public static final String  SERVER_THREAD_NAME = SERVER_TAG + ":ServerThread";
+
+    private final CommsEngine   m_commsEngine;
+    private final CommsLog      m_log;
+    ServerSocket                m_serverSocket     = null;
+    CommsTransport.Server       m_transportServer  = null;
+    Thread                      m_serverThread     = null;
+
+
+    public CommsServer( CommsEngine commsEngine )
+    {
+        m_commsEngine = commsEngine;
+        m_log = commsEngine.getLog();
+
+        CommsTransport transport = m_commsEngine.getTransportInUse();
+
+        if ( transport != null )
+        {
+            openTransportServer( transport );
+        }
+        else
+        {
+            m_serverThread = new Thread( new ServerThread(), SERVER_THREAD_NAME );
+            m_serverThread.start();
+        }
+    }
+
+
+    public void tearDown()
+    {
+        m_log.d( SERVER_TAG, "Tearing down " + SERVER_TAG + " on port " + m_commsEngine.getLocalServerPort() + "." );
+
+        try
+        {
+            m_commsEngine.getDiscovery().unregisterService();
+
+            if ( m_serverThread != null )
+            {
+                m_serverThread.interrupt();
+            }
+        }
+        catch ( Exception ex )
+        {
+            m_log.e( SERVER_TAG, "Error when tearing down " + SERVER_TAG + ": " + ex.toString() );
+        }
+
+        closeServerSocket();
+        m_serverThread = null;
+    }
+
+
+    private void closeServerSocket()
+    {
+        if ( m_serverSocket == null && m_transportServer == null )
+        {
+            return;
+        }
+
+        try
+        {
+            if ( m_serverSocket != null )
+            {
+                m_serverSocket.close();
+            }
+
+            if ( m_transportServer != null )
+            {
+                m_transportServer.close();
+            }
+        }
+        catch ( IOException ioe )
+        {
+            m_log.e( SERVER_TAG, "Error when closing server socket: " + ioe.toString() );
+        }
+        catch ( Exception ex )
+        {
+            m_log.e( SERVER_TAG, "Error when closing server socket: " + ex.toString() );
+        }
+    }
+
+
+    // The transport, such as the selector thread, accepts connections instead of a server thread.
+    private void openTransportServer( final CommsTransport transport )
+    {
+        CommsTransport.Acceptor acceptor = new CommsTransport.Acceptor()
+        {
+            public void onAccept( CommsTransport.Connection connection )
+            {
+                m_log.d( SERVER_TAG, "Connected." );
+
+                m_commsEngine.getStats().increment( CommsStats.ACCEPTS );
+                m_commsEngine.connectToConnection( transport, connection );
+            }
+        };
+
+        try
+        {
+            try
+            {
+                m_transportServer = transport.listen( new InetSocketAddress( m_commsEngine.getLocalAddress(), m_commsEngine.getLocalServerPort() ), acceptor );
+            }
+            catch ( IOException e )
+            {
+                if ( !checkAnyPort( e ) )
+                {
+                    throw e;
+                }
+
+                m_transportServer = transport.listen( new InetSocketAddress( m_commsEngine.getLocalAddress(), 0 ), acceptor );
+            }
+
+            m_commsEngine.setLocalServerPort( m_transportServer.getLocalPort() );
+            m_log.d( SERVER_TAG, "Transport server created, awaiting connection on port:" + m_commsEngine.getLocalServerPort() );
+
+            m_commsEngine.getDiscovery().registerService( m_commsEngine.getLocalServerPort() );
+        }
+        catch ( IOException e )
+        {
+            m_log.e( SERVER_TAG, "Transport server exception: ", e );
+
+            closeServerSocket();
+        }
+    }
+
+
+    // Try for the port we were given, so peers that remember it can still reach us.
+    // Otherwise any port will do.
+    private ServerSocket createServerSocket() throws IOException
+    {
+        try
+        {
+            return new ServerSocket( m_commsEngine.getLocalServerPort(), 0, m_commsEngine.getLocalAddress() );
+        }
+        catch ( IOException e )
+        {
+            if ( !checkAnyPort( e ) )
+            {
+                throw e;
+            }
+        }
+
+        return new ServerSocket( 0, 0, m_commsEngine.getLocalAddress() );
+    }
+
+
+    // Returns false if we were already asking for any port.
+    private boolean checkAnyPort( IOException e )
+    {
+        int port = m_commsEngine.getLocalServerPort();
+
+        if ( port == 0 )
+        {
+            return false;
+        }
+
+        m_log.w( SERVER_TAG, "Unable to use port " + port + ", using any port instead: " + e.toString() );
+        m_commsEngine.setLocalServerPort( 0 );
+
+        return true;
+    }
+
+
+    // The server services connection requests to us.
+    // It accepts sockets from other peers, which then becomes a CommsClient socket
+    // to send and receive messages to/from a peer.
+    // Alternatively a connection request to a remote service is accepted and that
+    // become a CommsClient socket to send and receive messages to/from a peer.
+    class ServerThread implements Runnable
+    {
+        // @Override
+        public void run()
+        {
+            while ( !Thread.currentThread().isInterrupted() )
+            {
+                try
+                {
+                    // Since discovery will happen via Nsd, we don't need to care which port is
+                    // used. Just grab an available one and advertise it via Nsd.
+                    m_serverSocket = createServerSocket();
+                    m_commsEngine.setLocalServerPort( m_serverSocket.getLocalPort() );
+                    m_log.d( SERVER_TAG, "ServerSocket created, awaiting connection on port:" + m_commsEngine.getLocalServerPort() );
+                    m_commsEngine.getDiscovery().registerService( m_commsEngine.getLocalServerPort() );
+
+                    while ( !Thread.currentThread().isInterrupted() )
+                    {
+                        m_log.d( SERVER_TAG, "Awaiting new connection on ServerSocket..." );
+                        Socket socket = m_serverSocket.accept();
+                        m_log.d( SERVER_TAG, "Connected." );
+                        m_commsEngine.getStats().increment( CommsStats.ACCEPTS );
+
+                        // Create a new CommsClient using the socket we've just accepted.
+                        m_commsEngine.connectToSocket( socket );
+                    }
+                }
+                catch ( IOException e )
+                {
+                    m_log.w( SERVER_TAG, "ServerSocket exception (can occur when closing ServerSocket): ", e );
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+
+// The resolved remote services, by service name. A service found again
+// within its time to live of being resolved doesn't need resolving again.
+// Hits and misses are counted to show how many resolves are being saved.
+// A lost service can be held as suspect for a while, in case it comes back.
+// Times are the given looper's clock.
+public class CommsServiceCache
+{
+    // Constants:
+    // The usual mDNS time to live of a service's host records.
+    public static final long             DEFAULT_TTL_MS = 120 * 1000;
+
+    // Member variables:
+    private final CommsLooper            m_looper;
+    private final HashMap<String, Entry> m_entries      = new HashMap<String, Entry>();
+    private long                         m_ttlMs        = DEFAULT_TTL_MS;
+    private long                         m_hits         = 0;
+    private long                         m_misses       = 0;
+    private long                         m_recovered    = 0;
+
+
+    // What we know of one resolved service.
+    public static class Entry
+    {
+        private CommsServiceInfo m_serviceInfo;
+        private long             m_resolvedTime;
+        private long             m_lastSeenTime;
+        // When the service was reported lost, or 0 if it isn't.
+        private long             m_suspectTime  = 0;
+
+
+        Entry( CommsServiceInfo serviceInfo, long now )
+        {
+            m_serviceInfo = serviceInfo;
+            m_resolvedTime = now;
+            m_lastSeenTime = now;
+        }
+
+
+        public CommsServiceInfo getServiceInfo()
+        {
+            return m_serviceInfo;
+        }
+
+
+        public InetAddress getHost()
+        {
+            return m_serviceInfo.getHost();
+        }
+
+
+        public int getPort()
+        {
+            return m_serviceInfo.getPort();
+        }
+
+
+        public long getResolvedTime()
+        {
+            return m_resolvedTime;
+        }
+
+
+        public long getLastSeenTime()
+        {
+            return m_lastSeenTime;
+        }
+
+
+        public boolean isSuspect()
+        {
+            return ( m_suspectTime != 0 );
+        }
+
+
+        public long getSuspectTime()
+        {
+            return m_suspectTime;
+        }
+    }
+
+
+    public CommsServiceCache( CommsLooper looper )
+    {
+        m_looper = looper;
+    }
+
+
+    public synchronized void setTtlMs( long ttlMs )
+    {
+        m_ttlMs = ttlMs;
+    }
+
+
+    public synchronized long getTtlMs()
+    {
+        return m_ttlMs;
+    }
+
+
+    // The entry for a service that has been found again, if it was resolved within
+    // its time to live, otherwise null and it should be resolved. Counts a hit or miss.
+    public synchronized Entry onServiceFound( String serviceName )
+    {
+        long now = m_looper.now();
+        Entry entry = m_entries.get( serviceName );
+
+        if ( entry != null && entry.isSuspect() )
+        {
+            // Back before its grace period ran out.
+            entry.m_suspectTime = 0;
+            m_recovered++;
+        }
+
+        if ( entry == null || now - entry.m_resolvedTime >= m_ttlMs )
+        {
+            m_misses++;
+
+            return null;
+        }
+
+        m_hits++;
+        entry.m_lastSeenTime = now;
+
+        return entry;
+    }
+
+
+    // Store a newly resolved service, returning true if it is new or has moved host or port.
+    public synchronized boolean put( CommsServiceInfo serviceInfo )
+    {
+        long now = m_looper.now();
+        Entry previous = m_entries.put( serviceInfo.getServiceName(), new Entry( serviceInfo, now ) );
+
+        return ( previous == null || previous.getPort() != serviceInfo.getPort() || !sameHost( previous.getHost(), serviceInfo.getHost() ) );
+    }
+
+
+    // Hold a lost service as suspect, returning the time it was marked, or 0 if it isn't known.
+    public synchronized long markSuspect( String serviceName )
+    {
+        Entry entry = m_entries.get( serviceName );
+
+        if ( entry == null )
+        {
+            return 0;
+        }
+
+        if ( !entry.isSuspect() )
+        {
+            // Never 0, which means not suspect.
+            entry.m_suspectTime = Math.max( 1, m_looper.now() );
+        }
+
+        return entry.m_suspectTime;
+    }
+
+
+    // Remove a service that is still suspect from the given time, it hasn't come back.
+    public synchronized Entry removeIfSuspect( String serviceName, long suspectTime )
+    {
+        Entry entry = m_entries.get( serviceName );
+
+        if ( entry == null || entry.m_suspectTime != suspectTime )
+        {
+            return null;
+        }
+
+        return m_entries.remove( serviceName );
+    }
+
+
+    public synchronized Entry get( String serviceName )
+    {
+        return m_entries.get( serviceName );
+    }
+
+
+    public synchronized Entry remove( String serviceName )
+    {
+        return m_entries.remove( serviceName );
+    }
+
+
+    public synchronized void clear()
+    {
+        m_entries.clear();
+    }
+
+
+    public synchronized int size()
+    {
+        return m_entries.size();
+    }
+
+
+    public synchronized long getHits()
+    {
+        return m_hits;
+    }
+
+
+    public synchronized long getMisses()
+    {
+        return m_misses;
+    }
+
+
+    // Lost services that came back within their grace period.
+    public synchronized long getRecovered()
+    {
+        return m_recovered;
+    }
+
+
+    // A copy of the resolved services, by service name.
+    public synchronized Hashtable<String, CommsServiceInfo> getServiceInfos()
+    {
+        Hashtable<String, CommsServiceInfo> serviceInfos = new Hashtable<String, CommsServiceInfo>();
+
+        for ( Map.Entry<String, Entry> entry : m_entries.entrySet() )
+        {
+            serviceInfos.put( entry.getKey(), entry.getValue().m_serviceInfo );
+        }
+
+        return serviceInfos;
+    }
+
+
+    private static boolean sameHost( InetAddress host, InetAddress otherHost )
+    {
+        return ( host == null ) ? ( otherHost == null ) : host.equals( otherHost );
+    }
+}
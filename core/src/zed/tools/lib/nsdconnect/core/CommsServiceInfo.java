@@ -0,0 +1,140 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+// A discovered or registered service, without android.net.nsd.NsdServiceInfo,
+// so discovery can run off Android. The host and port are only known once the
+// service has been resolved, along with its attributes, the DNS-SD TXT
+// record's "key=value" strings.
+public class CommsServiceInfo
+{
+    // Member variables:
+    private String                              m_serviceName;
+    private String                              m_serviceType;
+    private InetAddress                         m_host       = null;
+    private int                                 m_port       = 0;
+    private final LinkedHashMap<String, String> m_attributes = new LinkedHashMap<String, String>();
+
+
+    public CommsServiceInfo( String serviceName, String serviceType )
+    {
+        m_serviceName = serviceName;
+        m_serviceType = serviceType;
+    }
+
+
+    public CommsServiceInfo( String serviceName, String serviceType, InetAddress host, int port )
+    {
+        this( serviceName, serviceType );
+
+        m_host = host;
+        m_port = port;
+    }
+
+
+    public CommsServiceInfo( CommsServiceInfo serviceInfo )
+    {
+        this( serviceInfo.m_serviceName, serviceInfo.m_serviceType, serviceInfo.m_host, serviceInfo.m_port );
+
+        m_attributes.putAll( serviceInfo.m_attributes );
+    }
+
+
+    public String getServiceName()
+    {
+        return m_serviceName;
+    }
+
+
+    public void setServiceName( String serviceName )
+    {
+        m_serviceName = serviceName;
+    }
+
+
+    // Such as "_http._tcp.", without the domain.
+    public String getServiceType()
+    {
+        return m_serviceType;
+    }
+
+
+    public void setServiceType( String serviceType )
+    {
+        m_serviceType = serviceType;
+    }
+
+
+    public InetAddress getHost()
+    {
+        return m_host;
+    }
+
+
+    public void setHost( InetAddress host )
+    {
+        m_host = host;
+    }
+
+
+    public int getPort()
+    {
+        return m_port;
+    }
+
+
+    public void setPort( int port )
+    {
+        m_port = port;
+    }
+
+
+    // In the order they were set, a key with no value has the empty string.
+    public Map<String, String> getAttributes()
+    {
+        return Collections.unmodifiableMap( m_attributes );
+    }
+
+
+    public String getAttribute( String key )
+    {
+        return m_attributes.get( key );
+    }
+
+
+    public void setAttribute( String key, String value )
+    {
+        m_attributes.put( key, value );
+    }
+
+
+    public void removeAttribute( String key )
+    {
+        m_attributes.remove( key );
+    }
+
+
+    // Replaces all the attributes.
+    public void setAttributes( Map<String, String> attributes )
+    {
+        m_attributes.clear();
+        m_attributes.putAll( attributes );
+    }
+
+
+    public boolean isResolved()
+    {
+        return ( m_host != null && m_port != 0 );
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return "name: " + m_serviceName + ", type: " + m_serviceType + ", host: " + m_host + ", port: " + m_port + ( m_attributes.isEmpty() ? "" : ", attributes: " + m_attributes );
+    }
+}
@@ -0,0 +1,257 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+// What a peer advertises about itself in its service's attributes, the DNS-SD
+// TXT record, so others can tell before connecting whether they can talk to
+// it and whether it is too busy. Keys are kept short, the whole record
+// should fit in one packet. Anything missing or unreadable is unknown and a
+// peer that says nothing is assumed to be compatible and not busy, so older
+// peers, and backends that can't carry attributes, are still connected to.
+public class CommsServiceMetadata
+{
+    // Constants:
+    public static final String  KEY_PROTOCOL_VERSION = "pv";
+    public static final String  KEY_CODECS           = "codecs";
+    public static final String  KEY_COMPRESSION      = "comp";
+    public static final String  KEY_INSTANCE_ID      = "id";
+    public static final String  KEY_PEER_COUNT       = "peers";
+    public static final String  KEY_LOAD             = "load";
+    // The version of the CommsFrame wire format and its control frames,
+    // 2 added the HELLO handshake, 3 heartbeats, 4 reliable delivery, 5 session tokens.
+    public static final int     PROTOCOL_VERSION     = 5;
+    public static final int     UNKNOWN              = -1;
+    // Length prefixed CommsFrames.
+    public static final String  CODEC_FRAME          = "frame";
+    public static final String  COMPRESSION_NONE     = "none";
+    private static final String LIST_SEPARATOR       = ",";
+
+    // Member variables:
+    private int                 m_protocolVersion    = UNKNOWN;
+    private List<String>        m_codecs             = Collections.emptyList();
+    private List<String>        m_compressions       = Collections.emptyList();
+    private String              m_instanceId         = null;
+    private int                 m_peerCount          = UNKNOWN;
+    // From 0 to 100.
+    private int                 m_load               = UNKNOWN;
+
+
+    public CommsServiceMetadata()
+    {
+    }
+
+
+    // Read from a resolved service's attributes, ignoring anything that doesn't parse.
+    public static CommsServiceMetadata fromAttributes( Map<String, String> attributes )
+    {
+        CommsServiceMetadata metadata = new CommsServiceMetadata();
+
+        metadata.m_protocolVersion = parseInt( attributes.get( KEY_PROTOCOL_VERSION ) );
+        metadata.m_codecs = parseList( attributes.get( KEY_CODECS ) );
+        metadata.m_compressions = parseList( attributes.get( KEY_COMPRESSION ) );
+        metadata.m_instanceId = attributes.get( KEY_INSTANCE_ID );
+        metadata.m_peerCount = parseInt( attributes.get( KEY_PEER_COUNT ) );
+        metadata.m_load = parseInt( attributes.get( KEY_LOAD ) );
+
+        if ( metadata.m_instanceId != null && metadata.m_instanceId.length() == 0 )
+        {
+            metadata.m_instanceId = null;
+        }
+
+        return metadata;
+    }
+
+
+    // The attributes to publish, only what's known.
+    public Map<String, String> toAttributes()
+    {
+        LinkedHashMap<String, String> attributes = new LinkedHashMap<String, String>();
+
+        putIfKnown( attributes, KEY_PROTOCOL_VERSION, ( m_protocolVersion == UNKNOWN ) ? null : Integer.toString( m_protocolVersion ) );
+        putIfKnown( attributes, KEY_CODECS, formatList( m_codecs ) );
+        putIfKnown( attributes, KEY_COMPRESSION, formatList( m_compressions ) );
+        putIfKnown( attributes, KEY_INSTANCE_ID, m_instanceId );
+        putIfKnown( attributes, KEY_PEER_COUNT, ( m_peerCount == UNKNOWN ) ? null : Integer.toString( m_peerCount ) );
+        putIfKnown( attributes, KEY_LOAD, ( m_load == UNKNOWN ) ? null : Integer.toString( m_load ) );
+
+        return attributes;
+    }
+
+
+    public int getProtocolVersion()
+    {
+        return m_protocolVersion;
+    }
+
+
+    public void setProtocolVersion( int protocolVersion )
+    {
+        m_protocolVersion = protocolVersion;
+    }
+
+
+    public List<String> getCodecs()
+    {
+        return m_codecs;
+    }
+
+
+    public void setCodecs( String... codecs )
+    {
+        m_codecs = Collections.unmodifiableList( Arrays.asList( codecs.clone() ) );
+    }
+
+
+    public List<String> getCompressions()
+    {
+        return m_compressions;
+    }
+
+
+    public void setCompressions( String... compressions )
+    {
+        m_compressions = Collections.unmodifiableList( Arrays.asList( compressions.clone() ) );
+    }
+
+
+    // Stays the same for a peer across restarts and address changes, null if unknown.
+    public String getInstanceId()
+    {
+        return m_instanceId;
+    }
+
+
+    public void setInstanceId( String instanceId )
+    {
+        m_instanceId = instanceId;
+    }
+
+
+    public int getPeerCount()
+    {
+        return m_peerCount;
+    }
+
+
+    public void setPeerCount( int peerCount )
+    {
+        m_peerCount = peerCount;
+    }
+
+
+    public int getLoad()
+    {
+        return m_load;
+    }
+
+
+    public void setLoad( int load )
+    {
+        m_load = ( load == UNKNOWN ) ? UNKNOWN : Math.max( 0, Math.min( 100, load ) );
+    }
+
+
+    // Whether we can talk to the peer, an unknown version is assumed to be ours.
+    public boolean isCompatible()
+    {
+        return ( m_protocolVersion == UNKNOWN || m_protocolVersion == PROTOCOL_VERSION )
+                        && ( m_codecs.isEmpty() || m_codecs.contains( CODEC_FRAME ) );
+    }
+
+
+    // Whether the peer says it is busier than the given load, or has at least the given
+    // number of peers already. Zero or less for either means no limit.
+    public boolean isOverloaded( int maxLoad, int maxPeerCount )
+    {
+        return ( maxLoad > 0 && m_load != UNKNOWN && m_load > maxLoad ) || ( maxPeerCount > 0 && m_peerCount != UNKNOWN && m_peerCount >= maxPeerCount );
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return "version: " + m_protocolVersion + ", codecs: " + m_codecs + ", compression: " + m_compressions + ", id: " + m_instanceId + ", peers: "
+                        + m_peerCount + ", load: " + m_load;
+    }
+
+
+    private static void putIfKnown( Map<String, String> attributes, String key, String value )
+    {
+        if ( value != null )
+        {
+            attributes.put( key, value );
+        }
+    }
+
+
+    private static int parseInt( String value )
+    {
+        if ( value == null )
+        {
+            return UNKNOWN;
+        }
+
+        try
+        {
+            int parsed = Integer.parseInt( value.trim() );
+
+            return ( parsed < 0 ) ? UNKNOWN : parsed;
+        }
+        catch ( NumberFormatException e )
+        {
+            return UNKNOWN;
+        }
+    }
+
+
+    private static List<String> parseList( String value )
+    {
+        if ( value == null )
+        {
+            return Collections.emptyList();
+        }
+
+        ArrayList<String> list = new ArrayList<String>();
+
+        for ( String item : value.split( LIST_SEPARATOR ) )
+        {
+            item = item.trim();
+
+            if ( item.length() > 0 )
+            {
+                list.add( item );
+            }
+        }
+
+        return Collections.unmodifiableList( list );
+    }
+
+
+    private static String formatList( List<String> list )
+    {
+        if ( list.isEmpty() )
+        {
+            return null;
+        }
+
+        StringBuilder value = new StringBuilder();
+
+        for ( String item : list )
+        {
+            if ( value.length() > 0 )
+            {
+                value.append( LIST_SEPARATOR );
+            }
+
+            value.append( item );
+        }
+
+        return value.toString();
+    }
+}
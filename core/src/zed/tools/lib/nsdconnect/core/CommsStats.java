@@ -0,0 +1,138 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+// Transport counters and timings, kept for each client and for the engine as a whole.
+// Counting is an atomic add without locks, cheap enough to leave on all the time.
+// A client's counts are added to its parent's as they happen, so the engine's
+// totals include clients that have since gone.
+public class CommsStats
+{
+    // Counters:
+    public static final int      MESSAGES_IN        = 0;
+    public static final int      BYTES_IN           = 1;
+    // Messages queued for sending, bytes actually written.
+    public static final int      MESSAGES_OUT       = 2;
+    public static final int      BYTES_OUT          = 3;
+    // Messages not queued because the send queue was full.
+    public static final int      MESSAGES_DROPPED   = 4;
+    public static final int      CONNECT_ATTEMPTS   = 5;
+    public static final int      RECONNECTS         = 6;
+    public static final int      ACCEPTS            = 7;
+    // Connect attempts abandoned after the connect scheduler's timeout.
+    public static final int      CONNECT_TIMEOUTS   = 8;
+    // Heartbeats sent on idle links, and connections dropped for receiving nothing.
+    public static final int      HEARTBEATS         = 9;
+    public static final int      IDLE_TIMEOUTS      = 10;
+    // Reliable frames sent again on a new connection, and received again and dropped.
+    public static final int      RETRANSMITS        = 11;
+    public static final int      DUPLICATES         = 12;
+    // Messages received but not handed on because the application's buffer was full.
+    public static final int      DELIVERIES_DROPPED = 13;
+    public static final int      COUNTER_COUNT      = 14;
+    public static final String[] COUNTER_NAMES      = { "messagesIn", "bytesIn", "messagesOut", "bytesOut", "messagesDropped", "connectAttempts", "reconnects", "accepts",
+                    "connectTimeouts", "heartbeats", "idleTimeouts", "retransmits", "duplicates", "deliveriesDropped" };
+
+    // Constants:
+    // A cache line for each counter, so the receiving and sending threads don't contend.
+    private static final int     STRIDE             = 8;
+
+    // Member variables:
+    private final CommsStats      m_parent;
+    private final AtomicLongArray m_counters   = new AtomicLongArray( COUNTER_COUNT * STRIDE );
+    // Nanoseconds to encode a frame, and to write a batch of frames to the socket.
+    private final CommsHistogram  m_encodeTime = new CommsHistogram();
+    private final CommsHistogram  m_writeTime  = new CommsHistogram();
+    private final long            m_startTime  = System.currentTimeMillis();
+
+
+    public CommsStats()
+    {
+        this( null );
+    }
+
+
+    public CommsStats( CommsStats parent )
+    {
+        m_parent = parent;
+    }
+
+
+    public void increment( int counter )
+    {
+        add( counter, 1 );
+    }
+
+
+    public void add( int counter, long amount )
+    {
+        m_counters.addAndGet( counter * STRIDE, amount );
+
+        if ( m_parent != null )
+        {
+            m_parent.add( counter, amount );
+        }
+    }
+
+
+    public long get( int counter )
+    {
+        return m_counters.get( counter * STRIDE );
+    }
+
+
+    // A copy of all the counters, indexed by the counter constants.
+    public long[] getCounters()
+    {
+        long[] counters = new long[COUNTER_COUNT];
+
+        for ( int i = 0; i < COUNTER_COUNT; i++ )
+        {
+            counters[i] = get( i );
+        }
+
+        return counters;
+    }
+
+
+    public void recordEncodeTime( long nanos )
+    {
+        m_encodeTime.record( nanos );
+
+        if ( m_parent != null )
+        {
+            m_parent.recordEncodeTime( nanos );
+        }
+    }
+
+
+    public void recordWriteTime( long nanos )
+    {
+        m_writeTime.record( nanos );
+
+        if ( m_parent != null )
+        {
+            m_parent.recordWriteTime( nanos );
+        }
+    }
+
+
+    public CommsHistogram getEncodeTime()
+    {
+        return m_encodeTime;
+    }
+
+
+    public CommsHistogram getWriteTime()
+    {
+        return m_writeTime;
+    }
+
+
+    // When counting started, in System.currentTimeMillis() time, for working out rates.
+    public long getStartTime()
+    {
+        return m_startTime;
+    }
+}
@@ -0,0 +1,73 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+
+// What carries the engine's server and connections in place of a thread per
+// peer: the CommsSelector's sockets, or a simulated network, see
+// CommsEngine.setTransport(). All callbacks are made on the transport's own
+// thread and must not block.
+public interface CommsTransport
+{
+    // One end of a connection to a peer, our own or accepted.
+    public interface Connection
+    {
+        // The peer's address and port.
+        public InetAddress getInetAddress();
+
+        public int getPort();
+
+        public void close() throws IOException;
+    }
+
+    // A bound server, accepting connections until it's closed.
+    public interface Server
+    {
+        public int getLocalPort();
+
+        public void close() throws IOException;
+    }
+
+    // Receives connections accepted by a server.
+    public interface Acceptor
+    {
+        public void onAccept( Connection connection );
+    }
+
+    // Receives the events of a single peer connection.
+    public interface Endpoint
+    {
+        public void onConnect( Connection connection, boolean connected );
+
+        // The buffer is only valid for the duration of the call.
+        public void onRead( Connection connection, ByteBuffer buffer );
+
+        public void onClose( Connection connection );
+
+        // Bytes written to the connection by one gathering write and how long it took.
+        public void onWrite( Connection connection, long bytes, long nanos );
+    }
+
+
+    // Bind a server to the address and start accepting on it, port 0 for any port.
+    public Server listen( InetSocketAddress address, Acceptor acceptor ) throws IOException;
+
+    // A connection to be connected, bound to the local address unless it's null.
+    public Connection open( InetAddress localAddress ) throws IOException;
+
+    // Start a non-blocking connect to a peer, the endpoint is told the outcome.
+    public void connect( Connection connection, InetSocketAddress address, Endpoint endpoint ) throws IOException;
+
+    // Add an accepted connection. The endpoint is told it is connected once it is registered.
+    public void register( Connection connection, Endpoint endpoint ) throws IOException;
+
+    // Queue a buffer to be written to the connection. Never blocks the caller.
+    // Returns false if the connection is not registered or its send queue is full.
+    public boolean write( Connection connection, ByteBuffer buffer );
+
+    // The number of buffers waiting in the connection's send queue, 0 for a null connection.
+    public int getSendQueueSize( Connection connection );
+}
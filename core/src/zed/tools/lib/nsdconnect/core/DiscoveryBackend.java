@@ -0,0 +1,72 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.util.Map;
+
+
+// Registers our service and finds and resolves other peers' services.
+// On Android this can be the NsdManager, elsewhere MdnsDiscoveryBackend.
+// Listener calls are made on the backend's own threads.
+public interface DiscoveryBackend
+{
+    // Failure codes, the same as the NsdManager's.
+    public static final int FAILURE_INTERNAL_ERROR = 0;
+    public static final int FAILURE_ALREADY_ACTIVE = 3;
+    public static final int FAILURE_MAX_LIMIT      = 4;
+
+
+    public interface RegistrationListener
+    {
+        // The name may differ from the one asked for, if that was taken.
+        public void onServiceRegistered( CommsServiceInfo serviceInfo );
+
+        public void onRegistrationFailed( CommsServiceInfo serviceInfo, int errorCode );
+
+        public void onServiceUnregistered( CommsServiceInfo serviceInfo );
+
+        public void onUnregistrationFailed( CommsServiceInfo serviceInfo, int errorCode );
+    }
+
+    public interface DiscoveryListener
+    {
+        public void onDiscoveryStarted( String serviceType );
+
+        public void onDiscoveryFailed( String serviceType, int errorCode );
+
+        public void onDiscoveryStopped( String serviceType );
+
+        // Already resolved if the backend resolves on finding.
+        public void onServiceFound( CommsServiceInfo serviceInfo );
+
+        public void onServiceLost( CommsServiceInfo serviceInfo );
+    }
+
+    public interface ResolveListener
+    {
+        public void onServiceResolved( CommsServiceInfo serviceInfo );
+
+        public void onResolveFailed( CommsServiceInfo serviceInfo, int errorCode );
+    }
+
+
+    public void registerService( CommsServiceInfo serviceInfo, RegistrationListener listener );
+
+    public void unregisterService( RegistrationListener listener );
+
+    // Change the registered service's attributes in place. Returns false if the
+    // backend can't, then the service has to be registered again to change them.
+    public boolean updateServiceAttributes( RegistrationListener listener, Map<String, String> attributes );
+
+    public void discoverServices( String serviceType, DiscoveryListener listener );
+
+    public void stopServiceDiscovery( DiscoveryListener listener );
+
+    public void resolveService( CommsServiceInfo serviceInfo, ResolveListener listener );
+
+    // True if found services come with their host and port, so don't need resolving.
+    public boolean isResolvedOnFound();
+
+    // How many resolves can be made at once.
+    public int getMaxConcurrentResolves();
+
+    public void tearDown();
+}
@@ -0,0 +1,1258 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+
+// A multicast DNS-SD responder and browser in plain Java, RFC 6762 and 6763,
+// for IPv4 on one interface. Our answers to a browse carry the SRV, TXT and A
+// records as well as the PTR, so a peer is found already resolved, in one round
+// trip. Found services without them are resolved by querying for them directly.
+// Our service name is probed for before it's announced, and if another responder
+// has it we register as "name (2)" and so on, as the NsdManager does.
+// Network driven listener calls are made on the mDNS thread, the others on the
+// caller's thread.
+public class MdnsDiscoveryBackend implements DiscoveryBackend
+{
+    // Constants:
+    private static final String                TAG                    = MdnsDiscoveryBackend.class.getSimpleName();
+    public static final String                 MDNS_THREAD_NAME       = TAG + ":MdnsThread";
+    public static final String                 MDNS_GROUP             = "224.0.0.251";
+    public static final int                    MDNS_PORT              = 5353;
+    private static final String                DOMAIN                 = "local.";
+    private static final String                SERVICES_NAME          = "_services._dns-sd._udp." + DOMAIN;
+    // Record times to live in seconds, RFC 6762 section 10.
+    private static final long                  HOST_TTL               = 120;
+    private static final long                  OTHER_TTL              = 4500;
+    // Legacy unicast answers, from a port other than 5353, are cached for no longer than this.
+    private static final long                  LEGACY_TTL             = 10;
+    // Browse queries start at the minimum interval and double up to the maximum.
+    private static final long                  QUERY_MIN_INTERVAL_MS  = 1000;
+    private static final long                  QUERY_MAX_INTERVAL_MS  = 60 * 1000;
+    private static final long                  RESOLVE_INTERVAL_MS    = 1000;
+    private static final long                  RESOLVE_TIMEOUT_MS     = 5 * 1000;
+    private static final int                   PROBE_COUNT            = 3;
+    private static final long                  PROBE_INTERVAL_MS      = 250;
+    private static final int                   ANNOUNCE_COUNT         = 2;
+    private static final long                  ANNOUNCE_INTERVAL_MS   = 1000;
+    // Answers shared by many responders are delayed at random, to spread them out.
+    private static final int                   SHARED_DELAY_MIN_MS    = 20;
+    private static final int                   SHARED_DELAY_RANGE_MS  = 100;
+    // A goodbye record, with a time to live of 0, expires after a second.
+    private static final long                  GOODBYE_EXPIRY_MS      = 1000;
+    private static final int                   MAX_RECEIVE_TIMEOUT_MS = 1000;
+
+    // Member variables:
+    private final CommsLog                     m_log;
+    private final Random                       m_random               = new Random();
+    private InetAddress                        m_interfaceAddress;
+    private String                             m_hostName             = null;
+    private MulticastSocket                    m_socket               = null;
+    private InetSocketAddress                  m_groupAddress         = null;
+    private Thread                             m_mdnsThread           = null;
+    // Our registered service.
+    private CommsServiceInfo                   m_registered           = null;
+    private RegistrationListener               m_registrationListener = null;
+    private String                             m_registeredBaseName   = null;
+    private int                                m_nameConflicts        = 0;
+    // Our name is only ours once probing is over.
+    private boolean                            m_probed               = false;
+    private int                                m_probesLeft           = 0;
+    private long                               m_nextProbeTime        = 0;
+    private int                                m_announcesLeft        = 0;
+    private long                               m_nextAnnounceTime     = 0;
+    // The service type being browsed.
+    private String                             m_browseType           = null;
+    private DiscoveryListener                  m_discoveryListener    = null;
+    private long                               m_queryIntervalMs      = QUERY_MIN_INTERVAL_MS;
+    private long                               m_nextQueryTime        = 0;
+    // Service instances we've heard of, by full name in lower case.
+    private final HashMap<String, Instance>    m_instances            = new HashMap<String, Instance>();
+    // Host addresses we've heard of, by host name in lower case.
+    private final HashMap<String, HostAddress> m_hostAddresses        = new HashMap<String, HostAddress>();
+    private final ArrayList<Resolve>           m_resolves             = new ArrayList<Resolve>();
+    // Delayed answers to send.
+    private MdnsMessage                        m_pendingResponse      = null;
+    private long                               m_pendingResponseTime  = 0;
+    // Listener calls to be made once the lock is released.
+    private final ArrayList<Runnable>          m_callbacks            = new ArrayList<Runnable>();
+
+
+    // What we know of another responder's service instance.
+    private static class Instance
+    {
+        final String        m_fullName;
+        final String        m_serviceType;
+        // Found by browsing, rather than only by a resolve.
+        boolean             m_browsed         = false;
+        long                m_ptrExpiryTime   = 0;
+        String              m_target          = null;
+        int                 m_port            = 0;
+        long                m_srvExpiryTime   = 0;
+        // From its TXT record, null until we've had one.
+        Map<String, String> m_attributes      = null;
+        // What we reported as found, so a move can be reported again.
+        CommsServiceInfo    m_found           = null;
+        long                m_nextResolveTime = 0;
+
+
+        Instance( String fullName, String serviceType )
+        {
+            m_fullName = fullName;
+            m_serviceType = serviceType;
+        }
+    }
+
+    private static class HostAddress
+    {
+        final InetAddress m_address;
+        final long        m_expiryTime;
+
+
+        HostAddress( InetAddress address, long expiryTime )
+        {
+            m_address = address;
+            m_expiryTime = expiryTime;
+        }
+    }
+
+    private static class Resolve
+    {
+        final CommsServiceInfo m_serviceInfo;
+        final ResolveListener  m_listener;
+        final String           m_fullName;
+        final long             m_timeoutTime;
+
+
+        Resolve( CommsServiceInfo serviceInfo, ResolveListener listener, String fullName, long timeoutTime )
+        {
+            m_serviceInfo = serviceInfo;
+            m_listener = listener;
+            m_fullName = fullName;
+            m_timeoutTime = timeoutTime;
+        }
+    }
+
+
+    // Uses the first multicast interface that's up with an IPv4 address.
+    public MdnsDiscoveryBackend( CommsLog log )
+    {
+        this( null, log );
+    }
+
+
+    // The interface is given by its IPv4 address, which is what we advertise.
+    public MdnsDiscoveryBackend( InetAddress interfaceAddress, CommsLog log )
+    {
+        m_interfaceAddress = interfaceAddress;
+        m_log = log;
+    }
+
+
+    // @Override
+    public void registerService( CommsServiceInfo serviceInfo, final RegistrationListener listener )
+    {
+        final CommsServiceInfo registered;
+
+        synchronized ( this )
+        {
+            if ( m_registered != null || !checkStart() )
+            {
+                registered = null;
+            }
+            else
+            {
+                registered = new CommsServiceInfo( serviceInfo.getServiceName(), serviceInfo.getServiceType(), m_interfaceAddress,
+                                serviceInfo.getPort() );
+                registered.setAttributes( serviceInfo.getAttributes() );
+                m_registered = registered;
+                m_registrationListener = listener;
+                m_registeredBaseName = serviceInfo.getServiceName();
+                m_nameConflicts = 0;
+                startProbing( 0 );
+            }
+        }
+
+        if ( registered == null )
+        {
+            listener.onRegistrationFailed( serviceInfo, ( m_socket == null ) ? FAILURE_INTERNAL_ERROR : FAILURE_ALREADY_ACTIVE );
+
+            return;
+        }
+
+        // Registered once the probing is over.
+        sendDue();
+    }
+
+
+    // The new attributes go out in an announcement, no sooner than a second
+    // after the last, so a busy peer doesn't flood the network with them.
+    // @Override
+    public boolean updateServiceAttributes( RegistrationListener listener, Map<String, String> attributes )
+    {
+        synchronized ( this )
+        {
+            if ( m_registered == null || listener != m_registrationListener )
+            {
+                return false;
+            }
+
+            if ( m_registered.getAttributes().equals( attributes ) )
+            {
+                return true;
+            }
+
+            m_registered.setAttributes( attributes );
+
+            if ( m_probed )
+            {
+                // The next announcement, if there is one left, already carries them.
+                m_announcesLeft = Math.max( 1, m_announcesLeft );
+            }
+        }
+
+        sendDue();
+
+        return true;
+    }
+
+
+    // @Override
+    public void unregisterService( RegistrationListener listener )
+    {
+        CommsServiceInfo registered;
+        boolean probed;
+
+        synchronized ( this )
+        {
+            registered = m_registered;
+            probed = m_probed;
+
+            if ( registered == null || listener != m_registrationListener )
+            {
+                return;
+            }
+
+            m_registered = null;
+            m_registrationListener = null;
+        }
+
+        if ( probed )
+        {
+            send( createAnnouncement( registered, true ), m_groupAddress );
+        }
+
+        listener.onServiceUnregistered( registered );
+    }
+
+
+    // @Override
+    public void discoverServices( String serviceType, DiscoveryListener listener )
+    {
+        boolean started;
+
+        synchronized ( this )
+        {
+            started = ( m_browseType == null && checkStart() );
+
+            if ( started )
+            {
+                m_browseType = serviceType;
+                m_discoveryListener = listener;
+                m_queryIntervalMs = QUERY_MIN_INTERVAL_MS;
+                m_nextQueryTime = 0;
+            }
+        }
+
+        if ( !started )
+        {
+            listener.onDiscoveryFailed( serviceType, ( m_socket == null ) ? FAILURE_INTERNAL_ERROR : FAILURE_ALREADY_ACTIVE );
+
+            return;
+        }
+
+        listener.onDiscoveryStarted( serviceType );
+        sendDue();
+    }
+
+
+    // @Override
+    public void stopServiceDiscovery( DiscoveryListener listener )
+    {
+        String serviceType;
+
+        synchronized ( this )
+        {
+            serviceType = m_browseType;
+
+            if ( serviceType == null || listener != m_discoveryListener )
+            {
+                return;
+            }
+
+            m_browseType = null;
+            m_discoveryListener = null;
+
+            // Found services aren't reported lost, the same as the NsdManager.
+            for ( Instance instance : m_instances.values() )
+            {
+                instance.m_browsed = false;
+                instance.m_found = null;
+            }
+        }
+
+        listener.onDiscoveryStopped( serviceType );
+    }
+
+
+    // @Override
+    public void resolveService( CommsServiceInfo serviceInfo, final ResolveListener listener )
+    {
+        final CommsServiceInfo resolved;
+
+        synchronized ( this )
+        {
+            if ( !checkStart() )
+            {
+                resolved = null;
+            }
+            else
+            {
+                long now = System.currentTimeMillis();
+                String fullName = getFullName( serviceInfo.getServiceName(), serviceInfo.getServiceType() );
+                Instance instance = getInstance( fullName, serviceInfo.getServiceType() );
+
+                resolved = getResolved( instance, now );
+
+                if ( resolved == null )
+                {
+                    m_resolves.add( new Resolve( serviceInfo, listener, fullName, now + RESOLVE_TIMEOUT_MS ) );
+                    instance.m_nextResolveTime = 0;
+                }
+            }
+        }
+
+        if ( m_socket == null )
+        {
+            listener.onResolveFailed( serviceInfo, FAILURE_INTERNAL_ERROR );
+        }
+        else if ( resolved != null )
+        {
+            listener.onServiceResolved( resolved );
+        }
+        else
+        {
+            sendDue();
+        }
+    }
+
+
+    // @Override
+    public boolean isResolvedOnFound()
+    {
+        return true;
+    }
+
+
+    // @Override
+    public int getMaxConcurrentResolves()
+    {
+        return Integer.MAX_VALUE;
+    }
+
+
+    // @Override
+    public void tearDown()
+    {
+        CommsServiceInfo registered;
+        Thread mdnsThread;
+        MulticastSocket socket;
+
+        synchronized ( this )
+        {
+            registered = ( m_probed ) ? m_registered : null;
+            mdnsThread = m_mdnsThread;
+            socket = m_socket;
+            m_registered = null;
+            m_registrationListener = null;
+            m_browseType = null;
+            m_discoveryListener = null;
+            m_instances.clear();
+            m_hostAddresses.clear();
+            m_resolves.clear();
+            m_pendingResponse = null;
+            m_callbacks.clear();
+            m_mdnsThread = null;
+            m_socket = null;
+        }
+
+        if ( socket == null )
+        {
+            return;
+        }
+
+        if ( registered != null )
+        {
+            sendOn( socket, createAnnouncement( registered, true ), m_groupAddress );
+        }
+
+        mdnsThread.interrupt();
+        socket.close();
+    }
+
+
+    public synchronized InetAddress getInterfaceAddress()
+    {
+        return m_interfaceAddress;
+    }
+
+
+    private boolean checkStart()
+    {
+        if ( m_socket != null )
+        {
+            return true;
+        }
+
+        try
+        {
+            if ( m_interfaceAddress == null )
+            {
+                m_interfaceAddress = findInterfaceAddress();
+            }
+
+            m_hostName = "nsdconnect-" + m_interfaceAddress.getHostAddress().replace( '.', '-' ) + "." + DOMAIN;
+            m_groupAddress = new InetSocketAddress( InetAddress.getByName( MDNS_GROUP ), MDNS_PORT );
+
+            MulticastSocket socket = new MulticastSocket( MDNS_PORT );
+            NetworkInterface networkInterface = NetworkInterface.getByInetAddress( m_interfaceAddress );
+
+            socket.setTimeToLive( 255 );
+
+            if ( networkInterface != null )
+            {
+                // Otherwise the system picks one, as it does for the join.
+                socket.setNetworkInterface( networkInterface );
+            }
+
+            socket.joinGroup( m_groupAddress, networkInterface );
+            m_socket = socket;
+        }
+        catch ( IOException e )
+        {
+            m_log.e( TAG, "Unable to open mDNS socket: ", e );
+
+            return false;
+        }
+
+        m_log.i( TAG, "mDNS started on " + m_interfaceAddress.getHostAddress() + " as " + m_hostName );
+
+        m_mdnsThread = new Thread( new MdnsThread( m_socket ), MDNS_THREAD_NAME );
+        m_mdnsThread.start();
+
+        return true;
+    }
+
+
+    private InetAddress findInterfaceAddress() throws IOException
+    {
+        for ( NetworkInterface networkInterface : Collections.list( NetworkInterface.getNetworkInterfaces() ) )
+        {
+            if ( !networkInterface.isUp() || networkInterface.isLoopback() || !networkInterface.supportsMulticast() )
+            {
+                continue;
+            }
+
+            for ( InetAddress address : Collections.list( networkInterface.getInetAddresses() ) )
+            {
+                if ( address instanceof Inet4Address )
+                {
+                    return address;
+                }
+            }
+        }
+
+        throw new IOException( "No multicast interface with an IPv4 address." );
+    }
+
+
+    // Called with the lock held.
+    private void startProbing( long now )
+    {
+        m_probed = false;
+        m_probesLeft = PROBE_COUNT;
+        m_nextProbeTime = now;
+        m_announcesLeft = ANNOUNCE_COUNT;
+    }
+
+
+    // Another responder has our name, so probe again for the next, "name (2)" and so on.
+    // Called with the lock held.
+    private void onNameConflict( long now )
+    {
+        m_nameConflicts++;
+
+        String serviceName = m_registeredBaseName + " (" + ( m_nameConflicts + 1 ) + ")";
+
+        m_log.w( TAG, "Service name " + m_registered.getServiceName() + " is taken, trying " + serviceName );
+
+        m_registered.setServiceName( serviceName );
+        startProbing( now );
+    }
+
+
+    private static String getTypeName( String serviceType )
+    {
+        return ( serviceType.endsWith( "." ) ? serviceType : serviceType + "." ) + DOMAIN;
+    }
+
+
+    private static String getFullName( String serviceName, String serviceType )
+    {
+        return MdnsMessage.escapeLabel( serviceName ) + "." + getTypeName( serviceType );
+    }
+
+
+    private Instance getInstance( String fullName, String serviceType )
+    {
+        String key = fullName.toLowerCase();
+        Instance instance = m_instances.get( key );
+
+        if ( instance == null )
+        {
+            instance = new Instance( fullName, serviceType );
+            m_instances.put( key, instance );
+        }
+
+        return instance;
+    }
+
+
+    // Returns null unless we have the instance's port and host address.
+    private CommsServiceInfo getResolved( Instance instance, long now )
+    {
+        if ( instance.m_target == null || instance.m_srvExpiryTime <= now )
+        {
+            return null;
+        }
+
+        HostAddress hostAddress = m_hostAddresses.get( instance.m_target.toLowerCase() );
+
+        if ( hostAddress == null || hostAddress.m_expiryTime <= now )
+        {
+            return null;
+        }
+
+        CommsServiceInfo resolved = new CommsServiceInfo( MdnsMessage.getFirstLabel( instance.m_fullName ), instance.m_serviceType, hostAddress.m_address,
+                        instance.m_port );
+
+        if ( instance.m_attributes != null )
+        {
+            resolved.setAttributes( instance.m_attributes );
+        }
+
+        return resolved;
+    }
+
+
+    private boolean isOwnInstance( String fullName )
+    {
+        return ( m_registered != null && m_probed && fullName.equalsIgnoreCase( getFullName( m_registered.getServiceName(), m_registered.getServiceType() ) ) );
+    }
+
+
+    // All our records, or to say goodbye the same with a time to live of 0.
+    private MdnsMessage createAnnouncement( CommsServiceInfo registered, boolean goodbye )
+    {
+        MdnsMessage message = new MdnsMessage( 0, true );
+
+        message.m_answers.add( createPtrRecord( registered, ( goodbye ) ? 0 : OTHER_TTL ) );
+        message.m_answers.add( createSrvRecord( registered, ( goodbye ) ? 0 : HOST_TTL ) );
+        message.m_answers.add( createTxtRecord( registered, ( goodbye ) ? 0 : OTHER_TTL ) );
+        message.m_answers.add( createARecord( ( goodbye ) ? 0 : HOST_TTL ) );
+
+        return message;
+    }
+
+
+    private MdnsMessage.Record createPtrRecord( CommsServiceInfo registered, long ttl )
+    {
+        return MdnsMessage.Record.createPtr( getTypeName( registered.getServiceType() ), getFullName( registered.getServiceName(), registered.getServiceType() ), ttl );
+    }
+
+
+    private MdnsMessage.Record createSrvRecord( CommsServiceInfo registered, long ttl )
+    {
+        return MdnsMessage.Record.createSrv( getFullName( registered.getServiceName(), registered.getServiceType() ), m_hostName, registered.getPort(), ttl );
+    }
+
+
+    private MdnsMessage.Record createTxtRecord( CommsServiceInfo registered, long ttl )
+    {
+        return MdnsMessage.Record.createTxt( getFullName( registered.getServiceName(), registered.getServiceType() ),
+                        MdnsMessage.toTxtStrings( registered.getAttributes() ), ttl );
+    }
+
+
+    private MdnsMessage.Record createARecord( long ttl )
+    {
+        return MdnsMessage.Record.createA( m_hostName, m_interfaceAddress, ttl );
+    }
+
+
+    private static void addRecord( ArrayList<MdnsMessage.Record> records, MdnsMessage.Record record )
+    {
+        for ( MdnsMessage.Record existing : records )
+        {
+            if ( existing.m_type == record.m_type && existing.m_name.equalsIgnoreCase( record.m_name ) )
+            {
+                return;
+            }
+        }
+
+        records.add( record );
+    }
+
+
+    // Send whatever is due now, returns how long until something else is due.
+    private long sendDue()
+    {
+        ArrayList<MdnsMessage> messages = new ArrayList<MdnsMessage>();
+        long wait;
+
+        synchronized ( this )
+        {
+            wait = collectDue( System.currentTimeMillis(), messages );
+        }
+
+        for ( MdnsMessage message : messages )
+        {
+            send( message, m_groupAddress );
+        }
+
+        runCallbacks();
+
+        return wait;
+    }
+
+
+    // Called with the lock held.
+    private long collectDue( long now, ArrayList<MdnsMessage> messages )
+    {
+        long nextTime = now + MAX_RECEIVE_TIMEOUT_MS;
+
+        if ( m_registered != null && !m_probed )
+        {
+            if ( m_nextProbeTime <= now )
+            {
+                if ( m_probesLeft > 0 )
+                {
+                    MdnsMessage probe = new MdnsMessage( 0, false );
+
+                    probe.m_questions.add( new MdnsMessage.Question( getFullName( m_registered.getServiceName(), m_registered.getServiceType() ),
+                                    MdnsMessage.TYPE_ANY, false ) );
+                    messages.add( probe );
+                    m_probesLeft--;
+                    m_nextProbeTime = now + PROBE_INTERVAL_MS;
+                }
+                else
+                {
+                    onProbed();
+                    m_nextAnnounceTime = now;
+                }
+            }
+
+            nextTime = Math.min( nextTime, m_nextProbeTime );
+        }
+
+        if ( m_registered != null && m_probed && m_announcesLeft > 0 )
+        {
+            if ( m_nextAnnounceTime <= now )
+            {
+                messages.add( createAnnouncement( m_registered, false ) );
+                m_announcesLeft--;
+                m_nextAnnounceTime = now + ANNOUNCE_INTERVAL_MS;
+            }
+
+            nextTime = Math.min( nextTime, m_nextAnnounceTime );
+        }
+
+        if ( m_pendingResponse != null )
+        {
+            if ( m_pendingResponseTime <= now )
+            {
+                messages.add( m_pendingResponse );
+                m_pendingResponse = null;
+            }
+            else
+            {
+                nextTime = Math.min( nextTime, m_pendingResponseTime );
+            }
+        }
+
+        MdnsMessage query = new MdnsMessage( 0, false );
+
+        if ( m_browseType != null )
+        {
+            if ( m_nextQueryTime <= now )
+            {
+                query.m_questions.add( new MdnsMessage.Question( getTypeName( m_browseType ), MdnsMessage.TYPE_PTR, false ) );
+                m_nextQueryTime = now + m_queryIntervalMs;
+                m_queryIntervalMs = Math.min( QUERY_MAX_INTERVAL_MS, m_queryIntervalMs * 2 );
+            }
+
+            nextTime = Math.min( nextTime, m_nextQueryTime );
+        }
+
+        nextTime = Math.min( nextTime, checkInstances( now, query ) );
+
+        if ( !query.isEmpty() )
+        {
+            messages.add( query );
+        }
+
+        return Math.max( 1, nextTime - now );
+    }
+
+
+    // Report found, moved, changed and lost instances, complete resolves and ask for anything
+    // missing. Returns when something is next due. Called with the lock held.
+    private long checkInstances( long now, MdnsMessage query )
+    {
+        long nextTime = Long.MAX_VALUE;
+        Iterator<Resolve> resolves = m_resolves.iterator();
+
+        while ( resolves.hasNext() )
+        {
+            final Resolve resolve = resolves.next();
+            Instance instance = getInstance( resolve.m_fullName, resolve.m_serviceInfo.getServiceType() );
+            final CommsServiceInfo resolved = getResolved( instance, now );
+
+            if ( resolved != null )
+            {
+                resolves.remove();
+                m_callbacks.add( new Runnable()
+                {
+                    public void run()
+                    {
+                        resolve.m_listener.onServiceResolved( resolved );
+                    }
+                } );
+            }
+            else if ( resolve.m_timeoutTime <= now )
+            {
+                resolves.remove();
+                m_callbacks.add( new Runnable()
+                {
+                    public void run()
+                    {
+                        resolve.m_listener.onResolveFailed( resolve.m_serviceInfo, FAILURE_INTERNAL_ERROR );
+                    }
+                } );
+            }
+            else
+            {
+                nextTime = Math.min( nextTime, checkResolveQuery( instance, now, query ) );
+            }
+        }
+
+        Iterator<HostAddress> hostAddresses = m_hostAddresses.values().iterator();
+
+        while ( hostAddresses.hasNext() )
+        {
+            if ( hostAddresses.next().m_expiryTime <= now )
+            {
+                hostAddresses.remove();
+            }
+        }
+
+        Iterator<Instance> instances = m_instances.values().iterator();
+
+        while ( instances.hasNext() )
+        {
+            Instance instance = instances.next();
+            boolean expired = ( instance.m_browsed ) ? ( instance.m_ptrExpiryTime <= now ) : ( instance.m_srvExpiryTime <= now && !isResolving( instance ) );
+
+            if ( expired || ( instance.m_target != null && instance.m_srvExpiryTime <= now ) )
+            {
+                instances.remove();
+                onLost( instance );
+                continue;
+            }
+
+            if ( !instance.m_browsed )
+            {
+                continue;
+            }
+
+            CommsServiceInfo resolved = getResolved( instance, now );
+
+            if ( resolved == null )
+            {
+                nextTime = Math.min( nextTime, checkResolveQuery( instance, now, query ) );
+            }
+            else if ( instance.m_found == null || instance.m_found.getPort() != resolved.getPort() || !instance.m_found.getHost().equals( resolved.getHost() )
+                            || !instance.m_found.getAttributes().equals( resolved.getAttributes() ) )
+            {
+                instance.m_found = resolved;
+                onFound( resolved );
+            }
+
+            nextTime = Math.min( nextTime, Math.min( instance.m_ptrExpiryTime, instance.m_srvExpiryTime ) );
+        }
+
+        return nextTime;
+    }
+
+
+    private boolean isResolving( Instance instance )
+    {
+        for ( Resolve resolve : m_resolves )
+        {
+            if ( resolve.m_fullName.equalsIgnoreCase( instance.m_fullName ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    // Ask for an instance's SRV and TXT, and its host's address if we know the host.
+    private long checkResolveQuery( Instance instance, long now, MdnsMessage query )
+    {
+        if ( instance.m_nextResolveTime <= now )
+        {
+            query.m_questions.add( new MdnsMessage.Question( instance.m_fullName, MdnsMessage.TYPE_SRV, false ) );
+            query.m_questions.add( new MdnsMessage.Question( instance.m_fullName, MdnsMessage.TYPE_TXT, false ) );
+
+            if ( instance.m_target != null )
+            {
+                query.m_questions.add( new MdnsMessage.Question( instance.m_target, MdnsMessage.TYPE_A, false ) );
+            }
+
+            instance.m_nextResolveTime = now + RESOLVE_INTERVAL_MS;
+        }
+
+        return instance.m_nextResolveTime;
+    }
+
+
+    // Called with the lock held.
+    private void onProbed()
+    {
+        final RegistrationListener listener = m_registrationListener;
+        final CommsServiceInfo registered = new CommsServiceInfo( m_registered );
+
+        m_probed = true;
+        m_log.i( TAG, "Registered service: " + registered );
+
+        m_callbacks.add( new Runnable()
+        {
+            public void run()
+            {
+                listener.onServiceRegistered( registered );
+            }
+        } );
+    }
+
+
+    private void onFound( final CommsServiceInfo serviceInfo )
+    {
+        final DiscoveryListener listener = m_discoveryListener;
+
+        m_callbacks.add( new Runnable()
+        {
+            public void run()
+            {
+                listener.onServiceFound( serviceInfo );
+            }
+        } );
+    }
+
+
+    private void onLost( Instance instance )
+    {
+        final DiscoveryListener listener = m_discoveryListener;
+        final CommsServiceInfo serviceInfo = instance.m_found;
+
+        if ( listener == null || serviceInfo == null )
+        {
+            return;
+        }
+
+        m_callbacks.add( new Runnable()
+        {
+            public void run()
+            {
+                listener.onServiceLost( serviceInfo );
+            }
+        } );
+    }
+
+
+    private void runCallbacks()
+    {
+        ArrayList<Runnable> callbacks;
+
+        synchronized ( this )
+        {
+            if ( m_callbacks.isEmpty() )
+            {
+                return;
+            }
+
+            callbacks = new ArrayList<Runnable>( m_callbacks );
+            m_callbacks.clear();
+        }
+
+        for ( Runnable callback : callbacks )
+        {
+            try
+            {
+                callback.run();
+            }
+            catch ( Exception ex )
+            {
+                m_log.e( TAG, "Error in discovery listener: ", ex );
+            }
+        }
+    }
+
+
+    private void onPacket( DatagramPacket packet )
+    {
+        MdnsMessage message;
+
+        try
+        {
+            message = MdnsMessage.decode( packet.getData(), packet.getLength() );
+        }
+        catch ( IOException e )
+        {
+            m_log.d( TAG, "Ignoring bad mDNS message from " + packet.getSocketAddress() + ": " + e.getMessage() );
+
+            return;
+        }
+
+        MdnsMessage unicastResponse = null;
+
+        synchronized ( this )
+        {
+            if ( m_socket == null )
+            {
+                return;
+            }
+
+            if ( message.m_response )
+            {
+                onResponse( message, System.currentTimeMillis() );
+            }
+            else if ( packet.getPort() != MDNS_PORT )
+            {
+                unicastResponse = createLegacyResponse( message );
+            }
+            else
+            {
+                onQuery( message );
+            }
+        }
+
+        if ( unicastResponse != null )
+        {
+            send( unicastResponse, packet.getSocketAddress() );
+        }
+    }
+
+
+    // Called with the lock held.
+    private void onResponse( MdnsMessage message, long now )
+    {
+        ArrayList<MdnsMessage.Record> records = new ArrayList<MdnsMessage.Record>( message.m_answers );
+
+        records.addAll( message.m_additionals );
+
+        if ( m_registered != null && !m_probed && isNameConflict( records ) )
+        {
+            onNameConflict( now );
+        }
+
+        // Addresses first, then the PTR records that name the instances, then their SRV and TXT records.
+        for ( MdnsMessage.Record record : records )
+        {
+            if ( record.m_type == MdnsMessage.TYPE_A )
+            {
+                long expiryTime = now + ( ( record.m_ttl == 0 ) ? GOODBYE_EXPIRY_MS : record.m_ttl * 1000 );
+
+                m_hostAddresses.put( record.m_name.toLowerCase(), new HostAddress( record.m_address, expiryTime ) );
+            }
+        }
+
+        for ( MdnsMessage.Record record : records )
+        {
+            if ( record.m_type == MdnsMessage.TYPE_PTR && m_browseType != null && record.m_name.equalsIgnoreCase( getTypeName( m_browseType ) )
+                            && !isOwnInstance( record.m_target ) )
+            {
+                Instance instance = getInstance( record.m_target, m_browseType );
+
+                instance.m_browsed = true;
+                instance.m_ptrExpiryTime = now + ( ( record.m_ttl == 0 ) ? GOODBYE_EXPIRY_MS : record.m_ttl * 1000 );
+            }
+        }
+
+        for ( MdnsMessage.Record record : records )
+        {
+            Instance instance = m_instances.get( record.m_name.toLowerCase() );
+
+            if ( instance == null )
+            {
+                continue;
+            }
+
+            if ( record.m_type == MdnsMessage.TYPE_SRV )
+            {
+                instance.m_target = record.m_target;
+                instance.m_port = record.m_port;
+                instance.m_srvExpiryTime = now + ( ( record.m_ttl == 0 ) ? GOODBYE_EXPIRY_MS : record.m_ttl * 1000 );
+            }
+            else if ( record.m_type == MdnsMessage.TYPE_TXT && record.m_ttl > 0 )
+            {
+                instance.m_attributes = MdnsMessage.fromTxtStrings( record.m_strings );
+            }
+        }
+    }
+
+
+    // Whether another responder has answered for our service name while we probe for it.
+    private boolean isNameConflict( ArrayList<MdnsMessage.Record> records )
+    {
+        String fullName = getFullName( m_registered.getServiceName(), m_registered.getServiceType() );
+
+        for ( MdnsMessage.Record record : records )
+        {
+            if ( record.m_type == MdnsMessage.TYPE_SRV && record.m_name.equalsIgnoreCase( fullName )
+                            && ( !record.m_target.equalsIgnoreCase( m_hostName ) || record.m_port != m_registered.getPort() ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    // Answer questions about our service. Called with the lock held.
+    private void onQuery( MdnsMessage query )
+    {
+        MdnsMessage response = createResponse( query );
+
+        if ( response == null )
+        {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        if ( m_pendingResponse == null )
+        {
+            m_pendingResponse = response;
+            m_pendingResponseTime = now + SHARED_DELAY_MIN_MS + m_random.nextInt( SHARED_DELAY_RANGE_MS );
+        }
+        else
+        {
+            for ( MdnsMessage.Record record : response.m_answers )
+            {
+                addRecord( m_pendingResponse.m_answers, record );
+            }
+
+            for ( MdnsMessage.Record record : response.m_additionals )
+            {
+                addRecord( m_pendingResponse.m_additionals, record );
+            }
+        }
+
+        if ( !response.m_answers.isEmpty() && response.m_answers.get( 0 ).m_type != MdnsMessage.TYPE_PTR )
+        {
+            // Only we can answer for our own SRV, TXT and A records, so there's no need to wait.
+            m_pendingResponseTime = now;
+        }
+    }
+
+
+    // A resolver that isn't mDNS, on a port other than 5353, gets a plain DNS answer.
+    private MdnsMessage createLegacyResponse( MdnsMessage query )
+    {
+        MdnsMessage answers = createResponse( query );
+
+        if ( answers == null )
+        {
+            return null;
+        }
+
+        MdnsMessage response = new MdnsMessage( query.m_id, true );
+
+        response.m_questions.addAll( query.m_questions );
+
+        for ( MdnsMessage.Record record : answers.m_answers )
+        {
+            response.m_answers.add( copyRecord( record, LEGACY_TTL ) );
+        }
+
+        for ( MdnsMessage.Record record : answers.m_additionals )
+        {
+            response.m_additionals.add( copyRecord( record, LEGACY_TTL ) );
+        }
+
+        return response;
+    }
+
+
+    private static MdnsMessage.Record copyRecord( MdnsMessage.Record record, long maxTtl )
+    {
+        MdnsMessage.Record copy = new MdnsMessage.Record( record.m_name, record.m_type, Math.min( record.m_ttl, maxTtl ) );
+
+        copy.m_target = record.m_target;
+        copy.m_port = record.m_port;
+        copy.m_address = record.m_address;
+        copy.m_strings = record.m_strings;
+
+        return copy;
+    }
+
+
+    // The answers to a query, with the rest of our records as additionals so the asker
+    // needn't ask again. Returns null if there is nothing of ours being asked about.
+    private MdnsMessage createResponse( MdnsMessage query )
+    {
+        if ( m_registered == null || !m_probed )
+        {
+            return null;
+        }
+
+        MdnsMessage.Record ptrRecord = createPtrRecord( m_registered, OTHER_TTL );
+        MdnsMessage.Record srvRecord = createSrvRecord( m_registered, HOST_TTL );
+        MdnsMessage.Record txtRecord = createTxtRecord( m_registered, OTHER_TTL );
+        MdnsMessage.Record aRecord = createARecord( HOST_TTL );
+        MdnsMessage response = new MdnsMessage( 0, true );
+
+        for ( MdnsMessage.Question question : query.m_questions )
+        {
+            if ( question.m_name.equalsIgnoreCase( SERVICES_NAME ) && ( question.m_type == MdnsMessage.TYPE_PTR || question.m_type == MdnsMessage.TYPE_ANY ) )
+            {
+                addRecord( response.m_answers, MdnsMessage.Record.createPtr( SERVICES_NAME, ptrRecord.m_name, OTHER_TTL ) );
+            }
+
+            for ( MdnsMessage.Record record : new MdnsMessage.Record[] { ptrRecord, srvRecord, txtRecord, aRecord } )
+            {
+                if ( question.matches( record ) )
+                {
+                    addRecord( response.m_answers, record );
+                }
+            }
+        }
+
+        if ( response.m_answers.isEmpty() )
+        {
+            return null;
+        }
+
+        for ( MdnsMessage.Record record : new MdnsMessage.Record[] { srvRecord, txtRecord, aRecord } )
+        {
+            if ( !response.m_answers.contains( record ) )
+            {
+                addRecord( response.m_additionals, record );
+            }
+        }
+
+        return response;
+    }
+
+
+    private void send( MdnsMessage message, SocketAddress address )
+    {
+        MulticastSocket socket;
+
+        synchronized ( this )
+        {
+            socket = m_socket;
+        }
+
+        if ( socket != null )
+        {
+            sendOn( socket, message, address );
+        }
+    }
+
+
+    private void sendOn( MulticastSocket socket, MdnsMessage message, SocketAddress address )
+    {
+        byte[] data = message.encode();
+
+        try
+        {
+            socket.send( new DatagramPacket( data, data.length, address ) );
+        }
+        catch ( IOException e )
+        {
+            m_log.w( TAG, "Unable to send mDNS message: " + e.toString() );
+        }
+    }
+
+
+    // Receives messages, and in between sends queries, announcements and delayed answers when they're due.
+    class MdnsThread implements Runnable
+    {
+        private final MulticastSocket m_threadSocket;
+
+
+        MdnsThread( MulticastSocket socket )
+        {
+            m_threadSocket = socket;
+        }
+
+
+        // @Override
+        public void run()
+        {
+            DatagramPacket packet = new DatagramPacket( new byte[MdnsMessage.MAX_PACKET_SIZE], MdnsMessage.MAX_PACKET_SIZE );
+
+            while ( !Thread.currentThread().isInterrupted() )
+            {
+                try
+                {
+                    m_threadSocket.setSoTimeout( (int) Math.min( MAX_RECEIVE_TIMEOUT_MS, sendDue() ) );
+                    packet.setLength( MdnsMessage.MAX_PACKET_SIZE );
+                    m_threadSocket.receive( packet );
+                    onPacket( packet );
+                }
+                catch ( SocketTimeoutException e )
+                {
+                    // Time to send what's due.
+                }
+                catch ( IOException e )
+                {
+                    if ( !m_threadSocket.isClosed() )
+                    {
+                        m_log.e( TAG, "mDNS receive error: ", e );
+                    }
+
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,566 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+
+// A multicast DNS message, the questions and records we need for DNS-SD:
+// PTR, SRV, TXT and A. Names are dotted strings ending in a dot, with any dot
+// or backslash in a label escaped by a backslash, since service instance names
+// may contain them. Names are written without compression, which is always
+// allowed, but compressed names are read.
+class MdnsMessage
+{
+    // Constants:
+    static final int             TYPE_A          = 1;
+    static final int             TYPE_PTR        = 12;
+    static final int             TYPE_TXT        = 16;
+    static final int             TYPE_SRV        = 33;
+    static final int             TYPE_ANY        = 255;
+    static final int             CLASS_IN        = 1;
+    // The top bit of the class is the unicast response bit in questions
+    // and the cache flush bit in records.
+    private static final int     CLASS_TOP_BIT   = 0x8000;
+    private static final int     FLAGS_RESPONSE  = 0x8400;
+    private static final int     FLAG_QR         = 0x8000;
+    private static final int     MAX_NAME_JUMPS  = 32;
+    private static final Charset NAME_CHARSET    = Charset.forName( "UTF-8" );
+    // The largest message we send or expect, RFC 6762 section 17.
+    static final int             MAX_PACKET_SIZE = 9000;
+
+    // Member variables:
+    final int                    m_id;
+    final boolean                m_response;
+    final ArrayList<Question>    m_questions     = new ArrayList<Question>();
+    final ArrayList<Record>      m_answers       = new ArrayList<Record>();
+    // Authority records are read in with the additionals, we don't probe.
+    final ArrayList<Record>      m_additionals   = new ArrayList<Record>();
+
+
+    static class Question
+    {
+        final String  m_name;
+        final int     m_type;
+        final boolean m_unicastResponse;
+
+
+        Question( String name, int type, boolean unicastResponse )
+        {
+            m_name = name;
+            m_type = type;
+            m_unicastResponse = unicastResponse;
+        }
+
+
+        boolean matches( Record record )
+        {
+            return ( ( m_type == TYPE_ANY || m_type == record.m_type ) && m_name.equalsIgnoreCase( record.m_name ) );
+        }
+    }
+
+    // Only the fields for the record's type are used.
+    static class Record
+    {
+        final String  m_name;
+        final int     m_type;
+        final long    m_ttl;
+        boolean       m_cacheFlush = false;
+        // PTR and SRV.
+        String        m_target     = null;
+        // SRV.
+        int           m_port       = 0;
+        // A.
+        InetAddress   m_address    = null;
+        // TXT, each string is "key=value" or "key".
+        byte[][]      m_strings    = null;
+
+
+        Record( String name, int type, long ttl )
+        {
+            m_name = name;
+            m_type = type;
+            m_ttl = ttl;
+        }
+
+
+        static Record createPtr( String name, String target, long ttl )
+        {
+            Record record = new Record( name, TYPE_PTR, ttl );
+
+            record.m_target = target;
+
+            return record;
+        }
+
+
+        static Record createSrv( String name, String target, int port, long ttl )
+        {
+            Record record = new Record( name, TYPE_SRV, ttl );
+
+            record.m_target = target;
+            record.m_port = port;
+            record.m_cacheFlush = true;
+
+            return record;
+        }
+
+
+        static Record createTxt( String name, byte[][] strings, long ttl )
+        {
+            Record record = new Record( name, TYPE_TXT, ttl );
+
+            record.m_strings = strings;
+            record.m_cacheFlush = true;
+
+            return record;
+        }
+
+
+        static Record createA( String name, InetAddress address, long ttl )
+        {
+            Record record = new Record( name, TYPE_A, ttl );
+
+            record.m_address = address;
+            record.m_cacheFlush = true;
+
+            return record;
+        }
+
+
+        @Override
+        public String toString()
+        {
+            return m_name + " " + m_type + " ttl " + m_ttl + ( ( m_target != null ) ? " " + m_target : "" ) + ( ( m_port != 0 ) ? ":" + m_port : "" )
+                            + ( ( m_address != null ) ? " " + m_address.getHostAddress() : "" );
+        }
+    }
+
+
+    MdnsMessage( int id, boolean response )
+    {
+        m_id = id;
+        m_response = response;
+    }
+
+
+    boolean isEmpty()
+    {
+        return ( m_questions.isEmpty() && m_answers.isEmpty() && m_additionals.isEmpty() );
+    }
+
+
+    byte[] encode()
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream( 512 );
+        DataOutputStream out = new DataOutputStream( bytes );
+
+        try
+        {
+            out.writeShort( m_id );
+            out.writeShort( ( m_response ) ? FLAGS_RESPONSE : 0 );
+            out.writeShort( m_questions.size() );
+            out.writeShort( m_answers.size() );
+            out.writeShort( 0 );
+            out.writeShort( m_additionals.size() );
+
+            for ( Question question : m_questions )
+            {
+                writeName( out, question.m_name );
+                out.writeShort( question.m_type );
+                out.writeShort( CLASS_IN | ( ( question.m_unicastResponse ) ? CLASS_TOP_BIT : 0 ) );
+            }
+
+            for ( Record record : m_answers )
+            {
+                writeRecord( out, record );
+            }
+
+            for ( Record record : m_additionals )
+            {
+                writeRecord( out, record );
+            }
+        }
+        catch ( IOException e )
+        {
+            // Not from a ByteArrayOutputStream.
+            throw new IllegalStateException( e );
+        }
+
+        return bytes.toByteArray();
+    }
+
+
+    // Throws IOException if the message is malformed.
+    static MdnsMessage decode( byte[] data, int length ) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap( data, 0, length );
+
+        try
+        {
+            int id = buffer.getShort() & 0xffff;
+            int flags = buffer.getShort() & 0xffff;
+            int questionCount = buffer.getShort() & 0xffff;
+            int answerCount = buffer.getShort() & 0xffff;
+            int authorityCount = buffer.getShort() & 0xffff;
+            int additionalCount = buffer.getShort() & 0xffff;
+            MdnsMessage message = new MdnsMessage( id, ( flags & FLAG_QR ) != 0 );
+
+            for ( int i = 0; i < questionCount; i++ )
+            {
+                String name = readName( buffer );
+                int type = buffer.getShort() & 0xffff;
+                int qclass = buffer.getShort() & 0xffff;
+
+                message.m_questions.add( new Question( name, type, ( qclass & CLASS_TOP_BIT ) != 0 ) );
+            }
+
+            for ( int i = 0; i < answerCount; i++ )
+            {
+                addRecord( message.m_answers, readRecord( buffer ) );
+            }
+
+            for ( int i = 0; i < authorityCount + additionalCount; i++ )
+            {
+                addRecord( message.m_additionals, readRecord( buffer ) );
+            }
+
+            return message;
+        }
+        catch ( BufferUnderflowException e )
+        {
+            throw new IOException( "Truncated message." );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            throw new IOException( "Bad offset in message." );
+        }
+    }
+
+
+    static String escapeLabel( String label )
+    {
+        return label.replace( "\\", "\\\\" ).replace( ".", "\\." );
+    }
+
+
+    // The first label of a name, unescaped, such as the instance name of a service.
+    static String getFirstLabel( String name )
+    {
+        StringBuilder label = new StringBuilder();
+
+        for ( int i = 0; i < name.length(); i++ )
+        {
+            char c = name.charAt( i );
+
+            if ( c == '\\' && i + 1 < name.length() )
+            {
+                label.append( name.charAt( ++i ) );
+            }
+            else if ( c == '.' )
+            {
+                break;
+            }
+            else
+            {
+                label.append( c );
+            }
+        }
+
+        return label.toString();
+    }
+
+
+    // The name after its first label.
+    static String getParent( String name )
+    {
+        for ( int i = 0; i < name.length(); i++ )
+        {
+            char c = name.charAt( i );
+
+            if ( c == '\\' )
+            {
+                i++;
+            }
+            else if ( c == '.' )
+            {
+                return name.substring( i + 1 );
+            }
+        }
+
+        return "";
+    }
+
+
+    // TXT strings from attributes, "key=value", or just "key" for a null value.
+    static byte[][] toTxtStrings( Map<String, String> attributes )
+    {
+        byte[][] strings = new byte[attributes.size()][];
+        int i = 0;
+
+        for ( Map.Entry<String, String> attribute : attributes.entrySet() )
+        {
+            String value = attribute.getValue();
+
+            strings[i++] = ( ( value == null ) ? attribute.getKey() : attribute.getKey() + "=" + value ).getBytes( NAME_CHARSET );
+        }
+
+        return strings;
+    }
+
+
+    // Attributes from TXT strings, a key without a value has the empty string. Only
+    // the first of a key is used, ignoring case, as RFC 6763 section 6.4 says.
+    static Map<String, String> fromTxtStrings( byte[][] strings )
+    {
+        LinkedHashMap<String, String> attributes = new LinkedHashMap<String, String>();
+        ArrayList<String> keys = new ArrayList<String>();
+
+        if ( strings == null )
+        {
+            return attributes;
+        }
+
+        for ( byte[] bytes : strings )
+        {
+            String string = new String( bytes, NAME_CHARSET );
+            int equals = string.indexOf( '=' );
+            String key = ( equals < 0 ) ? string : string.substring( 0, equals );
+            String lowerKey = key.toLowerCase( Locale.US );
+
+            if ( key.length() == 0 || keys.contains( lowerKey ) )
+            {
+                continue;
+            }
+
+            keys.add( lowerKey );
+            attributes.put( key, ( equals < 0 ) ? "" : string.substring( equals + 1 ) );
+        }
+
+        return attributes;
+    }
+
+
+    private static void addRecord( ArrayList<Record> records, Record record )
+    {
+        // Types we don't use are skipped.
+        if ( record != null )
+        {
+            records.add( record );
+        }
+    }
+
+
+    private static void writeName( DataOutputStream out, String name ) throws IOException
+    {
+        String remaining = name;
+
+        while ( remaining.length() > 0 )
+        {
+            byte[] label = getFirstLabel( remaining ).getBytes( NAME_CHARSET );
+
+            if ( label.length > 63 )
+            {
+                throw new IOException( "Label too long in: " + name );
+            }
+
+            if ( label.length > 0 )
+            {
+                out.writeByte( label.length );
+                out.write( label );
+            }
+
+            remaining = getParent( remaining );
+        }
+
+        out.writeByte( 0 );
+    }
+
+
+    private static void writeRecord( DataOutputStream out, Record record ) throws IOException
+    {
+        ByteArrayOutputStream rdataBytes = new ByteArrayOutputStream( 64 );
+        DataOutputStream rdata = new DataOutputStream( rdataBytes );
+
+        switch ( record.m_type )
+        {
+            case TYPE_PTR:
+                writeName( rdata, record.m_target );
+                break;
+
+            case TYPE_SRV:
+                rdata.writeShort( 0 );
+                rdata.writeShort( 0 );
+                rdata.writeShort( record.m_port );
+                writeName( rdata, record.m_target );
+                break;
+
+            case TYPE_TXT:
+                if ( record.m_strings == null || record.m_strings.length == 0 )
+                {
+                    // An empty TXT record is a single empty string.
+                    rdata.writeByte( 0 );
+                }
+                else
+                {
+                    for ( byte[] string : record.m_strings )
+                    {
+                        int length = Math.min( string.length, 255 );
+
+                        rdata.writeByte( length );
+                        rdata.write( string, 0, length );
+                    }
+                }
+                break;
+
+            case TYPE_A:
+                rdata.write( record.m_address.getAddress() );
+                break;
+
+            default:
+                throw new IOException( "Unsupported record type " + record.m_type );
+        }
+
+        writeName( out, record.m_name );
+        out.writeShort( record.m_type );
+        out.writeShort( CLASS_IN | ( ( record.m_cacheFlush ) ? CLASS_TOP_BIT : 0 ) );
+        out.writeInt( (int) record.m_ttl );
+        out.writeShort( rdataBytes.size() );
+        rdataBytes.writeTo( out );
+    }
+
+
+    // Returns null for types we don't use.
+    private static Record readRecord( ByteBuffer buffer ) throws IOException
+    {
+        String name = readName( buffer );
+        int type = buffer.getShort() & 0xffff;
+        int rclass = buffer.getShort() & 0xffff;
+        long ttl = buffer.getInt() & 0xffffffffL;
+        int rdataLength = buffer.getShort() & 0xffff;
+        int rdataEnd = buffer.position() + rdataLength;
+        Record record = new Record( name, type, ttl );
+
+        record.m_cacheFlush = ( ( rclass & CLASS_TOP_BIT ) != 0 );
+
+        switch ( type )
+        {
+            case TYPE_PTR:
+                record.m_target = readName( buffer );
+                break;
+
+            case TYPE_SRV:
+                buffer.getShort();
+                buffer.getShort();
+                record.m_port = buffer.getShort() & 0xffff;
+                record.m_target = readName( buffer );
+                break;
+
+            case TYPE_TXT:
+                record.m_strings = readStrings( buffer, rdataEnd );
+                break;
+
+            case TYPE_A:
+                if ( rdataLength != 4 )
+                {
+                    throw new IOException( "Bad A record length " + rdataLength );
+                }
+
+                byte[] address = new byte[4];
+
+                buffer.get( address );
+                record.m_address = InetAddress.getByAddress( address );
+                break;
+
+            default:
+                record = null;
+                break;
+        }
+
+        buffer.position( rdataEnd );
+
+        return record;
+    }
+
+
+    private static byte[][] readStrings( ByteBuffer buffer, int end )
+    {
+        ArrayList<byte[]> strings = new ArrayList<byte[]>();
+
+        while ( buffer.position() < end )
+        {
+            byte[] string = new byte[buffer.get() & 0xff];
+
+            buffer.get( string );
+
+            if ( string.length > 0 )
+            {
+                strings.add( string );
+            }
+        }
+
+        return strings.toArray( new byte[strings.size()][] );
+    }
+
+
+    private static String readName( ByteBuffer buffer ) throws IOException
+    {
+        StringBuilder name = new StringBuilder();
+        int resumePosition = -1;
+        int jumps = 0;
+
+        while ( true )
+        {
+            int length = buffer.get() & 0xff;
+
+            if ( length == 0 )
+            {
+                break;
+            }
+
+            if ( ( length & 0xc0 ) == 0xc0 )
+            {
+                // A pointer to the rest of the name, earlier in the message.
+                int offset = ( ( length & 0x3f ) << 8 ) | ( buffer.get() & 0xff );
+
+                if ( resumePosition < 0 )
+                {
+                    resumePosition = buffer.position();
+                }
+
+                if ( ++jumps > MAX_NAME_JUMPS )
+                {
+                    throw new IOException( "Name pointer loop." );
+                }
+
+                buffer.position( offset );
+                continue;
+            }
+
+            if ( ( length & 0xc0 ) != 0 )
+            {
+                throw new IOException( "Bad label length " + length );
+            }
+
+            byte[] label = new byte[length];
+
+            buffer.get( label );
+            name.append( escapeLabel( new String( label, NAME_CHARSET ) ) ).append( '.' );
+        }
+
+        if ( resumePosition >= 0 )
+        {
+            buffer.position( resumePosition );
+        }
+
+        return name.toString();
+    }
+}
@@ -0,0 +1,100 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.io.PrintStream;
+
+
+// A CommsLog for a plain JVM, writing to standard error.
+public class SystemCommsLog implements CommsLog
+{
+    // Constants:
+    public static final int VERBOSE = 2;
+    public static final int DEBUG   = 3;
+    public static final int INFO    = 4;
+    public static final int WARN    = 5;
+    public static final int ERROR   = 6;
+
+    // Member variables:
+    private final int         m_level;
+    private final PrintStream m_out;
+
+
+    public SystemCommsLog()
+    {
+        this( INFO );
+    }
+
+
+    public SystemCommsLog( int level )
+    {
+        m_level = level;
+        m_out = System.err;
+    }
+
+
+    // @Override
+    public void d( String tag, String msg )
+    {
+        log( DEBUG, "D", tag, msg, null );
+    }
+
+
+    // @Override
+    public void d( String tag, String msg, Throwable tr )
+    {
+        log( DEBUG, "D", tag, msg, tr );
+    }
+
+
+    // @Override
+    public void i( String tag, String msg )
+    {
+        log( INFO, "I", tag, msg, null );
+    }
+
+
+    // @Override
+    public void w( String tag, String msg )
+    {
+        log( WARN, "W", tag, msg, null );
+    }
+
+
+    // @Override
+    public void w( String tag, String msg, Throwable tr )
+    {
+        log( WARN, "W", tag, msg, tr );
+    }
+
+
+    // @Override
+    public void e( String tag, String msg )
+    {
+        log( ERROR, "E", tag, msg, null );
+    }
+
+
+    // @Override
+    public void e( String tag, String msg, Throwable tr )
+    {
+        log( ERROR, "E", tag, msg, tr );
+    }
+
+
+    private void log( int level, String levelStr, String tag, String msg, Throwable tr )
+    {
+        if ( level < m_level )
+        {
+            return;
+        }
+
+        synchronized ( m_out )
+        {
+            m_out.println( levelStr + "/" + tag + ": " + msg );
+
+            if ( tr != null )
+            {
+                tr.printStackTrace( m_out );
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package zed.tools.lib.nsdconnect.core;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+// A CommsLooper for a plain JVM, one thread of its own and a clock that starts
+// at 0 when it's created. Tasks posted after tear down are dropped, as a quit
+// Handler drops them.
+public class SystemCommsLooper implements CommsLooper
+{
+    // Constants:
+    private static final String               TAG          = SystemCommsLooper.class.getSimpleName();
+
+    // Member variables:
+    private final CommsLog                    m_log;
+    private final ScheduledThreadPoolExecutor m_executor;
+    private final long                        m_startNanos = System.nanoTime();
+
+
+    public SystemCommsLooper( final String threadName, CommsLog log )
+    {
+        m_log = log;
+        m_executor = new ScheduledThreadPoolExecutor( 1, new ThreadFactory()
+        {
+            public Thread newThread( Runnable runnable )
+            {
+                Thread thread = new Thread( runnable, threadName );
+
+                thread.setDaemon( true );
+
+                return thread;
+            }
+        } );
+    }
+
+
+    public void tearDown()
+    {
+        m_executor.shutdownNow();
+    }
+
+
+    // @Override
+    public long now()
+    {
+        return ( System.nanoTime() - m_startNanos ) / 1000000L;
+    }
+
+
+    // @Override
+    public void post( Runnable task )
+    {
+        postDelayed( task, 0 );
+    }
+
+
+    // @Override
+    public void postDelayed( final Runnable task, long delayMs )
+    {
+        try
+        {
+            m_executor.schedule( new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        task.run();
+                    }
+                    catch ( RuntimeException e )
+                    {
+                        // The executor would keep it quiet, and the thread carries on.
+                        m_log.e( TAG, "Task failed: ", e );
+                    }
+                }
+            }, Math.max( 0, delayMs ), TimeUnit.MILLISECONDS );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            m_log.d( TAG, "Looper torn down, task dropped." );
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package zed.tools.lib.nsdconnect;
+
+import android.util.Log;
+
+import zed.tools.lib.nsdconnect.core.CommsLog;
+
+
+// Routes the connection engine's logging to logcat.
+public class AndroidCommsLog implements CommsLog
+{
+    // @Override
+    public void d( String tag, String msg )
+    {
+        Log.d( tag, msg );
+    }
+
+
+    // @Override
+    public void d( String tag, String msg, Throwable tr )
+    {
+        Log.d( tag, msg, tr );
+    }
+
+
+    // @Override
+    public void i( String tag, String msg )
+    {
+        Log.i( tag, msg );
+    }
+
+
+    // @Override
+    public void w( String tag, String msg )
+    {
+        Log.w( tag, msg );
+    }
+
+
+    // @Override
+    public void w( String tag, String msg, Throwable tr )
+    {
+        Log.w( tag, msg, tr );
+    }
+
+
+    // @Override
+    public void e( String tag, String msg )
+    {
+        Log.e( tag, msg );
+    }
+
+
+    // @Override
+    public void e( String tag, String msg, Throwable tr )
+    {
+        Log.e( tag, msg, tr );
+    }
+}
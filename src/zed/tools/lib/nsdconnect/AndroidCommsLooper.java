@@ -0,0 +1,43 @@
+package zed.tools.lib.nsdconnect;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import zed.tools.lib.nsdconnect.core.CommsLooper;
+
+
+// Runs discovery's tasks on a looper's thread. The clock is elapsedRealtime(),
+// so a cached service's time to live carries on running while the device sleeps.
+public class AndroidCommsLooper implements CommsLooper
+{
+    // Member variables:
+    private final Handler m_handler;
+
+
+    public AndroidCommsLooper( Looper looper )
+    {
+        m_handler = new Handler( looper );
+    }
+
+
+    // @Override
+    public long now()
+    {
+        return SystemClock.elapsedRealtime();
+    }
+
+
+    // @Override
+    public void post( Runnable task )
+    {
+        m_handler.post( task );
+    }
+
+
+    // @Override
+    public void postDelayed( Runnable task, long delayMs )
+    {
+        m_handler.postDelayed( task, delayMs );
+    }
+}
@@ -17,42 +17,76 @@ package zed.tools.lib.nsdconnect;
  */
 
 import android.content.Context;
-import android.net.nsd.NsdServiceInfo;
 import android.net.nsd.NsdManager;
+import android.net.wifi.WifiManager;
+import android.os.HandlerThread;
 import android.util.Log;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import zed.tools.lib.nsdconnect.core.CommsResolveScheduler;
+import zed.tools.lib.nsdconnect.core.CommsServiceCache;
+import zed.tools.lib.nsdconnect.core.CommsServiceInfo;
+import zed.tools.lib.nsdconnect.core.CommsServiceMetadata;
+import zed.tools.lib.nsdconnect.core.DiscoveryBackend;
+import zed.tools.lib.nsdconnect.core.MdnsDiscoveryBackend;
 
 
 // import java.util.Enumeration;
 
 public class NsdHelper
 {
-    public static final String        TAG                 = "NsdHelper";
-    public static final String        SERVICE_TYPE        = "_http._tcp.";
-    public static final String        SERVICE_NAME_PREFIX = "NsdComms";
-
-    Context                           m_context;
-    String                            m_serviceName;
-    String                            m_localServiceName;
-    NsdManager                        m_nsdManager;
-    NsdManager.RegistrationListener   m_registrationListener;
-    NsdManager.DiscoveryListener      m_discoveryListener;
-    NsdHelperHandler                  m_helperHandler;
-    Hashtable<String, NsdServiceInfo> m_remoteServices;
-    boolean                           m_serviceRegistered = false;
-    boolean                           m_serviceDiscovery  = false;
+    public static final String        TAG                   = "NsdHelper";
+    public static final String        SERVICE_TYPE          = "_http._tcp.";
+    public static final String        SERVICE_NAME_PREFIX   = "NsdComms";
+    public static final String        HELPER_THREAD_NAME    = TAG + ":HelperThread";
+    // How long a lost service is held in case it comes back, flaky multicast loses them often.
+    public static final long          DEFAULT_LOST_GRACE_MS = 15 * 1000;
+
+    Context                               m_context;
+    String                                m_serviceName;
+    String                                m_localServiceName;
+    DiscoveryBackend                      m_discoveryBackend;
+    DiscoveryBackend.RegistrationListener m_registrationListener;
+    DiscoveryBackend.DiscoveryListener    m_discoveryListener;
+    // Held while an mDNS backend is in use, otherwise Wi-Fi drops multicast packets.
+    WifiManager.MulticastLock             m_multicastLock     = null;
+    NsdHelperHandler                      m_helperHandler;
+    CommsResolveScheduler                 m_resolveScheduler;
+    // Resolves and lost service timers run on this thread.
+    HandlerThread                         m_helperThread;
+    AndroidCommsLooper                    m_looper;
+    long                                  m_lostGraceMs       = DEFAULT_LOST_GRACE_MS;
+    CommsServiceCache                     m_remoteServices;
+    // Published in our service's TXT record.
+    Map<String, String>                   m_serviceAttributes = new LinkedHashMap<String, String>();
+    boolean                               m_serviceRegistered = false;
+    boolean                               m_serviceDiscovery  = false;
+
+
+    // Discovers through the NsdManager.
+    public NsdHelper( Context context, String serviceName, NsdHelperHandler helperHandler )
+    {
+        this( context, serviceName, helperHandler, new NsdManagerBackend( (NsdManager) context.getSystemService( Context.NSD_SERVICE ) ) );
+    }
 
 
-    public NsdHelper( Context context, String serviceName, NsdHelperHandler helperHandler )
+    public NsdHelper( Context context, String serviceName, NsdHelperHandler helperHandler, DiscoveryBackend discoveryBackend )
     {
         m_context = context;
         m_serviceName = SERVICE_NAME_PREFIX + " " + serviceName;
         m_helperHandler = helperHandler;
         m_localServiceName = null;
-        m_nsdManager = (NsdManager) context.getSystemService( Context.NSD_SERVICE );
+        m_discoveryBackend = discoveryBackend;
         m_serviceRegistered = false;
         m_serviceDiscovery = false;
-        m_remoteServices = new Hashtable<String, NsdServiceInfo>();
+        m_helperThread = new HandlerThread( HELPER_THREAD_NAME );
+        m_helperThread.start();
+        m_looper = new AndroidCommsLooper( m_helperThread.getLooper() );
+        m_remoteServices = new CommsServiceCache( m_looper );
+        m_resolveScheduler = new CommsResolveScheduler( m_discoveryBackend, m_looper, createResolveHandler(), new AndroidCommsLog() );
+        checkAcquireMulticastLock();
         initialiseNsd();
     }
 
@@ -63,6 +97,10 @@ public class NsdHelper
 
         unregisterService();
         stopDiscovery();
+        m_resolveScheduler.clear();
+        m_helperThread.quit();
+        m_discoveryBackend.tearDown();
+        releaseMulticastLock();
         m_remoteServices.clear();
         m_serviceName = null;
     }
@@ -104,14 +142,13 @@ public class NsdHelper
 
         Log.i( TAG, "Registering service '" + m_serviceName + "'." );
 
-        NsdServiceInfo serviceInfo = new NsdServiceInfo();
+        CommsServiceInfo serviceInfo = new CommsServiceInfo( m_serviceName, SERVICE_TYPE );
         serviceInfo.setPort( port );
-        serviceInfo.setServiceName( m_serviceName );
-        serviceInfo.setServiceType( SERVICE_TYPE );
+        serviceInfo.setAttributes( getServiceAttributes() );
 
         try
         {
-            m_nsdManager.registerService( serviceInfo, NsdManager.PROTOCOL_DNS_SD, m_registrationListener );
+            m_discoveryBackend.registerService( serviceInfo, m_registrationListener );
         }
         catch ( Exception e )
         {
@@ -127,7 +164,7 @@ public class NsdHelper
 
         try
         {
-            m_nsdManager.unregisterService( m_registrationListener );
+            m_discoveryBackend.unregisterService( m_registrationListener );
         }
         catch ( Exception e )
         {
@@ -137,6 +174,47 @@ public class NsdHelper
     }
 
 
+    public synchronized Map<String, String> getServiceAttributes()
+    {
+        return new LinkedHashMap<String, String>( m_serviceAttributes );
+    }
+
+
+    // The attributes to publish with our service. If it is already registered they are
+    // changed in place where the backend can, otherwise they go out with the next registration.
+    public void setServiceAttributes( Map<String, String> attributes )
+    {
+        synchronized ( this )
+        {
+            if ( m_serviceAttributes.equals( attributes ) )
+            {
+                return;
+            }
+
+            m_serviceAttributes = new LinkedHashMap<String, String>( attributes );
+        }
+
+        if ( m_serviceRegistered && !m_discoveryBackend.updateServiceAttributes( m_registrationListener, attributes ) )
+        {
+            Log.d( TAG, "Service attributes will be published when next registered." );
+        }
+    }
+
+
+    // A lost service is only passed on if it hasn't been found again within this time.
+    // Zero passes it on straight away.
+    public void setLostGraceMs( long lostGraceMs )
+    {
+        m_lostGraceMs = Math.max( 0, lostGraceMs );
+    }
+
+
+    public long getLostGraceMs()
+    {
+        return m_lostGraceMs;
+    }
+
+
     public boolean isServiceRegistered()
     {
         return m_serviceRegistered;
@@ -160,7 +238,7 @@ public class NsdHelper
         try
         {
             m_serviceDiscovery = true;
-            m_nsdManager.discoverServices( SERVICE_TYPE, NsdManager.PROTOCOL_DNS_SD, m_discoveryListener );
+            m_discoveryBackend.discoverServices( SERVICE_TYPE, m_discoveryListener );
         }
         catch ( IllegalArgumentException e )
         {
@@ -183,7 +261,7 @@ public class NsdHelper
 
         try
         {
-            m_nsdManager.stopServiceDiscovery( m_discoveryListener );
+            m_discoveryBackend.stopServiceDiscovery( m_discoveryListener );
         }
         catch ( Exception e )
         {
@@ -193,13 +271,26 @@ public class NsdHelper
     }
 
 
-    public Hashtable<String, NsdServiceInfo> getAllServiceInfos()
+    public DiscoveryBackend getDiscoveryBackend()
+    {
+        return m_discoveryBackend;
+    }
+
+
+    public Hashtable<String, CommsServiceInfo> getAllServiceInfos()
+    {
+        return m_remoteServices.getServiceInfos();
+    }
+
+
+    // Resolved services, with their time to live and hit and miss counts.
+    public CommsServiceCache getServiceCache()
     {
         return m_remoteServices;
     }
 
 
-    private synchronized void addNewServiceInfo( NsdServiceInfo serviceInfo )
+    private synchronized void addNewServiceInfo( CommsServiceInfo serviceInfo )
     {
         String serviceName = serviceInfo.getServiceName();
 
@@ -209,12 +300,27 @@ public class NsdHelper
             return;
         }
 
-        m_remoteServices.put( serviceName, serviceInfo );
-        m_helperHandler.onNewService( serviceInfo );
+        CommsServiceCache.Entry previousEntry = m_remoteServices.get( serviceName );
+
+        if ( m_remoteServices.put( serviceInfo ) )
+        {
+            m_helperHandler.onNewService( serviceInfo, CommsServiceMetadata.fromAttributes( serviceInfo.getAttributes() ) );
+        }
+        else if ( !previousEntry.getServiceInfo().getAttributes().equals( serviceInfo.getAttributes() ) )
+        {
+            Log.d( TAG, "Service attributes changed: " + serviceInfo );
+
+            m_helperHandler.onServiceUpdated( serviceInfo, CommsServiceMetadata.fromAttributes( serviceInfo.getAttributes() ) );
+        }
+        else
+        {
+            // Resolved again to the same place, existing connections are left alone.
+            Log.d( TAG, "Service unchanged: " + serviceName );
+        }
     }
 
 
-    private synchronized NsdServiceInfo removeLostServiceInfo( NsdServiceInfo serviceInfo )
+    private synchronized CommsServiceInfo removeLostServiceInfo( CommsServiceInfo serviceInfo )
     {
         String serviceName = serviceInfo.getServiceName();
 
@@ -225,23 +331,66 @@ public class NsdHelper
             return null;
         }
 
-        NsdServiceInfo removedServiceInfo = m_remoteServices.remove( serviceInfo.getServiceName() );
+        CommsServiceCache.Entry removedEntry = m_remoteServices.remove( serviceInfo.getServiceName() );
 
-        if ( removedServiceInfo != null )
+        if ( removedEntry == null )
         {
-            m_helperHandler.onLostService( removedServiceInfo );
+            return null;
         }
 
-        return removedServiceInfo;
+        m_helperHandler.onLostService( removedEntry.getServiceInfo() );
+
+        return removedEntry.getServiceInfo();
+    }
+
+
+    // Hold a lost service as suspect for the grace period, rather than dropping its
+    // connection straight away. Returns false if the service wasn't known.
+    private boolean holdLostServiceInfo( CommsServiceInfo serviceInfo )
+    {
+        final String serviceName = serviceInfo.getServiceName();
+        final long suspectTime = m_remoteServices.markSuspect( serviceName );
+
+        if ( suspectTime == 0 )
+        {
+            return false;
+        }
+
+        Log.i( TAG, "Holding lost service for " + m_lostGraceMs + "ms in case it returns: " + serviceName );
+
+        m_looper.postDelayed( new Runnable()
+        {
+            public void run()
+            {
+                removeSuspectServiceInfo( serviceName, suspectTime );
+            }
+        }, m_lostGraceMs );
+
+        return true;
+    }
+
+
+    // The grace period is over, pass the service on as lost unless it has been found again.
+    // The connection itself is only torn down if it isn't live.
+    private synchronized void removeSuspectServiceInfo( String serviceName, long suspectTime )
+    {
+        CommsServiceCache.Entry removedEntry = m_remoteServices.removeIfSuspect( serviceName, suspectTime );
+
+        if ( removedEntry != null )
+        {
+            Log.i( TAG, "Lost service did not return: " + serviceName );
+
+            m_helperHandler.onLostService( removedEntry.getServiceInfo() );
+        }
     }
 
 
     private void initialiseRegistrationListener()
     {
-        m_registrationListener = new NsdManager.RegistrationListener()
+        m_registrationListener = new DiscoveryBackend.RegistrationListener()
         {
             // @Override
-            public void onServiceRegistered( NsdServiceInfo serviceInfo )
+            public void onServiceRegistered( CommsServiceInfo serviceInfo )
             {
                 Log.i( TAG, "Service registered: " + serviceInfo );
 
@@ -251,7 +400,7 @@ public class NsdHelper
 
 
             // @Override
-            public void onRegistrationFailed( NsdServiceInfo serviceInfo, int errorCode )
+            public void onRegistrationFailed( CommsServiceInfo serviceInfo, int errorCode )
             {
                 Log.e( TAG, "Service registration failed: " + serviceInfo + " error code: " + errorCode );
 
@@ -260,7 +409,7 @@ public class NsdHelper
 
 
             // @Override
-            public void onServiceUnregistered( NsdServiceInfo serviceInfo )
+            public void onServiceUnregistered( CommsServiceInfo serviceInfo )
             {
                 Log.i( TAG, "Service unregistered: " + serviceInfo );
 
@@ -269,7 +418,7 @@ public class NsdHelper
 
 
             // @Override
-            public void onUnregistrationFailed( NsdServiceInfo serviceInfo, int errorCode )
+            public void onUnregistrationFailed( CommsServiceInfo serviceInfo, int errorCode )
             {
                 Log.e( TAG, "Service unregistration failed: " + serviceInfo + " error code: " + errorCode );
 
@@ -282,7 +431,7 @@ public class NsdHelper
 
     private void initialiseDiscoveryListener()
     {
-        m_discoveryListener = new NsdManager.DiscoveryListener()
+        m_discoveryListener = new DiscoveryBackend.DiscoveryListener()
         {
             // @Override
             public void onDiscoveryStarted( String regType )
@@ -292,7 +441,7 @@ public class NsdHelper
 
 
             // @Override
-            public void onServiceFound( NsdServiceInfo serviceInfo )
+            public void onServiceFound( CommsServiceInfo serviceInfo )
             {
                 Log.d( TAG, "Service discovered: " + serviceInfo );
 
@@ -306,17 +455,31 @@ public class NsdHelper
                 {
                     Log.d( TAG, "Service on same machine." );
                 }
-                else if ( serviceName.contains( m_serviceName ) )
+                else if ( !serviceName.contains( m_serviceName ) )
                 {
-                    Log.i( TAG, "Resolving service on remote machine: " + serviceInfo );
+                    Log.d( TAG, "Other service: " + serviceName );
+                }
+                else if ( serviceInfo.isResolved() && m_discoveryBackend.isResolvedOnFound() )
+                {
+                    // Found with its host and port, a move is picked up by the cache.
+                    m_remoteServices.onServiceFound( serviceName );
+                    addNewServiceInfo( serviceInfo );
+                }
+                else if ( m_remoteServices.onServiceFound( serviceName ) != null )
+                {
+                    Log.d( TAG, "Service resolved recently, not resolving again: " + serviceName );
+                }
+                else
+                {
+                    Log.i( TAG, "Queueing resolve of service on remote machine: " + serviceInfo );
 
-                    m_nsdManager.resolveService( serviceInfo, createResolveListener() );
+                    m_resolveScheduler.schedule( serviceInfo );
                 }
             }
 
 
             // @Override
-            public void onServiceLost( NsdServiceInfo serviceInfo )
+            public void onServiceLost( CommsServiceInfo serviceInfo )
             {
                 Log.d( TAG, "Service lost: " + serviceInfo );
 
@@ -332,7 +495,19 @@ public class NsdHelper
                 }
                 else
                 {
-                    NsdServiceInfo removedService = removeLostServiceInfo( serviceInfo );
+                    m_resolveScheduler.cancel( serviceName );
+
+                    if ( m_lostGraceMs > 0 )
+                    {
+                        if ( !holdLostServiceInfo( serviceInfo ) )
+                        {
+                            Log.w( TAG, "Unregistered service lost." );
+                        }
+
+                        return;
+                    }
+
+                    CommsServiceInfo removedService = removeLostServiceInfo( serviceInfo );
 
                     if ( removedService == null )
                     {
@@ -354,43 +529,60 @@ public class NsdHelper
 
 
             // @Override
-            public void onStartDiscoveryFailed( String serviceType, int errorCode )
+            public void onDiscoveryFailed( String serviceType, int errorCode )
             {
                 Log.e( TAG, "Discovery failed: Error code:" + errorCode );
 
-                m_nsdManager.stopServiceDiscovery( this );
+                stopDiscovery();
             }
+        };
+    }
 
 
-            // @Override
-            public void onStopDiscoveryFailed( String serviceType, int errorCode )
-            {
-                Log.e( TAG, "Discovery failed: Error code:" + errorCode );
+    private void checkAcquireMulticastLock()
+    {
+        if ( !( m_discoveryBackend instanceof MdnsDiscoveryBackend ) )
+        {
+            return;
+        }
 
-                m_nsdManager.stopServiceDiscovery( this );
-            }
-        };
+        WifiManager wifiManager = (WifiManager) m_context.getSystemService( Context.WIFI_SERVICE );
+
+        m_multicastLock = wifiManager.createMulticastLock( TAG );
+        m_multicastLock.setReferenceCounted( false );
+        m_multicastLock.acquire();
     }
 
 
-    private NsdManager.ResolveListener createResolveListener()
+    private void releaseMulticastLock()
     {
-        return new NsdManager.ResolveListener()
+        if ( m_multicastLock != null && m_multicastLock.isHeld() )
         {
-            // @Override
-            public void onResolveFailed( NsdServiceInfo serviceInfo, int errorCode )
-            {
-                Log.e( TAG, "Resolve failed: " + errorCode );
-            }
+            m_multicastLock.release();
+        }
 
+        m_multicastLock = null;
+    }
 
+
+    private CommsResolveScheduler.ResolveHandler createResolveHandler()
+    {
+        return new CommsResolveScheduler.ResolveHandler()
+        {
             // @Override
-            public void onServiceResolved( NsdServiceInfo serviceInfo )
+            public void onResolved( CommsServiceInfo serviceInfo )
             {
                 Log.d( TAG, "Resolve succeeded: " + serviceInfo );
 
                 addNewServiceInfo( serviceInfo );
             }
+
+
+            // @Override
+            public void onResolveAbandoned( CommsServiceInfo serviceInfo, int errorCode )
+            {
+                Log.e( TAG, "Resolve failed: " + errorCode );
+            }
         };
     }
 
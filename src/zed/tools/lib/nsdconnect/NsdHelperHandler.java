@@ -1,13 +1,18 @@
 package zed.tools.lib.nsdconnect;
 
-import android.net.nsd.NsdServiceInfo;
+import zed.tools.lib.nsdconnect.core.CommsServiceInfo;
+import zed.tools.lib.nsdconnect.core.CommsServiceMetadata;
 
 
 
 
 public interface NsdHelperHandler
 {
-    public void onNewService( NsdServiceInfo serviceInfo );
+    // The metadata is read from the service's attributes, it is all unknown if there were none.
+    public void onNewService( CommsServiceInfo serviceInfo, CommsServiceMetadata metadata );
+
+    // Resolved again to the same place, but with different attributes.
+    public void onServiceUpdated( CommsServiceInfo serviceInfo, CommsServiceMetadata metadata );
     
-    public void onLostService( NsdServiceInfo serviceInfo );
-}
+    public void onLostService( CommsServiceInfo serviceInfo );
+}
\ No newline at end of file
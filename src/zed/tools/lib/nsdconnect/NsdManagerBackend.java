@@ -0,0 +1,283 @@
+package zed.tools.lib.nsdconnect;
+
+import android.net.nsd.NsdManager;
+import android.net.nsd.NsdServiceInfo;
+import android.os.Build;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import zed.tools.lib.nsdconnect.core.CommsServiceInfo;
+import zed.tools.lib.nsdconnect.core.DiscoveryBackend;
+
+
+// Discovery through the Android NsdManager. Found services have to be
+// resolved, one at a time, as the NsdManager fails any resolve made while
+// another is active. Attributes, the TXT record, need API 21, before that
+// they are neither published nor read.
+public class NsdManagerBackend implements DiscoveryBackend
+{
+    // Constants:
+    private static final Charset                                                 TXT_CHARSET            = Charset.forName( "UTF-8" );
+
+    // Member variables:
+    private final NsdManager                                                     m_nsdManager;
+    // The NsdManager listener made for each of ours, to stop them with.
+    private final HashMap<RegistrationListener, NsdManager.RegistrationListener> m_registrationListeners = new HashMap<RegistrationListener, NsdManager.RegistrationListener>();
+    private final HashMap<DiscoveryListener, NsdManager.DiscoveryListener>       m_discoveryListeners    = new HashMap<DiscoveryListener, NsdManager.DiscoveryListener>();
+
+
+    public NsdManagerBackend( NsdManager nsdManager )
+    {
+        m_nsdManager = nsdManager;
+    }
+
+
+    public static CommsServiceInfo toCommsServiceInfo( NsdServiceInfo nsdServiceInfo )
+    {
+        CommsServiceInfo serviceInfo = new CommsServiceInfo( nsdServiceInfo.getServiceName(), nsdServiceInfo.getServiceType(), nsdServiceInfo.getHost(),
+                        nsdServiceInfo.getPort() );
+
+        if ( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && nsdServiceInfo.getAttributes() != null )
+        {
+            for ( Map.Entry<String, byte[]> attribute : nsdServiceInfo.getAttributes().entrySet() )
+            {
+                byte[] value = attribute.getValue();
+
+                serviceInfo.setAttribute( attribute.getKey(), ( value == null ) ? "" : new String( value, TXT_CHARSET ) );
+            }
+        }
+
+        return serviceInfo;
+    }
+
+
+    public static NsdServiceInfo toNsdServiceInfo( CommsServiceInfo serviceInfo )
+    {
+        NsdServiceInfo nsdServiceInfo = new NsdServiceInfo();
+
+        nsdServiceInfo.setServiceName( serviceInfo.getServiceName() );
+        nsdServiceInfo.setServiceType( serviceInfo.getServiceType() );
+        nsdServiceInfo.setHost( serviceInfo.getHost() );
+        nsdServiceInfo.setPort( serviceInfo.getPort() );
+
+        if ( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP )
+        {
+            for ( Map.Entry<String, String> attribute : serviceInfo.getAttributes().entrySet() )
+            {
+                nsdServiceInfo.setAttribute( attribute.getKey(), attribute.getValue() );
+            }
+        }
+
+        return nsdServiceInfo;
+    }
+
+
+    // @Override
+    public void registerService( CommsServiceInfo serviceInfo, RegistrationListener listener )
+    {
+        NsdManager.RegistrationListener nsdListener = createRegistrationListener( listener );
+
+        synchronized ( m_registrationListeners )
+        {
+            m_registrationListeners.put( listener, nsdListener );
+        }
+
+        m_nsdManager.registerService( toNsdServiceInfo( serviceInfo ), NsdManager.PROTOCOL_DNS_SD, nsdListener );
+    }
+
+
+    // Throws IllegalArgumentException if the listener isn't registered, the same as the NsdManager.
+    // @Override
+    public void unregisterService( RegistrationListener listener )
+    {
+        NsdManager.RegistrationListener nsdListener;
+
+        synchronized ( m_registrationListeners )
+        {
+            nsdListener = m_registrationListeners.remove( listener );
+        }
+
+        if ( nsdListener == null )
+        {
+            throw new IllegalArgumentException( "Listener not registered" );
+        }
+
+        m_nsdManager.unregisterService( nsdListener );
+    }
+
+
+    // The NsdManager has no way to change a registered service's TXT record.
+    // @Override
+    public boolean updateServiceAttributes( RegistrationListener listener, Map<String, String> attributes )
+    {
+        return false;
+    }
+
+
+    // @Override
+    public void discoverServices( String serviceType, DiscoveryListener listener )
+    {
+        NsdManager.DiscoveryListener nsdListener = createDiscoveryListener( listener );
+
+        synchronized ( m_discoveryListeners )
+        {
+            m_discoveryListeners.put( listener, nsdListener );
+        }
+
+        m_nsdManager.discoverServices( serviceType, NsdManager.PROTOCOL_DNS_SD, nsdListener );
+    }
+
+
+    // Throws IllegalArgumentException if the listener isn't discovering, the same as the NsdManager.
+    // @Override
+    public void stopServiceDiscovery( DiscoveryListener listener )
+    {
+        NsdManager.DiscoveryListener nsdListener;
+
+        synchronized ( m_discoveryListeners )
+        {
+            nsdListener = m_discoveryListeners.remove( listener );
+        }
+
+        if ( nsdListener == null )
+        {
+            throw new IllegalArgumentException( "Listener not discovering" );
+        }
+
+        m_nsdManager.stopServiceDiscovery( nsdListener );
+    }
+
+
+    // @Override
+    public void resolveService( CommsServiceInfo serviceInfo, final ResolveListener listener )
+    {
+        m_nsdManager.resolveService( toNsdServiceInfo( serviceInfo ), new NsdManager.ResolveListener()
+        {
+            // @Override
+            public void onServiceResolved( NsdServiceInfo nsdServiceInfo )
+            {
+                listener.onServiceResolved( toCommsServiceInfo( nsdServiceInfo ) );
+            }
+
+
+            // @Override
+            public void onResolveFailed( NsdServiceInfo nsdServiceInfo, int errorCode )
+            {
+                listener.onResolveFailed( toCommsServiceInfo( nsdServiceInfo ), errorCode );
+            }
+        } );
+    }
+
+
+    // @Override
+    public boolean isResolvedOnFound()
+    {
+        return false;
+    }
+
+
+    // @Override
+    public int getMaxConcurrentResolves()
+    {
+        return 1;
+    }
+
+
+    // @Override
+    public void tearDown()
+    {
+        synchronized ( m_registrationListeners )
+        {
+            m_registrationListeners.clear();
+        }
+
+        synchronized ( m_discoveryListeners )
+        {
+            m_discoveryListeners.clear();
+        }
+    }
+
+
+    private NsdManager.RegistrationListener createRegistrationListener( final RegistrationListener listener )
+    {
+        return new NsdManager.RegistrationListener()
+        {
+            // @Override
+            public void onServiceRegistered( NsdServiceInfo nsdServiceInfo )
+            {
+                listener.onServiceRegistered( toCommsServiceInfo( nsdServiceInfo ) );
+            }
+
+
+            // @Override
+            public void onRegistrationFailed( NsdServiceInfo nsdServiceInfo, int errorCode )
+            {
+                listener.onRegistrationFailed( toCommsServiceInfo( nsdServiceInfo ), errorCode );
+            }
+
+
+            // @Override
+            public void onServiceUnregistered( NsdServiceInfo nsdServiceInfo )
+            {
+                listener.onServiceUnregistered( toCommsServiceInfo( nsdServiceInfo ) );
+            }
+
+
+            // @Override
+            public void onUnregistrationFailed( NsdServiceInfo nsdServiceInfo, int errorCode )
+            {
+                listener.onUnregistrationFailed( toCommsServiceInfo( nsdServiceInfo ), errorCode );
+            }
+        };
+    }
+
+
+    private NsdManager.DiscoveryListener createDiscoveryListener( final DiscoveryListener listener )
+    {
+        return new NsdManager.DiscoveryListener()
+        {
+            // @Override
+            public void onDiscoveryStarted( String serviceType )
+            {
+                listener.onDiscoveryStarted( serviceType );
+            }
+
+
+            // @Override
+            public void onStartDiscoveryFailed( String serviceType, int errorCode )
+            {
+                listener.onDiscoveryFailed( serviceType, errorCode );
+            }
+
+
+            // @Override
+            public void onStopDiscoveryFailed( String serviceType, int errorCode )
+            {
+                listener.onDiscoveryFailed( serviceType, errorCode );
+            }
+
+
+            // @Override
+            public void onDiscoveryStopped( String serviceType )
+            {
+                listener.onDiscoveryStopped( serviceType );
+            }
+
+
+            // @Override
+            public void onServiceFound( NsdServiceInfo nsdServiceInfo )
+            {
+                listener.onServiceFound( toCommsServiceInfo( nsdServiceInfo ) );
+            }
+
+
+            // @Override
+            public void onServiceLost( NsdServiceInfo nsdServiceInfo )
+            {
+                listener.onServiceLost( toCommsServiceInfo( nsdServiceInfo ) );
+            }
+        };
+    }
+}
@@ -0,0 +1,279 @@
+package zed.tools.lib.nsdconnect;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+
+// The last known peers of a service, our own last server port and instance
+// id, kept in shared preferences so a restarted service can reconnect straight
+// away, without waiting for discovery, and is known to peers as the same one.
+// Peers are by service name. Only peers we've connected to within the maximum
+// age are loaded again.
+public class NsdPeerStore
+{
+    // Constants:
+    private static final String         TAG                     = NsdPeerStore.class.getSimpleName();
+    private static final String         PREFERENCES_PREFIX      = TAG + ".";
+    private static final String         LOCAL_SERVER_PORT       = "localServerPort";
+    private static final String         INSTANCE_ID             = "instanceId";
+    private static final String         PEER_PREFIX             = "peer.";
+    public static final long            DEFAULT_MAX_PEER_AGE_MS = 24 * 60 * 60 * 1000;
+
+    // Member variables:
+    private final SharedPreferences     m_preferences;
+    private final HashMap<String, Peer> m_peers                 = new HashMap<String, Peer>();
+    private int                         m_localServerPort       = 0;
+    private String                      m_instanceId            = null;
+
+
+    // What we last knew of one peer service.
+    public static class Peer
+    {
+        private final String m_serviceName;
+        private final String m_hostAddress;
+        private final int    m_port;
+        private long         m_lastSuccessTime;
+
+
+        Peer( String serviceName, String hostAddress, int port, long lastSuccessTime )
+        {
+            m_serviceName = serviceName;
+            m_hostAddress = hostAddress;
+            m_port = port;
+            m_lastSuccessTime = lastSuccessTime;
+        }
+
+
+        public String getServiceName()
+        {
+            return m_serviceName;
+        }
+
+
+        public String getHostAddress()
+        {
+            return m_hostAddress;
+        }
+
+
+        // The host address is numeric, so this doesn't look anything up.
+        // Returns null if it isn't a valid address.
+        public InetAddress getInetAddress()
+        {
+            try
+            {
+                return InetAddress.getByName( m_hostAddress );
+            }
+            catch ( UnknownHostException e )
+            {
+                Log.w( TAG, "Invalid stored host address '" + m_hostAddress + "' for " + m_serviceName + "." );
+            }
+
+            return null;
+        }
+
+
+        public int getPort()
+        {
+            return m_port;
+        }
+
+
+        // When we were last connected, System.currentTimeMillis(), or 0 if never.
+        public long getLastSuccessTime()
+        {
+            return m_lastSuccessTime;
+        }
+
+
+        private String encode()
+        {
+            return m_lastSuccessTime + " " + m_port + " " + m_hostAddress;
+        }
+
+
+        private static Peer decode( String serviceName, String value )
+        {
+            String[] fields = value.split( " ", 3 );
+
+            if ( fields.length != 3 )
+            {
+                return null;
+            }
+
+            try
+            {
+                return new Peer( serviceName, fields[2], Integer.parseInt( fields[1] ), Long.parseLong( fields[0] ) );
+            }
+            catch ( NumberFormatException e )
+            {
+                return null;
+            }
+        }
+    }
+
+
+    public NsdPeerStore( Context context, String serviceName )
+    {
+        this( context, serviceName, DEFAULT_MAX_PEER_AGE_MS );
+    }
+
+
+    public NsdPeerStore( Context context, String serviceName, long maxPeerAgeMs )
+    {
+        m_preferences = context.getSharedPreferences( PREFERENCES_PREFIX + serviceName, Context.MODE_PRIVATE );
+
+        load( maxPeerAgeMs );
+    }
+
+
+    public synchronized int getLocalServerPort()
+    {
+        return m_localServerPort;
+    }
+
+
+    public synchronized void setLocalServerPort( int port )
+    {
+        if ( port != m_localServerPort )
+        {
+            m_localServerPort = port;
+            save();
+        }
+    }
+
+
+    // Made the first time the service runs, then the same until its data is cleared.
+    public synchronized String getInstanceId()
+    {
+        return m_instanceId;
+    }
+
+
+    // The peers, the most recently connected first.
+    public synchronized Peer[] getPeers()
+    {
+        ArrayList<Peer> peers = new ArrayList<Peer>( m_peers.values() );
+
+        Collections.sort( peers, new Comparator<Peer>()
+        {
+            public int compare( Peer lhs, Peer rhs )
+            {
+                return ( lhs.m_lastSuccessTime < rhs.m_lastSuccessTime ) ? 1 : ( lhs.m_lastSuccessTime > rhs.m_lastSuccessTime ) ? -1 : 0;
+            }
+        } );
+
+        return peers.toArray( new Peer[peers.size()] );
+    }
+
+
+    // A peer service has been resolved. Returns what was stored for it before if that
+    // was at a different address, so any connection to the old address can be dropped.
+    public synchronized Peer put( String serviceName, String hostAddress, int port )
+    {
+        Peer peer = m_peers.get( serviceName );
+
+        if ( peer != null && peer.m_hostAddress.equals( hostAddress ) && peer.m_port == port )
+        {
+            return null;
+        }
+
+        // The last success was at the old address, so doesn't count for the new one.
+        m_peers.put( serviceName, new Peer( serviceName, hostAddress, port, 0 ) );
+        save();
+
+        return peer;
+    }
+
+
+    // A connection has been made to the host, from either end.
+    public synchronized void onConnected( String hostAddress )
+    {
+        long now = System.currentTimeMillis();
+        boolean changed = false;
+
+        for ( Peer peer : m_peers.values() )
+        {
+            if ( peer.m_hostAddress.equals( hostAddress ) )
+            {
+                peer.m_lastSuccessTime = now;
+                changed = true;
+            }
+        }
+
+        if ( changed )
+        {
+            save();
+        }
+    }
+
+
+    public synchronized int size()
+    {
+        return m_peers.size();
+    }
+
+
+    private void load( long maxPeerAgeMs )
+    {
+        long oldest = System.currentTimeMillis() - maxPeerAgeMs;
+
+        m_localServerPort = m_preferences.getInt( LOCAL_SERVER_PORT, 0 );
+        m_instanceId = m_preferences.getString( INSTANCE_ID, null );
+
+        for ( Map.Entry<String, ?> entry : m_preferences.getAll().entrySet() )
+        {
+            if ( !entry.getKey().startsWith( PEER_PREFIX ) || !( entry.getValue() instanceof String ) )
+            {
+                continue;
+            }
+
+            String serviceName = entry.getKey().substring( PEER_PREFIX.length() );
+            Peer peer = Peer.decode( serviceName, (String) entry.getValue() );
+
+            if ( peer == null )
+            {
+                Log.w( TAG, "Ignoring invalid stored peer " + serviceName + "." );
+            }
+            else if ( peer.m_lastSuccessTime > oldest )
+            {
+                m_peers.put( serviceName, peer );
+            }
+        }
+
+        if ( m_instanceId == null )
+        {
+            m_instanceId = UUID.randomUUID().toString();
+            save();
+        }
+
+        Log.d( TAG, "Loaded " + m_peers.size() + " peers, last server port " + m_localServerPort + ", instance id " + m_instanceId + "." );
+    }
+
+
+    // Written in the background, this is only a hint for the next start.
+    private void save()
+    {
+        SharedPreferences.Editor editor = m_preferences.edit().clear();
+
+        editor.putInt( LOCAL_SERVER_PORT, m_localServerPort );
+        editor.putString( INSTANCE_ID, m_instanceId );
+
+        for ( Peer peer : m_peers.values() )
+        {
+            editor.putString( PEER_PREFIX + peer.m_serviceName, peer.encode() );
+        }
+
+        editor.apply();
+    }
+}
@@ -13,28 +13,43 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
-import android.net.nsd.NsdServiceInfo;
+import android.net.nsd.NsdManager;
 import android.net.wifi.WifiManager;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
 import android.util.Log;
 import android.widget.Toast;
 
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.File;
 import java.lang.ref.WeakReference;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import zed.tools.lib.nsdconnect.core.CommsBatcher;
+import zed.tools.lib.nsdconnect.core.CommsClient;
+import zed.tools.lib.nsdconnect.core.CommsDiscovery;
+import zed.tools.lib.nsdconnect.core.CommsEngine;
+import zed.tools.lib.nsdconnect.core.CommsFrame;
+import zed.tools.lib.nsdconnect.core.CommsHistogram;
+import zed.tools.lib.nsdconnect.core.CommsListener;
+import zed.tools.lib.nsdconnect.core.CommsMessageLog;
+import zed.tools.lib.nsdconnect.core.CommsOutbox;
+import zed.tools.lib.nsdconnect.core.CommsServiceCache;
+import zed.tools.lib.nsdconnect.core.CommsServiceInfo;
+import zed.tools.lib.nsdconnect.core.CommsServiceMetadata;
+import zed.tools.lib.nsdconnect.core.CommsStats;
+import zed.tools.lib.nsdconnect.core.DiscoveryBackend;
+import zed.tools.lib.nsdconnect.core.MdnsDiscoveryBackend;
 
 
 // Requires the following in AndroidManifest.xml for your app.
@@ -48,6 +63,25 @@ public class NsdService extends Service
     public static final String             SERVICE_NAME           = "serviceName";
     public static final String             CLIENT_PACKAGE         = "clientPackage";
     public static final String             CLIENT_CLASS           = "clientClass";
+    public static final String             SELECTOR_TRANSPORT     = "selectorTransport";
+    // Number, acknowledge and replay frames so none are lost when a connection drops.
+    public static final String             RELIABLE_DELIVERY      = "reliableDelivery";
+    // Keep messages on disk for peers that can't be reached, and send them when they're back.
+    public static final String             DURABLE_OUTBOX         = "durableOutbox";
+    // Log every message sent and received on disk, for MSG_HISTORY and catching up.
+    public static final String             MESSAGE_LOG            = "messageLog";
+    // How long received text is held to be sent to the client in one message, and how much.
+    public static final String             DELIVERY_WINDOW_MS     = "deliveryWindowMs";
+    public static final String             DELIVERY_BATCH_SIZE    = "deliveryBatchSize";
+    // How long a lost peer service is held in case it returns, before its connection is dropped.
+    public static final String             LOST_GRACE_MS          = "lostGraceMs";
+    // How long the connections are kept after Wi-Fi drops, in case it comes back, 0 to close them at once.
+    public static final String             WIFI_GRACE_MS          = "wifiGraceMs";
+    public static final long               DEFAULT_WIFI_GRACE_MS  = 15 * 1000;
+    // Which discovery to use, DISCOVERY_NSD, the default, or DISCOVERY_MDNS.
+    public static final String             DISCOVERY_BACKEND      = "discoveryBackend";
+    public static final String             DISCOVERY_NSD          = "nsd";
+    public static final String             DISCOVERY_MDNS         = "mdns";
     public static final String             ACTION_STOP_SERVICE    = "STOP";
     public static final String             ACTION_START_SERVICE   = "START";
     public static final String             ACTION_REFRESH_SERVICE = "REFRESH";
@@ -56,7 +90,13 @@ public class NsdService extends Service
     // Constants:
     private static final String            TAG                    = NsdService.class.getSimpleName();
     private static final String            SERVICE_THREAD_NAME    = TAG + ":ServiceThread";
+    private static final String            OUTBOX_DIRECTORY       = "outbox";
+    private static final String            MESSAGE_LOG_DIRECTORY  = "messages";
     private static final int               FOREGROUND_SERVICE     = 101;
+    // Keeps each batch well inside the Binder transaction buffer, 2 bytes a char.
+    private static final int               MAX_BATCH_CHARS        = 128 * 1024;
+    // A peer advertising more load than this isn't connected to, it can connect to us.
+    private static final int               MAX_PEER_LOAD          = 80;
     // private static final int REMOTE_CLIENT_RETRIES = 8;
     // private static final int               REMOTE_CLIENT_WAIT_MS  = 800;
     // Messages from NsdServiceConnection.
@@ -65,10 +105,24 @@ public class NsdService extends Service
     public static final int                MSG_PAUSE              = 3;
     public static final int                MSG_RESUME             = 4;
     public static final int                MSG_REFRESH            = 5;
+    // Asks for a snapshot of the transport statistics, replied to with MSG_STATS.
+    public static final int                MSG_STATS              = 6;
+    // Internal, runs the queued control messages on the service thread.
+    private static final int               MSG_RUN_CONTROL        = 7;
+    // Asks for a page of the message log, replied to with MSG_HISTORY. The request may have
+    // longs "afterOffset", "fromTime" and "toTime", a string "peer" and ints "type",
+    // "direction" and "maxCount". The reply has string array lists "texts" and "peers",
+    // arrays "offsets", "times", "types" and "directions", the long "lastOffset" to ask
+    // after for the next page and the boolean "complete". MSG_REGISTER_CLIENT with a long
+    // "lastOffset" is replied to with the first page after it.
+    public static final int                MSG_HISTORY            = 8;
     // Messages from service to client.
     public static final int                MSG_CONNECTED          = 10;
     public static final int                MSG_UNCONNECTED        = 11;
     public static final int                MSG_INFO               = 12;                                  // Talk back.
+    // Several received MSG_TEXT messages at once, as a string array list "texts". With the
+    // message log, each MSG_TEXT has its long "offset" in the log and each batch "offsets".
+    public static final int                MSG_TEXT_BATCH         = 13;
     // Messages between peers.
     public static final int                MSG_TEXT               = 20;
     public static final int                MSG_OBJECT             = 21;
@@ -81,17 +135,38 @@ public class NsdService extends Service
     private String                         m_nsdServiceClientClass;
     private String                         m_nsdServiceClientFullClass;
     private NsdHelper                      m_nsdHelper;
+    // The peers we were last connected to, reconnected to before discovery finds them.
+    private NsdPeerStore                   m_peerStore;
+    private boolean                        m_warmStartPending     = false;
     private BroadcastReceiver              m_nsdBroadcastReceiver;
     private NotificationManager            m_notificationManager;
-    private CommsServer                    m_commsServer;
-    private Hashtable<String, CommsClient> m_commsClients         = new Hashtable<String, CommsClient>();
-    private int                            m_localServerPort      = 0;
+    private CommsEngine                    m_commsEngine;
+    // Opened, closed and set on the service thread only.
+    private CommsOutbox                    m_outbox               = null;
+    // Opened again under the new name when the service is renamed.
+    private boolean                        m_durableOutbox        = false;
+    // Read by the I/O threads, opened and closed on the service thread only.
+    private volatile CommsMessageLog       m_messageLog           = null;
+    // Likewise opened again when the service is renamed.
+    private boolean                        m_keepMessageLog       = false;
+    // Received text is coalesced into fewer, larger messages to the client.
+    private CommsBatcher<CommsMessageLog.Entry> m_textDelivery;
     private boolean                        m_connected            = false;
+    private long                           m_lostGraceMs          = NsdHelper.DEFAULT_LOST_GRACE_MS;
+    private long                           m_wifiGraceMs          = DEFAULT_WIFI_GRACE_MS;
+    // When Wi-Fi dropped, 0 while it's up, so a late close can tell it has come back since.
+    private long                           m_wifiLostTime         = 0;
+    private String                         m_discoveryBackendName = DISCOVERY_NSD;
     // This is the object that receives interactions from clients. See RemoteService for a more complete example.
     private IBinder                        m_binder;
     // Target we publish for clients to send messages to IncomingHandler.
     private Messenger                      m_serviceMessenger;
-    private Messenger                      m_clientMessenger;
+    private volatile Messenger             m_clientMessenger;
+    // Messages are processed on this thread, not the main thread.
+    private HandlerThread                  m_serviceThread;
+    private ServiceHandler                 m_serviceHandler;
+    // Control messages waiting to run ahead of any queued data messages.
+    private final ConcurrentLinkedQueue<Message> m_controlMessages = new ConcurrentLinkedQueue<Message>();
 
 
     /**
@@ -108,6 +183,7 @@ public class NsdService extends Service
     }
 
     // Handler of incoming messages from clients.
+    // Runs on the main thread and only passes the messages on to the service thread.
     private static class IncomingHandler extends Handler
     {
         WeakReference<NsdService> m_nsdServiceWeakReference;
@@ -137,6 +213,42 @@ public class NsdService extends Service
         }
     }
 
+    // Processes client messages on the service thread.
+    private static class ServiceHandler extends Handler
+    {
+        WeakReference<NsdService> m_nsdServiceWeakReference;
+
+
+        public ServiceHandler( NsdService nsdService, Looper looper )
+        {
+            super( looper );
+
+            m_nsdServiceWeakReference = new WeakReference<NsdService>( nsdService );
+        }
+
+
+        @Override
+        public void handleMessage( Message msg )
+        {
+            NsdService nsdService = m_nsdServiceWeakReference.get();
+
+            if ( nsdService == null )
+            {
+                Log.w( TAG, "NSD service not started, message " + msg.what + " dropped." );
+                return;
+            }
+
+            if ( msg.what == MSG_RUN_CONTROL )
+            {
+                nsdService.runControlMessages();
+            }
+            else if ( !nsdService.processMessage( msg ) )
+            {
+                super.handleMessage( msg );
+            }
+        }
+    }
+
 
     // Called once when the service is first started.
     @Override
@@ -150,11 +262,16 @@ public class NsdService extends Service
 
         String serviceTypeStr = ( m_isLocalService ) ? "local" : "remote";
 
-        Thread.currentThread().setName( SERVICE_THREAD_NAME );
+        m_serviceThread = new HandlerThread( SERVICE_THREAD_NAME );
+        m_serviceThread.start();
+        m_serviceHandler = new ServiceHandler( this, m_serviceThread.getLooper() );
 
-        Log.i( TAG, TAG + " starting in thread '" + Thread.currentThread().getName() + "' as " + serviceTypeStr + " service." );
+        Log.i( TAG, TAG + " starting in thread '" + m_serviceThread.getName() + "' as " + serviceTypeStr + " service." );
 
         m_notificationManager = (NotificationManager) getSystemService( NOTIFICATION_SERVICE );
+        m_commsEngine = new CommsEngine( createNewCommsDiscovery(), createNewCommsListener(), new AndroidCommsLog() );
+        m_textDelivery = new CommsBatcher<CommsMessageLog.Entry>( createNewTextSink(), new AndroidCommsLog() );
+        m_textDelivery.start();
 
         if ( m_isLocalService )
         {
@@ -195,6 +312,31 @@ public class NsdService extends Service
             m_nsdServiceClientClass = intent.getStringExtra( CLIENT_CLASS );
             m_nsdServiceClientFullClass = m_nsdServiceClientPackage + "." + m_nsdServiceClientClass;
             m_serviceName = intent.getStringExtra( SERVICE_NAME );
+            m_commsEngine.setUseSelector( intent.getBooleanExtra( SELECTOR_TRANSPORT, m_commsEngine.isUsingSelector() ) );
+            m_commsEngine.setReliable( intent.getBooleanExtra( RELIABLE_DELIVERY, m_commsEngine.isReliable() ) );
+
+            final Intent storageIntent = intent;
+
+            // Opening the outbox and message log reads their files, so it's done on the service
+            // thread, which resumes and tears down the same ones.
+            m_serviceHandler.post( new Runnable()
+            {
+                public void run()
+                {
+                    setStorage( storageIntent );
+                }
+            } );
+
+            m_textDelivery.setWindowMs( intent.getIntExtra( DELIVERY_WINDOW_MS, (int) m_textDelivery.getWindowMs() ) );
+            m_textDelivery.setMaxBatchSize( intent.getIntExtra( DELIVERY_BATCH_SIZE, m_textDelivery.getMaxBatchSize() ) );
+            m_lostGraceMs = intent.getIntExtra( LOST_GRACE_MS, (int) m_lostGraceMs );
+            m_wifiGraceMs = Math.max( 0, intent.getIntExtra( WIFI_GRACE_MS, (int) m_wifiGraceMs ) );
+
+            if ( intent.getStringExtra( DISCOVERY_BACKEND ) != null )
+            {
+                // Takes effect when discovery is next started.
+                m_discoveryBackendName = intent.getStringExtra( DISCOVERY_BACKEND );
+            }
 
             startServiceInForeground();
         }
@@ -202,7 +344,13 @@ public class NsdService extends Service
         {
             Log.i( TAG, "NSD service refreshed with id " + startId + ": " + intent );
 
-            refreshAll();
+            m_serviceHandler.postAtFrontOfQueue( new Runnable()
+            {
+                public void run()
+                {
+                    refreshAll();
+                }
+            } );
         }
         else if ( ACTION_STOP_SERVICE.equals( action ) )
         {
@@ -230,7 +378,16 @@ public class NsdService extends Service
     @Override
     public void onDestroy()
     {
-        tearDown();
+        // Tear down on the service thread ahead of any queued data, then let the thread finish.
+        m_serviceHandler.postAtFrontOfQueue( new Runnable()
+        {
+            public void run()
+            {
+                tearDown();
+            }
+        } );
+        m_serviceThread.quitSafely();
+        m_textDelivery.tearDown();
 
         // Cancel the persistent notification.
         m_notificationManager.cancel( FOREGROUND_SERVICE );
@@ -274,17 +431,24 @@ public class NsdService extends Service
                 unregisterReceiver( m_nsdBroadcastReceiver );
             }
 
-            if ( m_commsServer != null )
+            // Stops the server, which unregisters through the helper, before the helper goes.
+            m_commsEngine.tearDown();
+            m_commsEngine.setOutbox( null );
+
+            if ( m_outbox != null )
+            {
+                m_outbox.close();
+            }
+
+            if ( m_messageLog != null )
             {
-                m_commsServer.tearDown();
+                m_messageLog.close();
             }
 
             if ( m_nsdHelper != null )
             {
                 m_nsdHelper.tearDown();
             }
-
-            tearDownCommsClients();
         }
         catch ( RuntimeException e )
         {
@@ -297,8 +461,10 @@ public class NsdService extends Service
             e.printStackTrace();
         }
 
-        m_commsServer = null;
         m_nsdHelper = null;
+        m_peerStore = null;
+        m_outbox = null;
+        m_messageLog = null;
     }
 
 
@@ -313,17 +479,69 @@ public class NsdService extends Service
 
     public int getLocalServerPort()
     {
-        return m_localServerPort;
+        return m_commsEngine.getLocalServerPort();
     }
 
 
     public void setLocalServerPort( int port )
     {
-        m_localServerPort = port;
+        m_commsEngine.setLocalServerPort( port );
     }
 
 
+    // Pass a client message to the service thread, from any thread.
+    // Control messages run ahead of queued data messages, so a flood of data
+    // never delays a pause or a teardown. Returns false if the message is unknown.
     public boolean sendMessage( Message msg )
+    {
+        boolean known = true;
+        // The caller recycles its message once this returns.
+        Message serviceMsg = Message.obtain( msg );
+
+        switch ( msg.what )
+        {
+            case MSG_REGISTER_CLIENT:
+            case MSG_UNREGISTER_CLIENT:
+            case MSG_PAUSE:
+            case MSG_RESUME:
+            case MSG_REFRESH:
+                // Queued separately, so control messages keep their order between themselves.
+                m_controlMessages.add( serviceMsg );
+                m_serviceHandler.sendMessageAtFrontOfQueue( Message.obtain( null, MSG_RUN_CONTROL ) );
+                break;
+
+            case MSG_STATS:
+            case MSG_HISTORY:
+            case MSG_TEXT:
+            case MSG_OBJECT:
+            case MSG_CONNECTED:
+            case MSG_UNCONNECTED:
+                m_serviceHandler.sendMessage( serviceMsg );
+                break;
+
+            default:
+                serviceMsg.recycle();
+                known = false;
+                break;
+        }
+
+        return known;
+    }
+
+
+    private void runControlMessages()
+    {
+        Message msg;
+
+        while ( ( msg = m_controlMessages.poll() ) != null )
+        {
+            processMessage( msg );
+            msg.recycle();
+        }
+    }
+
+
+    private boolean processMessage( Message msg )
     {
         boolean processed = true;
 
@@ -349,6 +567,14 @@ public class NsdService extends Service
                 refresh();
                 break;
 
+            case MSG_STATS:
+                sendStats( msg.replyTo );
+                break;
+
+            case MSG_HISTORY:
+                sendHistory( createHistoryQuery( msg.getData() ), msg.replyTo );
+                break;
+
             case MSG_TEXT:
             case MSG_OBJECT:
                 sendMessageToClients( msg );
@@ -370,7 +596,7 @@ public class NsdService extends Service
 
     public void refresh()
     {
-        checkReconnectClients();
+        m_commsEngine.checkReconnectClients();
     }
 
 
@@ -385,8 +611,20 @@ public class NsdService extends Service
 
     public void resume()
     {
+        if ( m_durableOutbox )
+        {
+            // Before the server, so nothing sent from now on misses it.
+            checkOpenOutbox();
+        }
+
+        if ( m_keepMessageLog )
+        {
+            checkOpenMessageLog();
+        }
+
         checkStartNetworkServiceDiscovery();
         checkStartServer();
+        checkWarmStartConnections();
         refresh();
 
         if ( m_nsdHelper != null && !m_nsdHelper.isServiceDiscoveryActive() )
@@ -394,7 +632,7 @@ public class NsdService extends Service
             m_nsdHelper.discoverServices();
         }
 
-        notifyClientChange( false, true );
+        updateConnected( m_commsEngine.isAnyClientConnected(), true );
     }
 
 
@@ -482,6 +720,15 @@ public class NsdService extends Service
 
         // Doesn't need pause to resume. It will just report a warning about discovery.
         resume();
+
+        if ( bundle.containsKey( "lastOffset" ) )
+        {
+            // Back from being away, so send what it missed.
+            CommsMessageLog.Query query = new CommsMessageLog.Query();
+
+            query.setAfterOffset( bundle.getLong( "lastOffset" ) );
+            sendHistory( query, null );
+        }
     }
 
 
@@ -496,15 +743,108 @@ public class NsdService extends Service
     {
         return new NsdHelperHandler()
         {
-            public void onNewService( NsdServiceInfo serviceInfo )
+            public void onNewService( CommsServiceInfo serviceInfo, CommsServiceMetadata metadata )
+            {
+                if ( isServiceAcceptable( serviceInfo, metadata ) )
+                {
+                    updatePeerStore( serviceInfo );
+                    m_commsEngine.connectToServer( serviceInfo.getHost(), serviceInfo.getPort() );
+                }
+            }
+
+
+            public void onServiceUpdated( CommsServiceInfo serviceInfo, CommsServiceMetadata metadata )
+            {
+                CommsClient commsClient = m_commsEngine.getCommsClient( serviceInfo.getHost().getHostAddress() );
+
+                // A peer that was skipped may no longer be too busy.
+                if ( ( commsClient == null || !commsClient.isConnected() ) && isServiceAcceptable( serviceInfo, metadata ) )
+                {
+                    updatePeerStore( serviceInfo );
+                    m_commsEngine.connectToServer( serviceInfo.getHost(), serviceInfo.getPort() );
+                }
+            }
+
+
+            public void onLostService( CommsServiceInfo serviceInfo )
+            {
+                m_commsEngine.removeServiceIfLost( serviceInfo.getHost(), serviceInfo.getPort() );
+            }
+        };
+    }
+
+
+    // The connection engine registers our server through the NsdHelper, if there is one.
+    private CommsDiscovery createNewCommsDiscovery()
+    {
+        return new CommsDiscovery()
+        {
+            public void registerService( int port )
+            {
+                NsdHelper nsdHelper = m_nsdHelper;
+                NsdPeerStore peerStore = m_peerStore;
+
+                if ( peerStore != null )
+                {
+                    // Peers that remember us can find us again after a restart.
+                    peerStore.setLocalServerPort( port );
+                }
+
+                if ( nsdHelper != null )
+                {
+                    nsdHelper.registerService( port );
+                }
+            }
+
+
+            public void unregisterService()
+            {
+                NsdHelper nsdHelper = m_nsdHelper;
+
+                if ( nsdHelper != null )
+                {
+                    nsdHelper.unregisterService();
+                }
+            }
+        };
+    }
+
+
+    private CommsListener createNewCommsListener()
+    {
+        return new CommsListener()
+        {
+            public void onFrameReceived( CommsClient commsClient, CommsFrame frame )
             {
-                connectToServer( serviceInfo.getHost(), serviceInfo.getPort() );
+                switch ( frame.getType() )
+                {
+                    case MSG_TEXT:
+                        deliverTextToUI( commsClient, logMessage( getPeerName( commsClient ), CommsMessageLog.DIRECTION_IN, frame ) );
+                        break;
+
+                    default:
+                        Log.w( TAG, "Unhandled frame from " + commsClient.getInetAddress().getHostAddress() + ": " + frame );
+                        break;
+                }
+            }
+
+
+            public void onConnectedChange( boolean connected )
+            {
+                updateConnected( connected, false );
             }
 
 
-            public void onLostService( NsdServiceInfo serviceInfo )
+            public void onClientConnectedChange( CommsClient commsClient, boolean connected )
             {
-                removeServiceIfLost( serviceInfo.getHost(), serviceInfo.getPort() );
+                NsdPeerStore peerStore = m_peerStore;
+
+                if ( connected && peerStore != null )
+                {
+                    peerStore.onConnected( commsClient.getInetAddress().getHostAddress() );
+                }
+
+                updateServiceAttributes();
             }
         };
     }
@@ -548,13 +888,14 @@ public class NsdService extends Service
                             break;
 
                         case CONNECTED:
+                            m_wifiLostTime = 0;
                             resume();
                             break;
 
                         case DISCONNECTING:
                         case DISCONNECTED:
                             pause();
-                            closeCommsClients();
+                            onWifiLost();
                             break;
 
                         default:
@@ -566,6 +907,40 @@ public class NsdService extends Service
     }
 
 
+    // Wi-Fi has dropped. A short drop leaves the connections to time out or come back by
+    // themselves, keeping the peers' sessions, so only close them if it stays down.
+    private void onWifiLost()
+    {
+        if ( m_wifiLostTime != 0 )
+        {
+            return;
+        }
+
+        final long wifiLostTime = System.currentTimeMillis();
+
+        m_wifiLostTime = wifiLostTime;
+
+        if ( m_wifiGraceMs == 0 )
+        {
+            m_commsEngine.closeCommsClients();
+            return;
+        }
+
+        Log.i( TAG, "Holding connections for " + m_wifiGraceMs + "ms in case Wi-Fi returns." );
+
+        m_serviceHandler.postDelayed( new Runnable()
+        {
+            public void run()
+            {
+                if ( m_wifiLostTime == wifiLostTime )
+                {
+                    m_commsEngine.closeCommsClients();
+                }
+            }
+        }, m_wifiGraceMs );
+    }
+
+
     private void addBroadcastReceiver()
     {
         IntentFilter wirelessIntentFilter = new IntentFilter();
@@ -573,900 +948,660 @@ public class NsdService extends Service
         wirelessIntentFilter.addAction( "android.net.wifi.supplicant.CONNECTION_CHANGE" );
         wirelessIntentFilter.addAction( "android.net.wifi.STATE_CHANGE" );
         m_nsdBroadcastReceiver = createNewNsdBroadcastReceiver();
-        registerReceiver( m_nsdBroadcastReceiver, wirelessIntentFilter );
+        // Wi-Fi changes are handled on the service thread along with the client messages.
+        registerReceiver( m_nsdBroadcastReceiver, wirelessIntentFilter, null, m_serviceHandler );
     }
 
 
-    private void checkStartNetworkServiceDiscovery()
+    // On the service thread. Turned off, what's on disk is kept for when it's next turned on.
+    private void setStorage( Intent intent )
     {
-        if ( m_nsdHelper == null && m_serviceName != null )
+        m_durableOutbox = intent.getBooleanExtra( DURABLE_OUTBOX, m_durableOutbox );
+
+        if ( m_durableOutbox )
         {
-            m_nsdHelper = new NsdHelper( this, m_serviceName, createNewNsdHelperHandler() );
+            checkOpenOutbox();
+        }
+        else
+        {
+            closeOutbox();
         }
-    }
 
+        m_keepMessageLog = intent.getBooleanExtra( MESSAGE_LOG, m_keepMessageLog );
 
-    private void checkStartServer()
-    {
-        if ( m_commsServer == null && m_nsdHelper != null )
+        if ( m_keepMessageLog )
+        {
+            checkOpenMessageLog();
+        }
+        else
         {
-            m_commsServer = new CommsServer();
+            closeMessageLog();
         }
     }
 
 
-    // private void stopServer()
-    // {
-    // m_commsServer.tearDown();
-    // m_commsServer = null;
-    // }
-
-    private synchronized CommsClient addCommsClient( String hostAddress, CommsClient commsClient )
+    // Kept by service name, like the outbox.
+    private void checkOpenMessageLog()
     {
-        return m_commsClients.put( hostAddress, commsClient );
+        if ( m_messageLog == null && m_serviceName != null )
+        {
+            File directory = new File( getDir( MESSAGE_LOG_DIRECTORY, Context.MODE_PRIVATE ), CommsOutbox.toFileName( m_serviceName ) );
+
+            m_messageLog = new CommsMessageLog( directory, new AndroidCommsLog() );
+        }
     }
 
 
-    private synchronized CommsClient getCommsClient( String hostAddress )
+    // Kept by service name, so it's there again when the service is next started.
+    private void checkOpenOutbox()
     {
-        return m_commsClients.get( hostAddress );
+        if ( m_outbox == null && m_serviceName != null )
+        {
+            File directory = new File( getDir( OUTBOX_DIRECTORY, Context.MODE_PRIVATE ), CommsOutbox.toFileName( m_serviceName ) );
+
+            m_outbox = new CommsOutbox( directory, new AndroidCommsLog() );
+            m_commsEngine.setOutbox( m_outbox );
+        }
     }
 
 
-    private synchronized CommsClient removeCommsClient( String hostAddress )
+    private void closeOutbox()
     {
-        return m_commsClients.remove( hostAddress );
+        if ( m_outbox != null )
+        {
+            m_commsEngine.setOutbox( null );
+            m_outbox.close();
+            m_outbox = null;
+        }
     }
 
 
-    private synchronized CommsClient removeCommsClient( String hostAddress, CommsClient commsClient )
+    private void closeMessageLog()
     {
-        CommsClient storedCommsClient = getCommsClient( hostAddress );
+        CommsMessageLog messageLog = m_messageLog;
 
-        if ( storedCommsClient == commsClient )
+        if ( messageLog != null )
         {
-            m_commsClients.remove( hostAddress );
-            storedCommsClient = null;
+            m_messageLog = null;
+            messageLog.close();
         }
-
-        return storedCommsClient;
     }
 
 
-    private synchronized Enumeration<String> getCommsClientKeys()
+    private void checkStartNetworkServiceDiscovery()
     {
-        return m_commsClients.keys();
+        if ( m_nsdHelper == null && m_serviceName != null )
+        {
+            m_peerStore = new NsdPeerStore( this, m_serviceName );
+            // Peers settle duplicate connections by it, so it should outlive restarts.
+            m_commsEngine.setInstanceId( m_peerStore.getInstanceId() );
+            m_warmStartPending = true;
+            m_nsdHelper = new NsdHelper( this, m_serviceName, createNewNsdHelperHandler(), createDiscoveryBackend() );
+            m_nsdHelper.setLostGraceMs( m_lostGraceMs );
+            updateServiceAttributes();
+        }
     }
 
 
-    private void tearDownCommsClients()
+    // What we tell peers about ourselves before they connect.
+    private CommsServiceMetadata createServiceMetadata()
     {
-        Enumeration<String> hostAddresses = getCommsClientKeys();
+        CommsServiceMetadata metadata = new CommsServiceMetadata();
+        NsdPeerStore peerStore = m_peerStore;
 
-        while ( hostAddresses.hasMoreElements() )
-        {
-            String hostAddress = hostAddresses.nextElement();
-            CommsClient commsClient = getCommsClient( hostAddress );
-
-            if ( commsClient == null )
-            {
-                Log.e( TAG, "Null client in remote clients list, this shouldn't happen." );
+        metadata.setProtocolVersion( CommsServiceMetadata.PROTOCOL_VERSION );
+        metadata.setCodecs( CommsServiceMetadata.CODEC_FRAME );
+        metadata.setCompressions( CommsServiceMetadata.COMPRESSION_NONE );
+        metadata.setInstanceId( ( peerStore == null ) ? null : peerStore.getInstanceId() );
+        metadata.setPeerCount( m_commsEngine.getConnectedCount() );
+        metadata.setLoad( m_commsEngine.getLoad() );
 
-                removeCommsClient( hostAddress );
-            }
-            else
-            {
-                commsClient.tearDown();
-            }
-        }
+        return metadata;
     }
 
 
-    // Close the IO for the CommsClient leaving an empty shell that can be reconnected later.
-    private void closeCommsClients()
+    // Published again as peers come and go, the load is as it was then.
+    private void updateServiceAttributes()
     {
-        Enumeration<String> hostAddresses = getCommsClientKeys();
+        NsdHelper nsdHelper = m_nsdHelper;
 
-        while ( hostAddresses.hasMoreElements() )
+        if ( nsdHelper != null )
         {
-            String hostAddress = hostAddresses.nextElement();
-            CommsClient commsClient = getCommsClient( hostAddress );
-
-            if ( commsClient == null )
-            {
-                Log.e( TAG, "Null client in remote clients list, this shouldn't happen." );
-
-                removeCommsClient( hostAddress );
-            }
-            else
-            {
-                commsClient.close();
-            }
+            nsdHelper.setServiceAttributes( createServiceMetadata().toAttributes() );
         }
     }
 
 
-    private synchronized void connectToServer( InetAddress inetAddress, int inetPort )
+    // Whether to connect to a peer, going by what it advertises. A busy peer we're
+    // already connected to is kept.
+    private boolean isServiceAcceptable( CommsServiceInfo serviceInfo, CommsServiceMetadata metadata )
     {
-        String hostAddress = inetAddress.getHostAddress();
-        CommsClient commsClient = getCommsClient( hostAddress );
-
-        if ( commsClient == null )
+        if ( !metadata.isCompatible() )
         {
-            // This adds to the enclosing class' list of clients.
-            commsClient = new CommsClient( inetAddress, inetPort );
+            Log.i( TAG, "Not connecting to incompatible service: " + serviceInfo );
+
+            return false;
         }
-        else
+
+        CommsClient commsClient = m_commsEngine.getCommsClient( serviceInfo.getHost().getHostAddress() );
+
+        if ( metadata.isOverloaded( MAX_PEER_LOAD, 0 ) && ( commsClient == null || !commsClient.isConnected() ) )
         {
-            commsClient.checkReconnect();
+            Log.i( TAG, "Not connecting to overloaded service, load " + metadata.getLoad() + ": " + serviceInfo );
+
+            return false;
         }
+
+        return true;
     }
 
 
-    private synchronized void connectToSocket( Socket socket )
+    private DiscoveryBackend createDiscoveryBackend()
     {
-        String hostAddress = socket.getInetAddress().getHostAddress();
-        CommsClient commsClient = getCommsClient( hostAddress );
-
-        if ( commsClient != null && !commsClient.isConnected() )
+        if ( DISCOVERY_MDNS.equals( m_discoveryBackendName ) )
         {
-            // We've been given a new connected socket to the peer, so get rid of the old.
-            Log.w( TAG, "Replacing " + CommsClient.class.getSimpleName() + " for connection from: " + hostAddress + ":" + socket.getPort() );
-
-            commsClient.tearDown();
-            commsClient = null;
+            return new MdnsDiscoveryBackend( new AndroidCommsLog() );
         }
 
-        if ( commsClient == null )
-        {
-            // This adds to the enclosing class' list of clients.
-            commsClient = new CommsClient( socket );
-        }
-        else
+        if ( !DISCOVERY_NSD.equals( m_discoveryBackendName ) )
         {
-            // This will cause the extra CommsClient the other end to fail to connect and die.
-            closeSocket( socket );
+            Log.w( TAG, "Unknown discovery backend '" + m_discoveryBackendName + "', using " + DISCOVERY_NSD + "." );
         }
+
+        return new NsdManagerBackend( (NsdManager) getSystemService( NSD_SERVICE ) );
     }
 
 
-    private void closeSocket( Socket socket )
+    private void checkStartServer()
     {
-        if ( socket == null )
+        if ( !m_commsEngine.isServerStarted() && m_nsdHelper != null )
         {
-            return;
-        }
+            if ( m_commsEngine.getLocalServerPort() == 0 && m_peerStore != null )
+            {
+                // The port we had last time, if it's still free.
+                m_commsEngine.setLocalServerPort( m_peerStore.getLocalServerPort() );
+            }
 
-        try
-        {
-            socket.close();
-        }
-        catch ( IOException ioe )
-        {
-            Log.e( TAG, "Error when closing socket: " + ioe.toString() );
-        }
-        catch ( Exception ex )
-        {
-            Log.e( TAG, "Error when closing socket: " + ex.toString() );
+            m_commsEngine.startServer();
         }
     }
 
 
-    private void removeServiceIfLost( InetAddress inetAddress, int inetPort )
+    // Connect to the peers we were last connected to, while discovery runs and corrects them.
+    // The engine's connect scheduler makes a few connects at a time, the most recent peers first.
+    private void checkWarmStartConnections()
     {
-        if ( inetAddress == null )
+        if ( !m_warmStartPending || m_peerStore == null )
         {
-            Log.e( TAG, "Service lost with no IP address." );
-
             return;
         }
 
-        String hostAddress = inetAddress.getHostAddress();
-        CommsClient commsClient = getCommsClient( hostAddress );
+        m_warmStartPending = false;
+
+        NsdPeerStore.Peer[] peers = m_peerStore.getPeers();
+
+        Log.i( TAG, "Connecting to " + peers.length + " stored peers before discovery." );
 
-        if ( commsClient != null )
+        for ( NsdPeerStore.Peer peer : peers )
         {
-            commsClient.setServicePublished( false );
+            InetAddress inetAddress = peer.getInetAddress();
 
-            if ( !commsClient.isConnected() )
+            if ( inetAddress != null )
             {
-                // We've been given a new connected socket to the peer,
-                // so get rid of the old.
-                Log.w( TAG, "Removing " + CommsClient.class.getSimpleName() + " for connection from: " + hostAddress + ":" + inetPort );
-
-                commsClient.tearDown();
+                m_commsEngine.connectToServer( inetAddress, peer.getPort(), peer.getLastSuccessTime() );
             }
         }
     }
 
 
-    private void checkReconnectClients()
+    // Discovery has the last word on where a peer is. A connection to where it used to be
+    // is dropped, unless it's live.
+    private void updatePeerStore( CommsServiceInfo serviceInfo )
     {
-        Enumeration<String> hostAddresses = getCommsClientKeys();
+        NsdPeerStore peerStore = m_peerStore;
 
-        while ( hostAddresses.hasMoreElements() )
+        if ( peerStore == null || serviceInfo.getHost() == null )
         {
-            String hostAddress = hostAddresses.nextElement();
-            CommsClient commsClient = getCommsClient( hostAddress );
+            return;
+        }
 
-            if ( commsClient == null )
-            {
-                Log.e( TAG, "Null client in remote clients list, this shouldn't happen." );
+        String hostAddress = serviceInfo.getHost().getHostAddress();
+        NsdPeerStore.Peer stalePeer = peerStore.put( serviceInfo.getServiceName(), hostAddress, serviceInfo.getPort() );
 
-                removeCommsClient( hostAddress );
-            }
-            else
+        if ( stalePeer != null )
+        {
+            InetAddress staleInetAddress = stalePeer.getInetAddress();
+
+            if ( staleInetAddress != null )
             {
-                commsClient.checkReconnect();
+                m_commsEngine.removeServiceIfLost( staleInetAddress, stalePeer.getPort() );
             }
         }
-    }
 
+        CommsClient commsClient = m_commsEngine.getCommsClient( hostAddress );
 
-    private void sendMessageToClients( Message msg )
-    {
-        Enumeration<String> hostAddresses = getCommsClientKeys();
-
-        while ( hostAddresses.hasMoreElements() )
+        if ( commsClient != null && commsClient.isConnected() )
         {
-            String hostAddress = hostAddresses.nextElement();
-            CommsClient commsClient = getCommsClient( hostAddress );
-
-            if ( commsClient != null )
-            {
-                commsClient.sendMessage( msg );
-            }
+            // The peer connected to us before we resolved it.
+            peerStore.onConnected( hostAddress );
         }
     }
 
 
-    private void sendMessageToUI( Message msg )
+    // Encode the message once and give every client the same frame.
+    private void sendMessageToClients( Message msg )
     {
-        Log.i( TAG, "Updating message: " + msg.getData().toString() );
+        CommsFrame frame = encodeMessage( msg );
 
-        if ( m_clientMessenger == null )
+        if ( frame == null )
         {
-            Log.w( TAG, "Client messenger is null." );
-
             return;
         }
 
-        try
-        {
-            m_clientMessenger.send( msg );
-        }
-        catch ( RemoteException ex )
-        {
-            // The client has gone. Save message for later?
-            Log.e( TAG, "Failed to send message to client: " + ex.toString() );
-        }
-    }
+        logMessage( null, CommsMessageLog.DIRECTION_OUT, frame );
 
+        int queued = m_commsEngine.sendToAll( frame );
 
-    private void sendTextToUI( String text )
-    {
-        Message msg = Message.obtain( null, MSG_TEXT );
-        Bundle bundle = new Bundle();
-
-        bundle.putString( "text", text );
-        msg.setData( bundle );
-        sendMessageToUI( msg );
+        sendInfoToUI( "Queued message with id " + msg.what + " to " + queued + " of " + m_commsEngine.getCommsClients().length + " clients." );
     }
 
 
-    private void sendInfoToUI( String info )
+    private CommsFrame encodeMessage( Message msg )
     {
-        Message msg = Message.obtain( null, MSG_INFO );
-        Bundle bundle = new Bundle();
-
-        bundle.putString( "info", info );
-        msg.setData( bundle );
-        sendMessageToUI( msg );
-    }
+        CommsFrame frame = null;
 
-
-    private boolean isAnyClientConnected()
-    {
-        boolean connected = false;
-        Enumeration<String> hostAddresses = getCommsClientKeys();
-
-        while ( hostAddresses.hasMoreElements() )
+        switch ( msg.what )
         {
-            String hostAddress = hostAddresses.nextElement();
-            CommsClient commsClient = getCommsClient( hostAddress );
+            case MSG_TEXT:
+                frame = CommsFrame.createText( msg.what, msg.getData().getString( "text" ) );
+                break;
 
-            if ( commsClient != null && commsClient.isConnected() )
-            {
-                connected = true;
+            // case MSG_OBJECT:
+            // break;
+
+            default:
+                Log.w( TAG, "Unhandled message id: " + msg.what );
                 break;
-            }
         }
 
-        return connected;
+        return frame;
     }
 
 
-    private void notifyClientChange( boolean connectedKnown, boolean forceUpdate )
+    private void sendMessageToUI( Message msg )
     {
-        boolean connected = connectedKnown;
+        Log.i( TAG, "Updating message: " + msg.getData().toString() );
 
-        // Newly connected is easy.
-        // Otherwise we have to check if there are any remaining connected CommsClients.
-        if ( !connectedKnown )
+        if ( m_clientMessenger == null )
         {
-            connected = isAnyClientConnected();
+            Log.w( TAG, "Client messenger is null." );
+
+            return;
         }
 
-        updateConnected( connected, forceUpdate );
+        try
+        {
+            m_clientMessenger.send( msg );
+        }
+        catch ( RemoteException ex )
+        {
+            // The client has gone, with the message log it can catch up when it's back.
+            Log.e( TAG, "Failed to send message to client: " + ex.toString() );
+        }
     }
 
 
-    private void updateConnected( boolean connected, boolean forceUpdate )
+    // Reply to a stats request, or send to the registered client if there's no reply to.
+    private void sendStats( Messenger replyTo )
     {
-        if ( forceUpdate || connected != m_connected )
+        Message msg = Message.obtain( null, MSG_STATS );
+
+        msg.setData( createStatsBundle() );
+
+        if ( replyTo == null )
         {
-            m_connected = connected;
+            sendMessageToUI( msg );
 
-            sendConnectedToUI();
+            return;
+        }
+
+        try
+        {
+            replyTo.send( msg );
+        }
+        catch ( RemoteException ex )
+        {
+            Log.e( TAG, "Failed to send stats to client: " + ex.toString() );
         }
     }
 
 
-    private void sendConnectedToUI()
+    // The engine's totals at the top level, with a bundle for each peer under "peers" keyed by
+    // host address. Both have a long for each CommsStats counter, by name, and the encode and
+    // write times in nanoseconds as "<name>P50", "<name>P99" and "<name>Max".
+    // The NsdHelper's resolve cache counts are added while discovery is running.
+    private Bundle createStatsBundle()
     {
-        Log.i( TAG, "Updating client about connection: " + m_connected );
+        CommsStats stats = m_commsEngine.getStats();
+        Bundle bundle = createStatsBundle( stats );
+        Bundle peersBundle = new Bundle();
 
-        sendMessageToUI( Message.obtain( null, ( m_connected ) ? MSG_CONNECTED : MSG_UNCONNECTED ) );
-    }
+        bundle.putLong( "uptimeMs", System.currentTimeMillis() - stats.getStartTime() );
+        bundle.putInt( "peerCount", m_commsEngine.getCommsClients().length );
 
+        for ( CommsClient commsClient : m_commsEngine.getCommsClients() )
+        {
+            Bundle peerBundle = createStatsBundle( commsClient.getStats() );
 
-    private boolean isRemoteProcess()
-    {
-        String processName = this.getApplication().getApplicationContext().getApplicationInfo().processName;
+            peerBundle.putBoolean( "connected", commsClient.isConnected() );
+            peerBundle.putInt( "sendQueueSize", commsClient.getSendQueueSize() );
+            peersBundle.putBundle( commsClient.getInetAddress().getHostAddress(), peerBundle );
+        }
 
-        Log.d( TAG, "Process name is '" + processName + "'." );
+        bundle.putBundle( "peers", peersBundle );
 
-        return processName.endsWith( ":remote" );
-    }
+        NsdHelper nsdHelper = m_nsdHelper;
 
+        if ( nsdHelper != null )
+        {
+            CommsServiceCache serviceCache = nsdHelper.getServiceCache();
 
-    private void toast( int strId )
-    {
-        String toastStr = getString( strId );
+            bundle.putLong( "resolveCacheHits", serviceCache.getHits() );
+            bundle.putLong( "resolveCacheMisses", serviceCache.getMisses() );
+            bundle.putInt( "resolveCacheSize", serviceCache.size() );
+            bundle.putLong( "lostServicesRecovered", serviceCache.getRecovered() );
+        }
 
-        Toast.makeText( this, toastStr, Toast.LENGTH_SHORT ).show();
-        Log.i( TAG, toastStr + "." );
+        return bundle;
     }
 
 
-    // private void showNotification( int strId )
-    // {
-    // // In this sample, we'll use the same text for the ticker and the expanded notification.
-    // CharSequence text = getString( strId );
-    //
-    // // The PendingIntent to launch our activity if the user selects this notification.
-    // Intent activityIntent = new Intent( this, m_nsdServiceClient );
-    // PendingIntent contentIntent = PendingIntent.getActivity( this, 0, activityIntent, 0 );
-    //
-    // // Set the info for the views that show in the notification panel.
-    // Notification notification = new Notification.Builder( this ).setSmallIcon( R.drawable.ic_nsd_service )
-    // // the status icon
-    // .setTicker( text ).setWhen( System.currentTimeMillis() ).setContentTitle( getText( R.string.nsd_service_name ) )
-    // .setContentText( text ).setContentIntent( contentIntent ).build();
-    //
-    // // Send the notification.
-    // // We use a string id because it is a unique number. We use it later to cancel.
-    // m_notificationManager.notify( strId, notification );
-    // }
-
-    // This is our local server to accept incoming connections from our peers.
-    private class CommsServer
+    private Bundle createStatsBundle( CommsStats stats )
     {
-        private final String SERVER_TAG         = TAG + ":" + CommsServer.class.getSimpleName();
-        public final String  SERVER_THREAD_NAME = SERVER_TAG + ":ServerThread";
-
-        ServerSocket         m_serverSocket     = null;
-        Thread               m_serverThread     = null;
-
+        Bundle bundle = new Bundle();
+        long[] counters = stats.getCounters();
 
-        public CommsServer()
+        for ( int i = 0; i < counters.length; i++ )
         {
-            m_serverThread = new Thread( new ServerThread(), SERVER_THREAD_NAME );
-            m_serverThread.start();
+            bundle.putLong( CommsStats.COUNTER_NAMES[i], counters[i] );
         }
 
+        putHistogram( bundle, "encodeTime", stats.getEncodeTime() );
+        putHistogram( bundle, "writeTime", stats.getWriteTime() );
 
-        public void tearDown()
-        {
-            Log.d( SERVER_TAG, "Tearing down " + SERVER_TAG + " for '" + m_serviceName + "'." );
+        return bundle;
+    }
 
-            try
-            {
-                if ( m_nsdHelper != null )
-                {
-                    m_nsdHelper.unregisterService();
-                }
 
-                m_serverThread.interrupt();
-            }
-            catch ( Exception ex )
-            {
-                Log.e( SERVER_TAG, "Error when tearing down " + SERVER_TAG + ": " + ex.toString() );
-            }
+    private void putHistogram( Bundle bundle, String name, CommsHistogram histogram )
+    {
+        bundle.putLong( name + "Count", histogram.getCount() );
+        bundle.putLong( name + "P50", histogram.getPercentile( 0.5 ) );
+        bundle.putLong( name + "P99", histogram.getPercentile( 0.99 ) );
+        bundle.putLong( name + "Max", histogram.getMax() );
+    }
 
-            closeServerSocket();
-            m_serverThread = null;
-        }
 
+    private void sendTextToUI( CommsMessageLog.Entry entry )
+    {
+        Message msg = Message.obtain( null, MSG_TEXT );
+        Bundle bundle = new Bundle();
 
-        private void closeServerSocket()
-        {
-            if ( m_serverSocket == null )
-            {
-                return;
-            }
+        bundle.putString( "text", entry.getText() );
+        bundle.putLong( "offset", entry.getOffset() );
+        msg.setData( bundle );
+        sendMessageToUI( msg );
+    }
 
-            try
-            {
-                m_serverSocket.close();
-            }
-            catch ( IOException ioe )
-            {
-                Log.e( SERVER_TAG, "Error when closing server socket: " + ioe.toString() );
-            }
-            catch ( Exception ex )
-            {
-                Log.e( SERVER_TAG, "Error when closing server socket: " + ex.toString() );
-            }
-        }
 
+    // Called on the engine's I/O threads, which mustn't wait for a client that is falling
+    // behind: with the selector one thread serves every peer. What doesn't fit is dropped
+    // and counted, the client sees a gap in the offsets and can fetch it with MSG_HISTORY
+    // when the message log is on.
+    private void deliverTextToUI( CommsClient commsClient, CommsMessageLog.Entry entry )
+    {
+        m_textDelivery.offer( entry, commsClient.getStats() );
+    }
 
-        // The server services connection requests to us.
-        // It accepts sockets from other peers, which then becomes a CommsClient socket
-        // to send and receive messages to/from a peer.
-        // Alternatively a connection request to a remote service is accepted and that
-        // become a CommsClient socket to send and receive messages to/from a peer.
-        class ServerThread implements Runnable
+
+    private CommsBatcher.Sink<CommsMessageLog.Entry> createNewTextSink()
+    {
+        return new CommsBatcher.Sink<CommsMessageLog.Entry>()
         {
-            // @Override
-            public void run()
+            public void onBatch( List<CommsMessageLog.Entry> entries )
             {
-                while ( !Thread.currentThread().isInterrupted() )
+                if ( entries.size() == 1 )
                 {
-                    try
-                    {
-                        // Since discovery will happen via Nsd, we don't need to care which port is
-                        // used. Just grab an available one and advertise it via Nsd.
-                        m_serverSocket = new ServerSocket( m_localServerPort );
-                        setLocalServerPort( m_serverSocket.getLocalPort() );
-                        Log.d( SERVER_TAG, "ServerSocket created, awaiting connection on port:" + m_localServerPort );
-                        m_nsdHelper.registerService( m_localServerPort );
-
-                        while ( !Thread.currentThread().isInterrupted() )
-                        {
-                            Log.d( SERVER_TAG, "Awaiting new connection on ServerSocket..." );
-                            Socket socket = m_serverSocket.accept();
-                            Log.d( SERVER_TAG, "Connected." );
-
-                            // Create a new CommsClient using the socket we've just accepted.
-                            connectToSocket( socket );
-                        }
-                    }
-                    catch ( IOException e )
-                    {
-                        Log.w( SERVER_TAG, "ServerSocket exception (can occur when closing ServerSocket): ", e );
-                        e.printStackTrace();
-                    }
+                    // Nothing to coalesce, so clients that only know MSG_TEXT see no change.
+                    sendTextToUI( entries.get( 0 ) );
+                }
+                else
+                {
+                    sendTextBatchToUI( entries );
                 }
             }
-        }
+        };
     }
 
-    // This is the client to manage a connection to a peer, to send and receive.
-    private class CommsClient
-    {
-        private final String       CLIENT_TAG            = TAG + ":" + CommsClient.class.getSimpleName();
-        public final String        RECEIVING_THREAD_NAME = CLIENT_TAG + ":ReceivingThread";
-
-        private InetAddress        m_inetAddress         = null;
-        private int                m_inetPort            = 0;
-        private Socket             m_socket              = null;
-        private boolean            m_servicePublished    = false;
-        private ObjectInputStream  m_objectInputStream   = null;
-        private ObjectOutputStream m_objectOutputStream  = null;
-
-        // private Thread m_sendingThread = null;
-        private Thread             m_receivingThread     = null;
 
+    // One message per MAX_BATCH_CHARS of text.
+    private void sendTextBatchToUI( List<CommsMessageLog.Entry> entries )
+    {
+        ArrayList<String> batch = new ArrayList<String>();
+        long[] offsets = new long[entries.size()];
+        int batchChars = 0;
 
-        public CommsClient( InetAddress inetAddress, int inetPort )
+        for ( CommsMessageLog.Entry entry : entries )
         {
-            m_inetAddress = inetAddress;
-            m_inetPort = inetPort;
-
-            String hostAddress = m_inetAddress.getHostAddress();
+            String text = entry.getText();
 
-            Log.d( CLIENT_TAG, "Creating " + CLIENT_TAG + " for connection to: " + hostAddress + ":" + m_inetPort );
+            if ( !batch.isEmpty() && batchChars + text.length() > MAX_BATCH_CHARS )
+            {
+                sendTextBatchMessageToUI( batch, Arrays.copyOf( offsets, batch.size() ) );
+                batch = new ArrayList<String>();
+                batchChars = 0;
+            }
 
-            addCommsClient();
-            createReceivingThread();
+            offsets[batch.size()] = entry.getOffset();
+            batch.add( text );
+            batchChars += text.length();
         }
 
+        sendTextBatchMessageToUI( batch, Arrays.copyOf( offsets, batch.size() ) );
+    }
 
-        public CommsClient( Socket socket )
-        {
-            m_socket = socket;
-            m_inetAddress = m_socket.getInetAddress();
-            m_inetPort = m_socket.getPort();
 
-            String hostAddress = m_inetAddress.getHostAddress();
+    private void sendTextBatchMessageToUI( ArrayList<String> batch, long[] offsets )
+    {
+        Message msg = Message.obtain( null, MSG_TEXT_BATCH );
+        Bundle bundle = new Bundle();
 
-            Log.d( CLIENT_TAG, "Creating " + CLIENT_TAG + " for connection from: " + hostAddress + ":" + m_inetPort );
+        bundle.putStringArrayList( "texts", batch );
+        bundle.putLongArray( "offsets", offsets );
+        msg.setData( bundle );
+        sendMessageToUI( msg );
+    }
 
-            addCommsClient();
-            createReceivingThread();
-        }
 
+    // Logged if there's a message log, otherwise just given a time. Peers are named by
+    // instance id if they've said it, or by address, null for a message to everyone.
+    private CommsMessageLog.Entry logMessage( String peer, int direction, CommsFrame frame )
+    {
+        CommsMessageLog messageLog = m_messageLog;
+        CommsMessageLog.Entry entry = ( messageLog == null ) ? null : messageLog.append( peer, direction, frame );
 
-        public synchronized void tearDown()
+        if ( entry == null )
         {
-            String hostAddress = m_inetAddress.getHostAddress();
-
-            Log.d( TAG, "Tearing down " + CLIENT_TAG + " for:" + hostAddress + ":" + m_inetPort );
-
-            removeCommsClient( hostAddress, this );
-            close();
+            entry = new CommsMessageLog.Entry( CommsMessageLog.NO_OFFSET, System.currentTimeMillis(), peer, direction, frame.getType(),
+                            frame.getPayload() );
         }
 
+        return entry;
+    }
 
-        public synchronized boolean isConnected()
-        {
-            return ( m_socket != null && m_socket.isConnected() );
-        }
 
+    private static String getPeerName( CommsClient commsClient )
+    {
+        String remoteInstanceId = commsClient.getRemoteInstanceId();
 
-        public boolean getServicePublished()
-        {
-            return m_servicePublished;
-        }
+        return ( remoteInstanceId != null ) ? remoteInstanceId : commsClient.getInetAddress().getHostAddress();
+    }
 
 
-        public void setServicePublished( boolean published )
-        {
-            m_servicePublished = published;
-        }
+    // From a MSG_HISTORY request, anything not given matches everything.
+    private static CommsMessageLog.Query createHistoryQuery( Bundle bundle )
+    {
+        CommsMessageLog.Query query = new CommsMessageLog.Query();
 
+        query.setAfterOffset( bundle.getLong( "afterOffset", query.getAfterOffset() ) );
+        query.setFromTime( bundle.getLong( "fromTime", query.getFromTime() ) );
+        query.setToTime( bundle.getLong( "toTime", query.getToTime() ) );
+        query.setPeer( bundle.getString( "peer" ) );
+        query.setType( bundle.getInt( "type", query.getType() ) );
+        query.setDirection( bundle.getInt( "direction", query.getDirection() ) );
+        query.setMaxCount( bundle.getInt( "maxCount", query.getMaxCount() ) );
 
-        public void checkReconnect()
-        {
-            if ( isConnected() )
-            {
-                return;
-            }
+        return query;
+    }
 
-            Log.d( TAG, "Reconnecting " + CLIENT_TAG + " for:" + m_inetAddress.getHostAddress() + ":" + m_inetPort );
 
-            close();
-            createReceivingThread();
-        }
+    // Reply with one page, the client asks again after its last offset for the next, so
+    // however much it missed neither of us holds more than a page. Without a message
+    // log the page is empty and complete.
+    private void sendHistory( CommsMessageLog.Query query, Messenger replyTo )
+    {
+        CommsMessageLog messageLog = m_messageLog;
+        Message msg = Message.obtain( null, MSG_HISTORY );
+        Bundle bundle = new Bundle();
 
+        query.setMaxBytes( Math.min( query.getMaxBytes(), MAX_BATCH_CHARS ) );
 
-        // Sending messages to our peer.
-        public void sendMessage( Message msg )
+        if ( messageLog == null )
         {
-            if ( m_socket == null )
-            {
-                Log.w( CLIENT_TAG, "Socket is null!" );
-                return;
-            }
-
-            String text = "";
-
-            switch ( msg.what )
-            {
-                case MSG_TEXT:
-                    text = msg.getData().getString( "text" );
-                    break;
-
-                // case MSG_OBJECT:
-                // Log.w( CLIENT_TAG, "Unhandled message id: " + msg.what );
-                // break;
-
-                default:
-                    Log.w( CLIENT_TAG, "Unhandled message id: " + msg.what );
-                    return;
-            }
-
-            try
-            {
-                m_objectOutputStream.writeObject( text );
-                m_objectOutputStream.flush();
-                sendInfoToUI( "Sent message with id " + msg.what + " to client " + m_inetAddress.getHostAddress() + "." );
-
-                Log.d( CLIENT_TAG, "Client sent message '" + text + "'." );
-            }
-            catch ( UnknownHostException ex )
-            {
-                Log.d( CLIENT_TAG, "Unknown Host!", ex );
-            }
-            catch ( IOException ex )
-            {
-                Log.d( CLIENT_TAG, "I/O Exception!", ex );
-            }
-            catch ( Exception ex )
-            {
-                Log.d( CLIENT_TAG, "Miscellaneous Exception!", ex );
-            }
+            bundle.putLong( "lastOffset", query.getAfterOffset() );
+            bundle.putBoolean( "complete", true );
         }
-
-
-        private void addCommsClient()
+        else
         {
-            String hostAddress = m_inetAddress.getHostAddress();
-            CommsClient storedCommsClient = NsdService.this.addCommsClient( hostAddress, this );
+            CommsMessageLog.Page page = messageLog.query( query );
+            List<CommsMessageLog.Entry> entries = page.getEntries();
+            ArrayList<String> texts = new ArrayList<String>();
+            ArrayList<String> peers = new ArrayList<String>();
+            long[] offsets = new long[entries.size()];
+            long[] times = new long[entries.size()];
+            int[] types = new int[entries.size()];
+            int[] directions = new int[entries.size()];
 
-            if ( storedCommsClient != null )
+            for ( int i = 0; i < entries.size(); i++ )
             {
-                // Replaced CommsClient. Make sure it is destroyed.
-                storedCommsClient.tearDown();
+                CommsMessageLog.Entry entry = entries.get( i );
+
+                texts.add( entry.getText() );
+                peers.add( entry.getPeer() );
+                offsets[i] = entry.getOffset();
+                times[i] = entry.getTime();
+                types[i] = entry.getType();
+                directions[i] = entry.getDirection();
             }
-        }
-
 
-        public synchronized void close()
-        {
-            closeAllIO();
-            interruptThreads();
+            bundle.putStringArrayList( "texts", texts );
+            bundle.putStringArrayList( "peers", peers );
+            bundle.putLongArray( "offsets", offsets );
+            bundle.putLongArray( "times", times );
+            bundle.putIntArray( "types", types );
+            bundle.putIntArray( "directions", directions );
+            bundle.putLong( "lastOffset", page.getLastOffset() );
+            bundle.putBoolean( "complete", page.isComplete() );
         }
 
+        msg.setData( bundle );
 
-        private void createReceivingThread()
-        {
-            m_servicePublished = true;
-            m_receivingThread = new Thread( new ReceivingThread(), RECEIVING_THREAD_NAME );
-            m_receivingThread.start();
-        }
-
-
-        private synchronized boolean createIOStreams()
+        if ( replyTo == null )
         {
-            if ( m_socket == null || m_socket.isClosed() )
-            {
-                Log.e( CLIENT_TAG, "Unable to create IO streams, bad socket." );
-                return false;
-            }
+            sendMessageToUI( msg );
 
-            boolean ok = false;
-
-            try
-            {
-                // For some reason this doesn't create the streams if the input stream
-                // is created first!
-                m_objectOutputStream = new ObjectOutputStream( m_socket.getOutputStream() );
-                m_objectInputStream = new ObjectInputStream( m_socket.getInputStream() );
-                ok = true;
-            }
-            catch ( IOException ex )
-            {
-                Log.e( CLIENT_TAG, "IO exception creating IO streams: ", ex );
-            }
-            catch ( Exception ex )
-            {
-                Log.e( CLIENT_TAG, "Other exception creating IO streams: ", ex );
-            }
-
-            return ok;
+            return;
         }
 
-
-        private synchronized void closeIOStreams()
+        try
         {
-            try
-            {
-                if ( m_objectInputStream != null )
-                {
-                    m_objectInputStream.close();
-                }
-
-                if ( m_objectOutputStream != null )
-                {
-                    m_objectOutputStream.close();
-                }
-            }
-            catch ( Exception ex )
-            {}
-
-            m_objectInputStream = null;
-            m_objectOutputStream = null;
+            replyTo.send( msg );
         }
-
-
-        private void interruptThreads()
+        catch ( RemoteException ex )
         {
-            if ( m_receivingThread != null )
-            {
-                m_receivingThread.interrupt();
-            }
-
-            m_receivingThread = null;
+            Log.e( TAG, "Failed to send history to client: " + ex.toString() );
         }
+    }
 
 
-        private synchronized void setSocket( Socket socket )
-        {
-            if ( socket == null )
-            {
-                Log.d( TAG, "Setting a null socket." );
-            }
-            else
-            {
-                Log.d( TAG, "Setting a new socket." );
-            }
-
-            if ( m_socket != null )
-            {
-                Log.w( TAG, "Replacing the existing socket." );
-
-                if ( !m_socket.isClosed() )
-                {
-                    try
-                    {
-                        m_socket.close();
-                    }
-                    catch ( IOException e )
-                    {
-                        e.printStackTrace();
-                    }
-                }
-            }
+    private void sendInfoToUI( String info )
+    {
+        Message msg = Message.obtain( null, MSG_INFO );
+        Bundle bundle = new Bundle();
 
-            m_socket = socket;
-        }
+        bundle.putString( "info", info );
+        msg.setData( bundle );
+        sendMessageToUI( msg );
+    }
 
 
-        private synchronized boolean checkOpenSocket()
+    private void updateConnected( boolean connected, boolean forceUpdate )
+    {
+        if ( forceUpdate || connected != m_connected )
         {
-            boolean socketOk = false;
-
-            try
-            {
-                if ( isConnected() )
-                {
-                    Log.d( TAG, "Socket already initialised, skipping!" );
-                }
-                else
-                {
-                    setSocket( new Socket( m_inetAddress, m_inetPort ) );
-
-                    Log.d( TAG, "Client-side socket initialized." );
-                }
-
-                socketOk = true;
-            }
-            catch ( UnknownHostException e )
-            {
-                Log.d( TAG, "Initializing socket failed, UHE", e );
-            }
-            catch ( IOException e )
-            {
-                Log.d( TAG, "Initializing socket failed, IOE.", e );
-            }
-
-            notifyClientChange( socketOk, false );
+            m_connected = connected;
 
-            return socketOk;
+            sendConnectedToUI();
         }
+    }
 
 
-        private synchronized void closeSocket()
-        {
-            if ( m_socket == null )
-            {
-                return;
-            }
-
-            try
-            {
-                m_socket.close();
-            }
-            catch ( IOException ioe )
-            {
-                Log.e( TAG, "Error when closing socket." );
-            }
-
-            m_socket = null;
-            notifyClientChange( false, false );
-        }
-
+    private void sendConnectedToUI()
+    {
+        Log.i( TAG, "Updating client about connection: " + m_connected );
 
-        private synchronized void closeAllIO()
-        {
-            closeIOStreams();
-            closeSocket();
-        }
+        sendMessageToUI( Message.obtain( null, ( m_connected ) ? MSG_CONNECTED : MSG_UNCONNECTED ) );
+    }
 
 
-        // The receiving thread asynchronously listens for and receives messages from a peer.
-        class ReceivingThread implements Runnable
-        {
-            // @Override
-            public void run()
-            {
-                // for ( int retries = 0; m_servicePublished && retries < REMOTE_CLIENT_RETRIES && !Thread.currentThread().isInterrupted();
-                // retries++ )
-                // {
-                // if ( retries != 0 )
-                // {
-                // closeAllIO();
-                // sleep( REMOTE_CLIENT_WAIT_MS );
-                // }
-
-                createAndDoIOLoop();
-                // }
-
-                if ( getServicePublished() )
-                {
-                    // Leave the shell of the CommsClient running to allow easy reconnect.
-                    close();
-                }
-                else
-                {
-                    // Service was not published. We were just trying to reconnect an old remote client.
-                    tearDown();
-                }
-            }
+    private boolean isRemoteProcess()
+    {
+        String processName = this.getApplication().getApplicationContext().getApplicationInfo().processName;
 
+        Log.d( TAG, "Process name is '" + processName + "'." );
 
-            private void createAndDoIOLoop()
-            {
-                if ( !checkOpenSocket() || !createIOStreams() )
-                {
-                    return;
-                }
+        return processName.endsWith( ":remote" );
+    }
 
-                try
-                {
-                    while ( !Thread.currentThread().isInterrupted() )
-                    {
-                        String text = (String) m_objectInputStream.readObject();
 
-                        if ( text != null )
-                        {
-                            Log.d( CLIENT_TAG, "Read from the stream '" + text + "'." );
+    private void toast( int strId )
+    {
+        String toastStr = getString( strId );
 
-                            sendTextToUI( text );
-                        }
-                        else
-                        {
-                            Log.d( CLIENT_TAG, "The nulls! The nulls!" );
-                            break;
-                        }
-                    }
-                }
-                catch ( IOException ex )
-                {
-                    Log.e( CLIENT_TAG, "Receiving loop io error: ", ex );
-                }
-                catch ( Exception ex )
-                {
-                    Log.e( CLIENT_TAG, "Receiving loop miscellaneous exception error: ", ex );
-                }
-            }
+        Toast.makeText( this, toastStr, Toast.LENGTH_SHORT ).show();
+        Log.i( TAG, toastStr + "." );
+    }
 
 
-            // private void sleep( int ms )
-            // {
-            // try
-            // {
-            // wait( ms );
-            // }
-            // catch ( Exception ex )
-            // {
-            //
-            // }
-            // }
-        }
-    }
+    // private void showNotification( int strId )
+    // {
+    // // In this sample, we'll use the same text for the ticker and the expanded notification.
+    // CharSequence text = getString( strId );
+    //
+    // // The PendingIntent to launch our activity if the user selects this notification.
+    // Intent activityIntent = new Intent( this, m_nsdServiceClient );
+    // PendingIntent contentIntent = PendingIntent.getActivity( this, 0, activityIntent, 0 );
+    //
+    // // Set the info for the views that show in the notification panel.
+    // Notification notification = new Notification.Builder( this ).setSmallIcon( R.drawable.ic_nsd_service )
+    // // the status icon
+    // .setTicker( text ).setWhen( System.currentTimeMillis() ).setContentTitle( getText( R.string.nsd_service_name ) )
+    // .setContentText( text ).setContentIntent( contentIntent ).build();
+    //
+    // // Send the notification.
+    // // We use a string id because it is a unique number. We use it later to cancel.
+    // m_notificationManager.notify( strId, notification );
+    // }
 
 }
 
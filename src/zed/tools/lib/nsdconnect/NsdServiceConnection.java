@@ -14,6 +14,8 @@ import android.os.RemoteException;
 import android.util.Log;
 import android.widget.Toast;
 
+import zed.tools.lib.nsdconnect.core.CommsMessageLog;
+
 
 public class NsdServiceConnection implements ServiceConnection
 {
@@ -26,6 +28,90 @@ public class NsdServiceConnection implements ServiceConnection
     private Messenger    m_serviceMessenger;
     private Context      m_context;
     private String       m_serviceName;
+    private Options      m_options;
+    // The last message the client has from the service's message log.
+    private volatile long m_lastOffset       = CommsMessageLog.NO_OFFSET;
+
+
+    // How the service is to run, passed to it as extras when it is started. Only what
+    // is set is passed, the service keeps its own value, or its default, for the rest.
+    public static class Options
+    {
+        private final Bundle m_extras = new Bundle();
+
+
+        public Options setSelectorTransport( boolean selectorTransport )
+        {
+            m_extras.putBoolean( NsdService.SELECTOR_TRANSPORT, selectorTransport );
+            return this;
+        }
+
+
+        // Both ends need it on, a peer without it is sent to as before.
+        public Options setReliableDelivery( boolean reliableDelivery )
+        {
+            m_extras.putBoolean( NsdService.RELIABLE_DELIVERY, reliableDelivery );
+            return this;
+        }
+
+
+        // Frames for peers that can't be reached are kept on disk until they're back.
+        public Options setDurableOutbox( boolean durableOutbox )
+        {
+            m_extras.putBoolean( NsdService.DURABLE_OUTBOX, durableOutbox );
+            return this;
+        }
+
+
+        // Everything sent and received is kept on disk, for the history to be asked for.
+        public Options setMessageLog( boolean messageLog )
+        {
+            m_extras.putBoolean( NsdService.MESSAGE_LOG, messageLog );
+            return this;
+        }
+
+
+        public Options setDeliveryWindowMs( int deliveryWindowMs )
+        {
+            m_extras.putInt( NsdService.DELIVERY_WINDOW_MS, deliveryWindowMs );
+            return this;
+        }
+
+
+        public Options setDeliveryBatchSize( int deliveryBatchSize )
+        {
+            m_extras.putInt( NsdService.DELIVERY_BATCH_SIZE, deliveryBatchSize );
+            return this;
+        }
+
+
+        public Options setLostGraceMs( int lostGraceMs )
+        {
+            m_extras.putInt( NsdService.LOST_GRACE_MS, lostGraceMs );
+            return this;
+        }
+
+
+        public Options setWifiGraceMs( int wifiGraceMs )
+        {
+            m_extras.putInt( NsdService.WIFI_GRACE_MS, wifiGraceMs );
+            return this;
+        }
+
+
+        // NsdService.DISCOVERY_NSD or NsdService.DISCOVERY_MDNS.
+        public Options setDiscoveryBackend( String discoveryBackend )
+        {
+            m_extras.putString( NsdService.DISCOVERY_BACKEND, discoveryBackend );
+            return this;
+        }
+
+
+        Bundle getExtras()
+        {
+            return m_extras;
+        }
+    }
 
 
     // private static class IncomingHandler extends Handler
@@ -49,10 +135,24 @@ public class NsdServiceConnection implements ServiceConnection
     // }
 
     public NsdServiceConnection( boolean isLocalService, Context context, String serviceName, Handler clientHandler )
+    {
+        this( isLocalService, context, serviceName, clientHandler, false );
+    }
+
+
+    // The selector transport serves all peers from one thread instead of a thread per peer.
+    public NsdServiceConnection( boolean isLocalService, Context context, String serviceName, Handler clientHandler, boolean selectorTransport )
+    {
+        this( isLocalService, context, serviceName, clientHandler, new Options().setSelectorTransport( selectorTransport ) );
+    }
+
+
+    public NsdServiceConnection( boolean isLocalService, Context context, String serviceName, Handler clientHandler, Options options )
     {
         m_isLocalService = isLocalService;
         m_context = context;
         m_serviceName = serviceName;
+        m_options = options;
         m_clientMessenger = new Messenger( clientHandler );
         
         startService();
@@ -65,6 +165,13 @@ public class NsdServiceConnection implements ServiceConnection
         Bundle bundle = new Bundle();
 
         bundle.putString( NsdService.SERVICE_NAME, m_serviceName );
+
+        if ( m_lastOffset != CommsMessageLog.NO_OFFSET )
+        {
+            // Catch up on what was missed while unbound.
+            bundle.putLong( "lastOffset", m_lastOffset );
+        }
+
         msg.setData( bundle );
 
         if ( m_isLocalService )
@@ -164,6 +271,49 @@ public class NsdServiceConnection implements ServiceConnection
     {
         sendMessageToRemoteService( Message.obtain( null, NsdService.MSG_RESUME ) );
     }
+
+
+    // The service replies to the client handler with an NsdService.MSG_STATS message.
+    public void requestStats()
+    {
+        Message msg = Message.obtain( null, NsdService.MSG_STATS );
+
+        msg.replyTo = m_clientMessenger;
+        sendMessage( msg );
+    }
+
+
+    public long getLastOffset()
+    {
+        return m_lastOffset;
+    }
+
+
+    // The client sets the offset of the last message it has, from MSG_TEXT, MSG_TEXT_BATCH
+    // or MSG_HISTORY, and on binding again is sent a MSG_HISTORY page of what came after.
+    public void setLastOffset( long lastOffset )
+    {
+        m_lastOffset = lastOffset;
+    }
+
+
+    // The service replies to the client handler with an NsdService.MSG_HISTORY page.
+    public void requestHistory( CommsMessageLog.Query query )
+    {
+        Message msg = Message.obtain( null, NsdService.MSG_HISTORY );
+        Bundle bundle = new Bundle();
+
+        bundle.putLong( "afterOffset", query.getAfterOffset() );
+        bundle.putLong( "fromTime", query.getFromTime() );
+        bundle.putLong( "toTime", query.getToTime() );
+        bundle.putString( "peer", query.getPeer() );
+        bundle.putInt( "type", query.getType() );
+        bundle.putInt( "direction", query.getDirection() );
+        bundle.putInt( "maxCount", query.getMaxCount() );
+        msg.setData( bundle );
+        msg.replyTo = m_clientMessenger;
+        sendMessage( msg );
+    }
     
     
     // This starts the service if not already running.
@@ -176,6 +326,7 @@ public class NsdServiceConnection implements ServiceConnection
         startServiceIntent.putExtra( NsdService.CLIENT_PACKAGE, m_context.getPackageName() );
         startServiceIntent.putExtra( NsdService.CLIENT_CLASS, m_context.getClass().getSimpleName() );
         startServiceIntent.putExtra( NsdService.SERVICE_NAME, m_serviceName );
+        startServiceIntent.putExtras( m_options.getExtras() );
         m_context.startService( startServiceIntent );
         
     }